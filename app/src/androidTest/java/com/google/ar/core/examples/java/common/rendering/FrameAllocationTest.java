@@ -0,0 +1,209 @@
+/*
+ * Copyright 2018 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.examples.java.common.rendering;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+import android.opengl.EGL14;
+import android.opengl.EGLConfig;
+import android.opengl.EGLContext;
+import android.opengl.EGLDisplay;
+import android.opengl.EGLSurface;
+import android.opengl.GLES20;
+import android.opengl.Matrix;
+import android.os.Debug;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import com.google.ar.core.Plane;
+import com.google.ar.core.Pose;
+import com.google.ar.core.examples.java.common.rendering.ObjectRenderer.BlendMode;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Draws warmed-up frames the way the activities do, in an offscreen EGL context on the test
+ * thread, and checks that they allocate nothing. The camera background and the ARCore frame need
+ * a session, so the frames draw everything else: the planes, the objects of a {@link Scene}, two
+ * of them sharing a renderer, and the composite of the {@link DynamicResolutionTarget}.
+ */
+// Debug's allocation counting is deprecated without a replacement for counting the allocations
+// of one thread; it still counts on debuggable builds.
+@SuppressWarnings("deprecation")
+@RunWith(AndroidJUnit4.class)
+public class FrameAllocationTest {
+  private static final String TAG = FrameAllocationTest.class.getSimpleName();
+  private static final int WIDTH = 640;
+  private static final int HEIGHT = 480;
+  // More than the FrameAllocationMonitor warms up for.
+  private static final int WARMUP_FRAMES = 90;
+  private static final int MEASURED_FRAMES = 120;
+
+  private EGLDisplay display;
+  private EGLSurface surface;
+  private EGLContext eglContext;
+
+  private final GlContextMonitor glContextMonitor = new GlContextMonitor(TAG);
+  private final PlaneRenderer planeRenderer = new PlaneRenderer();
+  private final PointCloudRenderer pointCloudRenderer = new PointCloudRenderer();
+  private final ObjectRenderer virtualObject = new ObjectRenderer();
+  private final ObjectRenderer virtualObjectShadow = new ObjectRenderer();
+  private final Scene scene = new Scene();
+  private final DynamicResolutionTarget renderTarget = new DynamicResolutionTarget();
+  private QualityGovernor qualityGovernor;
+
+  private final List<Plane> planes = new ArrayList<>();
+  private final Pose cameraPose = Pose.IDENTITY;
+  private final float[] viewMatrix = new float[16];
+  private final float[] projectionMatrix = new float[16];
+  private final float[] colorCorrectionRgba = {1.0f, 1.0f, 1.0f, 0.5f};
+
+  @Before
+  public void setUp() throws Exception {
+    createEglContext();
+    Context context = InstrumentationRegistry.getTargetContext();
+
+    glContextMonitor.onSurfaceCreated();
+    DeviceClassifier.getInstance().classify(context);
+    planeRenderer.createOnGlThread(context, "models/trigrid.png");
+    pointCloudRenderer.createOnGlThread(context);
+    renderTarget.createOnGlThread(context);
+    renderTarget.onSurfaceChanged(WIDTH, HEIGHT);
+    virtualObject.createOnGlThread(context, "models/andy.obj", "models/andy.png");
+    virtualObject.setMaterialProperties(0.0f, 2.0f, 0.5f, 6.0f);
+    virtualObjectShadow.createOnGlThread(
+        context, "models/andy_shadow.obj", "models/andy_shadow.png");
+    virtualObjectShadow.setBlendMode(BlendMode.Shadow);
+    virtualObjectShadow.setMaterialProperties(1.0f, 0.0f, 0.0f, 1.0f);
+    glContextMonitor.onResourcesCreated();
+
+    // Two treasures of the same model in front of the camera, which looks down -z.
+    float[] modelMatrix = new float[16];
+    Matrix.setIdentityM(modelMatrix, 0);
+    Matrix.translateM(modelMatrix, 0, -0.2f, -0.2f, -1.0f);
+    scene.add(virtualObject, virtualObjectShadow).setModelMatrix(modelMatrix, 1.0f);
+    Matrix.translateM(modelMatrix, 0, 0.4f, 0.0f, 0.0f);
+    scene.add(virtualObject, virtualObjectShadow).setModelMatrix(modelMatrix, 1.0f);
+    Matrix.setIdentityM(viewMatrix, 0);
+    Matrix.perspectiveM(projectionMatrix, 0, 60.0f, (float) WIDTH / HEIGHT, 0.1f, 100.0f);
+
+    // A budget no frame exceeds, so that neither the level nor the scale changes while measured.
+    qualityGovernor =
+        new QualityGovernor(context, renderTarget, pointCloudRenderer, planeRenderer, scene);
+    qualityGovernor.setTargetFrameRate(1.0f);
+    renderTarget.setTargetFrameRate(1.0f);
+  }
+
+  @After
+  public void tearDown() {
+    glContextMonitor.onDestroy();
+    EGL14.eglMakeCurrent(
+        display, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_CONTEXT);
+    EGL14.eglDestroySurface(display, surface);
+    EGL14.eglDestroyContext(display, eglContext);
+    EGL14.eglTerminate(display);
+  }
+
+  @Test
+  public void steadyStateFramesDoNotAllocate_onScreen() {
+    assertNoAllocations();
+  }
+
+  @Test
+  public void steadyStateFramesDoNotAllocate_offscreen() {
+    // The governor sets the scale range on its first frame.
+    drawFrame();
+    renderTarget.setScaleRange(DynamicResolutionTarget.DEFAULT_MIN_SCALE, 0.7f);
+    assertNoAllocations();
+  }
+
+  private void assertNoAllocations() {
+    for (int i = 0; i < WARMUP_FRAMES; i++) {
+      drawFrame();
+    }
+    Debug.startAllocCounting();
+    try {
+      Debug.resetThreadAllocCount();
+      for (int i = 0; i < MEASURED_FRAMES; i++) {
+        drawFrame();
+      }
+      int count = Debug.getThreadAllocCount();
+      assertEquals("Objects allocated by " + MEASURED_FRAMES + " warm frames", 0, count);
+    } finally {
+      Debug.stopAllocCounting();
+    }
+  }
+
+  /** The part of the activities' onDrawFrame that needs no ARCore session. */
+  private void drawFrame() {
+    GlState glState = GlState.getInstance();
+    glState.depthMask(true);
+    GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT | GLES20.GL_DEPTH_BUFFER_BIT);
+    glContextMonitor.onDrawFrame();
+    renderTarget.onDrawFrame();
+    qualityGovernor.onDrawFrame();
+    try {
+      renderTarget.begin();
+      planeRenderer.drawPlanes(planes, cameraPose, projectionMatrix);
+      renderTarget.resetCoverage();
+      pointCloudRenderer.draw(viewMatrix, projectionMatrix);
+      scene.draw(viewMatrix, projectionMatrix, colorCorrectionRgba);
+    } finally {
+      renderTarget.end();
+      glState.endFrame();
+      GlErrorChecker.getInstance().endFrame();
+    }
+    // Without a swap, the driver could queue the frames up without ever drawing them.
+    EGL14.eglSwapBuffers(display, surface);
+  }
+
+  private void createEglContext() {
+    display = EGL14.eglGetDisplay(EGL14.EGL_DEFAULT_DISPLAY);
+    int[] version = new int[2];
+    assertTrue("eglInitialize failed", EGL14.eglInitialize(display, version, 0, version, 1));
+    int[] configAttributes = {
+      EGL14.EGL_RENDERABLE_TYPE, EGL14.EGL_OPENGL_ES2_BIT,
+      EGL14.EGL_SURFACE_TYPE, EGL14.EGL_PBUFFER_BIT,
+      EGL14.EGL_RED_SIZE, 8,
+      EGL14.EGL_GREEN_SIZE, 8,
+      EGL14.EGL_BLUE_SIZE, 8,
+      EGL14.EGL_ALPHA_SIZE, 8,
+      EGL14.EGL_DEPTH_SIZE, 16,
+      EGL14.EGL_NONE
+    };
+    EGLConfig[] configs = new EGLConfig[1];
+    int[] configCount = new int[1];
+    assertTrue(
+        "No EGL config",
+        EGL14.eglChooseConfig(display, configAttributes, 0, configs, 0, 1, configCount, 0)
+            && configCount[0] > 0);
+    // Version 2 like the activities' GLSurfaceView, which drivers may serve with a newer context.
+    int[] contextAttributes = {EGL14.EGL_CONTEXT_CLIENT_VERSION, 2, EGL14.EGL_NONE};
+    eglContext =
+        EGL14.eglCreateContext(display, configs[0], EGL14.EGL_NO_CONTEXT, contextAttributes, 0);
+    assertTrue("No EGL context", eglContext != EGL14.EGL_NO_CONTEXT);
+    int[] surfaceAttributes = {EGL14.EGL_WIDTH, WIDTH, EGL14.EGL_HEIGHT, HEIGHT, EGL14.EGL_NONE};
+    surface = EGL14.eglCreatePbufferSurface(display, configs[0], surfaceAttributes, 0);
+    assertTrue(
+        "eglMakeCurrent failed", EGL14.eglMakeCurrent(display, surface, surface, eglContext));
+    GLES20.glViewport(0, 0, WIDTH, HEIGHT);
+  }
+}
@@ -0,0 +1,26 @@
+/*
+ * Copyright 2018 Google Inc. All Rights Reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+precision mediump float;
+varying vec2 v_TexCoord;
+uniform sampler2D u_Texture;
+// Centers of the outermost texels of the frame, so that bilinear filtering does not blend in the
+// unused rest of the render target.
+uniform vec4 u_UvBounds;
+
+void main() {
+    // Premultiplied alpha, composited with (ONE, ONE_MINUS_SRC_ALPHA).
+    gl_FragColor = texture2D(u_Texture, clamp(v_TexCoord, u_UvBounds.xy, u_UvBounds.zw));
+}
@@ -0,0 +1,26 @@
+/*
+ * Copyright 2018 Google Inc. All Rights Reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// Covers the screen with the part of the render target that holds the frame.
+attribute vec2 a_Position;
+
+uniform vec2 u_UvScale;
+
+varying vec2 v_TexCoord;
+
+void main() {
+   gl_Position = vec4(a_Position, 0.0, 1.0);
+   v_TexCoord = (a_Position * 0.5 + 0.5) * u_UvScale;
+}
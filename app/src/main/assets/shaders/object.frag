@@ -24,6 +24,7 @@ uniform vec4 u_ColorCorrectionParameters;
 varying vec3 v_ViewPosition;
 varying vec3 v_ViewNormal;
 varying vec2 v_TexCoord;
+varying vec4 v_Tint;
 
 void main() {
     // We support approximate sRGB gamma.
@@ -47,7 +48,7 @@ void main() {
 
     // Apply inverse SRGB gamma to the texture before making lighting calculations.
     // Flip the y-texture coordinate to address the texture from top-left.
-    vec4 objectColor = texture2D(u_Texture, vec2(v_TexCoord.x, 1.0 - v_TexCoord.y));
+    vec4 objectColor = texture2D(u_Texture, vec2(v_TexCoord.x, 1.0 - v_TexCoord.y)) * v_Tint;
     objectColor.rgb = pow(objectColor.rgb, vec3(kInverseGamma));
 
     // Ambient light is unaffected by the light intensity.
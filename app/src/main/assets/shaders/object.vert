@@ -13,20 +13,39 @@
  * limitations under the License.
  */
 
+// Vertex attributes are quantized. Positions are normalized within the mesh bounds, and
+// u_ModelView and u_ModelViewProjection include the matrix that restores them; u_NormalModelView
+// does not, since it would distort the normals. Normals are octahedral encoded, and texture
+// coordinates are normalized within the range given by u_TexCoordTransform (scale.xy, offset.zw).
 uniform mat4 u_ModelView;
 uniform mat4 u_ModelViewProjection;
+uniform mat4 u_NormalModelView;
+uniform vec4 u_TexCoordTransform;
+uniform vec4 u_Tint;
 
 attribute vec4 a_Position;
-attribute vec3 a_Normal;
+attribute vec2 a_Normal;
 attribute vec2 a_TexCoord;
 
 varying vec3 v_ViewPosition;
 varying vec3 v_ViewNormal;
 varying vec2 v_TexCoord;
+varying vec4 v_Tint;
+
+vec3 decodeOctahedral(vec2 e) {
+    vec3 v = vec3(e, 1.0 - abs(e.x) - abs(e.y));
+    if (v.z < 0.0) {
+        vec2 signNotZero = vec2(v.x >= 0.0 ? 1.0 : -1.0, v.y >= 0.0 ? 1.0 : -1.0);
+        v.xy = (1.0 - abs(v.yx)) * signNotZero;
+    }
+    return normalize(v);
+}
 
 void main() {
+    vec3 normal = decodeOctahedral(clamp(a_Normal, -1.0, 1.0));
     v_ViewPosition = (u_ModelView * a_Position).xyz;
-    v_ViewNormal = normalize((u_ModelView * vec4(a_Normal, 0.0)).xyz);
-    v_TexCoord = a_TexCoord;
+    v_ViewNormal = normalize((u_NormalModelView * vec4(normal, 0.0)).xyz);
+    v_TexCoord = a_TexCoord * u_TexCoordTransform.xy + u_TexCoordTransform.zw;
+    v_Tint = u_Tint;
     gl_Position = u_ModelViewProjection * a_Position;
 }
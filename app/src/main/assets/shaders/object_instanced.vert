@@ -0,0 +1,52 @@
+/*
+ * Copyright 2018 Google Inc. All Rights Reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// Draws many placements of a mesh in one call. Per-instance attributes hold the model matrix,
+// with scale and rotation folded in, and a tint; see ObjectInstances. Vertex attributes are
+// quantized as in object.vert, and u_Dequantization restores the positions.
+uniform mat4 u_View;
+uniform mat4 u_ViewProjection;
+uniform mat4 u_Dequantization;
+uniform vec4 u_TexCoordTransform;
+
+attribute vec4 a_Position;
+attribute vec2 a_Normal;
+attribute vec2 a_TexCoord;
+attribute mat4 a_InstanceModel;
+attribute vec4 a_InstanceTint;
+
+varying vec3 v_ViewPosition;
+varying vec3 v_ViewNormal;
+varying vec2 v_TexCoord;
+varying vec4 v_Tint;
+
+vec3 decodeOctahedral(vec2 e) {
+    vec3 v = vec3(e, 1.0 - abs(e.x) - abs(e.y));
+    if (v.z < 0.0) {
+        vec2 signNotZero = vec2(v.x >= 0.0 ? 1.0 : -1.0, v.y >= 0.0 ? 1.0 : -1.0);
+        v.xy = (1.0 - abs(v.yx)) * signNotZero;
+    }
+    return normalize(v);
+}
+
+void main() {
+    vec3 normal = decodeOctahedral(clamp(a_Normal, -1.0, 1.0));
+    vec4 worldPosition = a_InstanceModel * (u_Dequantization * a_Position);
+    v_ViewPosition = (u_View * worldPosition).xyz;
+    v_ViewNormal = normalize((u_View * (a_InstanceModel * vec4(normal, 0.0))).xyz);
+    v_TexCoord = a_TexCoord * u_TexCoordTransform.xy + u_TexCoordTransform.zw;
+    v_Tint = a_InstanceTint;
+    gl_Position = u_ViewProjection * worldPosition;
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2018 Google Inc. All Rights Reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// Vertex-lit variant of object_instanced.vert, see object_vertexlit.vert.
+uniform mat4 u_View;
+uniform mat4 u_ViewProjection;
+uniform mat4 u_Dequantization;
+uniform vec4 u_TexCoordTransform;
+uniform vec4 u_LightingParameters;
+uniform vec4 u_MaterialParameters;
+
+attribute vec4 a_Position;
+attribute vec2 a_Normal;
+attribute vec2 a_TexCoord;
+attribute mat4 a_InstanceModel;
+attribute vec4 a_InstanceTint;
+
+varying vec2 v_TexCoord;
+varying vec4 v_Tint;
+varying vec2 v_Lighting;
+
+vec3 decodeOctahedral(vec2 e) {
+    vec3 v = vec3(e, 1.0 - abs(e.x) - abs(e.y));
+    if (v.z < 0.0) {
+        vec2 signNotZero = vec2(v.x >= 0.0 ? 1.0 : -1.0, v.y >= 0.0 ? 1.0 : -1.0);
+        v.xy = (1.0 - abs(v.yx)) * signNotZero;
+    }
+    return normalize(v);
+}
+
+// Lights a vertex as object.frag lights a fragment, see there.
+vec2 light(vec3 viewPosition, vec3 viewNormal) {
+    vec3 viewLightDirection = u_LightingParameters.xyz;
+    float materialAmbient = u_MaterialParameters.x;
+    float materialDiffuse = u_MaterialParameters.y;
+    float materialSpecular = u_MaterialParameters.z;
+    float materialSpecularPower = u_MaterialParameters.w;
+
+    float diffuse = materialDiffuse * 0.5 * (dot(viewNormal, viewLightDirection) + 1.0);
+    vec3 reflectedLightDirection = reflect(viewLightDirection, viewNormal);
+    float specularStrength = max(0.0, dot(normalize(viewPosition), reflectedLightDirection));
+    float specular = materialSpecular * pow(specularStrength, materialSpecularPower);
+    return vec2(materialAmbient + diffuse, specular);
+}
+
+void main() {
+    vec3 normal = decodeOctahedral(clamp(a_Normal, -1.0, 1.0));
+    vec4 worldPosition = a_InstanceModel * (u_Dequantization * a_Position);
+    vec3 viewPosition = (u_View * worldPosition).xyz;
+    vec3 viewNormal = normalize((u_View * (a_InstanceModel * vec4(normal, 0.0))).xyz);
+    v_Lighting = light(viewPosition, viewNormal);
+    v_TexCoord = a_TexCoord * u_TexCoordTransform.xy + u_TexCoordTransform.zw;
+    v_Tint = a_InstanceTint;
+    gl_Position = u_ViewProjection * worldPosition;
+}
@@ -16,12 +16,15 @@
 
 package com.google.ar.core.examples.java.cloudanchor;
 
+import android.os.Handler;
+import android.os.Looper;
 import android.support.annotation.Nullable;
 import com.google.ar.core.Anchor;
 import com.google.ar.core.Anchor.CloudAnchorState;
 import com.google.ar.core.Session;
+import com.google.ar.core.examples.java.common.helpers.ArFrameSnapshot;
+import com.google.ar.core.examples.java.common.helpers.ArFrameSnapshot.AnchorUpdate;
 import com.google.common.base.Preconditions;
-import java.util.Collection;
 import java.util.HashMap;
 
 /**
@@ -35,12 +38,18 @@ class CloudAnchorManager {
   /** Listener for the results of a host or resolve operation. */
   interface CloudAnchorListener {
 
-    /** This method is invoked when the results of a Cloud Anchor operation are available. */
+    /**
+     * This method is invoked on the main thread when the results of a Cloud Anchor operation are
+     * available.
+     */
     void onCloudTaskComplete(Anchor anchor);
   }
 
   @Nullable private Session session = null;
   private final HashMap<Anchor, CloudAnchorListener> pendingAnchors = new HashMap<>();
+  private final Handler mainHandler = new Handler(Looper.getMainLooper());
+  // Incremented by clearListeners, so that results posted before are dropped.
+  private int listenerGeneration;
 
   /**
    * This method is used to set the session, since it might not be available when this object is
@@ -70,23 +79,40 @@ class CloudAnchorManager {
     pendingAnchors.put(newAnchor, listener);
   }
 
-  /** Should be called with the updated anchors available after a {@link Session#update()} call. */
-  synchronized void onUpdate(Collection<Anchor> updatedAnchors) {
+  /**
+   * Should be called with the snapshot of each frame after a {@link Session#update()} call, on any
+   * thread. Uses the cloud anchor states recorded in the snapshot.
+   */
+  synchronized void onUpdate(ArFrameSnapshot snapshot) {
     Preconditions.checkNotNull(session, "The session cannot be null.");
-    for (Anchor anchor : updatedAnchors) {
-      if (pendingAnchors.containsKey(anchor)) {
-        CloudAnchorState cloudState = anchor.getCloudAnchorState();
-        if (isReturnableState(cloudState)) {
-          CloudAnchorListener listener = pendingAnchors.remove(anchor);
-          listener.onCloudTaskComplete(anchor);
-        }
+    for (AnchorUpdate update : snapshot.getUpdatedAnchors()) {
+      Anchor anchor = update.getAnchor();
+      if (pendingAnchors.containsKey(anchor)
+          && isReturnableState(update.getCloudAnchorState())) {
+        CloudAnchorListener listener = pendingAnchors.remove(anchor);
+        int generation = listenerGeneration;
+        mainHandler.post(() -> complete(generation, listener, anchor));
       }
     }
   }
 
-  /** Used to clear any currently registered listeners, so they wont be called again. */
+  /**
+   * Used to clear any currently registered listeners, so they wont be called again. Results that
+   * were already posted to the main thread are dropped as well.
+   */
   synchronized void clearListeners() {
     pendingAnchors.clear();
+    listenerGeneration++;
+  }
+
+  /** Calls the listener on the main thread, unless the listeners were cleared since. */
+  private void complete(int generation, CloudAnchorListener listener, Anchor anchor) {
+    synchronized (this) {
+      if (generation != listenerGeneration) {
+        return;
+      }
+    }
+    listener.onCloudTaskComplete(anchor);
   }
 
   private static boolean isReturnableState(CloudAnchorState cloudState) {
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2018 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ar.core.examples.java.cloudanchor;
+
+import android.support.annotation.Nullable;
+import android.util.Log;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Locale;
+
+/**
+ * A disk cache of downloaded files named by the SHA-256 of their contents, so that an entry never
+ * goes stale and is never downloaded twice. The least recently used files are evicted once the
+ * cache grows beyond its size budget.
+ */
+class ContentCache {
+  private static final String TAG = ContentCache.class.getSimpleName();
+  private static final String TEMP_SUFFIX = ".tmp";
+
+  private final File directory;
+  private final long maxBytes;
+
+  ContentCache(File directory, long maxBytes) {
+    this.directory = directory;
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * Returns the cached file with the given content hash, or null if it is not cached.
+   *
+   * @param extension The extension the file was stored with, including the dot.
+   */
+  @Nullable
+  synchronized File get(String sha256, String extension) {
+    File file = fileFor(sha256, extension);
+    if (!file.isFile()) {
+      return null;
+    }
+    // The modification time doubles as the access time for the eviction order.
+    file.setLastModified(System.currentTimeMillis());
+    return file;
+  }
+
+  /**
+   * Stores downloaded data after checking it against its expected hash, then evicts the least
+   * recently used files beyond the size budget.
+   *
+   * @param extension The extension to store the file with, including the dot. Loaders tell file
+   *     formats apart by it.
+   * @return The cached file.
+   * @throws IOException If the data does not match the hash or cannot be written.
+   */
+  synchronized File put(String sha256, String extension, byte[] data) throws IOException {
+    String actual = sha256(data);
+    if (!actual.equalsIgnoreCase(sha256)) {
+      throw new IOException("Content hash mismatch: expected " + sha256 + ", got " + actual);
+    }
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Cannot create " + directory);
+    }
+    File file = fileFor(sha256, extension);
+    // Write to a temporary file first so that a crash never leaves a truncated entry behind.
+    File temp = new File(directory, file.getName() + TEMP_SUFFIX);
+    try (FileOutputStream out = new FileOutputStream(temp)) {
+      out.write(data);
+      out.getFD().sync();
+    }
+    if (!temp.renameTo(file)) {
+      temp.delete();
+      throw new IOException("Cannot move " + temp + " to " + file);
+    }
+    evict(file);
+    return file;
+  }
+
+  /** Returns the lowercase hexadecimal SHA-256 of {@code data}. */
+  static String sha256(byte[] data) {
+    try {
+      byte[] digest = MessageDigest.getInstance("SHA-256").digest(data);
+      StringBuilder hex = new StringBuilder(digest.length * 2);
+      for (byte b : digest) {
+        hex.append(String.format(Locale.US, "%02x", b));
+      }
+      return hex.toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 is not available", e);
+    }
+  }
+
+  private File fileFor(String sha256, String extension) {
+    return new File(directory, sha256.toLowerCase(Locale.US) + extension);
+  }
+
+  /** Deletes the least recently used files until the cache fits its budget, sparing {@code keep}. */
+  private void evict(File keep) {
+    File[] files = directory.listFiles();
+    if (files == null) {
+      return;
+    }
+    long totalBytes = 0;
+    for (File file : files) {
+      totalBytes += file.length();
+    }
+    if (totalBytes <= maxBytes) {
+      return;
+    }
+    Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+    for (File file : files) {
+      if (totalBytes <= maxBytes) {
+        break;
+      }
+      if (file.equals(keep)) {
+        continue;
+      }
+      long length = file.length();
+      if (file.delete()) {
+        totalBytes -= length;
+        Log.i(TAG, "Evicted " + file.getName() + " (" + length + " bytes)");
+      }
+    }
+  }
+}
@@ -45,7 +45,6 @@ import android.widget.Toast;
 import com.google.ar.core.Anchor;
 import com.google.ar.core.Anchor.CloudAnchorState;
 import com.google.ar.core.ArCoreApk;
-import com.google.ar.core.Camera;
 import com.google.ar.core.Config;
 import com.google.ar.core.Config.CloudAnchorMode;
 import com.google.ar.core.Frame;
@@ -57,16 +56,30 @@ import com.google.ar.core.PointCloud;
 import com.google.ar.core.Session;
 import com.google.ar.core.Trackable;
 import com.google.ar.core.TrackingState;
+import com.google.ar.core.examples.java.common.helpers.ArFrameSnapshot;
+import com.google.ar.core.examples.java.common.helpers.ArUpdatePipeline;
 import com.google.ar.core.examples.java.common.helpers.CameraPermissionHelper;
 import com.google.ar.core.examples.java.common.helpers.DisplayRotationHelper;
 import com.google.ar.core.examples.java.common.helpers.FullScreenHelper;
+import com.google.ar.core.examples.java.common.helpers.PlaneRegistry;
 import com.google.ar.core.examples.java.common.helpers.SnackbarHelper;
 import com.google.ar.core.examples.java.common.messaging.HuntNotification;
+import com.google.ar.core.examples.java.common.rendering.AssetPrewarmer;
 import com.google.ar.core.examples.java.common.rendering.BackgroundRenderer;
+import com.google.ar.core.examples.java.common.rendering.DeviceClassifier;
+import com.google.ar.core.examples.java.common.rendering.DynamicResolutionTarget;
+import com.google.ar.core.examples.java.common.rendering.FrameAllocationMonitor;
+import com.google.ar.core.examples.java.common.rendering.GlContextMonitor;
+import com.google.ar.core.examples.java.common.rendering.GlErrorChecker;
+import com.google.ar.core.examples.java.common.rendering.GlState;
+import com.google.ar.core.examples.java.common.rendering.GpuResourceCache;
+import com.google.ar.core.examples.java.common.rendering.GpuResourceTracker;
 import com.google.ar.core.examples.java.common.rendering.ObjectRenderer;
 import com.google.ar.core.examples.java.common.rendering.ObjectRenderer.BlendMode;
 import com.google.ar.core.examples.java.common.rendering.PlaneRenderer;
 import com.google.ar.core.examples.java.common.rendering.PointCloudRenderer;
+import com.google.ar.core.examples.java.common.rendering.QualityGovernor;
+import com.google.ar.core.examples.java.common.rendering.Scene;
 import com.google.ar.core.exceptions.CameraNotAvailableException;
 import com.google.ar.core.exceptions.UnavailableApkTooOldException;
 import com.google.ar.core.exceptions.UnavailableArcoreNotInstalledException;
@@ -78,7 +91,6 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.IntBuffer;
-import java.util.Collection;
 
 import javax.microedition.khronos.egl.EGLConfig;
 import javax.microedition.khronos.opengles.GL10;
@@ -115,11 +127,23 @@ public class CreateTreasureActivity extends AppCompatActivity implements GLSurfa
 
   // Rendering. The Renderers are created here, and initialized when the GL surface is created.
   private GLSurfaceView surfaceView;
+  private final GlContextMonitor glContextMonitor = new GlContextMonitor(TAG);
   private final BackgroundRenderer backgroundRenderer = new BackgroundRenderer();
   private final ObjectRenderer virtualObject = new ObjectRenderer();
   private final ObjectRenderer virtualObjectShadow = new ObjectRenderer();
   private final PlaneRenderer planeRenderer = new PlaneRenderer();
+  private final PlaneRegistry planeRegistry = new PlaneRegistry();
+  private ArUpdatePipeline updatePipeline;
+  // Frame of the latest session update and its snapshot, drawn by onDrawFrame. GL thread only.
+  private Frame updatedFrame;
+  private ArFrameSnapshot updatedSnapshot;
+  // Set by onResume for a new session, whose planes the GL thread must not mix with the old ones.
+  private volatile boolean sessionReplaced;
   private final PointCloudRenderer pointCloudRenderer = new PointCloudRenderer();
+  private final DynamicResolutionTarget renderTarget = new DynamicResolutionTarget();
+  private QualityGovernor qualityGovernor;
+  private final Scene scene = new Scene();
+  private final Scene.Node treasureNode = scene.add(virtualObject, virtualObjectShadow);
 
   private boolean installRequested;
 
@@ -127,6 +151,10 @@ public class CreateTreasureActivity extends AppCompatActivity implements GLSurfa
   private final float[] anchorMatrix = new float[16];
   private final float[] viewMatrix = new float[16];
   private final float[] projectionMatrix = new float[16];
+  private final float[] colorCorrectionRgba = new float[4];
+  private final StringBuilder summaryString = new StringBuilder();
+  private final FrameAllocationMonitor allocationMonitor =
+      new FrameAllocationMonitor(TAG, BuildConfig.DEBUG);
 
   // Locks needed for synchronization
   private final Object singleTapLock = new Object();
@@ -185,6 +213,13 @@ public class CreateTreasureActivity extends AppCompatActivity implements GLSurfa
   protected void onCreate(Bundle savedInstanceState) {
     super.onCreate(savedInstanceState);
     setContentView(R.layout.activity_create_treasure);
+    planeRegistry.addListener(planeRenderer::onPlaneRemoved);
+    // Debug builds made with -PstrictFrameAllocations stop at the first frame that allocates.
+    allocationMonitor.setStrict(BuildConfig.STRICT_FRAME_ALLOCATIONS);
+    planeRegistry.setAllocationMonitor(allocationMonitor);
+    planeRenderer.setAllocationMonitor(allocationMonitor);
+    // Release builds sample GL errors instead of checking every draw.
+    GlErrorChecker.getInstance().setFullChecks(BuildConfig.DEBUG);
     mLogger = new Logger("CreateTreasure");
     mHuntNotification = new HuntNotification(0L,"");
     mHintImage = null;
@@ -192,11 +227,11 @@ public class CreateTreasureActivity extends AppCompatActivity implements GLSurfa
     String treasureTypeString = intent.getExtras().getString("type","treasure");
       if (treasureTypeString.equals("treasure")) {
           treasureType = TreasureType.TREASURE_CHEST;
-          GlobalVariables.OBJECT_ROTATION = 245.88f;
+          GlobalVariables.OBJECT_ROTATION = ModelCatalog.TREASURE_CHEST.rotation;
       }
       else{
           treasureType = TreasureType.LETTER;
-          GlobalVariables.OBJECT_SCALE = 0.1f;
+          GlobalVariables.OBJECT_SCALE = ModelCatalog.LETTER.scale;
       }
 
     uploadProgressLayout = findViewById(R.id.uploadProgressLayout);
@@ -282,7 +317,13 @@ public class CreateTreasureActivity extends AppCompatActivity implements GLSurfa
     surfaceView.setEGLContextClientVersion(2);
     surfaceView.setEGLConfigChooser(8, 8, 8, 8, 16, 0); // Alpha used for plane blending.
     surfaceView.setRenderer(this);
-    surfaceView.setRenderMode(GLSurfaceView.RENDERMODE_CONTINUOUSLY);
+    // Updates the session on every vsync and draws each new camera image, see ArUpdatePipeline.
+    updatePipeline = new ArUpdatePipeline(surfaceView, this::updateSession, 0.1f, 100.0f);
+    updatePipeline.addConsumer(cloudManager::onUpdate);
+    updatePipeline.setAllocationMonitor(allocationMonitor);
+    qualityGovernor =
+        new QualityGovernor(this, renderTarget, pointCloudRenderer, planeRenderer, scene);
+    qualityGovernor.setAllocationMonitor(allocationMonitor);
     installRequested = false;
 
     // Initialize Cloud Anchor variables.
@@ -317,6 +358,7 @@ public class CreateTreasureActivity extends AppCompatActivity implements GLSurfa
           return;
         }
         session = new Session(this);
+        sessionReplaced = true;
       } catch (UnavailableArcoreNotInstalledException e) {
         messageId = R.string.snackbar_arcore_unavailable;
         exception = e;
@@ -340,6 +382,7 @@ public class CreateTreasureActivity extends AppCompatActivity implements GLSurfa
       // Create default config and check if supported.
       Config config = new Config(session);
       config.setCloudAnchorMode(CloudAnchorMode.ENABLED);
+      ArUpdatePipeline.configure(config);
       session.configure(config);
 
       // Setting the session in the HostManager.
@@ -359,7 +402,9 @@ public class CreateTreasureActivity extends AppCompatActivity implements GLSurfa
       session = null;
       return;
     }
+    glContextMonitor.onResume();
     surfaceView.onResume();
+    updatePipeline.onResume();
     displayRotationHelper.onResume();
   }
 
@@ -371,11 +416,39 @@ public class CreateTreasureActivity extends AppCompatActivity implements GLSurfa
       // to query the session. If Session is paused before GLSurfaceView, GLSurfaceView may
       // still call session.update() and get a SessionPausedException.
       displayRotationHelper.onPause();
+      updatePipeline.onPause();
+      surfaceView.queueEvent(
+          () -> {
+            Log.i(TAG, scene.getSummary());
+            Log.i(TAG, allocationMonitor.getSummary());
+            Log.i(TAG, GlState.getInstance().getSummary());
+            Log.i(TAG, GlErrorChecker.getInstance().getSummary());
+            Log.i(TAG, updatePipeline.getSummary());
+            Log.i(TAG, renderTarget.getSummary());
+            Log.i(TAG, DeviceClassifier.getInstance().getSummary());
+            Log.i(TAG, qualityGovernor.getSummary());
+          });
       surfaceView.onPause();
       session.pause();
     }
   }
 
+  @Override
+  protected void onDestroy() {
+    super.onDestroy();
+    // The EGL context is destroyed with the surface view, without telling the renderers.
+    glContextMonitor.onDestroy();
+  }
+
+  @Override
+  public void onTrimMemory(int level) {
+    super.onTrimMemory(level);
+    if (level >= TRIM_MEMORY_RUNNING_LOW) {
+      // Models that are not drawn anymore are kept on the GPU for reuse; give that memory back.
+      surfaceView.queueEvent(GpuResourceCache.getInstance()::trimUnused);
+    }
+  }
+
   @Override
   public void onWindowFocusChanged(boolean hasFocus) {
     super.onWindowFocusChanged(hasFocus);
@@ -416,6 +489,10 @@ public class CreateTreasureActivity extends AppCompatActivity implements GLSurfa
   @Override
   public void onSurfaceCreated(GL10 gl, EGLConfig config) {
     GLES20.glClearColor(0.1f, 0.1f, 0.1f, 1.0f);
+    // This is a new EGL context, so nothing cached for a previous one can be reused.
+    glContextMonitor.onSurfaceCreated();
+    // Renderers read the performance tier while creating their resources.
+    DeviceClassifier.getInstance().classify(this);
 
     // Prepare the rendering objects. This involves reading shaders, so may throw an IOException.
     try {
@@ -423,16 +500,12 @@ public class CreateTreasureActivity extends AppCompatActivity implements GLSurfa
       backgroundRenderer.createOnGlThread(this);
       planeRenderer.createOnGlThread(this, "models/trigrid.png");
       pointCloudRenderer.createOnGlThread(this);
+      renderTarget.createOnGlThread(this);
 
-        if (treasureType == TreasureType.LETTER) {
-            mLogger.logInfo("Treasuretype was letter");
-            virtualObject.createOnGlThread(this, "models/letter.obj", "models/letter.png");
-
-        } else if (treasureType == TreasureType.TREASURE_CHEST) {
-            mLogger.logInfo("Treasuretype was treasure");
-
-            virtualObject.createOnGlThread(this, "models/treasure.obj", "models/t5.png");
-        }
+        ModelCatalog.Entry model = ModelCatalog.bundled(treasureType);
+        mLogger.logInfo("Treasuretype was " + model.id);
+        virtualObject.createOnGlThread(
+            this, model.getObjAssetName(), model.getTextureAssetName());
       virtualObject.setMaterialProperties(0.0f, 2.0f, 0.5f, 6.0f);
 
       virtualObjectShadow.createOnGlThread(
@@ -442,49 +515,92 @@ public class CreateTreasureActivity extends AppCompatActivity implements GLSurfa
     } catch (IOException ex) {
       Log.e(TAG, "Failed to read an asset file", ex);
     }
+    glContextMonitor.onResourcesCreated();
+    Log.i(TAG, GpuResourceTracker.getInstance().getSummary());
+    Log.i(TAG, AssetPrewarmer.getInstance().getSummary());
   }
 
   @Override
   public void onSurfaceChanged(GL10 gl, int width, int height) {
     displayRotationHelper.onSurfaceChanged(width, height);
     GLES20.glViewport(0, 0, width, height);
+    renderTarget.onSurfaceChanged(width, height);
     mWidth = width;
     mHeight = height;
   }
 
-  @Override
-  public void onDrawFrame(GL10 gl) {
-    // Clear screen to notify driver it should not load any pixels from previous frame.
-    GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT | GLES20.GL_DEPTH_BUFFER_BIT);
-      String summaryString = "rot:" + Float.toString(GlobalVariables.OBJECT_ROTATION);
-
+  /** Updates the session on the GL thread once per vsync, see {@link ArUpdatePipeline}. */
+  private void updateSession() {
+    updatedFrame = null;
     if (session == null) {
-      //mLogger.logInfo("Session was null");
       return;
     }
     // Notify ARCore session that the view size changed so that the perspective matrix and
     // the video background can be properly adjusted.
     displayRotationHelper.updateSessionIfNeeded(session);
+    if (sessionReplaced) {
+      // The planes of the previous session are never updated again.
+      sessionReplaced = false;
+      planeRegistry.clear();
+      planeRenderer.clearPlanes();
+    }
 
     try {
       session.setCameraTextureName(backgroundRenderer.getTextureId());
 
-      // Obtain the current frame from ARSession. When the configuration is set to
-      // UpdateMode.BLOCKING (it is by default), this will throttle the rendering to the
-      // camera framerate.
+      // Obtain the current frame from ARSession. In UpdateMode.LATEST_CAMERA_IMAGE this
+      // returns at once, with the same camera image as before if no new one arrived.
       Frame frame = session.update();
-      Camera camera = frame.getCamera();
-      Collection<Anchor> updatedAnchors = frame.getUpdatedAnchors();
-      TrackingState cameraTrackingState = camera.getTrackingState();
+      // ARCore binds the camera texture to latch the new camera image.
+      GlState.getInstance().invalidateTextureBindings();
+      allocationMonitor.begin();
+      planeRegistry.update(session, frame);
+      // The cloudManager is notified of the updated anchors on the update thread.
+      updatedSnapshot = updatePipeline.publish(frame, planeRegistry);
+      allocationMonitor.end();
+      updatedFrame = frame;
+    } catch (Throwable t) {
+      // Avoid crashing the application due to unhandled exceptions.
+      Log.e(TAG, "Exception on the OpenGL thread", t);
+    }
+  }
 
-      // Notify the cloudManager of all the updates.
-      cloudManager.onUpdate(updatedAnchors);
+  @Override
+  public void onDrawFrame(GL10 gl) {
+    // Clear screen to notify driver it should not load any pixels from previous frame. The depth
+    // mask applies to clearing too, and the last draw of the previous frame may have turned it off.
+    GlState glState = GlState.getInstance();
+    glState.depthMask(true);
+    GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT | GLES20.GL_DEPTH_BUFFER_BIT);
+    glContextMonitor.onDrawFrame();
+    // Measures the render cost, which the governor goes by too.
+    renderTarget.onDrawFrame();
+    allocationMonitor.begin();
+    qualityGovernor.onDrawFrame();
+    allocationMonitor.end();
+      // Reused so that building the summary allocates nothing until it is logged.
+      summaryString.setLength(0);
+
+    if (session == null) {
+      //mLogger.logInfo("Session was null");
+      return;
+    }
+    // The session is updated on every vsync, but only a new camera image is drawn.
+    updatePipeline.onDrawFrame();
+    Frame frame = updatedFrame;
+    ArFrameSnapshot snapshot = updatedSnapshot;
+
+    try {
+      if (frame == null) {
+        return;
+      }
+      TrackingState cameraTrackingState = snapshot.getTrackingState();
 
       // Handle user input.
         synchronized (singleTapLock) {
-            summaryString += ",noTapLock";
+            summaryString.append(",noTapLock");
             synchronized (anchorLock) {
-                summaryString += ",noALock";
+                summaryString.append(",noALock");
 
                 // Only handle a tap if the anchor is currently null, the queued tap is non-null and the
                 // camera is currently tracking.
@@ -492,11 +608,11 @@ public class CreateTreasureActivity extends AppCompatActivity implements GLSurfa
                     for (HitResult hit : frame.hitTest(queuedSingleTap)) {
                         if (shouldCreateAnchorWithHit(hit)) {
                           if (anchor == null) { // We are creating the treasure
-                            summaryString += ",CREATED NEW ANCHOR";
+                            summaryString.append(",CREATED NEW ANCHOR");
                             snackbarHelper.showMessageWithAction(CreateTreasureActivity.this, getString(R.string.treasure_placed),this);
                           }
                           else{
-                            summaryString += ",REPOSITIONED ANCHOR";
+                            summaryString.append(",REPOSITIONED ANCHOR");
                             snackbarHelper.showMessageWithAction(CreateTreasureActivity.this,getString(R.string.treasure_relocated),this);
                           }
                           creationState = CreationState.TREASURE_PLACED;
@@ -509,43 +625,56 @@ public class CreateTreasureActivity extends AppCompatActivity implements GLSurfa
 
                         }
                     }
-                    summaryString += ",iterated hits";
+                    summaryString.append(",iterated hits");
 
                 }
             }
             queuedSingleTap = null;
         }
       // Draw background.
+      allocationMonitor.begin();
       backgroundRenderer.draw(frame);
+      allocationMonitor.end();
 
       // If not tracking, don't draw 3d objects.
       if (cameraTrackingState == TrackingState.PAUSED) {
-          summaryString+="TRACKING_PAUSED_NO_DRAW";
-          mLogger.logInfo(summaryString);
+          summaryString.append("TRACKING_PAUSED_NO_DRAW");
+          mLogger.logInfo("rot:" + GlobalVariables.OBJECT_ROTATION + summaryString);
           return;
       }
 
       // Get camera and projection matrices.
-      camera.getViewMatrix(viewMatrix, 0);
-      camera.getProjectionMatrix(projectionMatrix, 0, 0.1f, 100.0f);
+      snapshot.getViewMatrix(viewMatrix);
+      snapshot.getProjectionMatrix(projectionMatrix);
+
+      // Draw the virtual content at the current render scale.
+      renderTarget.begin();
+
+      // Visualize planes, before the points, as their alpha mask is reset afterwards.
+      if (!takePicture) {
+          allocationMonitor.begin();
+          planeRenderer.drawPlanes(
+              planeRegistry.getLivePlanes(),
+              snapshot.getDisplayOrientedPose(),
+              projectionMatrix);
+          allocationMonitor.end();
+      }
+      renderTarget.resetCoverage();
 
       // Visualize tracked points.
       PointCloud pointCloud = frame.acquirePointCloud();
       pointCloudRenderer.update(pointCloud);
+      allocationMonitor.begin();
       pointCloudRenderer.draw(viewMatrix, projectionMatrix);
+      allocationMonitor.end();
 
       // Application is responsible for releasing the point cloud resources after using it.
       pointCloud.release();
-
-      // Visualize planes.
-      Collection<Plane> myPlanes = session.getAllTrackables(Plane.class);
-      if (!takePicture) {
-          planeRenderer.drawPlanes(myPlanes, camera.getDisplayOrientedPose(), projectionMatrix);
-      }
-      if (creationState == CreationState.NO_TREASURE_NO_PLANE &&  myPlanes.size() > 0) {
+      int planeCount = planeRegistry.getLiveCount();
+      if (creationState == CreationState.NO_TREASURE_NO_PLANE && planeCount > 0) {
         creationState = CreationState.NO_TREASURE_BUT_PLANE;
         snackbarHelper.showMessageWithDismiss(CreateTreasureActivity.this,getString(R.string.treasure_planes_found));
-      } else if (creationState == CreationState.NO_TREASURE_BUT_PLANE && myPlanes.size() == 0) {
+      } else if (creationState == CreationState.NO_TREASURE_BUT_PLANE && planeCount == 0) {
         creationState = CreationState.NO_TREASURE_NO_PLANE;
         snackbarHelper.showMessageWithDismiss(CreateTreasureActivity.this,getString(R.string.treasure_planes_looking));
       }
@@ -563,7 +692,7 @@ public class CreateTreasureActivity extends AppCompatActivity implements GLSurfa
 
         }
       }
-        summaryString += ",drawing anchor: "+Boolean.toString(shouldDrawAnchor);
+        summaryString.append(",drawing anchor: ").append(shouldDrawAnchor);
       // Visualize anchor.
       if (shouldDrawAnchor) {
           if (creationState == CreationState.TREASURE_PLACED ) {
@@ -580,19 +709,21 @@ public class CreateTreasureActivity extends AppCompatActivity implements GLSurfa
             });*/
 
           }
-        float[] colorCorrectionRgba = new float[4];
-        frame.getLightEstimate().getColorCorrection(colorCorrectionRgba, 0);
-
-        // Update and draw the model and its shadow.
-        virtualObject.updateModelMatrix(anchorMatrix, GlobalVariables.OBJECT_SCALE);
-        virtualObjectShadow.updateModelMatrix(anchorMatrix, GlobalVariables.OBJECT_SCALE);
-        virtualObject.draw(viewMatrix, projectionMatrix, colorCorrectionRgba);
-        virtualObjectShadow.draw(viewMatrix, projectionMatrix, colorCorrectionRgba);
+        snapshot.getColorCorrection(colorCorrectionRgba);
+
+        // Update and draw the model and its shadow, unless they are out of view.
+        treasureNode.setModelMatrix(anchorMatrix, GlobalVariables.OBJECT_SCALE);
+        allocationMonitor.begin();
+        scene.draw(viewMatrix, projectionMatrix, colorCorrectionRgba);
+        allocationMonitor.end();
       } else if (CreationState.TREASURE_PLACED == creationState) {
           creationState = CreationState.TREASURE_MISSING;
           snackbarHelper.showMessageWithAction(CreateTreasureActivity.this, getString(R.string.treasure_trying_to_locate), this);
       }
 
+      // Composite the virtual content, so that the picture shows it.
+      renderTarget.end();
+
         if (takePicture) {
             takePicture = false;
             treasureBitmap = getCurrentPicture();
@@ -612,9 +743,14 @@ public class CreateTreasureActivity extends AppCompatActivity implements GLSurfa
     } catch (Throwable t) {
       // Avoid crashing the application due to unhandled exceptions.
       Log.e(TAG, "Exception on the OpenGL thread", t);
+    } finally {
+      renderTarget.end();
+      allocationMonitor.endFrame();
+      glState.endFrame();
+      GlErrorChecker.getInstance().endFrame();
     }
 
-    summaryString+= ", Creation State: "+creationState.name();
+    summaryString.append(", Creation State: ").append(creationState.name());
     //mLogger.logInfo("S:"+summaryString); // TODO: comment out in production
   }
 
@@ -25,6 +25,7 @@ import android.graphics.Color;
 import android.net.Uri;
 import android.os.Build;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.util.Log;
 import android.widget.Toast;
 
@@ -175,6 +176,7 @@ public class FirebaseManager {
                       if(childDataSnapshot.child(KEY_IDENTIFY_HINT).getValue() != null)
                             t.setHint(childDataSnapshot.child(KEY_IDENTIFY_HINT).getValue().toString());
                       if( childDataSnapshot.child(KEY_TYPE).getValue() != null) {
+                          t.setModelId(childDataSnapshot.child(KEY_TYPE).getValue().toString());
                           if(childDataSnapshot.child(KEY_TYPE).getValue().toString().equalsIgnoreCase("treasure")) {
                               t.setTreasureType(CreateTreasureActivity.TreasureType.TREASURE_CHEST);
                               t.setScale(1.0f);
@@ -218,6 +220,12 @@ public class FirebaseManager {
     }
   }
 
+  /** Returns the root of the storage bucket, or null if Firebase is not available. */
+  @Nullable
+  StorageReference getStorageReference() {
+    return storageRef;
+  }
+
   public List<Treasure> getAllTreasures(){
       List<Treasure> sorted = new ArrayList<>(notificationStoreMap.values());
       if(sorted != null && sorted.size()>0) {
@@ -22,7 +22,6 @@ import android.widget.Toast;
 
 import com.google.ar.core.Anchor;
 import com.google.ar.core.ArCoreApk;
-import com.google.ar.core.Camera;
 import com.google.ar.core.Config;
 import com.google.ar.core.Config.CloudAnchorMode;
 import com.google.ar.core.Frame;
@@ -34,15 +33,28 @@ import com.google.ar.core.PointCloud;
 import com.google.ar.core.Session;
 import com.google.ar.core.Trackable;
 import com.google.ar.core.TrackingState;
+import com.google.ar.core.examples.java.common.helpers.ArFrameSnapshot;
+import com.google.ar.core.examples.java.common.helpers.ArUpdatePipeline;
 import com.google.ar.core.examples.java.common.helpers.CameraPermissionHelper;
 import com.google.ar.core.examples.java.common.helpers.DisplayRotationHelper;
 import com.google.ar.core.examples.java.common.helpers.FullScreenHelper;
+import com.google.ar.core.examples.java.common.helpers.PlaneRegistry;
 import com.google.ar.core.examples.java.common.helpers.SnackbarHelper;
+import com.google.ar.core.examples.java.common.rendering.AssetPrewarmer;
 import com.google.ar.core.examples.java.common.rendering.BackgroundRenderer;
+import com.google.ar.core.examples.java.common.rendering.DeviceClassifier;
+import com.google.ar.core.examples.java.common.rendering.DynamicResolutionTarget;
+import com.google.ar.core.examples.java.common.rendering.FrameAllocationMonitor;
+import com.google.ar.core.examples.java.common.rendering.GlContextMonitor;
+import com.google.ar.core.examples.java.common.rendering.GlErrorChecker;
+import com.google.ar.core.examples.java.common.rendering.GlState;
+import com.google.ar.core.examples.java.common.rendering.GpuResourceCache;
+import com.google.ar.core.examples.java.common.rendering.GpuResourceTracker;
 import com.google.ar.core.examples.java.common.rendering.ObjectRenderer;
 import com.google.ar.core.examples.java.common.rendering.ObjectRenderer.BlendMode;
 import com.google.ar.core.examples.java.common.rendering.PlaneRenderer;
 import com.google.ar.core.examples.java.common.rendering.PointCloudRenderer;
+import com.google.ar.core.examples.java.common.rendering.QualityGovernor;
 import com.google.ar.core.exceptions.CameraNotAvailableException;
 import com.google.ar.core.exceptions.UnavailableApkTooOldException;
 import com.google.ar.core.exceptions.UnavailableArcoreNotInstalledException;
@@ -50,7 +62,7 @@ import com.google.ar.core.exceptions.UnavailableSdkTooOldException;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.Collection;
+import java.util.Arrays;
 
 import javax.microedition.khronos.egl.EGLConfig;
 import javax.microedition.khronos.opengles.GL10;
@@ -88,9 +100,19 @@ public class HomeActivity extends AppCompatActivity implements GLSurfaceView.Ren
 
     // Rendering. The Renderers are created here, and initialized when the GL surface is created.
     private GLSurfaceView surfaceView;
+    private final GlContextMonitor glContextMonitor = new GlContextMonitor(TAG);
     private final BackgroundRenderer backgroundRenderer = new BackgroundRenderer();
     private final PlaneRenderer planeRenderer = new PlaneRenderer();
+    private final PlaneRegistry planeRegistry = new PlaneRegistry();
+    private ArUpdatePipeline updatePipeline;
+    // Frame of the latest session update and its snapshot, drawn by onDrawFrame. GL thread only.
+    private Frame updatedFrame;
+    private ArFrameSnapshot updatedSnapshot;
+    // Set by onResume for a new session, whose planes the GL thread must not mix with the old ones.
+    private volatile boolean sessionReplaced;
     private final PointCloudRenderer pointCloudRenderer = new PointCloudRenderer();
+    private final DynamicResolutionTarget renderTarget = new DynamicResolutionTarget();
+    private QualityGovernor qualityGovernor;
 
     private boolean installRequested;
 
@@ -98,6 +120,8 @@ public class HomeActivity extends AppCompatActivity implements GLSurfaceView.Ren
     private final float[] anchorMatrix = new float[16];
     private final float[] viewMatrix = new float[16];
     private final float[] projectionMatrix = new float[16];
+    private final FrameAllocationMonitor allocationMonitor =
+            new FrameAllocationMonitor(TAG, BuildConfig.DEBUG);
 
     // Locks needed for synchronization
     private final Object singleTapLock = new Object();
@@ -125,6 +149,13 @@ public class HomeActivity extends AppCompatActivity implements GLSurfaceView.Ren
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_home);
+        planeRegistry.addListener(planeRenderer::onPlaneRemoved);
+        // Debug builds made with -PstrictFrameAllocations stop at the first frame that allocates.
+        allocationMonitor.setStrict(BuildConfig.STRICT_FRAME_ALLOCATIONS);
+        planeRegistry.setAllocationMonitor(allocationMonitor);
+        planeRenderer.setAllocationMonitor(allocationMonitor);
+        // Release builds sample GL errors instead of checking every draw.
+        GlErrorChecker.getInstance().setFullChecks(BuildConfig.DEBUG);
 
         startHuntButton = findViewById(R.id.startHuntingButton);
         startHuntButton.setOnClickListener(new View.OnClickListener() {
@@ -179,12 +210,53 @@ public class HomeActivity extends AppCompatActivity implements GLSurfaceView.Ren
         surfaceView.setEGLContextClientVersion(2);
         surfaceView.setEGLConfigChooser(8, 8, 8, 8, 16, 0); // Alpha used for plane blending.
         surfaceView.setRenderer(this);
-        surfaceView.setRenderMode(GLSurfaceView.RENDERMODE_CONTINUOUSLY);
+        // Updates the session on every vsync and draws each new camera image, see ArUpdatePipeline.
+        updatePipeline = new ArUpdatePipeline(surfaceView, this::updateSession, 0.1f, 100.0f);
+        updatePipeline.addConsumer(cloudManager::onUpdate);
+        updatePipeline.setAllocationMonitor(allocationMonitor);
+        qualityGovernor =
+                new QualityGovernor(this, renderTarget, pointCloudRenderer, planeRenderer, null);
+        qualityGovernor.setAllocationMonitor(allocationMonitor);
         installRequested = false;
 
         // Initialize Cloud Anchor variables.
         firebaseManager = new FirebaseManager(this);
         currentMode = HostResolveMode.NONE;
+
+        // Decode the models of the AR views while the user picks one, so that they open faster.
+        AssetPrewarmer.getInstance().start(
+            this,
+            Arrays.asList(
+                ModelCatalog.TREASURE_CHEST.getObjAssetName(),
+                ModelCatalog.LETTER.getObjAssetName(),
+                "models/andy_shadow.obj"),
+            Arrays.asList(
+                ModelCatalog.TREASURE_CHEST.getTextureAssetName(),
+                ModelCatalog.LETTER.getTextureAssetName(),
+                "models/andy_shadow.png",
+                "models/trigrid.png"),
+            AssetPrewarmer.DEFAULT_BUDGET_BYTES);
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        // The EGL context is destroyed with the surface view, without telling the renderers.
+        glContextMonitor.onDestroy();
+        if (isFinishing()) {
+            // The app is closing; nothing will consume the prewarmed assets.
+            AssetPrewarmer.getInstance().cancel();
+        }
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        if (level >= TRIM_MEMORY_RUNNING_LOW) {
+            AssetPrewarmer.getInstance().cancel();
+            // Models that are not drawn anymore are kept on the GPU for reuse; give that memory back.
+            surfaceView.queueEvent(GpuResourceCache.getInstance()::trimUnused);
+        }
     }
 
     private void openTreasureHuntDialog(){
@@ -289,6 +361,7 @@ public class HomeActivity extends AppCompatActivity implements GLSurfaceView.Ren
                     return;
                 }
                 session = new Session(this);
+                sessionReplaced = true;
             } catch (UnavailableArcoreNotInstalledException e) {
                 messageId = R.string.snackbar_arcore_unavailable;
                 exception = e;
@@ -312,6 +385,7 @@ public class HomeActivity extends AppCompatActivity implements GLSurfaceView.Ren
             // Create default config and check if supported.
             Config config = new Config(session);
             config.setCloudAnchorMode(CloudAnchorMode.ENABLED);
+            ArUpdatePipeline.configure(config);
             session.configure(config);
 
             // Setting the session in the HostManager.
@@ -329,7 +403,9 @@ public class HomeActivity extends AppCompatActivity implements GLSurfaceView.Ren
             session = null;
             return;
         }
+        glContextMonitor.onResume();
         surfaceView.onResume();
+        updatePipeline.onResume();
         displayRotationHelper.onResume();
     }
 
@@ -341,6 +417,7 @@ public class HomeActivity extends AppCompatActivity implements GLSurfaceView.Ren
             // to query the session. If Session is paused before GLSurfaceView, GLSurfaceView may
             // still call session.update() and get a SessionPausedException.
             displayRotationHelper.onPause();
+            updatePipeline.onPause();
             surfaceView.onPause();
             session.pause();
         }
@@ -394,6 +471,10 @@ public class HomeActivity extends AppCompatActivity implements GLSurfaceView.Ren
     @Override
     public void onSurfaceCreated(GL10 gl, EGLConfig config) {
         GLES20.glClearColor(0.1f, 0.1f, 0.1f, 1.0f);
+        // This is a new EGL context, so nothing cached for a previous one can be reused.
+        glContextMonitor.onSurfaceCreated();
+        // Renderers read the performance tier while creating their resources.
+        DeviceClassifier.getInstance().classify(this);
 
         // Prepare the rendering objects. This involves reading shaders, so may throw an IOException.
         try {
@@ -401,48 +482,93 @@ public class HomeActivity extends AppCompatActivity implements GLSurfaceView.Ren
             backgroundRenderer.createOnGlThread(this);
             planeRenderer.createOnGlThread(this, "models/trigrid.png");
             pointCloudRenderer.createOnGlThread(this);
+            renderTarget.createOnGlThread(this);
         } catch (IOException ex) {
             Log.e(TAG, "Failed to read an asset file", ex);
         }
+        glContextMonitor.onResourcesCreated();
+        Log.i(TAG, GpuResourceTracker.getInstance().getSummary());
     }
 
     @Override
     public void onSurfaceChanged(GL10 gl, int width, int height) {
         displayRotationHelper.onSurfaceChanged(width, height);
         GLES20.glViewport(0, 0, width, height);
+        renderTarget.onSurfaceChanged(width, height);
     }
 
-    @Override
-    public void onDrawFrame(GL10 gl) {
-        // Clear screen to notify driver it should not load any pixels from previous frame.
-        GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT | GLES20.GL_DEPTH_BUFFER_BIT);
-
+    /** Updates the session on the GL thread once per vsync, see {@link ArUpdatePipeline}. */
+    private void updateSession() {
+        updatedFrame = null;
         if (session == null) {
             return;
         }
         // Notify ARCore session that the view size changed so that the perspective matrix and
         // the video background can be properly adjusted.
         displayRotationHelper.updateSessionIfNeeded(session);
+        if (sessionReplaced) {
+            // The planes of the previous session are never updated again.
+            sessionReplaced = false;
+            planeRegistry.clear();
+            planeRenderer.clearPlanes();
+        }
 
         try {
             session.setCameraTextureName(backgroundRenderer.getTextureId());
 
-            // Obtain the current frame from ARSession. When the configuration is set to
-            // UpdateMode.BLOCKING (it is by default), this will throttle the rendering to the
-            // camera framerate.
+            // Obtain the current frame from ARSession. In UpdateMode.LATEST_CAMERA_IMAGE this
+            // returns at once, with the same camera image as before if no new one arrived.
             Frame frame = session.update();
-            Camera camera = frame.getCamera();
-            Collection<Anchor> updatedAnchors = frame.getUpdatedAnchors();
-            TrackingState cameraTrackingState = camera.getTrackingState();
+            // ARCore binds the camera texture to latch the new camera image.
+            GlState.getInstance().invalidateTextureBindings();
+            allocationMonitor.begin();
+            planeRegistry.update(session, frame);
+            // The cloudManager is notified of the updated anchors on the update thread.
+            updatedSnapshot = updatePipeline.publish(frame, planeRegistry);
+            allocationMonitor.end();
+            updatedFrame = frame;
+        } catch (Throwable t) {
+            // Avoid crashing the application due to unhandled exceptions.
+            Log.e(TAG, "Exception on the OpenGL thread", t);
+        }
+    }
 
-            // Notify the cloudManager of all the updates.
-            cloudManager.onUpdate(updatedAnchors);
+    @Override
+    public void onDrawFrame(GL10 gl) {
+        // Clear screen to notify driver it should not load any pixels from previous frame. The depth
+        // mask applies to clearing too, and the last draw of the previous frame may have turned it
+        // off.
+        GlState glState = GlState.getInstance();
+        glState.depthMask(true);
+        GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT | GLES20.GL_DEPTH_BUFFER_BIT);
+        glContextMonitor.onDrawFrame();
+        // Measures the render cost, which the governor goes by too.
+        renderTarget.onDrawFrame();
+        allocationMonitor.begin();
+        qualityGovernor.onDrawFrame();
+        allocationMonitor.end();
+
+        if (session == null) {
+            return;
+        }
+        // The session is updated on every vsync, but only a new camera image is drawn.
+        updatePipeline.onDrawFrame();
+        Frame frame = updatedFrame;
+        ArFrameSnapshot snapshot = updatedSnapshot;
+
+        try {
+            if (frame == null) {
+                return;
+            }
+            TrackingState cameraTrackingState = snapshot.getTrackingState();
 
             // Handle user input.
             handleTap(frame, cameraTrackingState);
 
             // Draw background.
+            allocationMonitor.begin();
             backgroundRenderer.draw(frame);
+            allocationMonitor.end();
 
             // If not tracking, don't draw 3d objects.
             if (cameraTrackingState == TrackingState.PAUSED) {
@@ -450,23 +576,39 @@ public class HomeActivity extends AppCompatActivity implements GLSurfaceView.Ren
             }
 
             // Get camera and projection matrices.
-            camera.getViewMatrix(viewMatrix, 0);
-            camera.getProjectionMatrix(projectionMatrix, 0, 0.1f, 100.0f);
+            snapshot.getViewMatrix(viewMatrix);
+            snapshot.getProjectionMatrix(projectionMatrix);
+
+            // Draw the virtual content at the current render scale, composited in the finally
+            // block.
+            renderTarget.begin();
+
+            // Visualize planes, before the points, as their alpha mask is reset afterwards.
+            allocationMonitor.begin();
+            planeRenderer.drawPlanes(
+                    planeRegistry.getLivePlanes(),
+                    snapshot.getDisplayOrientedPose(),
+                    projectionMatrix);
+            allocationMonitor.end();
+            renderTarget.resetCoverage();
 
             // Visualize tracked points.
             PointCloud pointCloud = frame.acquirePointCloud();
             pointCloudRenderer.update(pointCloud);
+            allocationMonitor.begin();
             pointCloudRenderer.draw(viewMatrix, projectionMatrix);
+            allocationMonitor.end();
 
             // Application is responsible for releasing the point cloud resources after using it.
             pointCloud.release();
-
-            // Visualize planes.
-            planeRenderer.drawPlanes(
-                    session.getAllTrackables(Plane.class), camera.getDisplayOrientedPose(), projectionMatrix);
         } catch (Throwable t) {
             // Avoid crashing the application due to unhandled exceptions.
             Log.e(TAG, "Exception on the OpenGL thread", t);
+        } finally {
+            renderTarget.end();
+            allocationMonitor.endFrame();
+            glState.endFrame();
+            GlErrorChecker.getInstance().endFrame();
         }
     }
 
@@ -44,7 +44,6 @@ import android.widget.Toast;
 import com.google.ar.core.Anchor;
 import com.google.ar.core.Anchor.CloudAnchorState;
 import com.google.ar.core.ArCoreApk;
-import com.google.ar.core.Camera;
 import com.google.ar.core.Config;
 import com.google.ar.core.Config.CloudAnchorMode;
 import com.google.ar.core.Frame;
@@ -56,17 +55,32 @@ import com.google.ar.core.PointCloud;
 import com.google.ar.core.Session;
 import com.google.ar.core.Trackable;
 import com.google.ar.core.TrackingState;
+import com.google.ar.core.examples.java.common.helpers.ArFrameSnapshot;
+import com.google.ar.core.examples.java.common.helpers.ArUpdatePipeline;
 import com.google.ar.core.examples.java.common.helpers.CameraPermissionHelper;
 import com.google.ar.core.examples.java.common.helpers.DisplayRotationHelper;
 import com.google.ar.core.examples.java.common.helpers.FullScreenHelper;
+import com.google.ar.core.examples.java.common.helpers.PlaneRegistry;
 import com.google.ar.core.examples.java.common.helpers.SnackbarHelper;
 import com.google.ar.core.examples.java.common.messaging.HuntNotification;
 import com.google.ar.core.examples.java.common.messaging.MyFirebaseMessagingService;
+import com.google.ar.core.examples.java.common.rendering.AssetPrewarmer;
 import com.google.ar.core.examples.java.common.rendering.BackgroundRenderer;
+import com.google.ar.core.examples.java.common.rendering.DeviceClassifier;
+import com.google.ar.core.examples.java.common.rendering.DynamicResolutionTarget;
+import com.google.ar.core.examples.java.common.rendering.FrameAllocationMonitor;
+import com.google.ar.core.examples.java.common.rendering.GlContextMonitor;
+import com.google.ar.core.examples.java.common.rendering.GlErrorChecker;
+import com.google.ar.core.examples.java.common.rendering.GlState;
+import com.google.ar.core.examples.java.common.rendering.GpuResourceCache;
+import com.google.ar.core.examples.java.common.rendering.GpuResourceTracker;
+import com.google.ar.core.examples.java.common.rendering.ModelSource;
 import com.google.ar.core.examples.java.common.rendering.ObjectRenderer;
 import com.google.ar.core.examples.java.common.rendering.ObjectRenderer.BlendMode;
 import com.google.ar.core.examples.java.common.rendering.PlaneRenderer;
 import com.google.ar.core.examples.java.common.rendering.PointCloudRenderer;
+import com.google.ar.core.examples.java.common.rendering.QualityGovernor;
+import com.google.ar.core.examples.java.common.rendering.Scene;
 import com.google.ar.core.exceptions.CameraNotAvailableException;
 import com.google.ar.core.exceptions.UnavailableApkTooOldException;
 import com.google.ar.core.exceptions.UnavailableArcoreNotInstalledException;
@@ -79,7 +93,6 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.List;
 import java.util.UUID;
 
@@ -110,11 +123,23 @@ public class HuntTreasureActivity extends AppCompatActivity implements GLSurface
 
     // Rendering. The Renderers are created here, and initialized when the GL surface is created.
     private GLSurfaceView surfaceView;
+    private final GlContextMonitor glContextMonitor = new GlContextMonitor(TAG);
     private final BackgroundRenderer backgroundRenderer = new BackgroundRenderer();
     private final ObjectRenderer virtualObject = new ObjectRenderer();
     private final ObjectRenderer virtualObjectShadow = new ObjectRenderer();
     private final PlaneRenderer planeRenderer = new PlaneRenderer();
+    private final PlaneRegistry planeRegistry = new PlaneRegistry();
+    private ArUpdatePipeline updatePipeline;
+    // Frame of the latest session update and its snapshot, drawn by onDrawFrame. GL thread only.
+    private Frame updatedFrame;
+    private ArFrameSnapshot updatedSnapshot;
+    // Set by onResume for a new session, whose planes the GL thread must not mix with the old ones.
+    private volatile boolean sessionReplaced;
     private final PointCloudRenderer pointCloudRenderer = new PointCloudRenderer();
+    private final DynamicResolutionTarget renderTarget = new DynamicResolutionTarget();
+    private QualityGovernor qualityGovernor;
+    private final Scene scene = new Scene();
+    private final Scene.Node treasureNode = scene.add(virtualObject, virtualObjectShadow);
 
     private boolean installRequested;
 
@@ -122,6 +147,9 @@ public class HuntTreasureActivity extends AppCompatActivity implements GLSurface
     private final float[] anchorMatrix = new float[16];
     private final float[] viewMatrix = new float[16];
     private final float[] projectionMatrix = new float[16];
+    private final float[] colorCorrectionRgba = new float[4];
+    private final FrameAllocationMonitor allocationMonitor =
+        new FrameAllocationMonitor(TAG, BuildConfig.DEBUG);
 
     // Locks needed for synchronization
     private final Object singleTapLock = new Object();
@@ -151,8 +179,14 @@ public class HuntTreasureActivity extends AppCompatActivity implements GLSurface
     private final CloudAnchorManager cloudManager = new CloudAnchorManager();
     private HostResolveMode currentMode;
 
-    private Boolean isTreasureObjectReplaced = false;
+    // Set on the UI thread when another treasure is picked, consumed on the GL thread.
+    private volatile boolean isTreasureObjectReplaced = false;
     private static CreateTreasureActivity.TreasureType treasureType = CreateTreasureActivity.TreasureType.TREASURE_CHEST;
+    // Models that are not bundled are fetched in the background; the bundled fallback of the
+    // treasure type is shown until the fetched one is handed to the GL thread here.
+    private ModelCatalog modelCatalog;
+    private volatile String requestedModelId;
+    private volatile ModelSource fetchedModelSource;
     private RoomCodeAndCloudAnchorIdListener hostListener;
 
     // Firebase Messaging
@@ -164,6 +198,13 @@ public class HuntTreasureActivity extends AppCompatActivity implements GLSurface
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_hunt_treasure);
+        planeRegistry.addListener(planeRenderer::onPlaneRemoved);
+        // Debug builds made with -PstrictFrameAllocations stop at the first frame that allocates.
+        allocationMonitor.setStrict(BuildConfig.STRICT_FRAME_ALLOCATIONS);
+        planeRegistry.setAllocationMonitor(allocationMonitor);
+        planeRenderer.setAllocationMonitor(allocationMonitor);
+        // Release builds sample GL errors instead of checking every draw.
+        GlErrorChecker.getInstance().setFullChecks(BuildConfig.DEBUG);
         mLogger = new Logger("HuntTreasureActivity");
         // Initialize the surface
         surfaceView = findViewById(R.id.surfaceview);
@@ -208,7 +249,13 @@ public class HuntTreasureActivity extends AppCompatActivity implements GLSurface
         surfaceView.setEGLContextClientVersion(2);
         surfaceView.setEGLConfigChooser(8, 8, 8, 8, 16, 0); // Alpha used for plane blending.
         surfaceView.setRenderer(this);
-        surfaceView.setRenderMode(GLSurfaceView.RENDERMODE_CONTINUOUSLY);
+        // Updates the session on every vsync and draws each new camera image, see ArUpdatePipeline.
+        updatePipeline = new ArUpdatePipeline(surfaceView, this::updateSession, 0.1f, 100.0f);
+        updatePipeline.addConsumer(cloudManager::onUpdate);
+        updatePipeline.setAllocationMonitor(allocationMonitor);
+        qualityGovernor =
+                new QualityGovernor(this, renderTarget, pointCloudRenderer, planeRenderer, scene);
+        qualityGovernor.setAllocationMonitor(allocationMonitor);
         installRequested = false;
 
         // Initialize UI components.
@@ -220,6 +267,7 @@ public class HuntTreasureActivity extends AppCompatActivity implements GLSurface
 
         // Initialize Cloud Anchor variables.
         firebaseManager = new FirebaseManager(this);
+        modelCatalog = new ModelCatalog(this, firebaseManager.getStorageReference());
         currentMode = HostResolveMode.NONE;
 
         // Initialize Firebase messaging
@@ -262,11 +310,12 @@ public class HuntTreasureActivity extends AppCompatActivity implements GLSurface
 
                 if(mHuntNotification.getType().equalsIgnoreCase("treasure")){
                     treasureType = CreateTreasureActivity.TreasureType.TREASURE_CHEST;
-                    GlobalVariables.OBJECT_ROTATION = 245.88f;
+                    GlobalVariables.OBJECT_ROTATION = ModelCatalog.TREASURE_CHEST.rotation;
                 }else{
                     treasureType = CreateTreasureActivity.TreasureType.LETTER;
-                    GlobalVariables.OBJECT_SCALE = 0.1f;
+                    GlobalVariables.OBJECT_SCALE = ModelCatalog.LETTER.scale;
                 }
+                requestCatalogModel(mHuntNotification.getType());
                 // Download and test the image, run it as a background task.
                 final String imageUrl = mHuntNotification.getNotificationImageurl();
                 this.runOnUiThread(new Runnable() {
@@ -353,6 +402,7 @@ public class HuntTreasureActivity extends AppCompatActivity implements GLSurface
           return;
         }
         session = new Session(this);
+        sessionReplaced = true;
       } catch (UnavailableArcoreNotInstalledException e) {
         messageId = R.string.snackbar_arcore_unavailable;
         exception = e;
@@ -376,6 +426,7 @@ public class HuntTreasureActivity extends AppCompatActivity implements GLSurface
       // Create default config and check if supported.
       Config config = new Config(session);
       config.setCloudAnchorMode(CloudAnchorMode.ENABLED);
+      ArUpdatePipeline.configure(config);
       session.configure(config);
 
       // Setting the session in the HostManager.
@@ -395,7 +446,9 @@ public class HuntTreasureActivity extends AppCompatActivity implements GLSurface
       session = null;
       return;
     }
+    glContextMonitor.onResume();
     surfaceView.onResume();
+    updatePipeline.onResume();
     displayRotationHelper.onResume();
   }
 
@@ -407,11 +460,39 @@ public class HuntTreasureActivity extends AppCompatActivity implements GLSurface
       // to query the session. If Session is paused before GLSurfaceView, GLSurfaceView may
       // still call session.update() and get a SessionPausedException.
       displayRotationHelper.onPause();
+      updatePipeline.onPause();
+      surfaceView.queueEvent(
+          () -> {
+            Log.i(TAG, scene.getSummary());
+            Log.i(TAG, allocationMonitor.getSummary());
+            Log.i(TAG, GlState.getInstance().getSummary());
+            Log.i(TAG, GlErrorChecker.getInstance().getSummary());
+            Log.i(TAG, updatePipeline.getSummary());
+            Log.i(TAG, renderTarget.getSummary());
+            Log.i(TAG, DeviceClassifier.getInstance().getSummary());
+            Log.i(TAG, qualityGovernor.getSummary());
+          });
       surfaceView.onPause();
       session.pause();
     }
   }
 
+  @Override
+  protected void onDestroy() {
+    super.onDestroy();
+    // The EGL context is destroyed with the surface view, without telling the renderers.
+    glContextMonitor.onDestroy();
+  }
+
+  @Override
+  public void onTrimMemory(int level) {
+    super.onTrimMemory(level);
+    if (level >= TRIM_MEMORY_RUNNING_LOW) {
+      // Models that are not drawn anymore are kept on the GPU for reuse; give that memory back.
+      surfaceView.queueEvent(GpuResourceCache.getInstance()::trimUnused);
+    }
+  }
+
   @Override
   public void onRequestPermissionsResult(int requestCode, String[] permissions, int[] results) {
     if (!CameraPermissionHelper.hasPermissions(this)) {
@@ -487,6 +568,10 @@ public class HuntTreasureActivity extends AppCompatActivity implements GLSurface
   @Override
   public void onSurfaceCreated(GL10 gl, EGLConfig config) {
     GLES20.glClearColor(0.1f, 0.1f, 0.1f, 1.0f);
+    // This is a new EGL context, so nothing cached for a previous one can be reused.
+    glContextMonitor.onSurfaceCreated();
+    // Renderers read the performance tier while creating their resources.
+    DeviceClassifier.getInstance().classify(this);
 
     // Prepare the rendering objects. This involves reading shaders, so may throw an IOException.
     try {
@@ -494,18 +579,21 @@ public class HuntTreasureActivity extends AppCompatActivity implements GLSurface
       backgroundRenderer.createOnGlThread(this);
       planeRenderer.createOnGlThread(this, "models/trigrid.png");
       pointCloudRenderer.createOnGlThread(this);
+      renderTarget.createOnGlThread(this);
 
 
-        if (treasureType == CreateTreasureActivity.TreasureType.LETTER) {
-            mLogger.logInfo("Treasuretype was letter");
-            virtualObject.createOnGlThread(this, "models/letter.obj", "models/letter.png");
-
-        } else if (treasureType == CreateTreasureActivity.TreasureType.TREASURE_CHEST) {
-            mLogger.logInfo("Treasuretype was treasure");
-
-            virtualObject.createOnGlThread(this, "models/treasure.obj", "models/t5.png");
-        }
+        ModelCatalog.Entry model = ModelCatalog.bundled(treasureType);
+        mLogger.logInfo("Treasuretype was " + model.id);
+        virtualObject.createOnGlThread(
+            this, model.getObjAssetName(), model.getTextureAssetName());
         virtualObject.setMaterialProperties(0.0f, 2.0f, 0.5f, 6.0f);
+        virtualObject.setLoadStateListener(
+            (renderer, state) ->
+                mLogger.logInfo(
+                    "Treasure model load state: "
+                        + state
+                        + ", "
+                        + GpuResourceTracker.getInstance().getSummary()));
 
         virtualObjectShadow.createOnGlThread(
           this, "models/andy_shadow.obj", "models/andy_shadow.png");
@@ -514,62 +602,106 @@ public class HuntTreasureActivity extends AppCompatActivity implements GLSurface
     } catch (IOException ex) {
       Log.e(TAG, "Failed to read an asset file", ex);
     }
+    glContextMonitor.onResourcesCreated();
+    Log.i(TAG, GpuResourceTracker.getInstance().getSummary());
+    Log.i(TAG, AssetPrewarmer.getInstance().getSummary());
   }
 
   @Override
   public void onSurfaceChanged(GL10 gl, int width, int height) {
     displayRotationHelper.onSurfaceChanged(width, height);
     GLES20.glViewport(0, 0, width, height);
+    renderTarget.onSurfaceChanged(width, height);
       mWidth = width;
       mHeight = height;
   }
 
-  @Override
-  public void onDrawFrame(GL10 gl) {
-    // Clear screen to notify driver it should not load any pixels from previous frame.
-    GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT | GLES20.GL_DEPTH_BUFFER_BIT);
-
+  /** Updates the session on the GL thread once per vsync, see {@link ArUpdatePipeline}. */
+  private void updateSession() {
+    updatedFrame = null;
     if (session == null) {
       return;
     }
     // Notify ARCore session that the view size changed so that the perspective matrix and
     // the video background can be properly adjusted.
     displayRotationHelper.updateSessionIfNeeded(session);
+    if (sessionReplaced) {
+      // The planes of the previous session are never updated again.
+      sessionReplaced = false;
+      planeRegistry.clear();
+      planeRenderer.clearPlanes();
+    }
 
     try {
       session.setCameraTextureName(backgroundRenderer.getTextureId());
 
-      if(isTreasureObjectReplaced){
-          if (treasureType == CreateTreasureActivity.TreasureType.LETTER) {
-              mLogger.logInfo("Treasuretype was letter");
-              virtualObject.createOnGlThread(this, "models/letter.obj", "models/letter.png");
+      // Obtain the current frame from ARSession. In UpdateMode.LATEST_CAMERA_IMAGE this
+      // returns at once, with the same camera image as before if no new one arrived.
+      Frame frame = session.update();
+      // ARCore binds the camera texture to latch the new camera image.
+      GlState.getInstance().invalidateTextureBindings();
+      allocationMonitor.begin();
+      planeRegistry.update(session, frame);
+      // The cloudManager is notified of the updated anchors on the update thread.
+      updatedSnapshot = updatePipeline.publish(frame, planeRegistry);
+      allocationMonitor.end();
+      updatedFrame = frame;
+    } catch (Throwable t) {
+      // Avoid crashing the application due to unhandled exceptions.
+      Log.e(TAG, "Exception on the OpenGL thread", t);
+    }
+  }
 
-          } else if (treasureType == CreateTreasureActivity.TreasureType.TREASURE_CHEST) {
-              mLogger.logInfo("Treasuretype was treasure");
+  @Override
+  public void onDrawFrame(GL10 gl) {
+    // Clear screen to notify driver it should not load any pixels from previous frame. The depth
+    // mask applies to clearing too, and the last draw of the previous frame may have turned it off.
+    GlState glState = GlState.getInstance();
+    glState.depthMask(true);
+    GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT | GLES20.GL_DEPTH_BUFFER_BIT);
+    glContextMonitor.onDrawFrame();
+    // Measures the render cost, which the governor goes by too.
+    renderTarget.onDrawFrame();
+    allocationMonitor.begin();
+    qualityGovernor.onDrawFrame();
+    allocationMonitor.end();
 
-              virtualObject.createOnGlThread(this, "models/treasure.obj", "models/t5.png");
-          }
-          virtualObject.setMaterialProperties(0.0f, 2.0f, 0.5f, 6.0f);
+    if (session == null) {
+      return;
+    }
+    // The session is updated on every vsync, but only a new camera image is drawn.
+    updatePipeline.onDrawFrame();
+    Frame frame = updatedFrame;
+    ArFrameSnapshot snapshot = updatedSnapshot;
+
+    try {
+      if(isTreasureObjectReplaced){
           isTreasureObjectReplaced = false;
+          // Load the new model in the background; the current one stays visible until it is ready.
+          ModelCatalog.Entry model = ModelCatalog.bundled(treasureType);
+          mLogger.logInfo("Treasuretype was " + model.id);
+          virtualObject.loadAsync(this, model.toModelSource());
       }
+      // Checked after the bundled fallback so that a fetched model replaces it.
+      ModelSource fetchedModel = fetchedModelSource;
+      if (fetchedModel != null) {
+          fetchedModelSource = null;
+          virtualObject.loadAsync(this, fetchedModel);
+      }
+      virtualObject.updateOnGlThread();
 
-
-      // Obtain the current frame from ARSession. When the configuration is set to
-      // UpdateMode.BLOCKING (it is by default), this will throttle the rendering to the
-      // camera framerate.
-      Frame frame = session.update();
-      Camera camera = frame.getCamera();
-      Collection<Anchor> updatedAnchors = frame.getUpdatedAnchors();
-      TrackingState cameraTrackingState = camera.getTrackingState();
-
-      // Notify the cloudManager of all the updates.
-      cloudManager.onUpdate(updatedAnchors);
+      if (frame == null) {
+        return;
+      }
+      TrackingState cameraTrackingState = snapshot.getTrackingState();
 
       // Handle user input.
       handleTap(frame, cameraTrackingState);
 
       // Draw background.
+      allocationMonitor.begin();
       backgroundRenderer.draw(frame);
+      allocationMonitor.end();
 
       // If not tracking, don't draw 3d objects.
       if (cameraTrackingState == TrackingState.PAUSED) {
@@ -577,21 +709,29 @@ public class HuntTreasureActivity extends AppCompatActivity implements GLSurface
       }
 
       // Get camera and projection matrices.
-      camera.getViewMatrix(viewMatrix, 0);
-      camera.getProjectionMatrix(projectionMatrix, 0, 0.1f, 100.0f);
+      snapshot.getViewMatrix(viewMatrix);
+      snapshot.getProjectionMatrix(projectionMatrix);
+
+      // Draw the virtual content at the current render scale, composited in the finally block.
+      renderTarget.begin();
+
+      // Visualize planes, before the points, as their alpha mask is reset afterwards.
+      allocationMonitor.begin();
+      planeRenderer.drawPlanes(
+          planeRegistry.getLivePlanes(), snapshot.getDisplayOrientedPose(), projectionMatrix);
+      allocationMonitor.end();
+      renderTarget.resetCoverage();
 
       // Visualize tracked points.
       PointCloud pointCloud = frame.acquirePointCloud();
       pointCloudRenderer.update(pointCloud);
+      allocationMonitor.begin();
       pointCloudRenderer.draw(viewMatrix, projectionMatrix);
+      allocationMonitor.end();
 
       // Application is responsible for releasing the point cloud resources after using it.
       pointCloud.release();
 
-      // Visualize planes.
-      planeRenderer.drawPlanes(
-          session.getAllTrackables(Plane.class), camera.getDisplayOrientedPose(), projectionMatrix);
-
       // Check if the anchor can be visualized or not, and get its pose if it can be.
       boolean shouldDrawAnchor = false;
       synchronized (anchorLock) {
@@ -605,19 +745,22 @@ public class HuntTreasureActivity extends AppCompatActivity implements GLSurface
 
       // Visualize anchor.
       if (shouldDrawAnchor) {
-        float[] colorCorrectionRgba = new float[4];
-        frame.getLightEstimate().getColorCorrection(colorCorrectionRgba, 0);
+        snapshot.getColorCorrection(colorCorrectionRgba);
         //Log.i(TAG, "Found Anchor, use this to update some status");
-        // Update and draw the model and its shadow.
-
-        virtualObject.updateModelMatrix(anchorMatrix, GlobalVariables.OBJECT_SCALE);
-        virtualObjectShadow.updateModelMatrix(anchorMatrix, GlobalVariables.OBJECT_SCALE);
-        virtualObject.draw(viewMatrix, projectionMatrix, colorCorrectionRgba);
-        virtualObjectShadow.draw(viewMatrix, projectionMatrix, colorCorrectionRgba);
+        // Update and draw the model and its shadow, unless they are out of view.
+        treasureNode.setModelMatrix(anchorMatrix, GlobalVariables.OBJECT_SCALE);
+        allocationMonitor.begin();
+        scene.draw(viewMatrix, projectionMatrix, colorCorrectionRgba);
+        allocationMonitor.end();
       }
     } catch (Throwable t) {
       // Avoid crashing the application due to unhandled exceptions.
       Log.e(TAG, "Exception on the OpenGL thread", t);
+    } finally {
+      renderTarget.end();
+      allocationMonitor.endFrame();
+      glState.endFrame();
+      GlErrorChecker.getInstance().endFrame();
     }
   }
 
@@ -745,6 +888,35 @@ public class HuntTreasureActivity extends AppCompatActivity implements GLSurface
         pictureDialog.show();
     }
 
+    /**
+     * Fetches the model of a treasure if it is not bundled, to be shown instead of the bundled
+     * fallback once it is available. Supersedes any earlier request.
+     */
+    private void requestCatalogModel(String modelId) {
+        requestedModelId = modelId;
+        fetchedModelSource = null;
+        if (modelId == null || ModelCatalog.isBundled(modelId)) {
+            return;
+        }
+        modelCatalog.fetch(modelId, new ModelCatalog.ModelListener() {
+            @Override
+            public void onModelReady(ModelCatalog.Entry entry, ModelSource source) {
+                if (!modelId.equals(requestedModelId)) {
+                    return;
+                }
+                GlobalVariables.OBJECT_SCALE = entry.scale;
+                GlobalVariables.OBJECT_ROTATION = entry.rotation;
+                fetchedModelSource = source;
+            }
+
+            @Override
+            public void onModelFailed(String failedModelId, Exception error) {
+                mLogger.logInfo(
+                    "Showing the bundled model, failed to fetch " + failedModelId + ": " + error);
+            }
+        });
+    }
+
     @Override
     public void onTreasureClicked(int treasureIndex) {
         Treasure t = firebaseManager.getAllTreasures().get(treasureIndex);
@@ -762,6 +934,7 @@ public class HuntTreasureActivity extends AppCompatActivity implements GLSurface
         mLogger.logInfo("SCale>" + Float.toString(GlobalVariables.OBJECT_SCALE));
         mLogger.logInfo("onTreasureClicked: "+t.toString());
         isTreasureObjectReplaced = true;
+        requestCatalogModel(t.getModelId());
         onRoomCodeEntered((long)t.getRoomId());
         Log.i(TAG, "Type of treasure to be shown: "+ treasureType.name());
     }
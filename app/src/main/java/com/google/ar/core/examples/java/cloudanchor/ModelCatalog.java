@@ -0,0 +1,320 @@
+/*
+ * Copyright 2018 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ar.core.examples.java.cloudanchor;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.support.annotation.Nullable;
+import android.util.Log;
+import com.google.android.gms.tasks.Tasks;
+import com.google.ar.core.examples.java.common.assets.MeshTransport;
+import com.google.ar.core.examples.java.common.rendering.ModelSource;
+import com.google.firebase.storage.StorageReference;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * The models treasures can be shown as. Two are bundled with the app; more are listed in {@code
+ * models/catalog.json} in Firebase Storage and downloaded on first use into a {@link ContentCache},
+ * so that later loads never touch the network.
+ *
+ * <p>The catalog is a JSON object with a {@code models} array of {@link Entry} objects. Meshes are
+ * {@link MeshTransport} files, textures PNG or {@code .ktx} files; both are named by the SHA-256 of
+ * their contents, which the downloads are checked against.
+ */
+public class ModelCatalog {
+  private static final String TAG = ModelCatalog.class.getSimpleName();
+
+  private static final String CATALOG_PATH = "models/catalog.json";
+  private static final String CACHE_DIRECTORY = "models";
+  private static final long CACHE_SIZE_BYTES = 64L << 20;
+  private static final long MAX_DOWNLOAD_BYTES = 16L << 20;
+  // A catalog download that failed, e.g. offline, is not retried sooner than this.
+  private static final long REFRESH_RETRY_MILLIS = 30_000;
+
+  static final Entry TREASURE_CHEST =
+      Entry.bundled("treasure", "models/treasure.obj", "models/t5.png", 1.0f, 245.88f);
+  static final Entry LETTER =
+      Entry.bundled("letter", "models/letter.obj", "models/letter.png", 0.1f, 0.0f);
+
+  /** A model and how it is placed by default. */
+  static final class Entry {
+    /** Name of the model, the treasure type stored with a treasure. */
+    String id;
+    /** Storage path of the mesh, null for bundled models. */
+    String mesh;
+    String meshSha256;
+    /** Storage path of the texture, null for bundled models. */
+    String texture;
+    String textureSha256;
+    float scale = 1.0f;
+    float rotation = 0.0f;
+
+    private transient String objAssetName;
+    private transient String textureAssetName;
+
+    private static Entry bundled(
+        String id, String objAssetName, String textureAssetName, float scale, float rotation) {
+      Entry entry = new Entry();
+      entry.id = id;
+      entry.objAssetName = objAssetName;
+      entry.textureAssetName = textureAssetName;
+      entry.scale = scale;
+      entry.rotation = rotation;
+      return entry;
+    }
+
+    boolean isBundled() {
+      return objAssetName != null;
+    }
+
+    /** Returns the assets of a bundled model. */
+    ModelSource toModelSource() {
+      if (!isBundled()) {
+        throw new IllegalStateException(id + " must be fetched, it is not bundled");
+      }
+      return ModelSource.fromAssets(objAssetName, textureAssetName);
+    }
+
+    String getObjAssetName() {
+      return objAssetName;
+    }
+
+    String getTextureAssetName() {
+      return textureAssetName;
+    }
+
+    private boolean isValid() {
+      return id != null
+          && mesh != null
+          && meshSha256 != null
+          && texture != null
+          && textureSha256 != null
+          && scale > 0;
+    }
+  }
+
+  /** Receives the result of {@link #fetch}, on a background thread. */
+  interface ModelListener {
+    void onModelReady(Entry entry, ModelSource source);
+
+    void onModelFailed(String modelId, Exception error);
+  }
+
+  private static final class CatalogJson {
+    List<Entry> models;
+  }
+
+  // Downloads, hashing and disk access all happen here, in order, off the UI thread.
+  private static final ExecutorService executor =
+      Executors.newSingleThreadExecutor(
+          runnable -> {
+            Thread thread = new Thread(runnable, "ModelCatalog");
+            thread.setDaemon(true);
+            return thread;
+          });
+
+  @Nullable private final StorageReference storageRoot;
+  private final ContentCache cache;
+  private final File catalogFile;
+  private final Map<String, Entry> remoteEntries = new HashMap<>();
+  // Set once the catalog was downloaded in this run. Executor thread only, like the next field.
+  private boolean refreshed = false;
+  private long nextRefreshMillis = 0;
+
+  /**
+   * Creates the catalog and starts loading the remote entries known from earlier runs.
+   *
+   * @param storageRoot Root of the Firebase Storage bucket, or null to use bundled models only.
+   */
+  ModelCatalog(Context context, @Nullable StorageReference storageRoot) {
+    this.storageRoot = storageRoot;
+    File directory = new File(context.getCacheDir(), CACHE_DIRECTORY);
+    cache = new ContentCache(new File(directory, "content"), CACHE_SIZE_BYTES);
+    catalogFile = new File(directory, "catalog.json");
+    executor.execute(this::loadCachedCatalog);
+  }
+
+  /** Returns the bundled model of a treasure type. */
+  static Entry bundled(CreateTreasureActivity.TreasureType type) {
+    return type == CreateTreasureActivity.TreasureType.LETTER ? LETTER : TREASURE_CHEST;
+  }
+
+  /** Whether a model is bundled with the app, so that {@link #bundled} shows it exactly. */
+  static boolean isBundled(String modelId) {
+    return TREASURE_CHEST.id.equalsIgnoreCase(modelId) || LETTER.id.equalsIgnoreCase(modelId);
+  }
+
+  /**
+   * Makes the model {@code modelId} available as files and reports them to {@code listener},
+   * downloading the catalog and the files that are not cached yet.
+   */
+  void fetch(String modelId, ModelListener listener) {
+    executor.execute(
+        () -> {
+          try {
+            Entry entry = getRemoteEntry(modelId);
+            if (entry == null && shouldRefresh()) {
+              refresh();
+              entry = getRemoteEntry(modelId);
+            }
+            if (entry == null) {
+              throw new IOException("Unknown model " + modelId);
+            }
+            File meshFile =
+                getOrDownload(entry.mesh, entry.meshSha256, MeshTransport.FILE_EXTENSION);
+            File textureFile =
+                getOrDownload(entry.texture, entry.textureSha256, extensionOf(entry.texture));
+            listener.onModelReady(entry, ModelSource.fromFiles(meshFile, textureFile));
+          } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "Failed to fetch model " + modelId, e);
+            listener.onModelFailed(modelId, e);
+          }
+        });
+  }
+
+  private synchronized Entry getRemoteEntry(String modelId) {
+    return remoteEntries.get(modelId);
+  }
+
+  private File getOrDownload(String path, String sha256, String extension) throws IOException {
+    File file = cache.get(sha256, extension);
+    if (file != null) {
+      return file;
+    }
+    long startTime = System.currentTimeMillis();
+    byte[] data = download(path);
+    file = cache.put(sha256, extension, data);
+    Log.i(
+        TAG,
+        "Downloaded " + path + " (" + data.length + " bytes) in "
+            + (System.currentTimeMillis() - startTime) + " ms");
+    return file;
+  }
+
+  private byte[] download(String path) throws IOException {
+    if (storageRoot == null) {
+      throw new IOException("Firebase Storage is not available to download " + path);
+    }
+    try {
+      return Tasks.await(storageRoot.child(path).getBytes(MAX_DOWNLOAD_BYTES));
+    } catch (ExecutionException e) {
+      throw new IOException("Failed to download " + path, e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while downloading " + path, e);
+    }
+  }
+
+  private boolean shouldRefresh() {
+    return !refreshed && SystemClock.elapsedRealtime() >= nextRefreshMillis;
+  }
+
+  /**
+   * Downloads the current catalog and keeps a copy for offline use. Only a catalog that was
+   * downloaded and parsed counts as refreshed; failures are retried by later fetches.
+   */
+  private void refresh() throws IOException {
+    byte[] data;
+    try {
+      data = download(CATALOG_PATH);
+      parseCatalog(data);
+    } catch (IOException e) {
+      nextRefreshMillis = SystemClock.elapsedRealtime() + REFRESH_RETRY_MILLIS;
+      throw e;
+    }
+    refreshed = true;
+    File directory = catalogFile.getParentFile();
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Cannot create " + directory);
+    }
+    File temp = new File(catalogFile.getPath() + ".tmp");
+    try (FileOutputStream out = new FileOutputStream(temp)) {
+      out.write(data);
+    }
+    if (!temp.renameTo(catalogFile)) {
+      Log.w(TAG, "Failed to keep a copy of the model catalog");
+    }
+  }
+
+  private void loadCachedCatalog() {
+    if (!catalogFile.isFile()) {
+      return;
+    }
+    try {
+      parseCatalog(readFile(catalogFile));
+    } catch (IOException e) {
+      Log.w(TAG, "Ignoring the cached model catalog", e);
+    }
+  }
+
+  private void parseCatalog(byte[] data) throws IOException {
+    CatalogJson catalog;
+    try {
+      catalog =
+          new Gson().fromJson(new String(data, StandardCharsets.UTF_8), CatalogJson.class);
+    } catch (JsonParseException e) {
+      throw new IOException("Malformed model catalog", e);
+    }
+    Map<String, Entry> entries = new HashMap<>();
+    if (catalog != null && catalog.models != null) {
+      for (Entry entry : catalog.models) {
+        if (entry == null || !entry.isValid()) {
+          Log.w(TAG, "Skipping an incomplete model catalog entry");
+          continue;
+        }
+        entries.put(entry.id, entry);
+      }
+    }
+    synchronized (this) {
+      remoteEntries.clear();
+      remoteEntries.putAll(entries);
+    }
+    Log.i(TAG, "Model catalog has " + entries.size() + " downloadable models");
+  }
+
+  private static byte[] readFile(File file) throws IOException {
+    try (InputStream in = new FileInputStream(file)) {
+      ByteArrayOutputStream out = new ByteArrayOutputStream((int) file.length());
+      byte[] buffer = new byte[8192];
+      int count;
+      while ((count = in.read(buffer)) != -1) {
+        out.write(buffer, 0, count);
+      }
+      return out.toByteArray();
+    }
+  }
+
+  private static String extensionOf(String path) {
+    int slash = path.lastIndexOf('/');
+    int dot = path.lastIndexOf('.');
+    return dot > slash ? path.substring(dot) : "";
+  }
+}
@@ -11,6 +11,8 @@ public class Treasure implements Serializable {
     private String expiration;
     private String hint;
     private CreateTreasureActivity.TreasureType treasureType;
+    // The catalog model to show, see ModelCatalog; treasureType is its bundled fallback.
+    private String modelId;
     private Bitmap hintPicture;
     private String hintPictureUrl;
     private double longitude;
@@ -92,6 +94,14 @@ public class Treasure implements Serializable {
         this.treasureType = treasureType;
     }
 
+    public String getModelId() {
+        return modelId;
+    }
+
+    public void setModelId(String modelId) {
+        this.modelId = modelId;
+    }
+
     public Bitmap getHintPicture() {
         return hintPicture;
     }
@@ -127,6 +137,7 @@ public class Treasure implements Serializable {
                 ", expiration='" + expiration + '\'' +
                 ", hint='" + hint + '\'' +
                 ", treasureType=" + treasureType +
+                ", modelId='" + modelId + '\'' +
                 ", hintPicture=" + hintPicture +
                 ", hintPictureUrl='" + hintPictureUrl + '\'' +
                 ", longitude=" + longitude +
@@ -0,0 +1,193 @@
+/*
+ * Copyright 2018 Google Inc. All Rights Reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.examples.java.common.helpers;
+
+import android.support.annotation.Nullable;
+import com.google.ar.core.Anchor;
+import com.google.ar.core.Anchor.CloudAnchorState;
+import com.google.ar.core.Camera;
+import com.google.ar.core.Frame;
+import com.google.ar.core.Pose;
+import com.google.ar.core.TrackingState;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The state of one ARCore frame, copied out of the {@link Frame} on the GL thread so that other
+ * threads can read it while the session moves on. {@code Frame} and {@code Camera} are only valid
+ * until the next {@code Session.update()}; a snapshot does not change while it is handed out.
+ *
+ * <p>Snapshots are pooled by the {@link ArUpdatePipeline}, so that a new camera frame allocates
+ * nothing: a snapshot must not be kept beyond the call it was handed to.
+ */
+public final class ArFrameSnapshot {
+  /** An anchor the frame updated, with the states it had in that frame. */
+  public static final class AnchorUpdate {
+    private Anchor anchor;
+    private TrackingState trackingState;
+    private CloudAnchorState cloudAnchorState;
+    private Pose pose;
+
+    private AnchorUpdate() {}
+
+    private void set(@Nullable Anchor anchor) {
+      this.anchor = anchor;
+      trackingState = anchor == null ? null : anchor.getTrackingState();
+      cloudAnchorState = anchor == null ? null : anchor.getCloudAnchorState();
+      pose = anchor == null ? null : anchor.getPose();
+    }
+
+    public Anchor getAnchor() {
+      return anchor;
+    }
+
+    public TrackingState getTrackingState() {
+      return trackingState;
+    }
+
+    public CloudAnchorState getCloudAnchorState() {
+      return cloudAnchorState;
+    }
+
+    public Pose getPose() {
+      return pose;
+    }
+  }
+
+  private long timestampNs;
+  private TrackingState trackingState;
+  private Pose displayOrientedPose;
+  private final float[] viewMatrix = new float[16];
+  private final float[] projectionMatrix = new float[16];
+  private final float[] colorCorrectionRgba = new float[4];
+  private final ArrayList<AnchorUpdate> anchorUpdates = new ArrayList<>();
+  private final List<AnchorUpdate> updatedAnchors = Collections.unmodifiableList(anchorUpdates);
+  // Anchor updates of earlier frames, for reuse.
+  private final ArrayList<AnchorUpdate> spareAnchorUpdates = new ArrayList<>();
+  private int livePlaneCount;
+  private int trackingPlaneCount;
+  private int addedPlaneCount;
+  private int removedPlaneCount;
+  // Planes removed since the registry was last cleared, to derive removedPlaneCount.
+  private int removedPlaneTotal;
+
+  // References by the pipeline's GL and update threads, guarded by the pipeline.
+  int references;
+
+  ArFrameSnapshot() {}
+
+  /**
+   * Copies the state of {@code frame}. Must be called on the GL thread, before the next {@code
+   * Session.update()}, while no other thread reads the snapshot.
+   *
+   * @param planeRegistry Registry already updated with {@code frame}.
+   * @param near Near clipping plane of the projection matrix, in meters.
+   * @param far Far clipping plane of the projection matrix, in meters.
+   * @param previous The snapshot of the previous camera frame, to derive the plane changes, or
+   *     null.
+   */
+  void set(
+      Frame frame,
+      PlaneRegistry planeRegistry,
+      float near,
+      float far,
+      @Nullable ArFrameSnapshot previous) {
+    timestampNs = frame.getTimestamp();
+    Camera camera = frame.getCamera();
+    trackingState = camera.getTrackingState();
+    displayOrientedPose = camera.getDisplayOrientedPose();
+    camera.getViewMatrix(viewMatrix, 0);
+    camera.getProjectionMatrix(projectionMatrix, 0, near, far);
+    frame.getLightEstimate().getColorCorrection(colorCorrectionRgba, 0);
+
+    for (int i = anchorUpdates.size() - 1; i >= 0; i--) {
+      AnchorUpdate update = anchorUpdates.remove(i);
+      update.set(null);
+      spareAnchorUpdates.add(update);
+    }
+    for (Anchor anchor : frame.getUpdatedAnchors()) {
+      int spares = spareAnchorUpdates.size();
+      AnchorUpdate update =
+          spares == 0 ? new AnchorUpdate() : spareAnchorUpdates.remove(spares - 1);
+      update.set(anchor);
+      anchorUpdates.add(update);
+    }
+
+    livePlaneCount = planeRegistry.getLiveCount();
+    trackingPlaneCount = planeRegistry.getTrackingCount();
+    int previousLive = previous == null ? 0 : previous.livePlaneCount;
+    int removedTotal = planeRegistry.getSubsumedCount() + planeRegistry.getStoppedCount();
+    int previousRemovedTotal = previous == null ? 0 : previous.removedPlaneTotal;
+    removedPlaneTotal = removedTotal;
+    removedPlaneCount = Math.max(0, removedTotal - previousRemovedTotal);
+    addedPlaneCount = Math.max(0, livePlaneCount - previousLive + removedPlaneCount);
+  }
+
+  /** Timestamp of the camera image, see {@link Frame#getTimestamp()}. */
+  public long getTimestampNs() {
+    return timestampNs;
+  }
+
+  /** Tracking state of the camera. */
+  public TrackingState getTrackingState() {
+    return trackingState;
+  }
+
+  /** See {@link Camera#getDisplayOrientedPose()}. */
+  public Pose getDisplayOrientedPose() {
+    return displayOrientedPose;
+  }
+
+  /** Copies the 4x4 view matrix, in column-major order, into {@code dest}. */
+  public void getViewMatrix(float[] dest) {
+    System.arraycopy(viewMatrix, 0, dest, 0, 16);
+  }
+
+  /** Copies the 4x4 projection matrix, in column-major order, into {@code dest}. */
+  public void getProjectionMatrix(float[] dest) {
+    System.arraycopy(projectionMatrix, 0, dest, 0, 16);
+  }
+
+  /** Copies the color correction of the light estimate into {@code dest}. */
+  public void getColorCorrection(float[] dest) {
+    System.arraycopy(colorCorrectionRgba, 0, dest, 0, 4);
+  }
+
+  /** The anchors the frame updated. */
+  public List<AnchorUpdate> getUpdatedAnchors() {
+    return updatedAnchors;
+  }
+
+  /** Number of planes that are neither subsumed nor stopped. */
+  public int getLivePlaneCount() {
+    return livePlaneCount;
+  }
+
+  /** Number of live planes that are being tracked. */
+  public int getTrackingPlaneCount() {
+    return trackingPlaneCount;
+  }
+
+  /** Number of planes found since the previous snapshot. */
+  public int getAddedPlaneCount() {
+    return addedPlaneCount;
+  }
+
+  /** Number of planes subsumed or stopped since the previous snapshot. */
+  public int getRemovedPlaneCount() {
+    return removedPlaneCount;
+  }
+}
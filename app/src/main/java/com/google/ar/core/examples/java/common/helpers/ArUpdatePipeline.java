@@ -0,0 +1,317 @@
+/*
+ * Copyright 2018 Google Inc. All Rights Reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.examples.java.common.helpers;
+
+import android.app.Activity;
+import android.opengl.GLSurfaceView;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.support.annotation.GuardedBy;
+import android.support.annotation.Nullable;
+import android.view.Choreographer;
+import com.google.ar.core.Config;
+import com.google.ar.core.Frame;
+import com.google.ar.core.examples.java.common.rendering.FrameAllocationMonitor;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Pipelines the ARCore frame loop of an AR view:
+ *
+ * <ul>
+ *   <li>The session runs in {@link Config.UpdateMode#LATEST_CAMERA_IMAGE} mode, so {@code
+ *       Session.update()} returns the latest camera image at once instead of blocking the GL
+ *       thread until the next one arrives.
+ *   <li>On every vsync, a {@link Choreographer} callback queues a session update on the GL thread
+ *       through the {@link Updater}. The {@link GLSurfaceView} renders when dirty, and is only
+ *       marked dirty when the update brought a new camera image, so frames are paced by the
+ *       display without drawing the same image twice.
+ *   <li>Each new camera frame is copied into an {@link ArFrameSnapshot}, which the renderer draws
+ *       from and which is handed to the {@link Consumer}s on a dedicated update thread. Anchor
+ *       processing and the UI state derived from it run there, not between draws.
+ * </ul>
+ *
+ * <p>Snapshots are recycled once the GL thread moved on to a newer one and the update thread
+ * delivered them, so that steady-state frames allocate nothing.
+ *
+ * <p>{@code Session.update()} itself stays on the GL thread: ARCore writes the camera image into
+ * the texture of the current GL context during the call. The first frame drawn after resuming
+ * updates the session itself, since the queued updates only run once the context is current.
+ */
+public final class ArUpdatePipeline implements Choreographer.FrameCallback {
+  /**
+   * Receives the snapshot of every new camera frame, in order, on the update thread. The snapshot
+   * is recycled after the call, so it must not be kept.
+   */
+  public interface Consumer {
+    void onSnapshot(ArFrameSnapshot snapshot);
+  }
+
+  /** Updates the session on the GL thread. */
+  public interface Updater {
+    /**
+     * Calls {@code Session.update()} and {@link #publish} with its frame, keeping both for the
+     * next {@code onDrawFrame}. Called on the GL thread, outside of {@code onDrawFrame}, so it must
+     * not draw.
+     */
+    void update();
+  }
+
+  private final GLSurfaceView surfaceView;
+  private final Updater updater;
+  private final float near;
+  private final float far;
+  private final List<Consumer> consumers = new CopyOnWriteArrayList<>();
+  @Nullable private FrameAllocationMonitor allocationMonitor;
+  // Posted to the update thread and queued on the GL thread, so that this allocates nothing.
+  private final Runnable deliverPending = this::deliverPending;
+  private final Runnable updateEvent = this::onUpdateEvent;
+
+  @GuardedBy("this")
+  private final ArrayDeque<ArFrameSnapshot> freeSnapshots = new ArrayDeque<>();
+  // Snapshots posted to the update thread and not delivered yet, oldest first.
+  @GuardedBy("this")
+  private final ArrayDeque<ArFrameSnapshot> pendingSnapshots = new ArrayDeque<>();
+  @GuardedBy("this")
+  private boolean deliveryPosted;
+
+  // Main thread.
+  private boolean resumed;
+  @Nullable private HandlerThread updateThread;
+  @Nullable private volatile Handler updateHandler;
+
+  // Reset on the UI thread when pausing, set by the GL thread once it drew after resuming.
+  private volatile boolean drawnSinceResume;
+
+  // GL thread.
+  @Nullable private ArFrameSnapshot latest;
+  private boolean renderRequested;
+  private int updates;
+  private int cameraFrames;
+  private int drawnFrames;
+
+  /**
+   * Switches {@code surfaceView}, whose renderer must be set, to render when dirty.
+   *
+   * @param updater Updates the session once per vsync.
+   * @param near Near clipping plane of the snapshots' projection matrices, in meters.
+   * @param far Far clipping plane of the snapshots' projection matrices, in meters.
+   */
+  public ArUpdatePipeline(GLSurfaceView surfaceView, Updater updater, float near, float far) {
+    this.surfaceView = surfaceView;
+    this.updater = updater;
+    this.near = near;
+    this.far = far;
+    surfaceView.setRenderMode(GLSurfaceView.RENDERMODE_WHEN_DIRTY);
+  }
+
+  /** Sets the update mode the pipeline relies on. Call before {@code Session.configure()}. */
+  public static void configure(Config config) {
+    config.setUpdateMode(Config.UpdateMode.LATEST_CAMERA_IMAGE);
+  }
+
+  /**
+   * Sets the monitor whose section {@link #publish} runs in, so that the ARCore getters copied into
+   * a snapshot are left out of it. Optional.
+   */
+  public void setAllocationMonitor(@Nullable FrameAllocationMonitor allocationMonitor) {
+    this.allocationMonitor = allocationMonitor;
+  }
+
+  /** Adds a consumer of the snapshots. May be called from any thread. */
+  public void addConsumer(Consumer consumer) {
+    consumers.add(consumer);
+  }
+
+  /**
+   * Starts the update thread and the vsync callbacks. Should be called from {@link
+   * Activity#onResume()}, after resuming the {@code GLSurfaceView}.
+   */
+  public void onResume() {
+    if (resumed) {
+      return;
+    }
+    resumed = true;
+    updateThread = new HandlerThread("ArUpdate", Process.THREAD_PRIORITY_DISPLAY);
+    updateThread.start();
+    updateHandler = new Handler(updateThread.getLooper());
+    Choreographer.getInstance().postFrameCallback(this);
+  }
+
+  /**
+   * Stops the vsync callbacks and the update thread, once it delivered the snapshots already
+   * posted. Should be called from {@link Activity#onPause()}, before pausing the {@code
+   * GLSurfaceView}.
+   */
+  public void onPause() {
+    if (!resumed) {
+      return;
+    }
+    resumed = false;
+    // Updates already queued are skipped; the GL thread may lose its context while paused.
+    drawnSinceResume = false;
+    Choreographer.getInstance().removeFrameCallback(this);
+    updateHandler = null;
+    updateThread.quitSafely();
+    updateThread = null;
+  }
+
+  @Override
+  public void doFrame(long frameTimeNanos) {
+    if (!resumed) {
+      return;
+    }
+    surfaceView.queueEvent(updateEvent);
+    Choreographer.getInstance().postFrameCallback(this);
+  }
+
+  /**
+   * Call at the start of every {@code onDrawFrame}. The first frame after resuming updates the
+   * session through the {@link Updater}, so that there is a frame to draw.
+   */
+  public void onDrawFrame() {
+    drawnFrames++;
+    if (!drawnSinceResume) {
+      drawnSinceResume = true;
+      updater.update();
+    }
+    renderRequested = false;
+  }
+
+  /**
+   * Returns the snapshot of {@code frame}, and posts it to the consumers if it shows a new camera
+   * image. Otherwise the previous snapshot is returned, as the session has nothing new. Must be
+   * called on the GL thread, after {@code Session.update()}. The snapshot is valid until the next
+   * call.
+   *
+   * @param planeRegistry Registry already updated with {@code frame}.
+   */
+  public ArFrameSnapshot publish(Frame frame, PlaneRegistry planeRegistry) {
+    updates++;
+    ArFrameSnapshot previous = latest;
+    if (previous != null
+        && previous.getTimestampNs() == frame.getTimestamp()
+        && !frame.hasDisplayGeometryChanged()) {
+      return previous;
+    }
+    cameraFrames++;
+    renderRequested = true;
+    ArFrameSnapshot snapshot = obtain();
+    // ARCore returns new poses and collections.
+    if (allocationMonitor != null) {
+      allocationMonitor.pause();
+    }
+    snapshot.set(frame, planeRegistry, near, far, previous);
+    if (allocationMonitor != null) {
+      allocationMonitor.resume();
+    }
+    latest = snapshot;
+    Handler handler = updateHandler;
+    boolean post = false;
+    synchronized (this) {
+      if (previous != null) {
+        release(previous);
+      }
+      if (handler != null && !consumers.isEmpty()) {
+        snapshot.references++;
+        pendingSnapshots.addLast(snapshot);
+        post = !deliveryPosted;
+        deliveryPosted = true;
+      }
+    }
+    if (post && !handler.post(deliverPending)) {
+      // The update thread quit while pausing; nobody delivers the pending snapshots anymore.
+      synchronized (this) {
+        deliveryPosted = false;
+        while (!pendingSnapshots.isEmpty()) {
+          release(pendingSnapshots.pollFirst());
+        }
+      }
+    }
+    return snapshot;
+  }
+
+  /**
+   * Describes the frames since the last call, for logging, and resets the statistics. Must be
+   * called on the GL thread.
+   */
+  public String getSummary() {
+    String summary =
+        String.format(
+            Locale.US,
+            "Pipeline: %d session updates, %d with a new camera image, %d frames drawn",
+            updates,
+            cameraFrames,
+            drawnFrames);
+    updates = 0;
+    cameraFrames = 0;
+    drawnFrames = 0;
+    return summary;
+  }
+
+  /** Updates the session on the GL thread, and renders if the camera image is new. */
+  private void onUpdateEvent() {
+    // Before the first frame after resuming, the context may not be current yet.
+    if (!drawnSinceResume) {
+      return;
+    }
+    updater.update();
+    if (renderRequested) {
+      renderRequested = false;
+      surfaceView.requestRender();
+    }
+  }
+
+  /** Returns a free snapshot referenced by the GL thread. */
+  private synchronized ArFrameSnapshot obtain() {
+    ArFrameSnapshot snapshot = freeSnapshots.pollFirst();
+    if (snapshot == null) {
+      snapshot = new ArFrameSnapshot();
+    }
+    snapshot.references = 1;
+    return snapshot;
+  }
+
+  @GuardedBy("this")
+  private void release(ArFrameSnapshot snapshot) {
+    if (--snapshot.references == 0) {
+      freeSnapshots.addLast(snapshot);
+    }
+  }
+
+  /** Delivers the pending snapshots in order, on the update thread. */
+  private void deliverPending() {
+    while (true) {
+      ArFrameSnapshot snapshot;
+      synchronized (this) {
+        snapshot = pendingSnapshots.pollFirst();
+        if (snapshot == null) {
+          deliveryPosted = false;
+          return;
+        }
+      }
+      // Indexed, since iterating a CopyOnWriteArrayList allocates.
+      for (int i = 0; i < consumers.size(); i++) {
+        consumers.get(i).onSnapshot(snapshot);
+      }
+      synchronized (this) {
+        release(snapshot);
+      }
+    }
+  }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright 2018 Google Inc. All Rights Reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.examples.java.common.helpers;
+
+import com.google.ar.core.Frame;
+import com.google.ar.core.Plane;
+import com.google.ar.core.Session;
+import com.google.ar.core.TrackingState;
+import com.google.ar.core.examples.java.common.rendering.FrameAllocationMonitor;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Keeps the planes of a session up to date from the trackables each frame updated, rather than
+ * from all trackables every frame. Planes that were subsumed by another or stopped being tracked
+ * are dropped and reported to the {@link Listener}s, so that per-plane caches can drop them too.
+ *
+ * <p>All methods must be called on the GL thread.
+ */
+public final class PlaneRegistry {
+  /** Observes planes leaving the registry. */
+  public interface Listener {
+    /** Called when a plane was subsumed or stopped and will not be drawn again. */
+    void onPlaneRemoved(Plane plane);
+  }
+
+  // Planes that are neither subsumed nor stopped, in the order they were found. A list, so that
+  // drawing them allocates no iterator; there are only a few.
+  private final List<Plane> livePlanes = new ArrayList<>();
+  private final List<Plane> livePlanesView = Collections.unmodifiableList(livePlanes);
+  private final Set<Plane> trackingPlanes = new LinkedHashSet<>();
+  private final List<Listener> listeners = new ArrayList<>();
+  // The planes of the frame being applied, copied out of ARCore's collections.
+  private final ArrayList<Plane> updatedPlanes = new ArrayList<>();
+  private FrameAllocationMonitor allocationMonitor;
+  private boolean seeded = false;
+  private int subsumedCount;
+  private int stoppedCount;
+
+  public void addListener(Listener listener) {
+    listeners.add(listener);
+  }
+
+  /**
+   * Sets the monitor whose section {@link #update} runs in, so that ARCore's collections and the
+   * bookkeeping of new planes are left out of it. Optional.
+   */
+  public void setAllocationMonitor(FrameAllocationMonitor allocationMonitor) {
+    this.allocationMonitor = allocationMonitor;
+  }
+
+  /**
+   * Applies the planes {@code frame} updated. The first call after construction or {@link
+   * #clear()} reads all planes of the session once, since earlier updates were missed.
+   */
+  public void update(Session session, Frame frame) {
+    // ARCore returns new collections.
+    pauseAllocationMonitor();
+    if (!seeded) {
+      seeded = true;
+      updatedPlanes.addAll(session.getAllTrackables(Plane.class));
+    }
+    updatedPlanes.addAll(frame.getUpdatedTrackables(Plane.class));
+    resumeAllocationMonitor();
+    for (int i = 0; i < updatedPlanes.size(); i++) {
+      apply(updatedPlanes.get(i));
+    }
+    // Planes are only referenced while live.
+    updatedPlanes.clear();
+  }
+
+  /** Forgets all planes, e.g. for a new session. Listeners are not called. */
+  public void clear() {
+    livePlanes.clear();
+    trackingPlanes.clear();
+    subsumedCount = 0;
+    stoppedCount = 0;
+    seeded = false;
+  }
+
+  /** Returns the planes that are neither subsumed nor stopped. The list is live. */
+  public List<Plane> getLivePlanes() {
+    return livePlanesView;
+  }
+
+  /** Number of planes that are neither subsumed nor stopped. */
+  public int getLiveCount() {
+    return livePlanes.size();
+  }
+
+  /** Number of live planes that are being tracked right now. */
+  public int getTrackingCount() {
+    return trackingPlanes.size();
+  }
+
+  /** Number of planes dropped because another plane subsumed them. */
+  public int getSubsumedCount() {
+    return subsumedCount;
+  }
+
+  /** Number of planes dropped because they stopped being tracked. */
+  public int getStoppedCount() {
+    return stoppedCount;
+  }
+
+  private void apply(Plane plane) {
+    TrackingState state = plane.getTrackingState();
+    if (state == TrackingState.STOPPED) {
+      if (remove(plane)) {
+        stoppedCount++;
+      }
+    } else if (plane.getSubsumedBy() != null) {
+      if (remove(plane)) {
+        subsumedCount++;
+      }
+    } else {
+      boolean tracking = state == TrackingState.TRACKING;
+      if (!livePlanes.contains(plane) || tracking != trackingPlanes.contains(plane)) {
+        // A new plane or a change of tracking state, not something every frame has.
+        pauseAllocationMonitor();
+        if (!livePlanes.contains(plane)) {
+          livePlanes.add(plane);
+        }
+        if (tracking) {
+          trackingPlanes.add(plane);
+        } else {
+          trackingPlanes.remove(plane);
+        }
+        resumeAllocationMonitor();
+      }
+    }
+  }
+
+  private void pauseAllocationMonitor() {
+    if (allocationMonitor != null) {
+      allocationMonitor.pause();
+    }
+  }
+
+  private void resumeAllocationMonitor() {
+    if (allocationMonitor != null) {
+      allocationMonitor.resume();
+    }
+  }
+
+  private boolean remove(Plane plane) {
+    trackingPlanes.remove(plane);
+    if (!livePlanes.remove(plane)) {
+      return false;
+    }
+    for (int i = 0; i < listeners.size(); i++) {
+      listeners.get(i).onPlaneRemoved(plane);
+    }
+    return true;
+  }
+}
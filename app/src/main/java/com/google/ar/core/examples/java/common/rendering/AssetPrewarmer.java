@@ -0,0 +1,360 @@
+/*
+ * Copyright 2018 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.examples.java.common.rendering;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+import com.google.ar.core.examples.java.common.assets.BinaryMesh;
+import com.google.ar.core.examples.java.common.assets.KtxFormat;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Predicate;
+
+/**
+ * Decodes meshes, textures and shader sources on a background thread before an AR view opens, so
+ * that its GL thread only has to upload them. {@link MeshAssetLoader}, {@link GpuTexture.Image}
+ * and {@link ShaderUtil} take prewarmed results transparently; anything not prewarmed is loaded as
+ * before.
+ *
+ * <p>Prewarmed results are kept, up to a memory budget, until {@link #cancel()}, since every AR
+ * view creates its own GL context and uploads them again.
+ */
+public final class AssetPrewarmer {
+  private static final String TAG = AssetPrewarmer.class.getSimpleName();
+
+  /** Default for the memory budget of {@link #start}. */
+  public static final long DEFAULT_BUDGET_BYTES = 16 * 1024 * 1024;
+
+  // Prewarmed textures are decoded before any GL context exists, so their .ktx counterparts are
+  // assumed usable; a consumer whose context lacks the format decodes the image itself.
+  private static final int[] ASSUMED_COMPRESSED_FORMATS = {
+    KtxFormat.GL_ETC1_RGB8_OES, KtxFormat.GL_COMPRESSED_RGBA8_ETC2_EAC
+  };
+
+  private static final int PAGE_SIZE_BYTES = 4096;
+
+  private static final AssetPrewarmer instance = new AssetPrewarmer();
+
+  private static final ExecutorService executor =
+      Executors.newSingleThreadExecutor(
+          runnable -> {
+            Thread thread = new Thread(runnable, "AssetPrewarmer");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+          });
+
+  private enum State {
+    PENDING,
+    LOADING,
+    READY,
+    SKIPPED,
+  }
+
+  private interface Loader {
+    Object load() throws IOException;
+  }
+
+  private static final class Item {
+    final String key;
+    final Loader loader;
+    State state = State.PENDING;
+    Object value;
+    long sizeBytes;
+    long loadMillis;
+
+    Item(String key, Loader loader) {
+      this.key = key;
+      this.loader = loader;
+    }
+  }
+
+  // Guarded by this; items are in loading order.
+  private final Map<String, Item> items = new LinkedHashMap<>();
+  private long budgetBytes;
+  private long heldBytes;
+  private int generation;
+  private int hits;
+  private int misses;
+  private long savedMillis;
+
+  private AssetPrewarmer() {}
+
+  public static AssetPrewarmer getInstance() {
+    return instance;
+  }
+
+  /**
+   * Starts prewarming models and the shaders of all renderers. Assets already prewarmed are kept.
+   *
+   * @param context Context for loading the assets.
+   * @param objAssetNames OBJ files of the meshes, see {@link MeshAssetLoader#load}.
+   * @param textureAssetNames PNG files of the textures, see {@link GpuTexture#acquire}.
+   * @param budgetBytes Memory the prewarmed results may take together. Assets that would exceed
+   *     it are left to their consumers.
+   */
+  public void start(
+      Context context,
+      List<String> objAssetNames,
+      List<String> textureAssetNames,
+      long budgetBytes) {
+    Context appContext = context.getApplicationContext();
+    int startGeneration;
+    synchronized (this) {
+      this.budgetBytes = budgetBytes;
+      for (String name : objAssetNames) {
+        add(GpuResourceCache.meshKey(name), () -> loadMesh(appContext, name));
+      }
+      for (String name : textureAssetNames) {
+        add(GpuResourceCache.textureKey(name), () -> loadTexture(appContext, name));
+      }
+      for (String name : getRendererShaderNames()) {
+        add(shaderKey(name), () -> ShaderUtil.readAssetText(appContext, name));
+      }
+      startGeneration = generation;
+    }
+    executor.execute(() -> run(startGeneration));
+  }
+
+  /** Stops prewarming and drops all prewarmed results. Loads in progress finish unused. */
+  public synchronized void cancel() {
+    generation++;
+    items.clear();
+    heldBytes = 0;
+    notifyAll();
+  }
+
+  /**
+   * Describes how much of the loading the prewarmed results saved their consumers, for logging.
+   */
+  public synchronized String getSummary() {
+    int ready = 0;
+    for (Item item : items.values()) {
+      if (item.state == State.READY) {
+        ready++;
+      }
+    }
+    return String.format(
+        Locale.US,
+        "Prewarm: %d hits, %d misses, saved %d ms of loading; holding %d of %d assets in %.1f of"
+            + " %.1f MB",
+        hits,
+        misses,
+        savedMillis,
+        ready,
+        items.size(),
+        heldBytes / (1024f * 1024f),
+        budgetBytes / (1024f * 1024f));
+  }
+
+  /** Returns the prewarmed mesh of an OBJ asset, or {@code null} if it was not prewarmed. */
+  BinaryMesh getMesh(String objAssetName) {
+    return (BinaryMesh) get(GpuResourceCache.meshKey(objAssetName), value -> true);
+  }
+
+  /**
+   * Returns the prewarmed image of a texture asset, or {@code null} if it was not prewarmed or is
+   * compressed in a format {@code compressedFormats} lacks.
+   */
+  GpuTexture.Image getTexture(String textureAssetName, int[] compressedFormats) {
+    return (GpuTexture.Image)
+        get(
+            GpuResourceCache.textureKey(textureAssetName),
+            value -> {
+              GpuTexture.Image image = (GpuTexture.Image) value;
+              if (image.compressed == null) {
+                return true;
+              }
+              for (int format : compressedFormats) {
+                if (format == image.compressed.getInternalFormat()) {
+                  return true;
+                }
+              }
+              return false;
+            });
+  }
+
+  /** Returns the prewarmed text of a shader asset, or {@code null} if it was not prewarmed. */
+  String getShaderSource(String assetName) {
+    return (String) get(shaderKey(assetName), value -> true);
+  }
+
+  private static String shaderKey(String assetName) {
+    return "shader:" + assetName;
+  }
+
+  private static List<String> getRendererShaderNames() {
+    List<String> names = new ArrayList<>();
+    for (String[] program :
+        new String[][] {
+          BackgroundRenderer.SHADER_NAMES,
+          PlaneRenderer.SHADER_NAMES,
+          PointCloudRenderer.SHADER_NAMES,
+          ObjectRenderer.SHADER_NAMES,
+          DynamicResolutionTarget.SHADER_NAMES
+        }) {
+      for (String name : program) {
+        names.add(name);
+      }
+    }
+    return names;
+  }
+
+  private void add(String key, Loader loader) {
+    if (!items.containsKey(key)) {
+      items.put(key, new Item(key, loader));
+    }
+  }
+
+  /**
+   * Returns a prewarmed result, waiting for it if it is being loaded right now, since that is
+   * sooner than loading it again. A result still pending is skipped, as the caller loads it.
+   *
+   * @param usable Whether the caller can use the result; unusable ones count as misses.
+   */
+  private synchronized Object get(String key, Predicate<Object> usable) {
+    Item item = items.get(key);
+    if (item == null) {
+      if (!items.isEmpty()) {
+        misses++;
+      }
+      return null;
+    }
+    if (item.state == State.PENDING) {
+      item.state = State.SKIPPED;
+    }
+    while (item.state == State.LOADING && items.get(key) == item) {
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return null;
+      }
+    }
+    if (item.state != State.READY || items.get(key) != item || !usable.test(item.value)) {
+      misses++;
+      return null;
+    }
+    hits++;
+    savedMillis += item.loadMillis;
+    return item.value;
+  }
+
+  private void run(int runGeneration) {
+    while (true) {
+      Item item;
+      synchronized (this) {
+        if (generation != runGeneration) {
+          return;
+        }
+        item = nextPending();
+        if (item == null) {
+          break;
+        }
+        item.state = State.LOADING;
+      }
+
+      long startMillis = SystemClock.elapsedRealtime();
+      Object value = null;
+      try {
+        value = item.loader.load();
+      } catch (IOException | RuntimeException e) {
+        Log.w(TAG, "Failed to prewarm " + item.key, e);
+      }
+      long sizeBytes = value == null ? 0 : sizeOf(value);
+
+      synchronized (this) {
+        item.loadMillis = SystemClock.elapsedRealtime() - startMillis;
+        if (value == null || generation != runGeneration) {
+          item.state = State.SKIPPED;
+        } else if (heldBytes + sizeBytes > budgetBytes) {
+          Log.i(TAG, "Not keeping " + item.key + " (" + sizeBytes + " bytes), over budget");
+          item.state = State.SKIPPED;
+        } else {
+          item.value = value;
+          item.sizeBytes = sizeBytes;
+          item.state = State.READY;
+          heldBytes += sizeBytes;
+        }
+        notifyAll();
+      }
+    }
+    Log.i(TAG, getSummary());
+  }
+
+  private Item nextPending() {
+    for (Item item : items.values()) {
+      if (item.state == State.PENDING) {
+        return item;
+      }
+    }
+    return null;
+  }
+
+  private static BinaryMesh loadMesh(Context context, String objAssetName) throws IOException {
+    BinaryMesh mesh = MeshAssetLoader.loadFromAssets(context, objAssetName);
+    // Memory-mapped meshes are read lazily; fault their pages in now rather than during upload.
+    touchPages(mesh.getVertexData());
+    touchPages(mesh.getIndexData());
+    return mesh;
+  }
+
+  private static GpuTexture.Image loadTexture(Context context, String textureAssetName)
+      throws IOException {
+    GpuTexture.Image image =
+        GpuTexture.Image.decodeFromAssets(
+            context, textureAssetName, ASSUMED_COMPRESSED_FORMATS);
+    if (image.compressed != null) {
+      for (int level = 0; level < image.compressed.getLevelCount(); level++) {
+        touchPages(image.compressed.getLevelData(level));
+      }
+    }
+    return image;
+  }
+
+  private static void touchPages(ByteBuffer buffer) {
+    int sum = 0;
+    for (int i = buffer.position(); i < buffer.limit(); i += PAGE_SIZE_BYTES) {
+      sum += buffer.get(i);
+    }
+    if (sum == Integer.MIN_VALUE) {
+      // Keeps the reads from being optimized away.
+      Log.v(TAG, "Touched pages");
+    }
+  }
+
+  private static long sizeOf(Object value) {
+    if (value instanceof BinaryMesh) {
+      BinaryMesh mesh = (BinaryMesh) value;
+      return mesh.getVertexData().remaining() + mesh.getIndexData().remaining();
+    }
+    if (value instanceof GpuTexture.Image) {
+      GpuTexture.Image image = (GpuTexture.Image) value;
+      return image.compressed != null
+          ? image.compressed.getDataSizeBytes()
+          : image.pixels.capacity();
+    }
+    return 2L * ((String) value).length();
+  }
+}
@@ -35,6 +35,9 @@ public class BackgroundRenderer {
   // Shader names.
   private static final String VERTEX_SHADER_NAME = "shaders/screenquad.vert";
   private static final String FRAGMENT_SHADER_NAME = "shaders/screenquad.frag";
+  static final String[] SHADER_NAMES = {VERTEX_SHADER_NAME, FRAGMENT_SHADER_NAME};
+  private static final String PROGRAM_KEY =
+      GpuResourceCache.programKey(VERTEX_SHADER_NAME, FRAGMENT_SHADER_NAME);
 
   private static final int COORDS_PER_VERTEX = 3;
   private static final int TEXCOORDS_PER_VERTEX = 2;
@@ -45,9 +48,12 @@ public class BackgroundRenderer {
   private FloatBuffer quadTexCoordTransformed;
 
   private int quadProgram;
+  // Shared program, referenced in the GpuResourceCache under PROGRAM_KEY.
+  private GpuProgram program;
 
   private int quadPositionParam;
   private int quadTexCoordParam;
+  private GpuResourceTracker.Handle texture;
   private int textureId = -1;
 
   public BackgroundRenderer() {}
@@ -64,12 +70,16 @@ public class BackgroundRenderer {
    * @param context Needed to access shader source.
    */
   public void createOnGlThread(Context context) throws IOException {
-    // Generate the background texture.
-    int[] textures = new int[1];
-    GLES20.glGenTextures(1, textures, 0);
-    textureId = textures[0];
+    // Generate the background texture, freeing the one of a previous call. Its storage belongs to
+    // the camera, so it is tracked without a size.
+    GpuResourceTracker tracker = GpuResourceTracker.getInstance();
+    tracker.delete(texture);
+    texture = tracker.genTexture(TAG + " camera");
+    textureId = texture.id;
     int textureTarget = GLES11Ext.GL_TEXTURE_EXTERNAL_OES;
-    GLES20.glBindTexture(textureTarget, textureId);
+    GlState glState = GlState.getInstance();
+    glState.activeTexture(GLES20.GL_TEXTURE0);
+    glState.bindTexture(textureTarget, textureId);
     GLES20.glTexParameteri(textureTarget, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
     GLES20.glTexParameteri(textureTarget, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
     GLES20.glTexParameteri(textureTarget, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_NEAREST);
@@ -98,16 +108,11 @@ public class BackgroundRenderer {
     bbTexCoordsTransformed.order(ByteOrder.nativeOrder());
     quadTexCoordTransformed = bbTexCoordsTransformed.asFloatBuffer();
 
-    int vertexShader =
-        ShaderUtil.loadGLShader(TAG, context, GLES20.GL_VERTEX_SHADER, VERTEX_SHADER_NAME);
-    int fragmentShader =
-        ShaderUtil.loadGLShader(TAG, context, GLES20.GL_FRAGMENT_SHADER, FRAGMENT_SHADER_NAME);
-
-    quadProgram = GLES20.glCreateProgram();
-    GLES20.glAttachShader(quadProgram, vertexShader);
-    GLES20.glAttachShader(quadProgram, fragmentShader);
-    GLES20.glLinkProgram(quadProgram);
-    GLES20.glUseProgram(quadProgram);
+    GpuProgram previousProgram = program;
+    program = GpuProgram.acquire(TAG, context, VERTEX_SHADER_NAME, FRAGMENT_SHADER_NAME);
+    quadProgram = program.getProgramId();
+    GpuResourceCache.getInstance().release(PROGRAM_KEY, previousProgram);
+    glState.useProgram(quadProgram);
 
     ShaderUtil.checkGLError(TAG, "Program creation");
 
@@ -135,12 +140,18 @@ public class BackgroundRenderer {
 
     // No need to test or write depth, the screen quad has arbitrary depth, and is expected
     // to be drawn first.
-    GLES20.glDisable(GLES20.GL_DEPTH_TEST);
-    GLES20.glDepthMask(false);
+    GlState glState = GlState.getInstance();
+    glState.setDepthTest(false);
+    glState.depthMask(false);
+    glState.setBlend(false);
+
+    glState.activeTexture(GLES20.GL_TEXTURE0);
+    glState.bindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, textureId);
 
-    GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, textureId);
+    glState.useProgram(quadProgram);
 
-    GLES20.glUseProgram(quadProgram);
+    // The quad is drawn from client memory, which needs no buffer bound.
+    glState.bindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
 
     // Set the vertex positions.
     GLES20.glVertexAttribPointer(
@@ -156,20 +167,12 @@ public class BackgroundRenderer {
         quadTexCoordTransformed);
 
     // Enable vertex arrays
-    GLES20.glEnableVertexAttribArray(quadPositionParam);
-    GLES20.glEnableVertexAttribArray(quadTexCoordParam);
+    glState.setVertexAttribArrays(
+        GlState.attribBit(quadPositionParam) | GlState.attribBit(quadTexCoordParam));
 
     GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
 
-    // Disable vertex arrays
-    GLES20.glDisableVertexAttribArray(quadPositionParam);
-    GLES20.glDisableVertexAttribArray(quadTexCoordParam);
-
-    // Restore the depth state for further drawing.
-    GLES20.glDepthMask(true);
-    GLES20.glEnable(GLES20.GL_DEPTH_TEST);
-
-    ShaderUtil.checkGLError(TAG, "Draw");
+    GlErrorChecker.getInstance().check(TAG, "Draw");
   }
 
   private static final float[] QUAD_COORDS =
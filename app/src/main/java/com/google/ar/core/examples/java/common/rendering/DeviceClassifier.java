@@ -0,0 +1,195 @@
+/*
+ * Copyright 2018 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.examples.java.common.rendering;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.opengl.GLES20;
+import android.opengl.Matrix;
+import android.util.Log;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Assigns the device a {@link PerformanceTier} once per process, from the GPU named by the GL
+ * renderer string, the RAM class, the number of cores and a short CPU benchmark. Each of them
+ * scores 0 to 2 points, and the total picks the tier; low-RAM devices are always {@link
+ * PerformanceTier#LOW}.
+ *
+ * <p>Until {@link #classify} runs, the tier is {@link PerformanceTier#HIGH}, the workload of
+ * devices before tiers existed.
+ */
+public final class DeviceClassifier {
+  private static final String TAG = DeviceClassifier.class.getSimpleName();
+
+  private static final Pattern ADRENO = Pattern.compile("adreno.*?(\\d{3})");
+  private static final Pattern MALI_G = Pattern.compile("mali-g(\\d+)");
+  private static final long GIGABYTE = 1024L * 1024 * 1024;
+  // Devices report less memory than their nominal size, so the classes start half a GB lower.
+  private static final long MID_RAM_BYTES = 5 * GIGABYTE / 2;
+  private static final long HIGH_RAM_BYTES = 7 * GIGABYTE / 2;
+  private static final int BENCHMARK_ROUNDS = 3;
+  private static final int BENCHMARK_OPS_PER_ROUND = 2000;
+  private static final float FAST_BENCHMARK_NS = 150;
+  private static final float SLOW_BENCHMARK_NS = 400;
+  private static final int HIGH_TIER_SCORE = 6;
+  private static final int MEDIUM_TIER_SCORE = 3;
+
+  private static final DeviceClassifier INSTANCE = new DeviceClassifier();
+
+  private volatile PerformanceTier tier = PerformanceTier.HIGH;
+  private volatile int maxTextureSize = PerformanceTier.HIGH.maxTextureSize;
+  private String summary = "Device tier: not classified";
+  private boolean classified;
+
+  private DeviceClassifier() {}
+
+  public static DeviceClassifier getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * Classifies the device, unless it was classified before, and logs the tier. Must be called on
+   * a GL thread with a current context, typically first thing in {@code onSurfaceCreated}, so
+   * that renderers created afterwards read the tier. Takes a few milliseconds the first time.
+   */
+  public synchronized PerformanceTier classify(Context context) {
+    if (classified) {
+      return tier;
+    }
+    classified = true;
+
+    String renderer = GLES20.glGetString(GLES20.GL_RENDERER);
+    int[] glMaxTextureSize = new int[1];
+    GLES20.glGetIntegerv(GLES20.GL_MAX_TEXTURE_SIZE, glMaxTextureSize, 0);
+    boolean gles3 = ShaderUtil.isGles3OrNewer();
+
+    ActivityManager activityManager =
+        (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+    ActivityManager.MemoryInfo memoryInfo = new ActivityManager.MemoryInfo();
+    activityManager.getMemoryInfo(memoryInfo);
+    boolean lowRam = activityManager.isLowRamDevice();
+    int cores = Runtime.getRuntime().availableProcessors();
+    float benchmarkNs = runBenchmark();
+
+    int score =
+        rendererScore(renderer)
+            + memoryScore(memoryInfo.totalMem)
+            + (cores >= 8 ? 2 : cores > 4 ? 1 : 0)
+            + (benchmarkNs <= FAST_BENCHMARK_NS ? 2 : benchmarkNs <= SLOW_BENCHMARK_NS ? 1 : 0);
+    PerformanceTier result;
+    if (lowRam || score < MEDIUM_TIER_SCORE) {
+      result = PerformanceTier.LOW;
+    } else if (score < HIGH_TIER_SCORE || !gles3) {
+      // Without OpenGL ES 3.0 objects are not instanced, so draws cost more.
+      result = PerformanceTier.MEDIUM;
+    } else {
+      result = PerformanceTier.HIGH;
+    }
+
+    maxTextureSize =
+        glMaxTextureSize[0] > 0
+            ? Math.min(result.maxTextureSize, glMaxTextureSize[0])
+            : result.maxTextureSize;
+    tier = result;
+    summary =
+        String.format(
+            Locale.US,
+            "Device tier: %s (score %d): renderer %s, OpenGL ES %s, %.1f GB RAM%s, %d cores,"
+                + " benchmark %.0f ns/op, max texture %d",
+            result,
+            score,
+            renderer,
+            gles3 ? "3.0+" : "2.0",
+            (float) memoryInfo.totalMem / GIGABYTE,
+            lowRam ? " (low RAM)" : "",
+            cores,
+            benchmarkNs,
+            maxTextureSize);
+    Log.i(TAG, summary);
+    return result;
+  }
+
+  /** The tier of the device; may be called from any thread. */
+  public PerformanceTier getTier() {
+    return tier;
+  }
+
+  /**
+   * The largest width or height of textures: that of the tier, unless the context supports less.
+   * May be called from any thread.
+   */
+  public int getMaxTextureSize() {
+    return maxTextureSize;
+  }
+
+  /** Describes the tier and what it was derived from, for logging. */
+  public synchronized String getSummary() {
+    return summary;
+  }
+
+  /** Scores the GPU by name. Unknown GPUs score in the middle. */
+  private static int rendererScore(String renderer) {
+    if (renderer == null) {
+      return 1;
+    }
+    String name = renderer.toLowerCase(Locale.US);
+    Matcher adreno = ADRENO.matcher(name);
+    if (adreno.find()) {
+      int model = Integer.parseInt(adreno.group(1));
+      return model >= 530 ? 2 : model >= 400 ? 1 : 0;
+    }
+    Matcher mali = MALI_G.matcher(name);
+    if (mali.find()) {
+      int model = Integer.parseInt(mali.group(1));
+      return model >= 76 ? 2 : model >= 51 ? 1 : 0;
+    }
+    if (name.contains("mali-t") || name.contains("mali-4")) {
+      return 0;
+    }
+    if (name.contains("powervr")) {
+      return name.contains("rogue") ? 1 : 0;
+    }
+    return 1;
+  }
+
+  private static int memoryScore(long totalBytes) {
+    return totalBytes >= HIGH_RAM_BYTES ? 2 : totalBytes >= MID_RAM_BYTES ? 1 : 0;
+  }
+
+  /**
+   * Times the 4x4 matrix products the render loop is made of, and returns the nanoseconds per
+   * product of the fastest round, which is the least disturbed by other threads.
+   */
+  private static float runBenchmark() {
+    float[] a = new float[16];
+    float[] b = new float[16];
+    float[] result = new float[16];
+    Matrix.setRotateM(a, 0, 30.0f, 0.0f, 1.0f, 0.0f);
+    Matrix.setIdentityM(b, 0);
+    long fastestNs = Long.MAX_VALUE;
+    for (int round = 0; round < BENCHMARK_ROUNDS; round++) {
+      long startNs = System.nanoTime();
+      for (int i = 0; i < BENCHMARK_OPS_PER_ROUND; i++) {
+        Matrix.multiplyMM(result, 0, a, 0, b, 0);
+        Matrix.multiplyMM(b, 0, result, 0, a, 0);
+      }
+      fastestNs = Math.min(fastestNs, System.nanoTime() - startNs);
+    }
+    return (float) fastestNs / (2 * BENCHMARK_OPS_PER_ROUND);
+  }
+}
@@ -0,0 +1,485 @@
+/*
+ * Copyright 2018 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.examples.java.common.rendering;
+
+import android.content.Context;
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.util.Log;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Locale;
+
+/**
+ * Renders the virtual content at a resolution scale that adapts to the measured render cost, and
+ * composites it over the camera background drawn by {@link BackgroundRenderer}.
+ *
+ * <p>The smoothed cost of the frames, as measured by its {@link RenderCostMeter}, is compared to
+ * a budget, a share of the target frame time. When it stays over the budget, the scale steps
+ * down, to no less than the minimum scale. It steps back up when the cost, grown by the pixels
+ * of the next step, stays well under the budget for longer. A raise that has to be taken back
+ * soon after doubles the time the next raise waits for. At a scale of 1 the content is drawn
+ * straight to the screen.
+ * Below that, {@link #begin()} redirects it to an offscreen target of the scaled size,
+ * and {@link #end()} blends that target over the screen with a bilinear upsample. The target is
+ * allocated for the largest scale below 1, so stepping between scales only changes the viewport.
+ *
+ * <p>The target starts fully transparent and holds premultiplied colors, whose alpha is the
+ * coverage of the content: the object blend modes write it, and {@link #resetCoverage()} clears
+ * what {@link PlaneRenderer} left in the alpha channel, since that is a mask and not coverage.
+ *
+ * <p>All methods must be called on the GL thread.
+ */
+public final class DynamicResolutionTarget {
+  private static final String TAG = DynamicResolutionTarget.class.getSimpleName();
+
+  // Shader names.
+  private static final String VERTEX_SHADER_NAME = "shaders/composite.vert";
+  private static final String FRAGMENT_SHADER_NAME = "shaders/composite.frag";
+  static final String[] SHADER_NAMES = {VERTEX_SHADER_NAME, FRAGMENT_SHADER_NAME};
+  private static final String PROGRAM_KEY =
+      GpuResourceCache.programKey(VERTEX_SHADER_NAME, FRAGMENT_SHADER_NAME);
+
+  private static final float DEFAULT_TARGET_FPS = 30.0f;
+  static final float DEFAULT_MIN_SCALE = 0.5f;
+  private static final float SCALE_STEP = 0.1f;
+  // Share of the target frame time the rendering may cost. The session update and the
+  // compositor need the rest.
+  private static final float BUDGET_FRACTION = 0.8f;
+  // The smoothed cost has to stay over the budget for SLOW_FRAMES measured frames to step the
+  // scale down. To step it up, the cost expected at the next step has to stay under FAST_FRACTION
+  // of the budget for FAST_FRAMES, doubled for each raise in a row that was taken back within
+  // RAISE_PROBATION_FRAMES, up to MAX_FAILED_RAISES times.
+  private static final int SLOW_FRAMES = 15;
+  private static final float FAST_FRACTION = 0.85f;
+  private static final int FAST_FRAMES = 90;
+  private static final int RAISE_PROBATION_FRAMES = 150;
+  private static final int MAX_FAILED_RAISES = 4;
+
+  private static final int COORDS_PER_VERTEX = 2;
+  private static final int FLOAT_SIZE = 4;
+  private static final float[] QUAD_COORDS =
+      new float[] {
+        -1.0f, -1.0f, -1.0f, +1.0f, +1.0f, -1.0f, +1.0f, +1.0f,
+      };
+  private static final int[] DEPTH_ATTACHMENT = {GLES20.GL_DEPTH_ATTACHMENT};
+
+  private final RenderCostMeter costMeter = new RenderCostMeter();
+
+  private FloatBuffer quadVertices;
+  private int compositeProgram;
+  // Shared program, referenced in the GpuResourceCache under PROGRAM_KEY.
+  private GpuProgram program;
+  private int positionAttribute;
+  private int textureUniform;
+  private int uvScaleUniform;
+  private int uvBoundsUniform;
+  private boolean canInvalidate;
+
+  // The offscreen target, allocated on first use.
+  private GpuResourceTracker.Handle framebuffer;
+  private GpuResourceTracker.Handle colorTexture;
+  private GpuResourceTracker.Handle depthRenderbuffer;
+  private int targetWidth;
+  private int targetHeight;
+  private boolean targetFailed;
+
+  private int surfaceWidth;
+  private int surfaceHeight;
+  // Size of the content while offscreen, between begin() and end().
+  private int contentWidth;
+  private int contentHeight;
+  private boolean offscreen;
+  // The clear color of the screen, restored after clearing the offscreen target.
+  private final float[] screenClearColor = new float[4];
+
+  private float minScale = DEFAULT_MIN_SCALE;
+  private float maxScale = 1.0f;
+  private float scale = 1.0f;
+  private long targetFrameNs = (long) (1_000_000_000L / DEFAULT_TARGET_FPS);
+  private int lastSampleCount;
+  private int slowFrames;
+  private int fastFrames;
+  // Measured frames left until the last raise holds, or 0 if it does.
+  private int probationFrames;
+  private int failedRaises;
+
+  // Statistics since the last getSummary().
+  private int frames;
+  private int offscreenFrames;
+  private float scaleTotal;
+  private int scaleDrops;
+  private int scaleRaises;
+
+  public DynamicResolutionTarget() {}
+
+  /**
+   * Allocates the composite program and the queries of the cost meter, and forgets the offscreen
+   * target of a previous context. Must be called on the OpenGL thread, typically in {@code
+   * onSurfaceCreated}.
+   *
+   * @param context Needed to access shader source.
+   */
+  public void createOnGlThread(Context context) throws IOException {
+    GpuResourceTracker tracker = GpuResourceTracker.getInstance();
+    tracker.delete(framebuffer);
+    tracker.delete(colorTexture);
+    tracker.delete(depthRenderbuffer);
+    framebuffer = null;
+    colorTexture = null;
+    depthRenderbuffer = null;
+    targetWidth = 0;
+    targetHeight = 0;
+    targetFailed = false;
+    offscreen = false;
+
+    ByteBuffer bbVertices = ByteBuffer.allocateDirect(QUAD_COORDS.length * FLOAT_SIZE);
+    bbVertices.order(ByteOrder.nativeOrder());
+    quadVertices = bbVertices.asFloatBuffer();
+    quadVertices.put(QUAD_COORDS);
+    quadVertices.position(0);
+
+    GpuProgram previousProgram = program;
+    program = GpuProgram.acquire(TAG, context, VERTEX_SHADER_NAME, FRAGMENT_SHADER_NAME);
+    compositeProgram = program.getProgramId();
+    GpuResourceCache.getInstance().release(PROGRAM_KEY, previousProgram);
+
+    ShaderUtil.checkGLError(TAG, "Program creation");
+
+    positionAttribute = GLES20.glGetAttribLocation(compositeProgram, "a_Position");
+    textureUniform = GLES20.glGetUniformLocation(compositeProgram, "u_Texture");
+    uvScaleUniform = GLES20.glGetUniformLocation(compositeProgram, "u_UvScale");
+    uvBoundsUniform = GLES20.glGetUniformLocation(compositeProgram, "u_UvBounds");
+
+    ShaderUtil.checkGLError(TAG, "Program parameters");
+
+    // The depth of the content is not needed once it is composited.
+    canInvalidate = ShaderUtil.isGles3OrNewer();
+
+    costMeter.createOnGlThread();
+  }
+
+  /** Call from {@code onSurfaceChanged} with the size of the surface. */
+  public void onSurfaceChanged(int width, int height) {
+    surfaceWidth = width;
+    surfaceHeight = height;
+  }
+
+  /**
+   * Sets the frame rate whose frame time the render cost is budgeted from. Initially 30, the rate
+   * of the camera images.
+   */
+  public void setTargetFrameRate(float framesPerSecond) {
+    if (framesPerSecond <= 0) {
+      throw new IllegalArgumentException("Target frame rate must be positive: " + framesPerSecond);
+    }
+    targetFrameNs = (long) (1_000_000_000L / framesPerSecond);
+  }
+
+  /**
+   * Sets the range of the resolution scale, clamping the current scale to it. Initially 0.5 to 1.
+   * A maximum below 1 keeps the content offscreen even when the cost is low.
+   */
+  public void setScaleRange(float minScale, float maxScale) {
+    if (minScale <= 0 || minScale > maxScale || maxScale > 1) {
+      throw new IllegalArgumentException(
+          "Invalid scale range: " + minScale + " to " + maxScale);
+    }
+    this.minScale = minScale;
+    this.maxScale = maxScale;
+    setScale(scale);
+  }
+
+  /** The current resolution scale of the virtual content. */
+  public float getScale() {
+    return scale;
+  }
+
+  /** The meter of the render cost, which {@link QualityGovernor} governs by too. */
+  public RenderCostMeter getCostMeter() {
+    return costMeter;
+  }
+
+  /**
+   * Starts measuring the frame's cost, and adapts the scale to the cost of the previous frames.
+   * Call first thing in {@code onDrawFrame}, also for frames that draw no virtual content.
+   */
+  public void onDrawFrame() {
+    costMeter.beginFrame();
+    if (costMeter.isResumed()) {
+      slowFrames = 0;
+      fastFrames = 0;
+      return;
+    }
+    frames++;
+    scaleTotal += scale;
+    int sampleCount = costMeter.getSampleCount();
+    if (sampleCount == lastSampleCount) {
+      return;
+    }
+    lastSampleCount = sampleCount;
+    if (probationFrames > 0 && --probationFrames == 0) {
+      failedRaises = 0;
+    }
+
+    float costNs = costMeter.getSmoothedCostNs();
+    float budgetNs = targetFrameNs * BUDGET_FRACTION;
+    float nextScale = Math.min(maxScale, scale + SCALE_STEP);
+    // Only the GPU time grows with the pixels, so this overestimates the cost at the next step.
+    float nextCostNs = costNs * (nextScale * nextScale) / (scale * scale);
+    if (costNs > budgetNs) {
+      fastFrames = 0;
+      if (++slowFrames >= SLOW_FRAMES && scale > minScale) {
+        slowFrames = 0;
+        if (probationFrames > 0) {
+          probationFrames = 0;
+          failedRaises = Math.min(failedRaises + 1, MAX_FAILED_RAISES);
+        }
+        scaleDrops++;
+        setScale(scale - SCALE_STEP);
+      }
+    } else if (scale < maxScale && nextCostNs < budgetNs * FAST_FRACTION) {
+      slowFrames = 0;
+      if (++fastFrames >= FAST_FRAMES << failedRaises) {
+        fastFrames = 0;
+        probationFrames = RAISE_PROBATION_FRAMES;
+        scaleRaises++;
+        setScale(nextScale);
+      }
+    } else {
+      slowFrames = 0;
+      fastFrames = 0;
+    }
+  }
+
+  /**
+   * Redirects the following draws to the offscreen target and clears it, if the scale is below 1.
+   * Call after drawing the background and before the virtual content. Does nothing if already
+   * begun.
+   */
+  public void begin() {
+    if (offscreen || scale >= 1.0f || !ensureTarget()) {
+      return;
+    }
+    contentWidth = Math.min(targetWidth, Math.max(1, Math.round(surfaceWidth * scale)));
+    contentHeight = Math.min(targetHeight, Math.max(1, Math.round(surfaceHeight * scale)));
+    GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, framebuffer.id);
+    GLES20.glViewport(0, 0, contentWidth, contentHeight);
+
+    // Clears are masked like draws.
+    GlState glState = GlState.getInstance();
+    glState.colorMask(true, true, true, true);
+    glState.depthMask(true);
+    GLES20.glGetFloatv(GLES20.GL_COLOR_CLEAR_VALUE, screenClearColor, 0);
+    clearToTransparent(GLES20.GL_COLOR_BUFFER_BIT | GLES20.GL_DEPTH_BUFFER_BIT);
+    offscreen = true;
+    offscreenFrames++;
+  }
+
+  /**
+   * Clears the alpha channel of the offscreen target, which {@link PlaneRenderer} uses as a mask.
+   * Call after drawing the planes and before any other content. Does nothing on screen.
+   */
+  public void resetCoverage() {
+    if (!offscreen) {
+      return;
+    }
+    GlState glState = GlState.getInstance();
+    glState.colorMask(false, false, false, true);
+    clearToTransparent(GLES20.GL_COLOR_BUFFER_BIT);
+    glState.colorMask(true, true, true, true);
+  }
+
+  /**
+   * Switches back to the screen and composites the offscreen target over it, and ends measuring
+   * the frame's cost. Call once the virtual content is drawn, before reading back the screen, and
+   * from a {@code finally} block so that an exception does not leave the target bound. Does
+   * nothing if already ended.
+   */
+  public void end() {
+    try {
+      composite();
+    } finally {
+      costMeter.endFrame();
+    }
+  }
+
+  private void composite() {
+    if (!offscreen) {
+      return;
+    }
+    offscreen = false;
+    if (canInvalidate) {
+      GLES30.glInvalidateFramebuffer(GLES20.GL_FRAMEBUFFER, 1, DEPTH_ATTACHMENT, 0);
+    }
+    GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+    GLES20.glViewport(0, 0, surfaceWidth, surfaceHeight);
+
+    // Premultiplied colors over the background, without depth.
+    GlState glState = GlState.getInstance();
+    glState.setDepthTest(false);
+    glState.depthMask(false);
+    glState.setBlend(true);
+    glState.blendFunc(GLES20.GL_ONE, GLES20.GL_ONE_MINUS_SRC_ALPHA);
+
+    glState.useProgram(compositeProgram);
+    glState.activeTexture(GLES20.GL_TEXTURE0);
+    glState.bindTexture(GLES20.GL_TEXTURE_2D, colorTexture.id);
+    GLES20.glUniform1i(textureUniform, 0);
+    GLES20.glUniform2f(
+        uvScaleUniform,
+        (float) contentWidth / targetWidth,
+        (float) contentHeight / targetHeight);
+    GLES20.glUniform4f(
+        uvBoundsUniform,
+        0.5f / targetWidth,
+        0.5f / targetHeight,
+        (contentWidth - 0.5f) / targetWidth,
+        (contentHeight - 0.5f) / targetHeight);
+
+    // The quad is drawn from client memory, which needs no buffer bound.
+    glState.bindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+    GLES20.glVertexAttribPointer(
+        positionAttribute, COORDS_PER_VERTEX, GLES20.GL_FLOAT, false, 0, quadVertices);
+    glState.setVertexAttribArrays(GlState.attribBit(positionAttribute));
+
+    GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+
+    GlErrorChecker.getInstance().check(TAG, "Composite");
+  }
+
+  /** Describes the scale since the last call, for logging, and resets the statistics. */
+  public String getSummary() {
+    String summary =
+        String.format(
+            Locale.US,
+            "Render scale: %.2f now, %.2f average, %d%% of frames offscreen, %d steps down, %d up,"
+                + " render cost %.1f ms",
+            scale,
+            frames == 0 ? scale : scaleTotal / frames,
+            frames == 0 ? 0 : offscreenFrames * 100 / frames,
+            scaleDrops,
+            scaleRaises,
+            costMeter.getSmoothedCostNs() / 1_000_000f);
+    frames = 0;
+    offscreenFrames = 0;
+    scaleTotal = 0;
+    scaleDrops = 0;
+    scaleRaises = 0;
+    return summary;
+  }
+
+  /** Clears the buffers to transparent black, keeping the clear color of the screen. */
+  private void clearToTransparent(int mask) {
+    GLES20.glClearColor(0, 0, 0, 0);
+    GLES20.glClear(mask);
+    GLES20.glClearColor(
+        screenClearColor[0], screenClearColor[1], screenClearColor[2], screenClearColor[3]);
+  }
+
+  private void setScale(float newScale) {
+    // Rounded, so that repeated steps do not drift away from the 0.1 grid.
+    float clamped = Math.max(minScale, Math.min(maxScale, Math.round(newScale * 100) / 100f));
+    if (clamped != scale) {
+      Log.d(TAG, "Render scale " + scale + " -> " + clamped);
+      scale = clamped;
+    }
+  }
+
+  /** Allocates the offscreen target for the largest scale below 1, if not allocated yet. */
+  private boolean ensureTarget() {
+    if (targetFailed || surfaceWidth == 0 || surfaceHeight == 0) {
+      return false;
+    }
+    float largestScale = maxScale < 1.0f ? maxScale : 1.0f - SCALE_STEP;
+    int width = Math.max(1, Math.round(surfaceWidth * largestScale));
+    int height = Math.max(1, Math.round(surfaceHeight * largestScale));
+    if (framebuffer != null && width == targetWidth && height == targetHeight) {
+      return true;
+    }
+
+    GpuResourceTracker tracker = GpuResourceTracker.getInstance();
+    if (framebuffer == null) {
+      framebuffer = tracker.genFramebuffer(TAG + " framebuffer");
+      colorTexture = tracker.genTexture(TAG + " color");
+      depthRenderbuffer = tracker.genRenderbuffer(TAG + " depth");
+    }
+
+    // Linear filtering is the upsample.
+    GlState glState = GlState.getInstance();
+    glState.activeTexture(GLES20.GL_TEXTURE0);
+    glState.bindTexture(GLES20.GL_TEXTURE_2D, colorTexture.id);
+    GLES20.glTexParameteri(
+        GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+    GLES20.glTexParameteri(
+        GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+    GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+    GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+    GLES20.glTexImage2D(
+        GLES20.GL_TEXTURE_2D,
+        0,
+        GLES20.GL_RGBA,
+        width,
+        height,
+        0,
+        GLES20.GL_RGBA,
+        GLES20.GL_UNSIGNED_BYTE,
+        null);
+    tracker.setSize(colorTexture, 4L * width * height);
+
+    GLES20.glBindRenderbuffer(GLES20.GL_RENDERBUFFER, depthRenderbuffer.id);
+    GLES20.glRenderbufferStorage(
+        GLES20.GL_RENDERBUFFER, GLES20.GL_DEPTH_COMPONENT16, width, height);
+    tracker.setSize(depthRenderbuffer, 2L * width * height);
+
+    GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, framebuffer.id);
+    GLES20.glFramebufferTexture2D(
+        GLES20.GL_FRAMEBUFFER,
+        GLES20.GL_COLOR_ATTACHMENT0,
+        GLES20.GL_TEXTURE_2D,
+        colorTexture.id,
+        0);
+    GLES20.glFramebufferRenderbuffer(
+        GLES20.GL_FRAMEBUFFER,
+        GLES20.GL_DEPTH_ATTACHMENT,
+        GLES20.GL_RENDERBUFFER,
+        depthRenderbuffer.id);
+    int status = GLES20.glCheckFramebufferStatus(GLES20.GL_FRAMEBUFFER);
+    GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+    ShaderUtil.checkGLError(TAG, "Render target creation");
+
+    if (status != GLES20.GL_FRAMEBUFFER_COMPLETE) {
+      // Drawing on screen at full resolution still works.
+      Log.w(TAG, "Offscreen target incomplete, status 0x" + Integer.toHexString(status));
+      targetFailed = true;
+      tracker.delete(framebuffer);
+      tracker.delete(colorTexture);
+      tracker.delete(depthRenderbuffer);
+      framebuffer = null;
+      colorTexture = null;
+      depthRenderbuffer = null;
+      targetWidth = 0;
+      targetHeight = 0;
+      return false;
+    }
+    targetWidth = width;
+    targetHeight = height;
+    Log.i(TAG, "Allocated offscreen target of " + width + "x" + height);
+    return true;
+  }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright 2018 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.examples.java.common.rendering;
+
+import android.os.Debug;
+import android.os.SystemClock;
+import android.util.Log;
+import java.util.Locale;
+
+/**
+ * Checks that the rendering code of a frame allocates nothing once warmed up, since every
+ * allocation brings the next garbage collection pause closer, and those show up as dropped camera
+ * frames.
+ *
+ * <p>Objects allocated by the calling thread between {@link #begin()} and {@link #end()} are
+ * counted with {@link Debug#getThreadAllocCount()}; a frame may have several such sections, so
+ * that ARCore calls, which return new objects by design, can be left out. Code within a section
+ * leaves out the ARCore calls it makes itself with {@link #pause()} and {@link #resume()}. After
+ * the warm-up frames, {@link #endFrame()} logs frames that allocated, or throws in strict mode.
+ *
+ * <p>Allocation counting slows the process down, so the monitor does nothing unless enabled,
+ * which is meant for debug builds only. All methods must be called on the GL thread.
+ *
+ * <p>The instrumentation test {@code FrameAllocationTest} holds the renderers to the same rule
+ * without a camera, by drawing warm frames into an offscreen context.
+ */
+// Debug's allocation counting is deprecated without a replacement for counting the allocations
+// of one thread; it still counts on debuggable builds.
+@SuppressWarnings("deprecation")
+public final class FrameAllocationMonitor {
+  private static final int WARMUP_FRAMES = 60;
+  // Frames that allocated are logged at most this often.
+  private static final long LOG_INTERVAL_MILLIS = 5000;
+
+  private final String tag;
+  private final boolean enabled;
+  private boolean strict;
+
+  private boolean counting;
+  private boolean inSection;
+  private boolean paused;
+  private int sectionStartCount;
+  private int frameCount;
+
+  private int frames;
+  private int allocatingFrames;
+  private int maxFrameCount;
+  private long lastLogMillis;
+
+  /**
+   * @param tag Log tag of the activity.
+   * @param enabled Whether to count allocations at all, e.g. {@code BuildConfig.DEBUG}.
+   */
+  public FrameAllocationMonitor(String tag, boolean enabled) {
+    this.tag = tag;
+    this.enabled = enabled;
+  }
+
+  /**
+   * Makes {@link #endFrame()} throw an {@link IllegalStateException} for a steady-state frame that
+   * allocated, rather than log it. Thrown from {@code onDrawFrame}, it stops the app, which makes
+   * an allocation fail a debug run instead of scrolling by in the log.
+   */
+  public void setStrict(boolean strict) {
+    this.strict = strict;
+  }
+
+  /** Starts a section of the frame that must not allocate. */
+  public void begin() {
+    if (!enabled) {
+      return;
+    }
+    if (!counting) {
+      // Counting stays on once started; starting it again would reset the counts.
+      Debug.startAllocCounting();
+      counting = true;
+    }
+    inSection = true;
+    paused = false;
+    sectionStartCount = Debug.getThreadAllocCount();
+  }
+
+  /** Ends the section started by {@link #begin()}. */
+  public void end() {
+    if (!enabled || !inSection) {
+      return;
+    }
+    inSection = false;
+    if (paused) {
+      paused = false;
+      return;
+    }
+    frameCount += Debug.getThreadAllocCount() - sectionStartCount;
+  }
+
+  /**
+   * Leaves the following calls out of the current section until {@link #resume()}, e.g. ARCore
+   * getters made by a renderer. Does nothing outside of a section.
+   */
+  public void pause() {
+    if (!enabled || !inSection || paused) {
+      return;
+    }
+    frameCount += Debug.getThreadAllocCount() - sectionStartCount;
+    paused = true;
+  }
+
+  /** Counts the allocations of the current section again, after {@link #pause()}. */
+  public void resume() {
+    if (!enabled || !paused) {
+      return;
+    }
+    paused = false;
+    sectionStartCount = Debug.getThreadAllocCount();
+  }
+
+  /** Call at the end of every frame, also from early returns. */
+  public void endFrame() {
+    if (!enabled) {
+      return;
+    }
+    int count = frameCount;
+    frameCount = 0;
+    if (++frames <= WARMUP_FRAMES || count == 0) {
+      return;
+    }
+    allocatingFrames++;
+    maxFrameCount = Math.max(maxFrameCount, count);
+    if (strict) {
+      throw new IllegalStateException(
+          "Frame " + frames + " allocated " + count + " objects after warming up");
+    }
+    long now = SystemClock.elapsedRealtime();
+    if (now - lastLogMillis >= LOG_INTERVAL_MILLIS) {
+      lastLogMillis = now;
+      Log.w(tag, "Frame " + frames + " allocated " + count + " objects. " + getSummary());
+    }
+  }
+
+  /** Describes the allocations of the steady-state frames so far, for logging. */
+  public String getSummary() {
+    return String.format(
+        Locale.US,
+        "Allocations: %d of %d frames after warm-up allocated, at most %d objects",
+        allocatingFrames,
+        Math.max(0, frames - WARMUP_FRAMES),
+        maxFrameCount);
+  }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2018 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.examples.java.common.rendering;
+
+/**
+ * The six clip planes of a view-projection transform, for testing bounding volumes against the
+ * view. Planes are extracted from the combined matrix (Gribb and Hartmann, "Fast Extraction of
+ * Viewing Frustum Planes from the World-View-Projection Matrix"), so volumes are tested in the
+ * space the matrix transforms from.
+ */
+public final class Frustum {
+  // a, b, c, d for left, right, bottom, top, near, far; inside is where ax + by + cz + d >= 0.
+  private final float[] planes = new float[24];
+
+  /**
+   * Extracts the planes from a 4x4 matrix in column-major order, such as a model view projection
+   * matrix.
+   */
+  public void set(float[] matrix) {
+    for (int plane = 0; plane < 6; plane++) {
+      // Each plane is the fourth row plus or minus one of the first three rows.
+      int row = plane / 2;
+      float sign = plane % 2 == 0 ? 1 : -1;
+      for (int column = 0; column < 4; column++) {
+        planes[plane * 4 + column] =
+            matrix[column * 4 + 3] + sign * matrix[column * 4 + row];
+      }
+      // Normalize so that ax + by + cz + d is a distance, as intersectsSphere() needs.
+      float a = planes[plane * 4];
+      float b = planes[plane * 4 + 1];
+      float c = planes[plane * 4 + 2];
+      float length = (float) Math.sqrt(a * a + b * b + c * c);
+      if (length > 0) {
+        for (int column = 0; column < 4; column++) {
+          planes[plane * 4 + column] /= length;
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns whether a sphere may be visible. Spheres near the edges of the frustum may be reported
+   * visible even though they are not.
+   *
+   * @param sphere {@code centerX, centerY, centerZ, radius}.
+   */
+  public boolean intersectsSphere(float[] sphere) {
+    for (int plane = 0; plane < 6; plane++) {
+      float distance =
+          planes[plane * 4] * sphere[0]
+              + planes[plane * 4 + 1] * sphere[1]
+              + planes[plane * 4 + 2] * sphere[2]
+              + planes[plane * 4 + 3];
+      if (distance < -sphere[3]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns whether an axis-aligned box may be visible. Boxes near the corners of the frustum may
+   * be reported visible even though they are not.
+   *
+   * @param bounds {@code minX, minY, minZ, maxX, maxY, maxZ}.
+   */
+  public boolean intersectsBox(float[] bounds) {
+    for (int plane = 0; plane < 6; plane++) {
+      float a = planes[plane * 4];
+      float b = planes[plane * 4 + 1];
+      float c = planes[plane * 4 + 2];
+      float d = planes[plane * 4 + 3];
+      // Test the corner furthest along the plane normal.
+      float x = a >= 0 ? bounds[3] : bounds[0];
+      float y = b >= 0 ? bounds[4] : bounds[1];
+      float z = c >= 0 ? bounds[5] : bounds[2];
+      if (a * x + b * y + c * z + d < 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2018 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.examples.java.common.rendering;
+
+import android.opengl.EGL14;
+import android.opengl.EGLContext;
+import android.os.SystemClock;
+import android.util.Log;
+import java.util.Locale;
+
+/**
+ * Tells apart resumes whose EGL context survived the pause, so that all GPU resources are still
+ * valid, from those that lost it and have to create them again, and times both paths from {@code
+ * onResume} to the first frame.
+ *
+ * <p>Activities keep their context with {@code GLSurfaceView.setPreserveEGLContextOnPause(true)}
+ * where the device allows it. {@code GLSurfaceView} only calls {@code onSurfaceCreated} for a new
+ * context, so a resume without that call kept its context. Comparing context handles would not
+ * do, since a new context can get the handle of a destroyed one.
+ *
+ * <p>The monitor also remembers its context, so that the resources of a context that is gone are
+ * dropped from the {@link GpuResourceCache} and {@link GpuResourceTracker}: the previous context
+ * when a new one is created, and the current one when the activity is destroyed.
+ */
+public final class GlContextMonitor {
+  private final String tag;
+
+  // Only touched on the GL thread.
+  private int contextsCreated;
+  private long rebuildStartMillis;
+  private int contextLosses;
+  private long totalRebuildMillis;
+
+  // Set on the GL thread, read on the UI thread by onDestroy.
+  private volatile EGLContext context;
+
+  // Set on the UI thread, read on the GL thread.
+  private volatile long resumeMillis = -1;
+  private volatile boolean contextCreatedSinceResume;
+
+  private int warmResumes;
+  private long totalWarmResumeMillis;
+  private int coldResumes;
+  private long totalColdResumeMillis;
+
+  /** @param tag Log tag of the activity. */
+  public GlContextMonitor(String tag) {
+    this.tag = tag;
+  }
+
+  /** Call from {@code Activity.onResume} before resuming the {@code GLSurfaceView}. */
+  public void onResume() {
+    contextCreatedSinceResume = false;
+    resumeMillis = SystemClock.elapsedRealtime();
+  }
+
+  /**
+   * Call first thing in {@code onSurfaceCreated}, before the renderers create their resources.
+   * Resets the {@link GpuResourceCache} for the new context.
+   */
+  public void onSurfaceCreated() {
+    if (contextsCreated++ > 0) {
+      contextLosses++;
+      Log.i(tag, "EGL context was lost, recreating all GPU resources");
+    }
+    contextCreatedSinceResume = true;
+    rebuildStartMillis = SystemClock.elapsedRealtime();
+    EGLContext previous = context;
+    context = EGL14.eglGetCurrentContext();
+    if (previous != null && !previous.equals(context)) {
+      // GLSurfaceView destroyed the previous context before creating this one.
+      GpuResourceCache.getInstance().onContextDestroyed(previous);
+    }
+    GpuResourceCache.getInstance().onContextCreated();
+  }
+
+  /** Call at the end of {@code onSurfaceCreated}, once the renderers have created resources. */
+  public void onResourcesCreated() {
+    long millis = SystemClock.elapsedRealtime() - rebuildStartMillis;
+    totalRebuildMillis += millis;
+    Log.i(tag, "Created GPU resources in " + millis + " ms");
+  }
+
+  /**
+   * Call from {@code Activity.onDestroy}. The context dies with the {@code GLSurfaceView}, which
+   * does not tell its renderer, so this drops the context's resources from the caches here.
+   */
+  public void onDestroy() {
+    EGLContext destroyed = context;
+    context = null;
+    GpuResourceCache.getInstance().onContextDestroyed(destroyed);
+  }
+
+  /** Call at the start of every {@code onDrawFrame}. */
+  public void onDrawFrame() {
+    long resumedAt = resumeMillis;
+    if (resumedAt < 0) {
+      return;
+    }
+    resumeMillis = -1;
+    long millis = SystemClock.elapsedRealtime() - resumedAt;
+    if (contextCreatedSinceResume) {
+      coldResumes++;
+      totalColdResumeMillis += millis;
+    } else {
+      warmResumes++;
+      totalWarmResumeMillis += millis;
+    }
+    Log.i(
+        tag,
+        (contextCreatedSinceResume ? "Cold" : "Warm")
+            + " resume took "
+            + millis
+            + " ms to the first frame. "
+            + getSummary());
+  }
+
+  /** Describes the resumes and context losses so far, for logging. Call on the GL thread. */
+  public String getSummary() {
+    return String.format(
+        Locale.US,
+        "EGL context: %d warm resumes (avg %d ms), %d cold (avg %d ms), %d losses, %d ms"
+            + " recreating resources",
+        warmResumes,
+        warmResumes == 0 ? 0 : totalWarmResumeMillis / warmResumes,
+        coldResumes,
+        coldResumes == 0 ? 0 : totalColdResumeMillis / coldResumes,
+        contextLosses,
+        totalRebuildMillis);
+  }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2018 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.examples.java.common.rendering;
+
+import android.opengl.GLES20;
+import android.util.Log;
+import java.util.Locale;
+
+/**
+ * Decides which error checks of the per-frame render path call {@code glGetError}, which stalls
+ * until the driver has processed all earlier calls.
+ *
+ * <p>With full checks, as in debug builds, every {@link #check} behaves like {@link
+ * ShaderUtil#checkGLError}. Otherwise the checks are skipped and {@link #endFrame()} reads the
+ * error flag once every {@link #setSampleInterval sample interval}. OpenGL keeps an error flag set
+ * until it is read, so the sampled read sees errors of any frame since the previous one, just not
+ * which call raised them. A sampled error therefore starts a burst of frames with full checks, in
+ * which an error that happens again is reported with the label of the failing section.
+ *
+ * <p>Checks of resource creation are rare and keep calling {@link ShaderUtil#checkGLError}
+ * directly. All methods must be called on the GL thread.
+ */
+public final class GlErrorChecker {
+  private static final String TAG = GlErrorChecker.class.getSimpleName();
+  private static final int DEFAULT_SAMPLE_INTERVAL_FRAMES = 60;
+  private static final int DEFAULT_BURST_FRAMES = 300;
+
+  private static final GlErrorChecker INSTANCE = new GlErrorChecker();
+
+  private boolean fullChecks = true;
+  private int sampleIntervalFrames = DEFAULT_SAMPLE_INTERVAL_FRAMES;
+  private int burstFrames = DEFAULT_BURST_FRAMES;
+
+  private int framesUntilSample = DEFAULT_SAMPLE_INTERVAL_FRAMES;
+  private int burstFramesLeft;
+
+  // Statistics since the last getSummary().
+  private long checksRun;
+  private long checksSkipped;
+  private int sampledErrors;
+  private int bursts;
+
+  private GlErrorChecker() {}
+
+  public static GlErrorChecker getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * Sets whether every check reads the error flag, e.g. {@code BuildConfig.DEBUG}. Initially true,
+   * so that nothing goes unchecked until a release build opts in to sampling.
+   */
+  public void setFullChecks(boolean fullChecks) {
+    this.fullChecks = fullChecks;
+  }
+
+  /** Sets how many frames apart the sampled reads of the error flag are. */
+  public void setSampleInterval(int frames) {
+    if (frames < 1) {
+      throw new IllegalArgumentException("Sample interval must be at least 1 frame: " + frames);
+    }
+    sampleIntervalFrames = frames;
+    framesUntilSample = Math.min(framesUntilSample, frames);
+  }
+
+  /** Sets for how many frames after a sampled error every check reads the error flag. */
+  public void setBurstLength(int frames) {
+    burstFrames = Math.max(0, frames);
+  }
+
+  /** Whether {@link #check} currently reads the error flag. */
+  public boolean isChecking() {
+    return fullChecks || burstFramesLeft > 0;
+  }
+
+  /**
+   * Checks for an OpenGL error in the render path, if full checks or a burst are on.
+   *
+   * @param label Label to report in case of error.
+   * @throws RuntimeException If an OpenGL error is detected.
+   */
+  public void check(String tag, String label) {
+    if (!isChecking()) {
+      checksSkipped++;
+      return;
+    }
+    checksRun++;
+    ShaderUtil.checkGLError(tag, label);
+  }
+
+  /** Call at the end of every frame, also from early returns. Never throws. */
+  public void endFrame() {
+    if (burstFramesLeft > 0) {
+      if (--burstFramesLeft == 0) {
+        Log.i(TAG, "GL error burst checking ended");
+      }
+      return;
+    }
+    if (fullChecks || --framesUntilSample > 0) {
+      return;
+    }
+    framesUntilSample = sampleIntervalFrames;
+    checksRun++;
+    int lastError = GLES20.GL_NO_ERROR;
+    int error;
+    while ((error = GLES20.glGetError()) != GLES20.GL_NO_ERROR) {
+      lastError = error;
+    }
+    if (lastError == GLES20.GL_NO_ERROR) {
+      return;
+    }
+    sampledErrors++;
+    if (burstFrames > 0) {
+      bursts++;
+      burstFramesLeft = burstFrames;
+    }
+    Log.e(
+        TAG,
+        "glError "
+            + lastError
+            + " within the last "
+            + sampleIntervalFrames
+            + " frames, checking every call for "
+            + burstFrames
+            + " frames");
+  }
+
+  /** Describes the checks since the last call, for logging, and resets the statistics. */
+  public String getSummary() {
+    String summary =
+        String.format(
+            Locale.US,
+            "GL errors: %d checks run, %d skipped, %d sampled errors, %d bursts",
+            checksRun,
+            checksSkipped,
+            sampledErrors,
+            bursts);
+    checksRun = 0;
+    checksSkipped = 0;
+    sampledErrors = 0;
+    bursts = 0;
+    return summary;
+  }
+}
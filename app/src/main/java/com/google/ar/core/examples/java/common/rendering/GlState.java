@@ -0,0 +1,352 @@
+/*
+ * Copyright 2018 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.examples.java.common.rendering;
+
+import android.opengl.GLES11Ext;
+import android.opengl.GLES20;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Shadows the OpenGL state the renderers change, and skips calls that would set it to what it
+ * already is. Renderers set the state they need before drawing instead of restoring defaults
+ * afterwards, so that state shared by consecutive draws is set once.
+ *
+ * <p>State set by anything else is unknown to the shadow. ARCore's {@code Session.update()} binds
+ * the camera texture, so call {@link #invalidateTextureBindings()} after it; {@link #invalidate()}
+ * is for a new context. Objects deleted through the {@link GpuResourceTracker} are unbound here too,
+ * as OpenGL does.
+ *
+ * <p>Each {@code GLSurfaceView} makes its EGL context current on its own GL thread only, so there
+ * is one shadow per GL thread, and with it per context. Activities that keep their context across
+ * a pause keep their shadow too, whatever the other activities did to theirs meanwhile.
+ *
+ * <p>Issued and elided calls are counted per frame, see {@link #endFrame()}. All methods must be
+ * called on the GL thread.
+ */
+public final class GlState {
+  private static final int UNKNOWN = -1;
+  private static final int MAX_TEXTURE_UNITS = 8;
+  // Texture targets with shadowed bindings, see textureSlot().
+  private static final int TARGET_COUNT = 2;
+
+  private static final ThreadLocal<GlState> INSTANCES =
+      new ThreadLocal<GlState>() {
+        @Override
+        protected GlState initialValue() {
+          return new GlState();
+        }
+      };
+
+  private int program;
+  private int activeTextureUnit;
+  private final int[] textures = new int[MAX_TEXTURE_UNITS * TARGET_COUNT];
+  private int arrayBuffer;
+  private int elementArrayBuffer;
+  private int blend;
+  private int depthTest;
+  private int cullFace;
+  private int depthMask;
+  // Red, green, blue and alpha in bits 0 to 3.
+  private int colorMask;
+  private int blendSrcRgb;
+  private int blendDstRgb;
+  private int blendSrcAlpha;
+  private int blendDstAlpha;
+  // Enabled vertex attribute arrays by location. Only changed through setVertexAttribArrays.
+  private int enabledAttribArrays;
+
+  private int issued;
+  private int elided;
+  private int frames;
+  private long totalIssued;
+  private long totalElided;
+
+  private GlState() {
+    invalidate();
+  }
+
+  /** Returns the shadow of the context current on the calling GL thread. */
+  public static GlState getInstance() {
+    return INSTANCES.get();
+  }
+
+  /**
+   * Forgets all shadowed state, so that the next calls are issued. Call when a context has just
+   * been created on this thread; its vertex attribute arrays are all disabled, as they are by
+   * default.
+   */
+  public void invalidate() {
+    program = UNKNOWN;
+    invalidateTextureBindings();
+    arrayBuffer = UNKNOWN;
+    elementArrayBuffer = UNKNOWN;
+    blend = UNKNOWN;
+    depthTest = UNKNOWN;
+    cullFace = UNKNOWN;
+    depthMask = UNKNOWN;
+    colorMask = UNKNOWN;
+    blendSrcRgb = UNKNOWN;
+    blendDstRgb = UNKNOWN;
+    blendSrcAlpha = UNKNOWN;
+    blendDstAlpha = UNKNOWN;
+    enabledAttribArrays = 0;
+  }
+
+  /**
+   * Forgets the active texture unit and the texture bindings. Call after {@code Session.update()},
+   * which latches the camera image into the camera texture by binding it. ARCore leaves the other
+   * shadowed state alone, so state changes stay elided across the update.
+   */
+  public void invalidateTextureBindings() {
+    activeTextureUnit = UNKNOWN;
+    Arrays.fill(textures, UNKNOWN);
+  }
+
+  public void useProgram(int program) {
+    if (this.program == program) {
+      elided++;
+      return;
+    }
+    issued++;
+    this.program = program;
+    GLES20.glUseProgram(program);
+  }
+
+  /** @param unit The unit, from {@code GL_TEXTURE0}. */
+  public void activeTexture(int unit) {
+    if (activeTextureUnit == unit) {
+      elided++;
+      return;
+    }
+    issued++;
+    activeTextureUnit = unit;
+    GLES20.glActiveTexture(unit);
+  }
+
+  /** Binds a texture to the active unit. */
+  public void bindTexture(int target, int texture) {
+    int slot = textureSlot(activeTextureUnit, target);
+    if (slot >= 0 && textures[slot] == texture) {
+      elided++;
+      return;
+    }
+    issued++;
+    if (slot >= 0) {
+      textures[slot] = texture;
+    }
+    GLES20.glBindTexture(target, texture);
+  }
+
+  public void bindBuffer(int target, int buffer) {
+    if (target == GLES20.GL_ARRAY_BUFFER) {
+      if (arrayBuffer == buffer) {
+        elided++;
+        return;
+      }
+      arrayBuffer = buffer;
+    } else if (target == GLES20.GL_ELEMENT_ARRAY_BUFFER) {
+      if (elementArrayBuffer == buffer) {
+        elided++;
+        return;
+      }
+      elementArrayBuffer = buffer;
+    }
+    issued++;
+    GLES20.glBindBuffer(target, buffer);
+  }
+
+  public void setBlend(boolean enabled) {
+    blend = setCapability(GLES20.GL_BLEND, blend, enabled);
+  }
+
+  public void setDepthTest(boolean enabled) {
+    depthTest = setCapability(GLES20.GL_DEPTH_TEST, depthTest, enabled);
+  }
+
+  public void setCullFace(boolean enabled) {
+    cullFace = setCapability(GLES20.GL_CULL_FACE, cullFace, enabled);
+  }
+
+  public void depthMask(boolean enabled) {
+    int value = enabled ? 1 : 0;
+    if (depthMask == value) {
+      elided++;
+      return;
+    }
+    issued++;
+    depthMask = value;
+    GLES20.glDepthMask(enabled);
+  }
+
+  public void colorMask(boolean red, boolean green, boolean blue, boolean alpha) {
+    int value = (red ? 1 : 0) | (green ? 2 : 0) | (blue ? 4 : 0) | (alpha ? 8 : 0);
+    if (colorMask == value) {
+      elided++;
+      return;
+    }
+    issued++;
+    colorMask = value;
+    GLES20.glColorMask(red, green, blue, alpha);
+  }
+
+  public void blendFunc(int src, int dst) {
+    if (blendSrcRgb == src && blendDstRgb == dst && blendSrcAlpha == src && blendDstAlpha == dst) {
+      elided++;
+      return;
+    }
+    issued++;
+    blendSrcRgb = src;
+    blendDstRgb = dst;
+    blendSrcAlpha = src;
+    blendDstAlpha = dst;
+    GLES20.glBlendFunc(src, dst);
+  }
+
+  public void blendFuncSeparate(int srcRgb, int dstRgb, int srcAlpha, int dstAlpha) {
+    if (blendSrcRgb == srcRgb
+        && blendDstRgb == dstRgb
+        && blendSrcAlpha == srcAlpha
+        && blendDstAlpha == dstAlpha) {
+      elided++;
+      return;
+    }
+    issued++;
+    blendSrcRgb = srcRgb;
+    blendDstRgb = dstRgb;
+    blendSrcAlpha = srcAlpha;
+    blendDstAlpha = dstAlpha;
+    GLES20.glBlendFuncSeparate(srcRgb, dstRgb, srcAlpha, dstAlpha);
+  }
+
+  /**
+   * Enables exactly the vertex attribute arrays in {@code mask}, bit {@code n} standing for
+   * location {@code n}, and disables the others. Arrays left enabled for a program that does not
+   * use them could be read past their end.
+   */
+  public void setVertexAttribArrays(int mask) {
+    for (int location = 0; location < Integer.SIZE; location++) {
+      int bit = 1 << location;
+      boolean enable = (mask & bit) != 0;
+      if (((enabledAttribArrays & bit) != 0) == enable) {
+        if (enable) {
+          elided++;
+        }
+        continue;
+      }
+      issued++;
+      if (enable) {
+        enabledAttribArrays |= bit;
+        GLES20.glEnableVertexAttribArray(location);
+      } else {
+        enabledAttribArrays &= ~bit;
+        GLES20.glDisableVertexAttribArray(location);
+      }
+    }
+  }
+
+  /** Returns the bit of {@link #setVertexAttribArrays} for a location, 0 if it is -1. */
+  public static int attribBit(int location) {
+    return location < 0 ? 0 : 1 << location;
+  }
+
+  /**
+   * Returns the bits of {@link #setVertexAttribArrays} for an attribute taking {@code count}
+   * consecutive locations from {@code location}, e.g. 4 for a mat4, or 0 if it is -1.
+   */
+  public static int attribBits(int location, int count) {
+    return location < 0 ? 0 : ((1 << count) - 1) << location;
+  }
+
+  /** Ends the frame's call counts, adding them to the totals of {@link #getSummary()}. */
+  public void endFrame() {
+    frames++;
+    totalIssued += issued;
+    totalElided += elided;
+    issued = 0;
+    elided = 0;
+  }
+
+  /** Describes the state changes issued and elided per frame since the last call, for logging. */
+  public String getSummary() {
+    String summary =
+        String.format(
+            Locale.US,
+            "GL state: per frame %.1f calls issued, %.1f elided",
+            frames == 0 ? 0f : (float) totalIssued / frames,
+            frames == 0 ? 0f : (float) totalElided / frames);
+    frames = 0;
+    totalIssued = 0;
+    totalElided = 0;
+    return summary;
+  }
+
+  void onBufferDeleted(int buffer) {
+    if (arrayBuffer == buffer) {
+      arrayBuffer = 0;
+    }
+    if (elementArrayBuffer == buffer) {
+      elementArrayBuffer = 0;
+    }
+  }
+
+  void onTextureDeleted(int texture) {
+    for (int i = 0; i < textures.length; i++) {
+      if (textures[i] == texture) {
+        textures[i] = 0;
+      }
+    }
+  }
+
+  void onProgramDeleted(int program) {
+    if (this.program == program) {
+      // A program in use is only deleted once another one is used, so its name is not free yet.
+      this.program = UNKNOWN;
+    }
+  }
+
+  private int setCapability(int capability, int current, boolean enabled) {
+    int value = enabled ? 1 : 0;
+    if (current == value) {
+      elided++;
+      return current;
+    }
+    issued++;
+    if (enabled) {
+      GLES20.glEnable(capability);
+    } else {
+      GLES20.glDisable(capability);
+    }
+    return value;
+  }
+
+  /** Returns the index into textures, or -1 for bindings that are not shadowed. */
+  private static int textureSlot(int unit, int target) {
+    int unitIndex = unit - GLES20.GL_TEXTURE0;
+    if (unit == UNKNOWN || unitIndex < 0 || unitIndex >= MAX_TEXTURE_UNITS) {
+      return -1;
+    }
+    int targetIndex;
+    if (target == GLES20.GL_TEXTURE_2D) {
+      targetIndex = 0;
+    } else if (target == GLES11Ext.GL_TEXTURE_EXTERNAL_OES) {
+      targetIndex = 1;
+    } else {
+      return -1;
+    }
+    return unitIndex * TARGET_COUNT + targetIndex;
+  }
+}
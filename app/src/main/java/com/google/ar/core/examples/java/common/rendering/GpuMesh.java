@@ -0,0 +1,287 @@
+/*
+ * Copyright 2018 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.examples.java.common.rendering;
+
+import android.content.Context;
+import android.opengl.GLES20;
+import android.opengl.Matrix;
+import com.google.ar.core.examples.java.common.assets.BinaryMesh;
+import com.google.ar.core.examples.java.common.assets.Submesh;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Vertex and index buffer objects holding one uploaded {@link BinaryMesh}. The vertices keep the
+ * quantized layout of the mesh file, see {@link #getDequantizationMatrix()} and {@link
+ * #getTexCoordTransform()} for decoding them.
+ */
+public final class GpuMesh implements GpuResourceCache.Resource {
+  private static final String TAG = GpuMesh.class.getSimpleName();
+
+  private final GpuResourceTracker.Handle vertexBuffer;
+  private final GpuResourceTracker.Handle indexBuffer;
+  private final int indexCount;
+  private final float[] lodErrors;
+  private final Submesh[] submeshes;
+  private final float[] bounds;
+  private final float[] boundingSphere = new float[4];
+  private final float[] dequantizationMatrix = new float[16];
+  private final float[] texCoordTransform = new float[4];
+
+  private GpuMesh(
+      GpuResourceTracker.Handle vertexBuffer,
+      GpuResourceTracker.Handle indexBuffer,
+      int indexCount,
+      float[] lodErrors,
+      Submesh[] submeshes,
+      float[] bounds,
+      float[] texCoordBounds) {
+    this.vertexBuffer = vertexBuffer;
+    this.indexBuffer = indexBuffer;
+    this.indexCount = indexCount;
+    this.lodErrors = lodErrors;
+    this.submeshes = submeshes;
+    this.bounds = bounds;
+
+    // Quantized positions are in [0, 1] within the bounds: scale by the extent, then translate by
+    // the minimum.
+    Matrix.setIdentityM(dequantizationMatrix, 0);
+    for (int axis = 0; axis < 3; axis++) {
+      dequantizationMatrix[axis * 5] = bounds[axis + 3] - bounds[axis];
+      dequantizationMatrix[12 + axis] = bounds[axis];
+    }
+    texCoordTransform[0] = texCoordBounds[2] - texCoordBounds[0];
+    texCoordTransform[1] = texCoordBounds[3] - texCoordBounds[1];
+    texCoordTransform[2] = texCoordBounds[0];
+    texCoordTransform[3] = texCoordBounds[1];
+
+    float radiusSquared = 0;
+    for (int axis = 0; axis < 3; axis++) {
+      boundingSphere[axis] = 0.5f * (bounds[axis] + bounds[axis + 3]);
+      float halfExtent = 0.5f * (bounds[axis + 3] - bounds[axis]);
+      radiusSquared += halfExtent * halfExtent;
+    }
+    boundingSphere[3] = (float) Math.sqrt(radiusSquared);
+  }
+
+  /**
+   * Uploads the mesh into new static buffer objects. Must be called on the GL thread.
+   *
+   * @param label What the mesh is, for {@link GpuResourceTracker} diagnostics.
+   */
+  public static GpuMesh upload(String label, BinaryMesh mesh) {
+    Upload upload = new Upload(label, mesh);
+    upload.step(Integer.MAX_VALUE);
+    return upload.finish();
+  }
+
+  /**
+   * Returns the mesh for an OBJ asset from the cache, loading it on a miss. The caller owns one
+   * reference and must release it under {@link GpuResourceCache#meshKey(String)}.
+   */
+  public static GpuMesh acquire(Context context, String objAssetName) throws IOException {
+    GpuResourceCache cache = GpuResourceCache.getInstance();
+    String key = GpuResourceCache.meshKey(objAssetName);
+    GpuMesh mesh = cache.acquire(key);
+    if (mesh == null) {
+      mesh = cache.put(key, upload(key, MeshAssetLoader.load(context, objAssetName)));
+    }
+    return mesh;
+  }
+
+  public int getVertexBufferId() {
+    return vertexBuffer.id;
+  }
+
+  public int getIndexBufferId() {
+    return indexBuffer.id;
+  }
+
+  /** Total number of indices of all levels of detail. */
+  public int getIndexCount() {
+    return indexCount;
+  }
+
+  /**
+   * Errors of the levels of detail from finest to coarsest, see {@link
+   * com.google.ar.core.examples.java.common.assets.MeshLod#error}. Callers must not modify the
+   * array.
+   */
+  public float[] getLodErrors() {
+    return lodErrors;
+  }
+
+  /**
+   * The parts of the mesh, each with its own vertex range, bounds and index range per level of
+   * detail. Callers must not modify the array.
+   */
+  public Submesh[] getSubmeshes() {
+    return submeshes;
+  }
+
+  /**
+   * Returns the matrix that maps quantized positions to model space, to be applied before the
+   * model matrix. Callers must not modify the array.
+   */
+  public float[] getDequantizationMatrix() {
+    return dequantizationMatrix;
+  }
+
+  /**
+   * Returns {@code scaleU, scaleV, offsetU, offsetV} that map quantized texture coordinates to the
+   * original ones. Callers must not modify the array.
+   */
+  public float[] getTexCoordTransform() {
+    return texCoordTransform;
+  }
+
+  /**
+   * Returns the sphere around the bounding box, {@code centerX, centerY, centerZ, radius}, in
+   * model space. Callers must not modify the array.
+   */
+  public float[] getBoundingSphere() {
+    return boundingSphere;
+  }
+
+  /** Returns {@code minX, minY, minZ, maxX, maxY, maxZ} of the mesh in model space. */
+  public float[] getBounds() {
+    return bounds.clone();
+  }
+
+  @Override
+  public long getSizeBytes() {
+    GpuResourceTracker tracker = GpuResourceTracker.getInstance();
+    return tracker.getSize(vertexBuffer) + tracker.getSize(indexBuffer);
+  }
+
+  @Override
+  public void release() {
+    GpuResourceTracker tracker = GpuResourceTracker.getInstance();
+    tracker.delete(vertexBuffer);
+    tracker.delete(indexBuffer);
+  }
+
+  /**
+   * Uploads a mesh into new buffer objects a bounded number of bytes at a time, so that large
+   * meshes can be spread over several frames. Must be used on the GL thread.
+   */
+  static final class Upload {
+    private final BinaryMesh source;
+    private final GpuResourceTracker.Handle vertexBuffer;
+    private final GpuResourceTracker.Handle indexBuffer;
+    private int vertexBytesUploaded;
+    private int indexBytesUploaded;
+
+    /**
+     * Allocates the buffer objects without filling them.
+     *
+     * @param label What the mesh is, for {@link GpuResourceTracker} diagnostics.
+     */
+    Upload(String label, BinaryMesh source) {
+      this.source = source;
+      GpuResourceTracker tracker = GpuResourceTracker.getInstance();
+      vertexBuffer = tracker.genBuffer(label + " vertices");
+      indexBuffer = tracker.genBuffer(label + " indices");
+
+      // The buffers are left bound; renderers bind the buffers they draw.
+      GlState glState = GlState.getInstance();
+      glState.bindBuffer(GLES20.GL_ARRAY_BUFFER, vertexBuffer.id);
+      GLES20.glBufferData(
+          GLES20.GL_ARRAY_BUFFER,
+          source.getVertexData().remaining(),
+          null,
+          GLES20.GL_STATIC_DRAW);
+      tracker.setSize(vertexBuffer, source.getVertexData().remaining());
+
+      glState.bindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, indexBuffer.id);
+      GLES20.glBufferData(
+          GLES20.GL_ELEMENT_ARRAY_BUFFER,
+          source.getIndexData().remaining(),
+          null,
+          GLES20.GL_STATIC_DRAW);
+      tracker.setSize(indexBuffer, source.getIndexData().remaining());
+
+      ShaderUtil.checkGLError(TAG, "Mesh buffer allocation");
+    }
+
+    /**
+     * Copies up to {@code maxBytes} more of the mesh into the buffers.
+     *
+     * @return The number of bytes copied.
+     */
+    int step(int maxBytes) {
+      int uploaded =
+          uploadRange(
+              GLES20.GL_ARRAY_BUFFER,
+              vertexBuffer.id,
+              source.getVertexData(),
+              vertexBytesUploaded,
+              maxBytes);
+      vertexBytesUploaded += uploaded;
+      int indexBytes =
+          uploadRange(
+              GLES20.GL_ELEMENT_ARRAY_BUFFER,
+              indexBuffer.id,
+              source.getIndexData(),
+              indexBytesUploaded,
+              maxBytes - uploaded);
+      indexBytesUploaded += indexBytes;
+      ShaderUtil.checkGLError(TAG, "Mesh buffer load");
+      return uploaded + indexBytes;
+    }
+
+    boolean isDone() {
+      return vertexBytesUploaded == source.getVertexData().remaining()
+          && indexBytesUploaded == source.getIndexData().remaining();
+    }
+
+    /** Returns the uploaded mesh. May only be called once {@link #isDone()}. */
+    GpuMesh finish() {
+      if (!isDone()) {
+        throw new IllegalStateException("Mesh upload is not complete");
+      }
+      return new GpuMesh(
+          vertexBuffer,
+          indexBuffer,
+          source.getIndexCount(),
+          source.getLodErrors(),
+          source.getSubmeshes(),
+          source.getBounds(),
+          source.getTexCoordBounds());
+    }
+
+    /** Deletes the partially filled buffers. */
+    void cancel() {
+      GpuResourceTracker tracker = GpuResourceTracker.getInstance();
+      tracker.delete(vertexBuffer);
+      tracker.delete(indexBuffer);
+    }
+
+    private static int uploadRange(
+        int target, int bufferId, ByteBuffer data, int offset, int maxBytes) {
+      int size = Math.min(data.remaining() - offset, maxBytes);
+      if (size <= 0) {
+        return 0;
+      }
+      // glBufferSubData reads from the position of the buffer, which the source must keep at 0.
+      ByteBuffer range = data.duplicate();
+      range.position(offset);
+      GlState.getInstance().bindBuffer(target, bufferId);
+      GLES20.glBufferSubData(target, offset, size, range);
+      return size;
+    }
+  }
+}
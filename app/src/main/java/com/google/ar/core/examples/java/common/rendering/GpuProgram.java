@@ -0,0 +1,149 @@
+/*
+ * Copyright 2018 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.examples.java.common.rendering;
+
+import android.content.Context;
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.os.SystemClock;
+import android.util.Log;
+import java.io.IOException;
+
+/**
+ * A shader program linked from a vertex and a fragment shader asset. Linked programs are kept in
+ * the {@link ProgramBinaryCache} where the driver supports it, so that later contexts and app
+ * launches load them instead of compiling the shaders again.
+ */
+public final class GpuProgram implements GpuResourceCache.Resource {
+  private static final String TAG = GpuProgram.class.getSimpleName();
+
+  private final GpuResourceTracker.Handle program;
+
+  private GpuProgram(GpuResourceTracker.Handle program) {
+    this.program = program;
+  }
+
+  /**
+   * Loads the program from a cached binary, or compiles and links the two shaders. Must be called
+   * on the GL thread.
+   *
+   * @param tag Log tag of the renderer that needs the program.
+   * @param context Context for loading the shader assets.
+   * @param vertexShaderName Asset name of the vertex shader.
+   * @param fragmentShaderName Asset name of the fragment shader.
+   */
+  public static GpuProgram create(
+      String tag, Context context, String vertexShaderName, String fragmentShaderName)
+      throws IOException {
+    long startMillis = SystemClock.elapsedRealtime();
+    String vertexSource = ShaderUtil.readRawTextFileFromAssets(context, vertexShaderName);
+    String fragmentSource = ShaderUtil.readRawTextFileFromAssets(context, fragmentShaderName);
+
+    String label = GpuResourceCache.programKey(vertexShaderName, fragmentShaderName);
+    ProgramBinaryCache binaries = ProgramBinaryCache.getInstance(context);
+    String binaryKey = binaries.keyFor(vertexSource, fragmentSource);
+    if (binaryKey != null) {
+      GpuResourceTracker.Handle program = binaries.load(binaryKey, label);
+      if (program != null) {
+        Log.d(
+            TAG,
+            "Loaded binary of "
+                + vertexShaderName
+                + " + "
+                + fragmentShaderName
+                + " in "
+                + (SystemClock.elapsedRealtime() - startMillis)
+                + " ms");
+        return new GpuProgram(program);
+      }
+    }
+
+    int vertexShader = ShaderUtil.compileGLShader(tag, GLES20.GL_VERTEX_SHADER, vertexSource);
+    int fragmentShader =
+        ShaderUtil.compileGLShader(tag, GLES20.GL_FRAGMENT_SHADER, fragmentSource);
+
+    GpuResourceTracker tracker = GpuResourceTracker.getInstance();
+    GpuResourceTracker.Handle handle = tracker.createProgram(label);
+    int program = handle.id;
+    GLES20.glAttachShader(program, vertexShader);
+    GLES20.glAttachShader(program, fragmentShader);
+    if (binaryKey != null) {
+      // Some drivers only keep a retrievable binary when asked before linking.
+      GLES30.glProgramParameteri(
+          program, GLES30.GL_PROGRAM_BINARY_RETRIEVABLE_HINT, GLES20.GL_TRUE);
+    }
+    GLES20.glLinkProgram(program);
+
+    // The linked program keeps the compiled code; the shader objects are no longer needed.
+    GLES20.glDetachShader(program, vertexShader);
+    GLES20.glDetachShader(program, fragmentShader);
+    GLES20.glDeleteShader(vertexShader);
+    GLES20.glDeleteShader(fragmentShader);
+
+    ShaderUtil.checkGLError(tag, "Program creation");
+
+    int[] linkStatus = new int[1];
+    GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, linkStatus, 0);
+    if (linkStatus[0] == 0) {
+      Log.e(tag, "Error linking program: " + GLES20.glGetProgramInfoLog(program));
+      tracker.delete(handle);
+      throw new RuntimeException("Error linking program.");
+    }
+    if (binaryKey != null) {
+      tracker.setSize(handle, binaries.store(binaryKey, program));
+    }
+    Log.d(
+        TAG,
+        "Compiled "
+            + vertexShaderName
+            + " + "
+            + fragmentShaderName
+            + " in "
+            + (SystemClock.elapsedRealtime() - startMillis)
+            + " ms");
+    return new GpuProgram(handle);
+  }
+
+  /**
+   * Returns the program from the cache, creating it on a miss. The caller owns one reference and
+   * must release it under {@link GpuResourceCache#programKey(String, String)}.
+   */
+  public static GpuProgram acquire(
+      String tag, Context context, String vertexShaderName, String fragmentShaderName)
+      throws IOException {
+    GpuResourceCache cache = GpuResourceCache.getInstance();
+    String key = GpuResourceCache.programKey(vertexShaderName, fragmentShaderName);
+    GpuProgram program = cache.acquire(key);
+    if (program == null) {
+      program = cache.put(key, create(tag, context, vertexShaderName, fragmentShaderName));
+    }
+    return program;
+  }
+
+  public int getProgramId() {
+    return program.id;
+  }
+
+  @Override
+  public long getSizeBytes() {
+    return GpuResourceTracker.getInstance().getSize(program);
+  }
+
+  @Override
+  public void release() {
+    GpuResourceTracker.getInstance().delete(program);
+  }
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright 2018 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.examples.java.common.rendering;
+
+import android.opengl.EGL14;
+import android.opengl.EGLContext;
+import android.util.Log;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Process-wide, reference-counted cache of OpenGL resources keyed by the assets they were created
+ * from. Renderers that load the same model, texture or shader program share a single GPU copy.
+ *
+ * <p>A copy that the last renderer released is kept for a while, since models are often swapped
+ * back and forth, e.g. between the letter and the chest. Unreferenced copies of up to {@link
+ * #MAX_UNUSED_BYTES} per context are kept, and the least recently released ones are deleted beyond
+ * that, or all of them by {@link #trimUnused()}.
+ *
+ * <p>OpenGL names are only meaningful in the EGL context that created them, so entries are kept
+ * per context. Each activity must call {@link #onContextCreated()} from {@code onSurfaceCreated}
+ * before creating its renderers, usually through {@link GlContextMonitor#onSurfaceCreated()},
+ * since a new context can reuse the handle of a destroyed one. Contexts that are destroyed, e.g. with
+ * their activity, are dropped through {@link #onContextDestroyed}, usually by {@link
+ * GlContextMonitor#onDestroy()}.
+ *
+ * <p>All methods except {@link #onContextDestroyed} must be called on a GL thread with a current
+ * context.
+ */
+public final class GpuResourceCache {
+  private static final String TAG = GpuResourceCache.class.getSimpleName();
+
+  /** Bytes of unreferenced resources kept per context for reuse. */
+  public static final long MAX_UNUSED_BYTES = 8 * 1024 * 1024;
+
+  /** A GPU object that can be stored in the cache. */
+  public interface Resource {
+    /** Estimated GPU memory of the resource, see {@link GpuResourceTracker#setSize}. */
+    long getSizeBytes();
+
+    /** Deletes the underlying OpenGL objects. Called on the GL thread. */
+    void release();
+  }
+
+  private static final class Entry {
+    final Resource resource;
+    int refCount = 1;
+    // Size when the last reference was dropped, while the entry is unused.
+    long unusedBytes;
+
+    Entry(Resource resource) {
+      this.resource = resource;
+    }
+  }
+
+  /** The entries of one context. */
+  private static final class ContextEntries {
+    final Map<String, Entry> entries = new HashMap<>();
+    // Entries without references, least recently released first.
+    final LinkedHashMap<String, Entry> unused = new LinkedHashMap<>();
+    long unusedBytes;
+
+    /**
+     * Deletes the least recently released entries until at most {@code maxBytes} are unused, or
+     * all of them for a negative {@code maxBytes}.
+     */
+    void trim(long maxBytes) {
+      Iterator<Map.Entry<String, Entry>> iterator = unused.entrySet().iterator();
+      while (unusedBytes > maxBytes && iterator.hasNext()) {
+        Map.Entry<String, Entry> eldest = iterator.next();
+        iterator.remove();
+        entries.remove(eldest.getKey());
+        unusedBytes -= eldest.getValue().unusedBytes;
+        eldest.getValue().resource.release();
+      }
+    }
+  }
+
+  private static final GpuResourceCache INSTANCE = new GpuResourceCache();
+
+  private final Map<EGLContext, ContextEntries> contextEntries = new HashMap<>();
+
+  private GpuResourceCache() {}
+
+  public static GpuResourceCache getInstance() {
+    return INSTANCE;
+  }
+
+  /** Key for a mesh loaded from the given OBJ asset. */
+  public static String meshKey(String objAssetName) {
+    return "mesh:" + objAssetName;
+  }
+
+  /** Key for a texture loaded from the given image asset. */
+  public static String textureKey(String textureAssetName) {
+    return "texture:" + textureAssetName;
+  }
+
+  /** Key for a program linked from the given shader assets. */
+  public static String programKey(String vertexShaderName, String fragmentShaderName) {
+    return "program:" + vertexShaderName + "|" + fragmentShaderName;
+  }
+
+  /**
+   * Forgets all entries of the current EGL context without deleting them. Must be called when a
+   * context has just been created, because anything cached under its handle belongs to a previous,
+   * destroyed context. Also forgets the {@link GlState} this thread kept for its previous context.
+   */
+  public synchronized void onContextCreated() {
+    GpuResourceTracker.getInstance().onContextCreated();
+    GlState.getInstance().invalidate();
+    ContextEntries stale = contextEntries.remove(EGL14.eglGetCurrentContext());
+    if (stale != null && !stale.entries.isEmpty()) {
+      Log.i(TAG, "Dropped " + stale.entries.size() + " resources of a lost EGL context");
+    }
+  }
+
+  /**
+   * Forgets all entries of {@code context} without deleting them, since the driver freed them along
+   * with the context, and drops its objects from the {@link GpuResourceTracker}. May be called on
+   * any thread once the context is destroyed or about to be, when nothing draws with it anymore.
+   */
+  public synchronized void onContextDestroyed(EGLContext context) {
+    if (context == null) {
+      return;
+    }
+    GpuResourceTracker.getInstance().onContextDestroyed(context);
+    ContextEntries stale = contextEntries.remove(context);
+    if (stale != null && !stale.entries.isEmpty()) {
+      Log.i(TAG, "Dropped " + stale.entries.size() + " resources of a destroyed EGL context");
+    }
+  }
+
+  /**
+   * Returns the cached resource for {@code key} and adds a reference to it, or {@code null} if it
+   * is not cached in the current context. Unreferenced resources that were not deleted yet are
+   * returned as well.
+   */
+  @SuppressWarnings("unchecked")
+  public synchronized <T extends Resource> T acquire(String key) {
+    ContextEntries context = entries();
+    Entry entry = context.entries.get(key);
+    if (entry == null) {
+      return null;
+    }
+    if (entry.refCount++ == 0) {
+      context.unused.remove(key);
+      context.unusedBytes -= entry.unusedBytes;
+    }
+    return (T) entry.resource;
+  }
+
+  /**
+   * Adds a newly created resource to the cache, holding one reference for the caller. Must only
+   * follow an {@link #acquire} miss for the same key on the same GL thread.
+   *
+   * @return {@code resource}, for chaining.
+   */
+  public synchronized <T extends Resource> T put(String key, T resource) {
+    Map<String, Entry> entries = entries().entries;
+    if (entries.containsKey(key)) {
+      throw new IllegalStateException("Resource already cached: " + key);
+    }
+    entries.put(key, new Entry(resource));
+    return resource;
+  }
+
+  /**
+   * Drops one reference to {@code resource}. Once nobody references it, it is kept for reuse, and
+   * the least recently released resources beyond {@link #MAX_UNUSED_BYTES} are deleted. Does
+   * nothing if the resource is no longer cached under {@code key}, e.g. because the context was
+   * recreated and the key now maps to a newer resource.
+   */
+  public synchronized void release(String key, Resource resource) {
+    if (key == null || resource == null) {
+      return;
+    }
+    ContextEntries context = entries();
+    Entry entry = context.entries.get(key);
+    if (entry == null || entry.resource != resource) {
+      return;
+    }
+    if (--entry.refCount == 0) {
+      entry.unusedBytes = entry.resource.getSizeBytes();
+      context.unused.put(key, entry);
+      context.unusedBytes += entry.unusedBytes;
+      context.trim(MAX_UNUSED_BYTES);
+    }
+  }
+
+  /**
+   * Deletes the unreferenced resources of the current context, e.g. when the system runs low on
+   * memory. Does nothing without a current context, e.g. while the surface is paused.
+   */
+  public synchronized void trimUnused() {
+    ContextEntries context = contextEntries.get(EGL14.eglGetCurrentContext());
+    if (context != null && !context.unused.isEmpty()) {
+      Log.i(TAG, "Deleting " + context.unused.size() + " unused resources");
+      context.trim(-1);
+    }
+  }
+
+  /** Number of resources cached for the current context, including unreferenced ones. */
+  public synchronized int size() {
+    return entries().entries.size();
+  }
+
+  private ContextEntries entries() {
+    EGLContext context = EGL14.eglGetCurrentContext();
+    ContextEntries entries = contextEntries.get(context);
+    if (entries == null) {
+      entries = new ContextEntries();
+      contextEntries.put(context, entries);
+    }
+    return entries;
+  }
+}
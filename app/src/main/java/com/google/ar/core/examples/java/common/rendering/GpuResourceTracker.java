@@ -0,0 +1,237 @@
+/*
+ * Copyright 2018 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.examples.java.common.rendering;
+
+import android.opengl.EGL14;
+import android.opengl.EGLContext;
+import android.opengl.GLES20;
+import android.util.Log;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Owner of every OpenGL buffer, texture, program and framebuffer the renderers create. Objects are generated
+ * and deleted through the tracker, which keeps live counts and estimated sizes per {@link
+ * Category} so that GPU memory growth shows up in diagnostics.
+ *
+ * <p>A {@link Handle} remembers the context it was created in. Deleting it after that context was
+ * lost only updates the accounting, since the driver has freed the object already and its name
+ * may now belong to an object of the new context. Contexts are told apart like in {@link
+ * GpuResourceCache}, whose {@link GpuResourceCache#onContextCreated()} and {@link
+ * GpuResourceCache#onContextDestroyed} also reset the tracker.
+ *
+ * <p>All methods must be called on a GL thread with a current context, except for the getters and
+ * {@link #getSummary()}.
+ */
+public final class GpuResourceTracker {
+  private static final String TAG = GpuResourceTracker.class.getSimpleName();
+
+  /** Kinds of OpenGL objects, each in their own name space. */
+  public enum Category {
+    BUFFER,
+    TEXTURE,
+    PROGRAM,
+    FRAMEBUFFER,
+    RENDERBUFFER
+  }
+
+  /** An OpenGL object created through the tracker. */
+  public static final class Handle {
+    public final Category category;
+    /** The OpenGL name of the object. */
+    public final int id;
+    /** What the object holds, for diagnostics. */
+    public final String label;
+
+    private final Set<Handle> owner;
+    private long sizeBytes;
+
+    private Handle(Category category, int id, String label, Set<Handle> owner) {
+      this.category = category;
+      this.id = id;
+      this.label = label;
+      this.owner = owner;
+    }
+  }
+
+  private static final GpuResourceTracker INSTANCE = new GpuResourceTracker();
+
+  // Live handles per context. A handle's owner is the set of the context that created it.
+  private final Map<EGLContext, Set<Handle>> contextHandles = new HashMap<>();
+  private final int[] liveCounts = new int[Category.values().length];
+  private final long[] liveBytes = new long[Category.values().length];
+
+  private GpuResourceTracker() {}
+
+  public static GpuResourceTracker getInstance() {
+    return INSTANCE;
+  }
+
+  /** Generates a buffer object. Its size is 0 until set with {@link #setSize}. */
+  public Handle genBuffer(String label) {
+    int[] buffers = new int[1];
+    GLES20.glGenBuffers(1, buffers, 0);
+    return track(Category.BUFFER, buffers[0], label);
+  }
+
+  /** Generates a texture object. Its size is 0 until set with {@link #setSize}. */
+  public Handle genTexture(String label) {
+    int[] textures = new int[1];
+    GLES20.glGenTextures(1, textures, 0);
+    return track(Category.TEXTURE, textures[0], label);
+  }
+
+  /** Creates a program object. */
+  public Handle createProgram(String label) {
+    return track(Category.PROGRAM, GLES20.glCreateProgram(), label);
+  }
+
+  /** Generates a framebuffer object. Its attachments are tracked on their own. */
+  public Handle genFramebuffer(String label) {
+    int[] framebuffers = new int[1];
+    GLES20.glGenFramebuffers(1, framebuffers, 0);
+    return track(Category.FRAMEBUFFER, framebuffers[0], label);
+  }
+
+  /** Generates a renderbuffer object. Its size is 0 until set with {@link #setSize}. */
+  public Handle genRenderbuffer(String label) {
+    int[] renderbuffers = new int[1];
+    GLES20.glGenRenderbuffers(1, renderbuffers, 0);
+    return track(Category.RENDERBUFFER, renderbuffers[0], label);
+  }
+
+  /** Records the estimated GPU memory of an object, e.g. after {@code glBufferData}. */
+  public synchronized void setSize(Handle handle, long sizeBytes) {
+    if (handle.owner.contains(handle)) {
+      liveBytes[handle.category.ordinal()] += sizeBytes - handle.sizeBytes;
+    }
+    handle.sizeBytes = sizeBytes;
+  }
+
+  /** Returns the size recorded with {@link #setSize}, or 0 for a {@code null} handle. */
+  public synchronized long getSize(Handle handle) {
+    return handle != null ? handle.sizeBytes : 0;
+  }
+
+  /**
+   * Deletes the object, unless it belongs to a lost context. Deleting a handle twice or a {@code
+   * null} handle does nothing.
+   */
+  public synchronized void delete(Handle handle) {
+    if (handle == null || !handle.owner.remove(handle)) {
+      return;
+    }
+    forget(handle);
+    if (handle.owner != contextHandles.get(EGL14.eglGetCurrentContext())) {
+      return;
+    }
+    int[] ids = {handle.id};
+    GlState glState = GlState.getInstance();
+    switch (handle.category) {
+      case BUFFER:
+        GLES20.glDeleteBuffers(1, ids, 0);
+        glState.onBufferDeleted(handle.id);
+        break;
+      case TEXTURE:
+        GLES20.glDeleteTextures(1, ids, 0);
+        glState.onTextureDeleted(handle.id);
+        break;
+      case PROGRAM:
+        GLES20.glDeleteProgram(handle.id);
+        glState.onProgramDeleted(handle.id);
+        break;
+      case FRAMEBUFFER:
+        GLES20.glDeleteFramebuffers(1, ids, 0);
+        break;
+      case RENDERBUFFER:
+        GLES20.glDeleteRenderbuffers(1, ids, 0);
+        break;
+    }
+  }
+
+  /**
+   * Forgets the handles of the current EGL context without deleting them, because they belong to
+   * a previous, destroyed context. Called by {@link GpuResourceCache#onContextCreated()}.
+   */
+  synchronized void onContextCreated() {
+    drop(contextHandles.remove(EGL14.eglGetCurrentContext()));
+  }
+
+  /**
+   * Forgets the handles of {@code context} without deleting them, since the driver freed them
+   * along with the context. Called by {@link GpuResourceCache#onContextDestroyed}.
+   */
+  synchronized void onContextDestroyed(EGLContext context) {
+    drop(contextHandles.remove(context));
+  }
+
+  /** Number of live objects of a category, over all contexts. */
+  public synchronized int getLiveCount(Category category) {
+    return liveCounts[category.ordinal()];
+  }
+
+  /** Estimated GPU memory of the live objects of a category, over all contexts. */
+  public synchronized long getLiveBytes(Category category) {
+    return liveBytes[category.ordinal()];
+  }
+
+  /** One line with the live count and estimated size of each category, for logging. */
+  public synchronized String getSummary() {
+    StringBuilder summary = new StringBuilder("GPU objects:");
+    for (Category category : Category.values()) {
+      summary
+          .append(' ')
+          .append(category.name().toLowerCase())
+          .append("s ")
+          .append(liveCounts[category.ordinal()])
+          .append(" (")
+          .append(liveBytes[category.ordinal()] / 1024)
+          .append(" KB)");
+    }
+    return summary.toString();
+  }
+
+  private synchronized Handle track(Category category, int id, String label) {
+    Set<Handle> handles = contextHandles.get(EGL14.eglGetCurrentContext());
+    if (handles == null) {
+      handles = new HashSet<>();
+      contextHandles.put(EGL14.eglGetCurrentContext(), handles);
+    }
+    Handle handle = new Handle(category, id, label, handles);
+    handles.add(handle);
+    liveCounts[category.ordinal()]++;
+    return handle;
+  }
+
+  private void drop(Set<Handle> stale) {
+    if (stale == null || stale.isEmpty()) {
+      return;
+    }
+    for (Handle handle : stale) {
+      forget(handle);
+    }
+    Log.i(TAG, "Dropped " + stale.size() + " objects of a destroyed EGL context");
+    // Later deletes of these handles find them gone from their owner and do nothing.
+    stale.clear();
+  }
+
+  private void forget(Handle handle) {
+    liveCounts[handle.category.ordinal()]--;
+    liveBytes[handle.category.ordinal()] -= handle.sizeBytes;
+  }
+}
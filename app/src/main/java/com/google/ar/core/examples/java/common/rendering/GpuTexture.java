@@ -0,0 +1,455 @@
+/*
+ * Copyright 2018 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.examples.java.common.rendering;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.opengl.EGL14;
+import android.opengl.EGLContext;
+import android.opengl.GLES20;
+import android.util.Log;
+import com.google.ar.core.examples.java.common.assets.KtxFormat;
+import com.google.ar.core.examples.java.common.assets.KtxTexture;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * A mipmapped 2D texture loaded from an image asset.
+ *
+ * <p>The build converts every PNG texture into a GPU-compressed {@code .ktx} asset with a
+ * precomputed mip chain. It is used where the context supports its format, and otherwise the PNG
+ * file is decoded and uploaded as RGBA. Images larger than {@link
+ * DeviceClassifier#getMaxTextureSize()} are halved until they fit: compressed ones skip their
+ * largest mip levels, and decoded ones are downsampled.
+ */
+public final class GpuTexture implements GpuResourceCache.Resource {
+  private static final String TAG = GpuTexture.class.getSimpleName();
+
+  // Compressed formats of the context they were queried in.
+  private static EGLContext formatsContext;
+  private static int[] compressedFormats;
+
+  private final GpuResourceTracker.Handle texture;
+
+  private GpuTexture(GpuResourceTracker.Handle texture) {
+    this.texture = texture;
+  }
+
+  /**
+   * Decodes an image asset and uploads it with a full mip chain. Must be called on the GL thread.
+   *
+   * @param context Context for loading the asset.
+   * @param textureAssetName Name of the PNG file.
+   */
+  public static GpuTexture load(Context context, String textureAssetName) throws IOException {
+    Upload upload =
+        new Upload(Image.decode(context, textureAssetName, getCompressedFormats()));
+    upload.step(Integer.MAX_VALUE);
+    return upload.finish();
+  }
+
+  /**
+   * Returns the texture for an image asset from the cache, loading it on a miss. The caller owns
+   * one reference and must release it under {@link GpuResourceCache#textureKey(String)}.
+   */
+  public static GpuTexture acquire(Context context, String textureAssetName) throws IOException {
+    GpuResourceCache cache = GpuResourceCache.getInstance();
+    String key = GpuResourceCache.textureKey(textureAssetName);
+    GpuTexture texture = cache.acquire(key);
+    if (texture == null) {
+      texture = cache.put(key, load(context, textureAssetName));
+    }
+    return texture;
+  }
+
+  /**
+   * Returns the compressed texture formats of the current context, for {@link Image#decode}. Must
+   * be called on the GL thread.
+   */
+  static synchronized int[] getCompressedFormats() {
+    EGLContext context = EGL14.eglGetCurrentContext();
+    if (!context.equals(formatsContext)) {
+      int[] count = new int[1];
+      GLES20.glGetIntegerv(GLES20.GL_NUM_COMPRESSED_TEXTURE_FORMATS, count, 0);
+      compressedFormats = new int[count[0]];
+      if (count[0] > 0) {
+        GLES20.glGetIntegerv(GLES20.GL_COMPRESSED_TEXTURE_FORMATS, compressedFormats, 0);
+      }
+      formatsContext = context;
+    }
+    return compressedFormats;
+  }
+
+  public int getTextureId() {
+    return texture.id;
+  }
+
+  @Override
+  public long getSizeBytes() {
+    return GpuResourceTracker.getInstance().getSize(texture);
+  }
+
+  @Override
+  public void release() {
+    GpuResourceTracker.getInstance().delete(texture);
+  }
+
+  /**
+   * An image ready for upload: either its compressed mip chain or decoded RGBA pixels. Decoding
+   * does not need a GL context.
+   */
+  static final class Image {
+    /** Name of the image asset. */
+    final String name;
+    /** The compressed mip chain, or {@code null} if the image was decoded to {@link #pixels}. */
+    final KtxTexture compressed;
+    /** The level of {@link #compressed} that becomes level 0 of the texture. */
+    final int baseLevel;
+    final ByteBuffer pixels;
+    final int width;
+    final int height;
+
+    private Image(String name, KtxTexture compressed, int baseLevel) {
+      this.name = name;
+      this.compressed = compressed;
+      this.baseLevel = baseLevel;
+      pixels = null;
+      width = Math.max(1, compressed.getWidth() >> baseLevel);
+      height = Math.max(1, compressed.getHeight() >> baseLevel);
+    }
+
+    private Image(String name, ByteBuffer pixels, int width, int height) {
+      this.name = name;
+      compressed = null;
+      baseLevel = 0;
+      this.pixels = pixels;
+      this.width = width;
+      this.height = height;
+    }
+
+    /** Number of compressed levels that are uploaded. */
+    int getLevelCount() {
+      return compressed.getLevelCount() - baseLevel;
+    }
+
+    /** Size of the compressed levels that are uploaded. */
+    long getCompressedSizeBytes() {
+      long bytes = 0;
+      for (int level = baseLevel; level < compressed.getLevelCount(); level++) {
+        bytes += compressed.getLevelData(level).remaining();
+      }
+      return bytes;
+    }
+
+    /**
+     * Loads the converted {@code .ktx} counterpart of an image asset if its format is supported,
+     * and otherwise decodes the PNG file.
+     *
+     * @param compressedFormats The formats supported by the context the image will be uploaded
+     *     to, see {@link #getCompressedFormats()}.
+     */
+    static Image decode(Context context, String textureAssetName, int[] compressedFormats)
+        throws IOException {
+      Image prewarmed =
+          AssetPrewarmer.getInstance().getTexture(textureAssetName, compressedFormats);
+      if (prewarmed != null) {
+        return prewarmed.fitToDevice();
+      }
+      return decodeFromAssets(context, textureAssetName, compressedFormats).fitToDevice();
+    }
+
+    /** Decodes the image like {@link #decode}, bypassing the {@link AssetPrewarmer}. */
+    static Image decodeFromAssets(
+        Context context, String textureAssetName, int[] compressedFormats) throws IOException {
+      String ktxAssetName = KtxFormat.textureNameForImage(textureAssetName);
+      try {
+        KtxTexture texture = KtxTexture.parse(MeshAssetLoader.map(context, ktxAssetName));
+        for (int format : compressedFormats) {
+          if (format == texture.getInternalFormat()) {
+            return new Image(textureAssetName, texture, 0);
+          }
+        }
+        Log.i(
+            TAG,
+            "Format 0x"
+                + Integer.toHexString(texture.getInternalFormat())
+                + " of "
+                + ktxAssetName
+                + " is not supported, decoding "
+                + textureAssetName
+                + " instead");
+      } catch (IOException e) {
+        // Also thrown if the asset was compressed by aapt, see noCompress in build.gradle.
+        Log.w(TAG, "No usable " + ktxAssetName + ", decoding " + textureAssetName + " instead", e);
+      }
+      try (InputStream in = context.getAssets().open(textureAssetName)) {
+        return decodePng(textureAssetName, in);
+      }
+    }
+
+    /**
+     * Loads an image file: a {@code .ktx} file, which fails if the context does not support its
+     * format, or otherwise a PNG or other image {@code BitmapFactory} can decode.
+     *
+     * @param name Name of the image, for diagnostics.
+     * @param compressedFormats The formats supported by the context the image will be uploaded
+     *     to, see {@link #getCompressedFormats()}.
+     */
+    static Image decodeFile(String name, File file, int[] compressedFormats) throws IOException {
+      if (file.getName().endsWith(KtxFormat.FILE_EXTENSION)) {
+        KtxTexture texture;
+        try (FileInputStream in = new FileInputStream(file);
+            FileChannel channel = in.getChannel()) {
+          texture = KtxTexture.parse(channel.map(FileChannel.MapMode.READ_ONLY, 0, file.length()));
+        }
+        for (int format : compressedFormats) {
+          if (format == texture.getInternalFormat()) {
+            return new Image(name, texture, 0).fitToDevice();
+          }
+        }
+        throw new IOException(
+            "Format 0x"
+                + Integer.toHexString(texture.getInternalFormat())
+                + " of "
+                + name
+                + " is not supported");
+      }
+      try (InputStream in = new FileInputStream(file)) {
+        return decodePng(name, in).fitToDevice();
+      }
+    }
+
+    /**
+     * Returns the image halved until neither side exceeds {@link
+     * DeviceClassifier#getMaxTextureSize()}, or this image if it fits. Compressed images keep at
+     * least their smallest level.
+     */
+    private Image fitToDevice() {
+      int maxSize = DeviceClassifier.getInstance().getMaxTextureSize();
+      int halvings = 0;
+      while ((width >> halvings) > maxSize || (height >> halvings) > maxSize) {
+        halvings++;
+      }
+      if (compressed != null) {
+        halvings = Math.min(halvings, getLevelCount() - 1);
+        return halvings <= 0 ? this : new Image(name, compressed, baseLevel + halvings);
+      }
+      if (halvings == 0) {
+        return this;
+      }
+      ByteBuffer halved = pixels;
+      int halvedWidth = width;
+      int halvedHeight = height;
+      for (int i = 0; i < halvings; i++) {
+        halved = halve(halved, halvedWidth, halvedHeight);
+        halvedWidth = Math.max(1, halvedWidth / 2);
+        halvedHeight = Math.max(1, halvedHeight / 2);
+      }
+      Log.i(TAG, "Downsampled " + name + " to " + halvedWidth + "x" + halvedHeight);
+      return new Image(name, halved, halvedWidth, halvedHeight);
+    }
+
+    /** Averages each 2x2 block of RGBA pixels, like the first level of a mip chain. */
+    private static ByteBuffer halve(ByteBuffer pixels, int width, int height) {
+      int halfWidth = Math.max(1, width / 2);
+      int halfHeight = Math.max(1, height / 2);
+      ByteBuffer half =
+          ByteBuffer.allocateDirect(halfWidth * halfHeight * 4).order(ByteOrder.nativeOrder());
+      for (int y = 0; y < halfHeight; y++) {
+        int row0 = Math.min(2 * y, height - 1) * width;
+        int row1 = Math.min(2 * y + 1, height - 1) * width;
+        for (int x = 0; x < halfWidth; x++) {
+          int x0 = Math.min(2 * x, width - 1);
+          int x1 = Math.min(2 * x + 1, width - 1);
+          for (int channel = 0; channel < 4; channel++) {
+            int sum =
+                (pixels.get((row0 + x0) * 4 + channel) & 0xFF)
+                    + (pixels.get((row0 + x1) * 4 + channel) & 0xFF)
+                    + (pixels.get((row1 + x0) * 4 + channel) & 0xFF)
+                    + (pixels.get((row1 + x1) * 4 + channel) & 0xFF);
+            half.put((byte) ((sum + 2) / 4));
+          }
+        }
+      }
+      half.rewind();
+      return half;
+    }
+
+    private static Image decodePng(String textureName, InputStream in) throws IOException {
+      BitmapFactory.Options options = new BitmapFactory.Options();
+      options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+      Bitmap bitmap = BitmapFactory.decodeStream(in, null, options);
+      if (bitmap == null) {
+        throw new IOException("Cannot decode texture " + textureName);
+      }
+      // ARGB_8888 bitmaps are stored as premultiplied RGBA bytes, which is what GLUtils uploads.
+      ByteBuffer pixels =
+          ByteBuffer.allocateDirect(bitmap.getByteCount()).order(ByteOrder.nativeOrder());
+      bitmap.copyPixelsToBuffer(pixels);
+      pixels.rewind();
+      Image image = new Image(textureName, pixels, bitmap.getWidth(), bitmap.getHeight());
+      bitmap.recycle();
+      return image;
+    }
+  }
+
+  /**
+   * Uploads an image into a new texture a band of rows (or for compressed images, a mip level) at a
+   * time, so that large textures can be spread over several frames. Must be used on the GL thread.
+   */
+  static final class Upload {
+    private final Image image;
+    private final GpuResourceTracker.Handle texture;
+    private final int textureId;
+    private int rowsUploaded;
+    private int levelsUploaded;
+
+    /** Creates the texture, and allocates it without filling it unless the image is compressed. */
+    Upload(Image image) {
+      this.image = image;
+
+      GpuResourceTracker tracker = GpuResourceTracker.getInstance();
+      texture = tracker.genTexture(GpuResourceCache.textureKey(image.name));
+      textureId = texture.id;
+      bind();
+
+      boolean mipmapped = image.compressed == null || image.getLevelCount() > 1;
+      GLES20.glTexParameteri(
+          GLES20.GL_TEXTURE_2D,
+          GLES20.GL_TEXTURE_MIN_FILTER,
+          mipmapped ? GLES20.GL_LINEAR_MIPMAP_LINEAR : GLES20.GL_LINEAR);
+      GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+      if (image.compressed != null) {
+        // Compressed levels are allocated and filled together by glCompressedTexImage2D.
+        tracker.setSize(texture, image.getCompressedSizeBytes());
+        return;
+      }
+      // RGBA with a full mip chain, which adds a third.
+      tracker.setSize(texture, (long) image.width * image.height * 4 * 4 / 3);
+      GLES20.glTexImage2D(
+          GLES20.GL_TEXTURE_2D,
+          0,
+          GLES20.GL_RGBA,
+          image.width,
+          image.height,
+          0,
+          GLES20.GL_RGBA,
+          GLES20.GL_UNSIGNED_BYTE,
+          null);
+
+      ShaderUtil.checkGLError(TAG, "Texture allocation");
+    }
+
+    /**
+     * Copies whole rows (or mip levels) of the image into the texture, at least one and otherwise
+     * as many as fit into {@code maxBytes}.
+     *
+     * @return The number of bytes copied.
+     */
+    int step(int maxBytes) {
+      if (image.compressed != null) {
+        return stepCompressed(maxBytes);
+      }
+      int rowBytes = image.width * 4;
+      int rows = Math.min(image.height - rowsUploaded, Math.max(1, maxBytes / rowBytes));
+      if (rows <= 0) {
+        return 0;
+      }
+      // Rows are tightly packed, which the default unpack alignment of 4 allows for RGBA.
+      ByteBuffer band = image.pixels.duplicate();
+      band.position(rowsUploaded * rowBytes);
+      bind();
+      GLES20.glTexSubImage2D(
+          GLES20.GL_TEXTURE_2D,
+          0,
+          0,
+          rowsUploaded,
+          image.width,
+          rows,
+          GLES20.GL_RGBA,
+          GLES20.GL_UNSIGNED_BYTE,
+          band);
+      rowsUploaded += rows;
+      ShaderUtil.checkGLError(TAG, "Texture loading");
+      return rows * rowBytes;
+    }
+
+    private int stepCompressed(int maxBytes) {
+      KtxTexture texture = image.compressed;
+      int bytes = 0;
+      bind();
+      while (levelsUploaded < image.getLevelCount()) {
+        ByteBuffer data = texture.getLevelData(image.baseLevel + levelsUploaded).duplicate();
+        if (bytes > 0 && bytes + data.remaining() > maxBytes) {
+          break;
+        }
+        GLES20.glCompressedTexImage2D(
+            GLES20.GL_TEXTURE_2D,
+            levelsUploaded,
+            texture.getInternalFormat(),
+            Math.max(1, image.width >> levelsUploaded),
+            Math.max(1, image.height >> levelsUploaded),
+            0,
+            data.remaining(),
+            data);
+        bytes += data.remaining();
+        levelsUploaded++;
+      }
+      ShaderUtil.checkGLError(TAG, "Compressed texture loading");
+      return bytes;
+    }
+
+    boolean isDone() {
+      return image.compressed != null
+          ? levelsUploaded == image.getLevelCount()
+          : rowsUploaded == image.height;
+    }
+
+    /**
+     * Generates the mip chain unless it was uploaded, and returns the texture. May only be called
+     * when done.
+     */
+    GpuTexture finish() {
+      if (!isDone()) {
+        throw new IllegalStateException("Texture upload is not complete");
+      }
+      if (image.compressed == null) {
+        bind();
+        GLES20.glGenerateMipmap(GLES20.GL_TEXTURE_2D);
+        ShaderUtil.checkGLError(TAG, "Texture mipmap generation");
+      }
+      return new GpuTexture(texture);
+    }
+
+    /** Binds the texture to unit 0, where it is left bound; renderers bind what they draw. */
+    private void bind() {
+      GlState glState = GlState.getInstance();
+      glState.activeTexture(GLES20.GL_TEXTURE0);
+      glState.bindTexture(GLES20.GL_TEXTURE_2D, textureId);
+    }
+
+    /** Deletes the partially filled texture. */
+    void cancel() {
+      GpuResourceTracker.getInstance().delete(texture);
+    }
+  }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2018 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.examples.java.common.rendering;
+
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.util.Log;
+import com.google.ar.core.examples.java.common.assets.BinaryMesh;
+import com.google.ar.core.examples.java.common.assets.BinaryMeshWriter;
+import com.google.ar.core.examples.java.common.assets.MeshData;
+import com.google.ar.core.examples.java.common.assets.MeshFormat;
+import com.google.ar.core.examples.java.common.assets.MeshPipeline;
+import com.google.ar.core.examples.java.common.assets.ObjMeshImporter;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Loads model geometry for {@link ObjectRenderer}.
+ *
+ * <p>The build converts every OBJ model into a binary {@code .mesh} asset that is stored
+ * uncompressed in the APK, so it can be memory-mapped and handed to {@code glBufferData} without
+ * being parsed or copied on the Java heap. If the converted asset is missing (for example when the
+ * app was built without the {@code convertMeshes} task) the OBJ file is parsed instead.
+ */
+public final class MeshAssetLoader {
+  private static final String TAG = MeshAssetLoader.class.getSimpleName();
+
+  private MeshAssetLoader() {}
+
+  /**
+   * Loads the mesh for an OBJ asset, preferring its precompiled {@code .mesh} counterpart.
+   *
+   * @param context Context for accessing the app assets.
+   * @param objAssetName Name of the OBJ file, e.g. {@code models/treasure.obj}.
+   */
+  public static BinaryMesh load(Context context, String objAssetName) throws IOException {
+    BinaryMesh prewarmed = AssetPrewarmer.getInstance().getMesh(objAssetName);
+    if (prewarmed != null) {
+      return prewarmed;
+    }
+    return loadFromAssets(context, objAssetName);
+  }
+
+  /** Loads the mesh like {@link #load}, bypassing the {@link AssetPrewarmer}. */
+  static BinaryMesh loadFromAssets(Context context, String objAssetName) throws IOException {
+    String meshAssetName = MeshFormat.meshNameForObj(objAssetName);
+    try {
+      return BinaryMesh.parse(map(context, meshAssetName));
+    } catch (IOException e) {
+      // openFd() also fails if the asset was compressed by aapt, see noCompress in build.gradle.
+      Log.w(TAG, "No usable " + meshAssetName + ", parsing " + objAssetName + " instead", e);
+    }
+    return parseObj(context, objAssetName);
+  }
+
+  /**
+   * Memory-maps an asset that is stored uncompressed in the APK.
+   *
+   * @throws IOException If the asset does not exist or is compressed.
+   */
+  static MappedByteBuffer map(Context context, String assetName) throws IOException {
+    try (AssetFileDescriptor fd = context.getAssets().openFd(assetName);
+        FileInputStream in = fd.createInputStream();
+        FileChannel channel = in.getChannel()) {
+      // The mapping stays valid after the channel is closed.
+      return channel.map(FileChannel.MapMode.READ_ONLY, fd.getStartOffset(), fd.getLength());
+    }
+  }
+
+  private static BinaryMesh parseObj(Context context, String objAssetName) throws IOException {
+    MeshData mesh;
+    try (InputStream objInputStream = context.getAssets().open(objAssetName)) {
+      mesh = ObjMeshImporter.importObj(objInputStream);
+    }
+    // Process the mesh like the build does, so both paths render the same thing.
+    return BinaryMesh.parse(BinaryMeshWriter.pack(MeshPipeline.process(mesh), true));
+  }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2018 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.examples.java.common.rendering;
+
+import android.content.Context;
+import com.google.ar.core.examples.java.common.assets.BinaryMesh;
+import com.google.ar.core.examples.java.common.assets.MeshTransport;
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Where the mesh and texture of a model are loaded from: the app assets, or files downloaded at
+ * runtime. See {@link ObjectRenderer#loadAsync(Context, ModelSource)}.
+ */
+public abstract class ModelSource {
+  /** Key of the mesh in the {@link GpuResourceCache}. */
+  final String meshKey;
+  /** Key of the texture in the {@link GpuResourceCache}. */
+  final String textureKey;
+
+  private ModelSource(String meshKey, String textureKey) {
+    this.meshKey = meshKey;
+    this.textureKey = textureKey;
+  }
+
+  /**
+   * A model bundled with the app.
+   *
+   * @param objAssetName Name of the OBJ file containing the model geometry. Its converted {@code
+   *     .mesh} asset is used when available.
+   * @param textureAssetName Name of the PNG file containing the diffuse texture map. Its converted
+   *     {@code .ktx} asset is used when available and supported.
+   */
+  public static ModelSource fromAssets(String objAssetName, String textureAssetName) {
+    return new ModelSource(
+        GpuResourceCache.meshKey(objAssetName), GpuResourceCache.textureKey(textureAssetName)) {
+      @Override
+      BinaryMesh loadMesh(Context context) throws IOException {
+        return MeshAssetLoader.load(context, objAssetName);
+      }
+
+      @Override
+      GpuTexture.Image loadTexture(Context context, int[] compressedFormats) throws IOException {
+        return GpuTexture.Image.decode(context, textureAssetName, compressedFormats);
+      }
+    };
+  }
+
+  /**
+   * A model stored in files. Files are identified by their names, so that two sources with files
+   * of the same names share their GPU copies; content-hashed names make that safe.
+   *
+   * @param meshFile A {@link MeshTransport} file.
+   * @param textureFile A PNG or {@code .ktx} file, see {@link GpuTexture.Image#decodeFile}.
+   */
+  public static ModelSource fromFiles(File meshFile, File textureFile) {
+    return new ModelSource(
+        GpuResourceCache.meshKey(meshFile.getName()),
+        GpuResourceCache.textureKey(textureFile.getName())) {
+      @Override
+      BinaryMesh loadMesh(Context context) throws IOException {
+        try (InputStream in = new BufferedInputStream(new FileInputStream(meshFile))) {
+          return BinaryMesh.parse(MeshTransport.read(in));
+        }
+      }
+
+      @Override
+      GpuTexture.Image loadTexture(Context context, int[] compressedFormats) throws IOException {
+        return GpuTexture.Image.decodeFile(
+            textureFile.getName(), textureFile, compressedFormats);
+      }
+    };
+  }
+
+  /** Loads the mesh. Called on a background thread. */
+  abstract BinaryMesh loadMesh(Context context) throws IOException;
+
+  /** Decodes the texture. Called on a background thread. */
+  abstract GpuTexture.Image loadTexture(Context context, int[] compressedFormats)
+      throws IOException;
+}
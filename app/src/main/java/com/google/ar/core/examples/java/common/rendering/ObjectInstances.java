@@ -0,0 +1,126 @@
+/*
+ * Copyright 2018 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.examples.java.common.rendering;
+
+import android.opengl.Matrix;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ * Placements of one model drawn many times by {@link ObjectRenderer#drawInstances}, packed the way
+ * the instanced vertex shader reads them: per instance, a column-major model matrix with the scale
+ * and rotation folded in, followed by an RGBA tint.
+ *
+ * <p>Meant to be refilled every frame: {@link #clear()} keeps the storage, which only grows.
+ */
+public final class ObjectInstances {
+  static final int MATRIX_FLOATS = 16;
+  static final int TINT_FLOATS = 4;
+  static final int FLOATS_PER_INSTANCE = MATRIX_FLOATS + TINT_FLOATS;
+  static final int STRIDE_BYTES = FLOATS_PER_INSTANCE * Float.BYTES;
+  static final int TINT_OFFSET_BYTES = MATRIX_FLOATS * Float.BYTES;
+
+  private static final float[] NO_TINT = {1.0f, 1.0f, 1.0f, 1.0f};
+
+  private FloatBuffer data;
+  private int count;
+
+  // Temporary matrices allocated here to avoid allocations per instance.
+  private final float[] scaleRotation = new float[16];
+  private final float[] instanceMatrix = new float[16];
+
+  /** @param initialCapacity Number of instances to allocate storage for up front. */
+  public ObjectInstances(int initialCapacity) {
+    data = allocate(Math.max(1, initialCapacity));
+  }
+
+  /** Removes all instances. */
+  public void clear() {
+    count = 0;
+  }
+
+  /** Number of instances added since the last {@link #clear()}. */
+  public int size() {
+    return count;
+  }
+
+  /** Adds an untinted instance, see {@link #add(float[], float, float, float[])}. */
+  public void add(float[] modelMatrix, float scale, float rotationDegrees) {
+    add(modelMatrix, scale, rotationDegrees, NO_TINT);
+  }
+
+  /**
+   * Adds an instance.
+   *
+   * @param modelMatrix A 4x4 model-to-world transformation matrix, e.g. of an anchor, stored in
+   *     column-major order.
+   * @param scale A uniform scale to apply before {@code modelMatrix}.
+   * @param rotationDegrees A rotation around the model's Y axis to apply before {@code
+   *     modelMatrix}.
+   * @param tintRgba A color the model's color is multiplied with.
+   */
+  public void add(float[] modelMatrix, float scale, float rotationDegrees, float[] tintRgba) {
+    if (count == capacity()) {
+      FloatBuffer grown = allocate(count * 2);
+      data.position(0);
+      data.limit(count * FLOATS_PER_INSTANCE);
+      grown.put(data);
+      data = grown;
+    }
+    Matrix.setRotateM(scaleRotation, 0, rotationDegrees, 0.0f, 1.0f, 0.0f);
+    Matrix.scaleM(scaleRotation, 0, scale, scale, scale);
+    Matrix.multiplyMM(instanceMatrix, 0, modelMatrix, 0, scaleRotation, 0);
+
+    data.limit(data.capacity());
+    data.position(count * FLOATS_PER_INSTANCE);
+    data.put(instanceMatrix);
+    data.put(tintRgba, 0, TINT_FLOATS);
+    count++;
+  }
+
+  /** Copies the model matrix of instance {@code index} into {@code result}. */
+  void getModelMatrix(int index, float[] result) {
+    for (int i = 0; i < MATRIX_FLOATS; i++) {
+      result[i] = data.get(index * FLOATS_PER_INSTANCE + i);
+    }
+  }
+
+  /** Returns the tint component {@code component} (0 to 3, RGBA) of instance {@code index}. */
+  float getTint(int index, int component) {
+    return data.get(index * FLOATS_PER_INSTANCE + MATRIX_FLOATS + component);
+  }
+
+  /**
+   * Returns the packed instances, positioned at 0 with the limit at the end of the last instance,
+   * ready for {@code glBufferData}.
+   */
+  FloatBuffer getData() {
+    data.limit(count * FLOATS_PER_INSTANCE);
+    data.position(0);
+    return data;
+  }
+
+  private int capacity() {
+    return data.capacity() / FLOATS_PER_INSTANCE;
+  }
+
+  private static FloatBuffer allocate(int instances) {
+    return ByteBuffer.allocateDirect(instances * STRIDE_BYTES)
+        .order(ByteOrder.nativeOrder())
+        .asFloatBuffer();
+  }
+}
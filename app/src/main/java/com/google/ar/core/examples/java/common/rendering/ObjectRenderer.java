@@ -15,32 +15,52 @@
 package com.google.ar.core.examples.java.common.rendering;
 
 import android.content.Context;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.opengl.GLES20;
-import android.opengl.GLUtils;
+import android.opengl.GLES30;
 import android.opengl.Matrix;
+import android.util.Log;
 
 import com.google.ar.core.examples.java.cloudanchor.GlobalVariables;
 
-import de.javagl.obj.Obj;
-import de.javagl.obj.ObjData;
-import de.javagl.obj.ObjReader;
-import de.javagl.obj.ObjUtils;
+import com.google.ar.core.examples.java.common.assets.MeshFormat;
+import com.google.ar.core.examples.java.common.assets.MeshLod;
+import com.google.ar.core.examples.java.common.assets.Submesh;
 import java.io.IOException;
-import java.io.InputStream;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.nio.FloatBuffer;
-import java.nio.IntBuffer;
-import java.nio.ShortBuffer;
-
-/** Renders an object loaded from an OBJ file in OpenGL. */
+
+/**
+ * Renders an object loaded from an OBJ file in OpenGL. The geometry is read from the binary mesh
+ * the build converts the OBJ file into, see {@link MeshAssetLoader}. Meshes, textures and programs
+ * are shared with other renderers through the {@link GpuResourceCache}. Distant objects are drawn
+ * with one of the simplified levels of detail stored in the mesh.
+ */
 public class ObjectRenderer {
   private static final String TAG = ObjectRenderer.class.getSimpleName();
   private float[] mRotationMatrix = new float[16];
   private float[] mFinalModelViewProjectionMatrix = new float[16];
 
+  /**
+   * Loading state of the model.
+   *
+   * @see #getLoadState()
+   * @see #loadAsync(Context, String, String)
+   */
+  public enum LoadState {
+    /** No model has been loaded, so nothing is drawn. */
+    UNLOADED,
+    /** A new model is being decoded or uploaded. The previous model, if any, is still drawn. */
+    LOADING,
+    /** The most recently requested model is resident on the GPU and drawn. */
+    READY,
+    /** The most recently requested model failed to load. The previous model, if any, is drawn. */
+    FAILED
+  }
+
+  /** Observes the {@link LoadState} of a renderer. */
+  public interface LoadStateListener {
+    /** Called on the GL thread whenever the load state changes. */
+    void onLoadStateChanged(ObjectRenderer renderer, LoadState state);
+  }
+
   /**
    * Blend mode.
    *
@@ -56,27 +76,51 @@ public class ObjectRenderer {
   // Shader names.
   private static final String VERTEX_SHADER_NAME = "shaders/object.vert";
   private static final String FRAGMENT_SHADER_NAME = "shaders/object.frag";
-
-  private static final int COORDS_PER_VERTEX = 3;
+  private static final String INSTANCED_VERTEX_SHADER_NAME = "shaders/object_instanced.vert";
+  // Cheaper variants for PerformanceTier.vertexLighting, with the same uniforms and attributes.
+  private static final String VERTEX_LIT_VERTEX_SHADER_NAME = "shaders/object_vertexlit.vert";
+  private static final String VERTEX_LIT_FRAGMENT_SHADER_NAME = "shaders/object_vertexlit.frag";
+  private static final String VERTEX_LIT_INSTANCED_VERTEX_SHADER_NAME =
+      "shaders/object_instanced_vertexlit.vert";
+  static final String[] SHADER_NAMES = {
+    VERTEX_SHADER_NAME,
+    FRAGMENT_SHADER_NAME,
+    INSTANCED_VERTEX_SHADER_NAME,
+    VERTEX_LIT_VERTEX_SHADER_NAME,
+    VERTEX_LIT_FRAGMENT_SHADER_NAME,
+    VERTEX_LIT_INSTANCED_VERTEX_SHADER_NAME
+  };
+
+  private static final float[] NO_TINT = {1.0f, 1.0f, 1.0f, 1.0f};
+
+  // Quantized vertex attributes, see MeshFormat.
+  private static final int COORDS_PER_POSITION = 3;
+  private static final int COORDS_PER_TEXCOORD = 2;
+  private static final int COORDS_PER_OCTAHEDRAL_NORMAL = 2;
 
   // Note: the last component must be zero to avoid applying the translational part of the matrix.
   private static final float[] LIGHT_DIRECTION = new float[] {0.250f, 0.866f, 0.433f, 0.0f};
   private final float[] viewLightDirection = new float[4];
 
-  // Object vertex buffer variables.
-  private int vertexBufferId;
-  private int verticesBaseAddress;
-  private int texCoordsBaseAddress;
-  private int normalsBaseAddress;
-  private int indexBufferId;
-  private int indexCount;
+  // Shared resources, and the keys this renderer holds references to them under in the
+  // GpuResourceCache. Vertices are interleaved as described by MeshFormat.
+  private GpuMesh mesh;
+  private GpuTexture texture;
+  private GpuProgram gpuProgram;
+  private String meshKey;
+  private String textureKey;
+  private String programKey;
 
   private int program;
-  private final int[] textures = new int[1];
+  private int textureId;
 
   // Shader location: model view projection matrix.
   private int modelViewUniform;
   private int modelViewProjectionUniform;
+  private int normalModelViewUniform;
+
+  // Shader location: quantized texture coordinate range.
+  private int texCoordTransformUniform;
 
   // Shader location: object attributes.
   private int positionAttribute;
@@ -95,12 +139,47 @@ public class ObjectRenderer {
   // Shader location: color correction property
   private int colorCorrectionParameterUniform;
 
+  // Shader location: color the texture is multiplied with.
+  private int tintUniform;
+
+  // Program drawing all instances in one call, null where OpenGL ES 3.0 is not available and
+  // drawInstances() falls back to one draw per instance. The instances are streamed into
+  // instanceBuffer, which is grown as needed.
+  private InstancedProgram instancedProgram;
+  private GpuProgram instancedGpuProgram;
+  private String instancedProgramKey;
+  private GpuResourceTracker.Handle instanceBuffer;
+  private int instanceBufferCapacityBytes;
+
   private BlendMode blendMode = null;
 
+  // Level of detail selection. The coarsest level whose error, projected to normalized device
+  // coordinates, stays below MAX_LOD_SCREEN_ERROR is drawn. A finer level is only restored once
+  // the error exceeds that by LOD_HYSTERESIS, so levels do not pop back and forth at a boundary.
+  private static final float MAX_LOD_SCREEN_ERROR = 0.002f;
+  private static final float LOD_HYSTERESIS = 1.5f;
+  private int currentLod;
+  // Finest level drawn, from the PerformanceTier, coarsened by lodBias.
+  private int minLod;
+  private int lodBias;
+
+  // Model being loaded in the background by loadAsync(), swapped in once it is resident.
+  private PendingModel pendingModel;
+  private volatile LoadState loadState = LoadState.UNLOADED;
+  private LoadStateListener loadStateListener;
+
   // Temporary matrices allocated here to reduce number of allocations for each frame.
   private final float[] modelMatrix = new float[16];
   private final float[] modelViewMatrix = new float[16];
   private final float[] modelViewProjectionMatrix = new float[16];
+  private final float[] rotatedModelViewProjectionMatrix = new float[16];
+  private final float[] dequantizedModelViewMatrix = new float[16];
+  private final float[] viewProjectionMatrix = new float[16];
+  private final float[] instanceModelMatrix = new float[16];
+  private final float[] scaleMatrix = new float[16];
+  private final float[] sphereCenter = new float[4];
+  private final float[] rotatedSphereCenter = new float[4];
+  private final Frustum frustum = new Frustum();
 
   // Set some default material properties to use for lighting.
   private float ambient = 0.3f;
@@ -111,7 +190,9 @@ public class ObjectRenderer {
   public ObjectRenderer() {}
 
   /**
-   * Creates and initializes OpenGL resources needed for rendering the model.
+   * Creates and initializes OpenGL resources needed for rendering the model. The model is loaded
+   * synchronously, see {@link #loadAsync(Context, String, String)} for replacing it without
+   * stalling the GL thread.
    *
    * @param context Context for loading the shader and below-named model and texture assets.
    * @param objAssetName Name of the OBJ file containing the model geometry.
@@ -119,21 +200,137 @@ public class ObjectRenderer {
    */
   public void createOnGlThread(Context context, String objAssetName, String diffuseTextureAssetName)
       throws IOException {
-    final int vertexShader =
-        ShaderUtil.loadGLShader(TAG, context, GLES20.GL_VERTEX_SHADER, VERTEX_SHADER_NAME);
-    final int fragmentShader =
-        ShaderUtil.loadGLShader(TAG, context, GLES20.GL_FRAGMENT_SHADER, FRAGMENT_SHADER_NAME);
+    cancelPendingLoad();
+    createProgram(context);
+
+    // Resources already uploaded by another renderer (or by a previous call) are shared through
+    // the cache. The previous ones are released only after the new ones are acquired, so reloading
+    // the same model does not delete and re-upload it.
+    GpuTexture newTexture = GpuTexture.acquire(context, diffuseTextureAssetName);
+    String newTextureKey = GpuResourceCache.textureKey(diffuseTextureAssetName);
+
+    // Load the mesh. This memory-maps the precompiled binary mesh when available, so the vertex
+    // and index data go straight from the APK to OpenGL.
+    GpuMesh newMesh;
+    try {
+      newMesh = GpuMesh.acquire(context, objAssetName);
+    } catch (IOException e) {
+      GpuResourceCache.getInstance().release(newTextureKey, newTexture);
+      throw e;
+    }
+    swapModel(GpuResourceCache.meshKey(objAssetName), newMesh, newTextureKey, newTexture);
+
+    Matrix.setIdentityM(modelMatrix, 0);
+    setLoadState(LoadState.READY);
+  }
+
+  /**
+   * Starts replacing the model without stalling the GL thread. The mesh and texture are decoded on
+   * a background thread and then uploaded in small chunks by {@link #updateOnGlThread()}. The
+   * current model keeps being drawn until the new one is fully resident, and is then swapped out
+   * in one step. Starting another load cancels this one.
+   *
+   * @param context Context for loading the shader and below-named model and texture assets.
+   * @param objAssetName Name of the OBJ file containing the model geometry.
+   * @param diffuseTextureAssetName Name of the PNG file containing the diffuse texture map.
+   * @see #getLoadState()
+   */
+  public void loadAsync(Context context, String objAssetName, String diffuseTextureAssetName)
+      throws IOException {
+    loadAsync(context, ModelSource.fromAssets(objAssetName, diffuseTextureAssetName));
+  }
 
-    program = GLES20.glCreateProgram();
-    GLES20.glAttachShader(program, vertexShader);
-    GLES20.glAttachShader(program, fragmentShader);
-    GLES20.glLinkProgram(program);
-    GLES20.glUseProgram(program);
+  /**
+   * Starts replacing the model like {@link #loadAsync(Context, String, String)}, with the mesh and
+   * texture loaded from {@code source}, e.g. files downloaded at runtime.
+   */
+  public void loadAsync(Context context, ModelSource source) throws IOException {
+    cancelPendingLoad();
+    if (gpuProgram == null) {
+      createProgram(context);
+    }
+    pendingModel = new PendingModel(context, source);
+    setLoadState(LoadState.LOADING);
+    // Models that are already cached are swapped in right away.
+    updateOnGlThread();
+  }
 
-    ShaderUtil.checkGLError(TAG, "Program creation");
+  /**
+   * Advances a load started by {@link #loadAsync(Context, String, String)} by at most one chunk.
+   * Must be called on the GL thread once per frame, whether or not the model is drawn.
+   */
+  public void updateOnGlThread() {
+    if (pendingModel == null) {
+      return;
+    }
+    try {
+      if (!pendingModel.uploadStep()) {
+        return;
+      }
+    } catch (IOException e) {
+      Log.e(TAG, "Failed to load model", e);
+      cancelPendingLoad();
+      setLoadState(LoadState.FAILED);
+      return;
+    }
+    PendingModel loaded = pendingModel;
+    pendingModel = null;
+    swapModel(loaded.meshKey, loaded.getMesh(), loaded.textureKey, loaded.getTexture());
+    setLoadState(LoadState.READY);
+  }
+
+  /** Returns the load state of the model. May be called from any thread. */
+  public LoadState getLoadState() {
+    return loadState;
+  }
+
+  /** Sets a listener to be notified of load state changes, or {@code null} to remove it. */
+  public void setLoadStateListener(LoadStateListener listener) {
+    loadStateListener = listener;
+  }
+
+  /**
+   * Releases this renderer's references to its mesh, texture and program, and cancels any load in
+   * progress. The shared GPU objects are deleted once no other renderer uses them. Must be called
+   * on the GL thread.
+   */
+  public void release() {
+    cancelPendingLoad();
+    GpuResourceCache cache = GpuResourceCache.getInstance();
+    cache.release(meshKey, mesh);
+    cache.release(textureKey, texture);
+    cache.release(programKey, gpuProgram);
+    mesh = null;
+    texture = null;
+    gpuProgram = null;
+    releaseInstancing();
+    setLoadState(LoadState.UNLOADED);
+  }
+
+  private void createProgram(Context context) throws IOException {
+    PerformanceTier tier = DeviceClassifier.getInstance().getTier();
+    minLod = tier.minLod;
+    String vertexShaderName =
+        tier.vertexLighting ? VERTEX_LIT_VERTEX_SHADER_NAME : VERTEX_SHADER_NAME;
+    String fragmentShaderName =
+        tier.vertexLighting ? VERTEX_LIT_FRAGMENT_SHADER_NAME : FRAGMENT_SHADER_NAME;
+    String instancedVertexShaderName =
+        tier.vertexLighting
+            ? VERTEX_LIT_INSTANCED_VERTEX_SHADER_NAME
+            : INSTANCED_VERTEX_SHADER_NAME;
+
+    GpuProgram previousProgram = gpuProgram;
+    String previousProgramKey = programKey;
+    gpuProgram = GpuProgram.acquire(TAG, context, vertexShaderName, fragmentShaderName);
+    programKey = GpuResourceCache.programKey(vertexShaderName, fragmentShaderName);
+    GpuResourceCache.getInstance().release(previousProgramKey, previousProgram);
+    program = gpuProgram.getProgramId();
+    GlState.getInstance().useProgram(program);
 
     modelViewUniform = GLES20.glGetUniformLocation(program, "u_ModelView");
     modelViewProjectionUniform = GLES20.glGetUniformLocation(program, "u_ModelViewProjection");
+    normalModelViewUniform = GLES20.glGetUniformLocation(program, "u_NormalModelView");
+    texCoordTransformUniform = GLES20.glGetUniformLocation(program, "u_TexCoordTransform");
 
     positionAttribute = GLES20.glGetAttribLocation(program, "a_Position");
     normalAttribute = GLES20.glGetAttribLocation(program, "a_Normal");
@@ -145,90 +342,69 @@ public class ObjectRenderer {
     materialParametersUniform = GLES20.glGetUniformLocation(program, "u_MaterialParameters");
     colorCorrectionParameterUniform =
         GLES20.glGetUniformLocation(program, "u_ColorCorrectionParameters");
+    tintUniform = GLES20.glGetUniformLocation(program, "u_Tint");
 
     ShaderUtil.checkGLError(TAG, "Program parameters");
 
-    // Read the texture.
-    Bitmap textureBitmap =
-        BitmapFactory.decodeStream(context.getAssets().open(diffuseTextureAssetName));
-
-    GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
-    GLES20.glGenTextures(textures.length, textures, 0);
-    GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textures[0]);
-
-    GLES20.glTexParameteri(
-        GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR_MIPMAP_LINEAR);
-    GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
-    GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, textureBitmap, 0);
-    GLES20.glGenerateMipmap(GLES20.GL_TEXTURE_2D);
-    GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
-
-    textureBitmap.recycle();
-
-    ShaderUtil.checkGLError(TAG, "Texture loading");
-
-    // Read the obj file.
-    InputStream objInputStream = context.getAssets().open(objAssetName);
-    Obj obj = ObjReader.read(objInputStream);
-
-    // Prepare the Obj so that its structure is suitable for
-    // rendering with OpenGL:
-    // 1. Triangulate it
-    // 2. Make sure that texture coordinates are not ambiguous
-    // 3. Make sure that normals are not ambiguous
-    // 4. Convert it to single-indexed data
-    obj = ObjUtils.convertToRenderable(obj);
-
-    // OpenGL does not use Java arrays. ByteBuffers are used instead to provide data in a format
-    // that OpenGL understands.
-
-    // Obtain the data from the OBJ, as direct buffers:
-    IntBuffer wideIndices = ObjData.getFaceVertexIndices(obj, 3);
-    FloatBuffer vertices = ObjData.getVertices(obj);
-    FloatBuffer texCoords = ObjData.getTexCoords(obj, 2);
-    FloatBuffer normals = ObjData.getNormals(obj);
-
-    // Convert int indices to shorts for GL ES 2.0 compatibility
-    ShortBuffer indices =
-        ByteBuffer.allocateDirect(2 * wideIndices.limit())
-            .order(ByteOrder.nativeOrder())
-            .asShortBuffer();
-    while (wideIndices.hasRemaining()) {
-      indices.put((short) wideIndices.get());
-    }
-    indices.rewind();
-
-    int[] buffers = new int[2];
-    GLES20.glGenBuffers(2, buffers, 0);
-    vertexBufferId = buffers[0];
-    indexBufferId = buffers[1];
-
-    // Load vertex buffer
-    verticesBaseAddress = 0;
-    texCoordsBaseAddress = verticesBaseAddress + 4 * vertices.limit();
-    normalsBaseAddress = texCoordsBaseAddress + 4 * texCoords.limit();
-    final int totalBytes = normalsBaseAddress + 4 * normals.limit();
-
-    GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, vertexBufferId);
-    GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, totalBytes, null, GLES20.GL_STATIC_DRAW);
-    GLES20.glBufferSubData(
-        GLES20.GL_ARRAY_BUFFER, verticesBaseAddress, 4 * vertices.limit(), vertices);
-    GLES20.glBufferSubData(
-        GLES20.GL_ARRAY_BUFFER, texCoordsBaseAddress, 4 * texCoords.limit(), texCoords);
-    GLES20.glBufferSubData(
-        GLES20.GL_ARRAY_BUFFER, normalsBaseAddress, 4 * normals.limit(), normals);
-    GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
-
-    // Load index buffer
-    GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, indexBufferId);
-    indexCount = indices.limit();
-    GLES20.glBufferData(
-        GLES20.GL_ELEMENT_ARRAY_BUFFER, 2 * indexCount, indices, GLES20.GL_STATIC_DRAW);
-    GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, 0);
+    releaseInstancing();
+    if (ShaderUtil.isGles3OrNewer()) {
+      instancedGpuProgram =
+          GpuProgram.acquire(TAG, context, instancedVertexShaderName, fragmentShaderName);
+      instancedProgramKey =
+          GpuResourceCache.programKey(instancedVertexShaderName, fragmentShaderName);
+      instancedProgram = new InstancedProgram(instancedGpuProgram.getProgramId());
+      ShaderUtil.checkGLError(TAG, "Instanced program parameters");
+      if (!instancedProgram.hasInstanceAttributes()) {
+        // Streaming instances to location -1 would shift the attribute masks out of range.
+        Log.w(TAG, "Instanced program lacks its per-instance attributes, drawing in batches");
+        releaseInstancing();
+      }
+    }
+  }
 
-    ShaderUtil.checkGLError(TAG, "OBJ buffer load");
+  /**
+   * Drops the instanced program and buffer. Also called for a new context, in which case deleting
+   * the buffer of the lost one does nothing.
+   */
+  private void releaseInstancing() {
+    GpuResourceCache.getInstance().release(instancedProgramKey, instancedGpuProgram);
+    instancedGpuProgram = null;
+    instancedProgram = null;
+    if (instanceBuffer != null) {
+      GpuResourceTracker.getInstance().delete(instanceBuffer);
+      instanceBuffer = null;
+      instanceBufferCapacityBytes = 0;
+    }
+  }
 
-    Matrix.setIdentityM(modelMatrix, 0);
+  /** Makes the given, already acquired, mesh and texture current and releases the previous ones. */
+  private void swapModel(
+      String newMeshKey, GpuMesh newMesh, String newTextureKey, GpuTexture newTexture) {
+    GpuResourceCache cache = GpuResourceCache.getInstance();
+    cache.release(meshKey, mesh);
+    cache.release(textureKey, texture);
+    mesh = newMesh;
+    meshKey = newMeshKey;
+    texture = newTexture;
+    textureKey = newTextureKey;
+    textureId = newTexture.getTextureId();
+  }
+
+  private void cancelPendingLoad() {
+    if (pendingModel != null) {
+      pendingModel.cancel();
+      pendingModel = null;
+    }
+  }
+
+  private void setLoadState(LoadState state) {
+    if (loadState == state) {
+      return;
+    }
+    loadState = state;
+    if (loadStateListener != null) {
+      loadStateListener.onLoadStateChanged(this, state);
+    }
   }
 
   /**
@@ -248,7 +424,6 @@ public class ObjectRenderer {
    * @see android.opengl.Matrix
    */
   public void updateModelMatrix(float[] modelMatrix, float scaleFactor) {
-    float[] scaleMatrix = new float[16];
     Matrix.setIdentityM(scaleMatrix, 0);
     scaleMatrix[0] = scaleFactor;
     scaleMatrix[5] = scaleFactor;
@@ -256,6 +431,36 @@ public class ObjectRenderer {
     Matrix.multiplyMM(this.modelMatrix, 0, modelMatrix, 0, scaleMatrix, 0);
   }
 
+  /**
+   * Computes the sphere bounding the model where {@link #draw} places it, from the model matrix of
+   * {@link #updateModelMatrix} and the rotation of {@link GlobalVariables#OBJECT_ROTATION}.
+   *
+   * @param result Receives {@code centerX, centerY, centerZ, radius} in world space.
+   * @return Whether a model is loaded; if not, there is nothing to draw or bound.
+   */
+  public boolean getWorldBoundingSphere(float[] result) {
+    if (mesh == null) {
+      return false;
+    }
+    float[] sphere = mesh.getBoundingSphere();
+    sphereCenter[0] = sphere[0];
+    sphereCenter[1] = sphere[1];
+    sphereCenter[2] = sphere[2];
+    sphereCenter[3] = 1.0f;
+    Matrix.setRotateM(mRotationMatrix, 0, GlobalVariables.OBJECT_ROTATION, 0.0f, 1.0f, 0.0f);
+    Matrix.multiplyMV(rotatedSphereCenter, 0, mRotationMatrix, 0, sphereCenter, 0);
+    Matrix.multiplyMV(result, 0, modelMatrix, 0, rotatedSphereCenter, 0);
+    float scale = 0;
+    for (int column = 0; column < 3; column++) {
+      float x = modelMatrix[column * 4];
+      float y = modelMatrix[column * 4 + 1];
+      float z = modelMatrix[column * 4 + 2];
+      scale = Math.max(scale, (float) Math.sqrt(x * x + y * y + z * z));
+    }
+    result[3] = sphere[3] * scale;
+    return true;
+  }
+
   /**
    * Sets the surface characteristics of the rendered model.
    *
@@ -286,17 +491,29 @@ public class ObjectRenderer {
    * @see android.opengl.Matrix
    */
   public void draw(float[] cameraView, float[] cameraPerspective, float[] colorCorrectionRgba) {
+    if (mesh == null) {
+      // Nothing has been loaded yet.
+      return;
+    }
 
-    ShaderUtil.checkGLError(TAG, "Before draw");
+    GlErrorChecker.getInstance().check(TAG, "Before draw");
 
     // Build the ModelView and ModelViewProjection matrices
     // for calculating object position and light.
     Matrix.multiplyMM(modelViewMatrix, 0, cameraView, 0, modelMatrix, 0);
     Matrix.multiplyMM(modelViewProjectionMatrix, 0, cameraPerspective, 0, modelViewMatrix, 0);
     Matrix.setRotateM(mRotationMatrix, 0, GlobalVariables.OBJECT_ROTATION, 0.0f, 1.0f, 0.0f);
-    Matrix.multiplyMM(mFinalModelViewProjectionMatrix, 0, modelViewProjectionMatrix, 0, mRotationMatrix, 0);
+    Matrix.multiplyMM(rotatedModelViewProjectionMatrix, 0, modelViewProjectionMatrix, 0, mRotationMatrix, 0);
 
-    GLES20.glUseProgram(program);
+    // Fold the dequantization of the vertex positions into the position matrices.
+    float[] dequantizationMatrix = mesh.getDequantizationMatrix();
+    Matrix.multiplyMM(dequantizedModelViewMatrix, 0, modelViewMatrix, 0, dequantizationMatrix, 0);
+    Matrix.multiplyMM(
+        mFinalModelViewProjectionMatrix, 0, rotatedModelViewProjectionMatrix, 0,
+        dequantizationMatrix, 0);
+
+    GlState glState = GlState.getInstance();
+    glState.useProgram(program);
 
     // Set the lighting environment properties.
     Matrix.multiplyMV(viewLightDirection, 0, modelViewMatrix, 0, LIGHT_DIRECTION, 0);
@@ -317,64 +534,421 @@ public class ObjectRenderer {
 
     // Set the object material properties.
     GLES20.glUniform4f(materialParametersUniform, ambient, diffuse, specular, specularPower);
+    GLES20.glUniform4fv(tintUniform, 1, NO_TINT, 0);
 
     // Attach the object texture.
-    GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
-    GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textures[0]);
+    glState.activeTexture(GLES20.GL_TEXTURE0);
+    glState.bindTexture(GLES20.GL_TEXTURE_2D, textureId);
     GLES20.glUniform1i(textureUniform, 0);
 
-    // Set the vertex attributes.
-    GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, vertexBufferId);
+    // Set the ModelViewProjection matrix in the shader.
+    GLES20.glUniformMatrix4fv(modelViewUniform, 1, false, dequantizedModelViewMatrix, 0);
+    GLES20.glUniformMatrix4fv(modelViewProjectionUniform, 1, false, mFinalModelViewProjectionMatrix, 0);
+    GLES20.glUniformMatrix4fv(normalModelViewUniform, 1, false, modelViewMatrix, 0);
+    float[] texCoordTransform = mesh.getTexCoordTransform();
+    GLES20.glUniform4f(
+        texCoordTransformUniform,
+        texCoordTransform[0],
+        texCoordTransform[1],
+        texCoordTransform[2],
+        texCoordTransform[3]);
+
+    // Enable vertex arrays
+    glState.setVertexAttribArrays(
+        GlState.attribBit(positionAttribute)
+            | GlState.attribBit(normalAttribute)
+            | GlState.attribBit(texCoordAttribute));
+
+    setBlendState();
+
+    // All submeshes share the program, texture, uniforms and buffers. Only the attribute pointers
+    // move to each submesh's vertex range, since 16-bit indices are relative to it.
+    int lodIndex = selectLod(modelViewMatrix, cameraPerspective);
+    Submesh[] submeshes = mesh.getSubmeshes();
+    if (submeshes.length > 1) {
+      // Submeshes are in model space, before the dequantization.
+      frustum.set(rotatedModelViewProjectionMatrix);
+    }
+    glState.bindBuffer(GLES20.GL_ARRAY_BUFFER, mesh.getVertexBufferId());
+    glState.bindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, mesh.getIndexBufferId());
+    for (Submesh submesh : submeshes) {
+      if (submeshes.length > 1 && !frustum.intersectsBox(submesh.bounds)) {
+        continue;
+      }
+      setVertexAttributes(
+          submesh.firstVertex * MeshFormat.VERTEX_STRIDE_BYTES,
+          positionAttribute,
+          normalAttribute,
+          texCoordAttribute);
+      MeshLod lod = submesh.lods[lodIndex];
+      GLES20.glDrawElements(
+          GLES20.GL_TRIANGLES,
+          lod.indexCount,
+          GLES20.GL_UNSIGNED_SHORT,
+          lod.firstIndex * MeshFormat.BYTES_PER_INDEX);
+    }
+
+    GlErrorChecker.getInstance().check(TAG, "After draw");
+  }
 
+  /**
+   * Draws the model once per instance. With OpenGL ES 3.0 all instances of a submesh take one
+   * instanced draw call; otherwise the shared state is set once and each instance only changes its
+   * matrices and tint. All instances are drawn at the level of detail of the one that is largest
+   * on screen. The model matrix set by {@link #updateModelMatrix} is ignored.
+   *
+   * @param cameraView A 4x4 view matrix, in column-major order.
+   * @param cameraPerspective A 4x4 projection matrix, in column-major order.
+   * @param colorCorrectionRgba Illumination intensity. Combined with diffuse and specular material
+   *     properties.
+   * @param instances The placements to draw.
+   * @see #draw(float[], float[], float[])
+   */
+  public void drawInstances(
+      float[] cameraView,
+      float[] cameraPerspective,
+      float[] colorCorrectionRgba,
+      ObjectInstances instances) {
+    if (mesh == null || instances.size() == 0) {
+      return;
+    }
+
+    GlErrorChecker.getInstance().check(TAG, "Before draw instances");
+
+    // Pick the level of detail from the instance that is largest on screen.
+    float maxProjectedRadius = -1;
+    for (int i = 0; i < instances.size(); i++) {
+      instances.getModelMatrix(i, instanceModelMatrix);
+      Matrix.multiplyMM(modelViewMatrix, 0, cameraView, 0, instanceModelMatrix, 0);
+      float projectedRadius = projectedRadius(modelViewMatrix, cameraPerspective);
+      if (projectedRadius > maxProjectedRadius) {
+        maxProjectedRadius = projectedRadius;
+        System.arraycopy(modelViewMatrix, 0, dequantizedModelViewMatrix, 0, 16);
+      }
+    }
+    int lodIndex = selectLod(dequantizedModelViewMatrix, cameraPerspective);
+
+    // The light is fixed in the world, so it is the same in view space for all instances.
+    Matrix.multiplyMV(viewLightDirection, 0, cameraView, 0, LIGHT_DIRECTION, 0);
+    normalizeVec3(viewLightDirection);
+
+    setBlendState();
+    GlState glState = GlState.getInstance();
+    glState.activeTexture(GLES20.GL_TEXTURE0);
+    glState.bindTexture(GLES20.GL_TEXTURE_2D, textureId);
+    glState.bindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, mesh.getIndexBufferId());
+    if (instancedProgram != null) {
+      drawInstanced(cameraView, cameraPerspective, colorCorrectionRgba, instances, lodIndex);
+    } else {
+      drawBatched(cameraView, cameraPerspective, colorCorrectionRgba, instances, lodIndex);
+    }
+
+    GlErrorChecker.getInstance().check(TAG, "After draw instances");
+  }
+
+  private void drawInstanced(
+      float[] cameraView,
+      float[] cameraPerspective,
+      float[] colorCorrectionRgba,
+      ObjectInstances instances,
+      int lodIndex) {
+    InstancedProgram p = instancedProgram;
+    GlState glState = GlState.getInstance();
+    glState.useProgram(p.program);
+    setSharedUniforms(
+        p.lightingParametersUniform,
+        p.colorCorrectionParameterUniform,
+        p.materialParametersUniform,
+        p.textureUniform,
+        p.texCoordTransformUniform,
+        colorCorrectionRgba);
+    Matrix.multiplyMM(viewProjectionMatrix, 0, cameraPerspective, 0, cameraView, 0);
+    GLES20.glUniformMatrix4fv(p.viewUniform, 1, false, cameraView, 0);
+    GLES20.glUniformMatrix4fv(p.viewProjectionUniform, 1, false, viewProjectionMatrix, 0);
+    GLES20.glUniformMatrix4fv(
+        p.dequantizationUniform, 1, false, mesh.getDequantizationMatrix(), 0);
+
+    glState.setVertexAttribArrays(
+        GlState.attribBit(p.positionAttribute)
+            | GlState.attribBit(p.normalAttribute)
+            | GlState.attribBit(p.texCoordAttribute)
+            | GlState.attribBits(p.instanceModelAttribute, 4)
+            | GlState.attribBit(p.instanceTintAttribute));
+    uploadInstances(instances);
+    for (int column = 0; column < 4; column++) {
+      int location = p.instanceModelAttribute + column;
+      GLES20.glVertexAttribPointer(
+          location,
+          4,
+          GLES20.GL_FLOAT,
+          false,
+          ObjectInstances.STRIDE_BYTES,
+          column * 4 * Float.BYTES);
+      GLES30.glVertexAttribDivisor(location, 1);
+    }
     GLES20.glVertexAttribPointer(
-        positionAttribute, COORDS_PER_VERTEX, GLES20.GL_FLOAT, false, 0, verticesBaseAddress);
-    GLES20.glVertexAttribPointer(normalAttribute, 3, GLES20.GL_FLOAT, false, 0, normalsBaseAddress);
-    GLES20.glVertexAttribPointer(
-        texCoordAttribute, 2, GLES20.GL_FLOAT, false, 0, texCoordsBaseAddress);
+        p.instanceTintAttribute,
+        4,
+        GLES20.GL_FLOAT,
+        false,
+        ObjectInstances.STRIDE_BYTES,
+        ObjectInstances.TINT_OFFSET_BYTES);
+    GLES30.glVertexAttribDivisor(p.instanceTintAttribute, 1);
+
+    glState.bindBuffer(GLES20.GL_ARRAY_BUFFER, mesh.getVertexBufferId());
+    for (Submesh submesh : mesh.getSubmeshes()) {
+      setVertexAttributes(
+          submesh.firstVertex * MeshFormat.VERTEX_STRIDE_BYTES,
+          p.positionAttribute,
+          p.normalAttribute,
+          p.texCoordAttribute);
+      MeshLod lod = submesh.lods[lodIndex];
+      GLES30.glDrawElementsInstanced(
+          GLES20.GL_TRIANGLES,
+          lod.indexCount,
+          GLES20.GL_UNSIGNED_SHORT,
+          lod.firstIndex * MeshFormat.BYTES_PER_INDEX,
+          instances.size());
+    }
 
-    GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+    // Divisors are attribute state that would otherwise leak into other renderers. GlState does
+    // not shadow them, as only this draw sets them.
+    for (int column = 0; column < 4; column++) {
+      GLES30.glVertexAttribDivisor(p.instanceModelAttribute + column, 0);
+    }
+    GLES30.glVertexAttribDivisor(p.instanceTintAttribute, 0);
+  }
 
-    // Set the ModelViewProjection matrix in the shader.
-    GLES20.glUniformMatrix4fv(modelViewUniform, 1, false, modelViewMatrix, 0);
-    GLES20.glUniformMatrix4fv(modelViewProjectionUniform, 1, false, mFinalModelViewProjectionMatrix, 0);
+  /** Streams the instances into instanceBuffer, which is left bound to GL_ARRAY_BUFFER. */
+  private void uploadInstances(ObjectInstances instances) {
+    GpuResourceTracker tracker = GpuResourceTracker.getInstance();
+    if (instanceBuffer == null) {
+      instanceBuffer = tracker.genBuffer(TAG + " instances");
+    }
+    int sizeBytes = instances.size() * ObjectInstances.STRIDE_BYTES;
+    GlState.getInstance().bindBuffer(GLES20.GL_ARRAY_BUFFER, instanceBuffer.id);
+    if (sizeBytes > instanceBufferCapacityBytes) {
+      instanceBufferCapacityBytes = Math.max(sizeBytes, instanceBufferCapacityBytes * 2);
+      tracker.setSize(instanceBuffer, instanceBufferCapacityBytes);
+    }
+    // Orphan last frame's storage so that the driver need not wait for draws still reading it.
+    GLES20.glBufferData(
+        GLES20.GL_ARRAY_BUFFER, instanceBufferCapacityBytes, null, GLES20.GL_STREAM_DRAW);
+    GLES20.glBufferSubData(GLES20.GL_ARRAY_BUFFER, 0, sizeBytes, instances.getData());
+  }
 
-    // Enable vertex arrays
-    GLES20.glEnableVertexAttribArray(positionAttribute);
-    GLES20.glEnableVertexAttribArray(normalAttribute);
-    GLES20.glEnableVertexAttribArray(texCoordAttribute);
-
-    if (blendMode != null) {
-      GLES20.glDepthMask(false);
-      GLES20.glEnable(GLES20.GL_BLEND);
-      switch (blendMode) {
-        case Shadow:
-          // Multiplicative blending function for Shadow.
-          GLES20.glBlendFunc(GLES20.GL_ZERO, GLES20.GL_ONE_MINUS_SRC_ALPHA);
-          break;
-        case Grid:
-          // Grid, additive blending function.
-          GLES20.glBlendFunc(GLES20.GL_SRC_ALPHA, GLES20.GL_ONE_MINUS_SRC_ALPHA);
-          break;
+  private void drawBatched(
+      float[] cameraView,
+      float[] cameraPerspective,
+      float[] colorCorrectionRgba,
+      ObjectInstances instances,
+      int lodIndex) {
+    GlState glState = GlState.getInstance();
+    glState.useProgram(program);
+    setSharedUniforms(
+        lightingParametersUniform,
+        colorCorrectionParameterUniform,
+        materialParametersUniform,
+        textureUniform,
+        texCoordTransformUniform,
+        colorCorrectionRgba);
+
+    glState.setVertexAttribArrays(
+        GlState.attribBit(positionAttribute)
+            | GlState.attribBit(normalAttribute)
+            | GlState.attribBit(texCoordAttribute));
+    glState.bindBuffer(GLES20.GL_ARRAY_BUFFER, mesh.getVertexBufferId());
+    float[] dequantizationMatrix = mesh.getDequantizationMatrix();
+    Submesh[] submeshes = mesh.getSubmeshes();
+    for (int i = 0; i < instances.size(); i++) {
+      instances.getModelMatrix(i, instanceModelMatrix);
+      Matrix.multiplyMM(modelViewMatrix, 0, cameraView, 0, instanceModelMatrix, 0);
+      Matrix.multiplyMM(
+          dequantizedModelViewMatrix, 0, modelViewMatrix, 0, dequantizationMatrix, 0);
+      Matrix.multiplyMM(
+          mFinalModelViewProjectionMatrix, 0, cameraPerspective, 0, dequantizedModelViewMatrix, 0);
+      GLES20.glUniformMatrix4fv(modelViewUniform, 1, false, dequantizedModelViewMatrix, 0);
+      GLES20.glUniformMatrix4fv(
+          modelViewProjectionUniform, 1, false, mFinalModelViewProjectionMatrix, 0);
+      GLES20.glUniformMatrix4fv(normalModelViewUniform, 1, false, modelViewMatrix, 0);
+      GLES20.glUniform4f(
+          tintUniform,
+          instances.getTint(i, 0),
+          instances.getTint(i, 1),
+          instances.getTint(i, 2),
+          instances.getTint(i, 3));
+      for (Submesh submesh : submeshes) {
+        setVertexAttributes(
+            submesh.firstVertex * MeshFormat.VERTEX_STRIDE_BYTES,
+            positionAttribute,
+            normalAttribute,
+            texCoordAttribute);
+        MeshLod lod = submesh.lods[lodIndex];
+        GLES20.glDrawElements(
+            GLES20.GL_TRIANGLES,
+            lod.indexCount,
+            GLES20.GL_UNSIGNED_SHORT,
+            lod.firstIndex * MeshFormat.BYTES_PER_INDEX);
       }
     }
+  }
 
-    GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, indexBufferId);
-    GLES20.glDrawElements(GLES20.GL_TRIANGLES, indexCount, GLES20.GL_UNSIGNED_SHORT, 0);
-    GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, 0);
+  /**
+   * Sets the uniforms both programs share and that are the same for all instances. Expects
+   * viewLightDirection to be set and the texture bound to unit 0.
+   */
+  private void setSharedUniforms(
+      int lightingParametersUniform,
+      int colorCorrectionParameterUniform,
+      int materialParametersUniform,
+      int textureUniform,
+      int texCoordTransformUniform,
+      float[] colorCorrectionRgba) {
+    GLES20.glUniform4f(
+        lightingParametersUniform,
+        viewLightDirection[0],
+        viewLightDirection[1],
+        viewLightDirection[2],
+        1.f);
+    GLES20.glUniform4f(
+        colorCorrectionParameterUniform,
+        colorCorrectionRgba[0],
+        colorCorrectionRgba[1],
+        colorCorrectionRgba[2],
+        colorCorrectionRgba[3]);
+    GLES20.glUniform4f(materialParametersUniform, ambient, diffuse, specular, specularPower);
+    GLES20.glUniform1i(textureUniform, 0);
+    float[] texCoordTransform = mesh.getTexCoordTransform();
+    GLES20.glUniform4f(
+        texCoordTransformUniform,
+        texCoordTransform[0],
+        texCoordTransform[1],
+        texCoordTransform[2],
+        texCoordTransform[3]);
+  }
+
+  /**
+   * Points the vertex attributes at the interleaved, quantized vertices starting at {@code
+   * byteOffset} of the bound vertex buffer.
+   */
+  private static void setVertexAttributes(
+      int byteOffset, int positionAttribute, int normalAttribute, int texCoordAttribute) {
+    GLES20.glVertexAttribPointer(
+        positionAttribute,
+        COORDS_PER_POSITION,
+        GLES20.GL_UNSIGNED_SHORT,
+        true,
+        MeshFormat.VERTEX_STRIDE_BYTES,
+        byteOffset + MeshFormat.POSITION_OFFSET_BYTES);
+    GLES20.glVertexAttribPointer(
+        normalAttribute,
+        COORDS_PER_OCTAHEDRAL_NORMAL,
+        GLES20.GL_SHORT,
+        true,
+        MeshFormat.VERTEX_STRIDE_BYTES,
+        byteOffset + MeshFormat.NORMAL_OFFSET_BYTES);
+    GLES20.glVertexAttribPointer(
+        texCoordAttribute,
+        COORDS_PER_TEXCOORD,
+        GLES20.GL_UNSIGNED_SHORT,
+        true,
+        MeshFormat.VERTEX_STRIDE_BYTES,
+        byteOffset + MeshFormat.TEXCOORD_OFFSET_BYTES);
+  }
+
+  /**
+   * Sets by how many levels of detail the finest level drawn is coarser than that of the {@link
+   * PerformanceTier}, to save GPU time. Initially 0.
+   */
+  public void setLodBias(int lodBias) {
+    this.lodBias = Math.max(0, lodBias);
+  }
+
+  /** Returns the level of detail drawn by the last {@link #draw} call, 0 being the full mesh. */
+  public int getCurrentLod() {
+    return currentLod;
+  }
 
-    if (blendMode != null) {
-      GLES20.glDisable(GLES20.GL_BLEND);
-      GLES20.glDepthMask(true);
+  /**
+   * Picks the level of detail to draw from the projected size of the mesh's bounding sphere, no
+   * finer than the tier's {@link PerformanceTier#minLod} plus the {@link #setLodBias LOD bias}.
+   *
+   * @param modelView The model view matrix of the mesh, without its dequantization.
+   */
+  private int selectLod(float[] modelView, float[] cameraPerspective) {
+    float[] lodErrors = mesh.getLodErrors();
+    int finestLod = Math.min(minLod + lodBias, lodErrors.length - 1);
+    currentLod = Math.max(finestLod, Math.min(currentLod, lodErrors.length - 1));
+    if (finestLod == lodErrors.length - 1) {
+      return currentLod;
+    }
+
+    float projectedRadius = projectedRadius(modelView, cameraPerspective);
+    if (projectedRadius == Float.POSITIVE_INFINITY) {
+      currentLod = finestLod;
+      return currentLod;
     }
 
-    // Disable vertex arrays
-    GLES20.glDisableVertexAttribArray(positionAttribute);
-    GLES20.glDisableVertexAttribArray(normalAttribute);
-    GLES20.glDisableVertexAttribArray(texCoordAttribute);
+    while (currentLod > finestLod
+        && lodErrors[currentLod] * projectedRadius > MAX_LOD_SCREEN_ERROR * LOD_HYSTERESIS) {
+      currentLod--;
+    }
+    while (currentLod + 1 < lodErrors.length
+        && lodErrors[currentLod + 1] * projectedRadius <= MAX_LOD_SCREEN_ERROR) {
+      currentLod++;
+    }
+    return currentLod;
+  }
 
-    GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+  /**
+   * Returns the radius of the mesh's bounding sphere on screen, in normalized device coordinates,
+   * or infinity if the camera is inside or right next to it.
+   */
+  private float projectedRadius(float[] modelView, float[] cameraPerspective) {
+    float[] sphere = mesh.getBoundingSphere();
+    float scale = 0;
+    for (int column = 0; column < 3; column++) {
+      float x = modelView[column * 4];
+      float y = modelView[column * 4 + 1];
+      float z = modelView[column * 4 + 2];
+      scale = Math.max(scale, (float) Math.sqrt(x * x + y * y + z * z));
+    }
+    float radius = sphere[3] * scale;
+    float depth =
+        -(modelView[2] * sphere[0]
+            + modelView[6] * sphere[1]
+            + modelView[10] * sphere[2]
+            + modelView[14]);
+    if (depth <= radius) {
+      return Float.POSITIVE_INFINITY;
+    }
+    return radius * cameraPerspective[5] / depth;
+  }
 
-    ShaderUtil.checkGLError(TAG, "After draw");
+  /** Sets the depth and blend state of the blend mode; opaque objects write depth. */
+  private void setBlendState() {
+    GlState glState = GlState.getInstance();
+    glState.setDepthTest(true);
+    glState.depthMask(blendMode == null);
+    glState.setBlend(blendMode != null);
+    if (blendMode == null) {
+      return;
+    }
+    // Alpha accumulates coverage, which a DynamicResolutionTarget composites with.
+    switch (blendMode) {
+      case Shadow:
+        // Multiplicative blending function for Shadow.
+        glState.blendFuncSeparate(
+            GLES20.GL_ZERO, GLES20.GL_ONE_MINUS_SRC_ALPHA, // RGB (src, dest)
+            GLES20.GL_ONE, GLES20.GL_ONE_MINUS_SRC_ALPHA); // ALPHA (src, dest)
+        break;
+      case Grid:
+        // Grid, additive blending function.
+        glState.blendFuncSeparate(
+            GLES20.GL_SRC_ALPHA, GLES20.GL_ONE_MINUS_SRC_ALPHA, // RGB (src, dest)
+            GLES20.GL_ONE, GLES20.GL_ONE_MINUS_SRC_ALPHA); // ALPHA (src, dest)
+        break;
+    }
   }
 
   private static void normalizeVec3(float[] v) {
@@ -383,4 +957,46 @@ public class ObjectRenderer {
     v[1] *= reciprocalLength;
     v[2] *= reciprocalLength;
   }
+
+  /** Locations in the program of {@code object_instanced.vert}. */
+  private static final class InstancedProgram {
+    final int program;
+    final int viewUniform;
+    final int viewProjectionUniform;
+    final int dequantizationUniform;
+    final int texCoordTransformUniform;
+    final int textureUniform;
+    final int lightingParametersUniform;
+    final int materialParametersUniform;
+    final int colorCorrectionParameterUniform;
+    final int positionAttribute;
+    final int normalAttribute;
+    final int texCoordAttribute;
+    // A mat4 attribute takes four consecutive locations, one per column.
+    final int instanceModelAttribute;
+    final int instanceTintAttribute;
+
+    InstancedProgram(int program) {
+      this.program = program;
+      viewUniform = GLES20.glGetUniformLocation(program, "u_View");
+      viewProjectionUniform = GLES20.glGetUniformLocation(program, "u_ViewProjection");
+      dequantizationUniform = GLES20.glGetUniformLocation(program, "u_Dequantization");
+      texCoordTransformUniform = GLES20.glGetUniformLocation(program, "u_TexCoordTransform");
+      textureUniform = GLES20.glGetUniformLocation(program, "u_Texture");
+      lightingParametersUniform = GLES20.glGetUniformLocation(program, "u_LightingParameters");
+      materialParametersUniform = GLES20.glGetUniformLocation(program, "u_MaterialParameters");
+      colorCorrectionParameterUniform =
+          GLES20.glGetUniformLocation(program, "u_ColorCorrectionParameters");
+      positionAttribute = GLES20.glGetAttribLocation(program, "a_Position");
+      normalAttribute = GLES20.glGetAttribLocation(program, "a_Normal");
+      texCoordAttribute = GLES20.glGetAttribLocation(program, "a_TexCoord");
+      instanceModelAttribute = GLES20.glGetAttribLocation(program, "a_InstanceModel");
+      instanceTintAttribute = GLES20.glGetAttribLocation(program, "a_InstanceTint");
+    }
+
+    /** Whether the per-instance attributes are active, which drawInstanced() needs. */
+    boolean hasInstanceAttributes() {
+      return instanceModelAttribute >= 0 && instanceTintAttribute >= 0;
+    }
+  }
 }
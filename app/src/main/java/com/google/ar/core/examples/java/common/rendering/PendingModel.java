@@ -0,0 +1,189 @@
+/*
+ * Copyright 2018 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.examples.java.common.rendering;
+
+import android.content.Context;
+import com.google.ar.core.examples.java.common.assets.BinaryMesh;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * A model whose mesh and texture are decoded on a background thread and then uploaded to OpenGL a
+ * bounded number of bytes per frame, so that loading it never stalls rendering. Anything already
+ * in the {@link GpuResourceCache} is taken from there instead.
+ *
+ * <p>Except for the decoding, all methods must be called on the GL thread.
+ */
+final class PendingModel {
+  /** Upload budget of a single {@link #uploadStep()}, small enough to fit into one frame. */
+  static final int UPLOAD_BYTES_PER_STEP = 256 * 1024;
+
+  private static final ExecutorService decodeExecutor =
+      Executors.newSingleThreadExecutor(
+          runnable -> {
+            Thread thread = new Thread(runnable, "ModelDecoder");
+            thread.setDaemon(true);
+            return thread;
+          });
+
+  final String meshKey;
+  final String textureKey;
+
+  // Written by the decoder thread; decoded is set last so that it publishes the others.
+  private BinaryMesh decodedMesh;
+  private GpuTexture.Image decodedImage;
+  private Exception decodeError;
+  private volatile boolean decoded;
+  private final Future<?> decodeTask;
+
+  private GpuMesh.Upload meshUpload;
+  private GpuTexture.Upload textureUpload;
+  private GpuMesh mesh;
+  private GpuTexture texture;
+
+  /**
+   * Starts loading a model.
+   *
+   * @param context Context for loading the assets.
+   * @param source Where to load the mesh and texture from.
+   */
+  PendingModel(Context context, ModelSource source) {
+    meshKey = source.meshKey;
+    textureKey = source.textureKey;
+
+    GpuResourceCache cache = GpuResourceCache.getInstance();
+    mesh = cache.acquire(meshKey);
+    texture = cache.acquire(textureKey);
+    if (mesh != null && texture != null) {
+      decoded = true;
+      decodeTask = null;
+      return;
+    }
+
+    Context appContext = context.getApplicationContext();
+    int[] compressedFormats = GpuTexture.getCompressedFormats();
+    boolean needMesh = mesh == null;
+    boolean needTexture = texture == null;
+    decodeTask =
+        decodeExecutor.submit(
+            () -> {
+              try {
+                if (needMesh) {
+                  decodedMesh = source.loadMesh(appContext);
+                }
+                if (needTexture) {
+                  decodedImage = source.loadTexture(appContext, compressedFormats);
+                }
+              } catch (IOException | RuntimeException e) {
+                decodeError = e;
+              } finally {
+                decoded = true;
+              }
+            });
+  }
+
+  /**
+   * Uploads up to {@link #UPLOAD_BYTES_PER_STEP} bytes of the decoded model.
+   *
+   * @return Whether the mesh and texture are now resident and can be taken with {@link #getMesh()}
+   *     and {@link #getTexture()}.
+   * @throws IOException If the model could not be decoded.
+   */
+  boolean uploadStep() throws IOException {
+    if (!decoded) {
+      return false;
+    }
+    if (decodeError != null) {
+      throw new IOException("Failed to load " + meshKey, decodeError);
+    }
+
+    GpuResourceCache cache = GpuResourceCache.getInstance();
+    int budget = UPLOAD_BYTES_PER_STEP;
+    if (mesh == null) {
+      if (meshUpload == null) {
+        meshUpload = new GpuMesh.Upload(meshKey, decodedMesh);
+      }
+      budget -= meshUpload.step(budget);
+      if (!meshUpload.isDone()) {
+        return false;
+      }
+      // Another renderer may have loaded the same mesh meanwhile.
+      mesh = cache.acquire(meshKey);
+      if (mesh == null) {
+        mesh = cache.put(meshKey, meshUpload.finish());
+      } else {
+        meshUpload.cancel();
+      }
+      meshUpload = null;
+      decodedMesh = null;
+    }
+    if (texture == null) {
+      if (budget <= 0) {
+        return false;
+      }
+      if (textureUpload == null) {
+        textureUpload = new GpuTexture.Upload(decodedImage);
+      }
+      textureUpload.step(budget);
+      if (!textureUpload.isDone()) {
+        return false;
+      }
+      texture = cache.acquire(textureKey);
+      if (texture == null) {
+        texture = cache.put(textureKey, textureUpload.finish());
+      } else {
+        textureUpload.cancel();
+      }
+      textureUpload = null;
+      decodedImage = null;
+    }
+    return true;
+  }
+
+  /** The loaded mesh. The caller takes over the cache reference held under {@link #meshKey}. */
+  GpuMesh getMesh() {
+    return mesh;
+  }
+
+  /**
+   * The loaded texture. The caller takes over the cache reference held under {@link #textureKey}.
+   */
+  GpuTexture getTexture() {
+    return texture;
+  }
+
+  /** Stops loading and frees everything acquired or uploaded so far. */
+  void cancel() {
+    if (decodeTask != null) {
+      decodeTask.cancel(false);
+    }
+    if (meshUpload != null) {
+      meshUpload.cancel();
+      meshUpload = null;
+    }
+    if (textureUpload != null) {
+      textureUpload.cancel();
+      textureUpload = null;
+    }
+    GpuResourceCache cache = GpuResourceCache.getInstance();
+    cache.release(meshKey, mesh);
+    cache.release(textureKey, texture);
+    mesh = null;
+    texture = null;
+  }
+}
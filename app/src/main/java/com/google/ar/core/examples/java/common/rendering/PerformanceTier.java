@@ -0,0 +1,50 @@
+/*
+ * Copyright 2018 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.examples.java.common.rendering;
+
+/**
+ * The rendering workload a device gets, as assigned by the {@link DeviceClassifier}. Renderers read
+ * the tier when they create their resources.
+ */
+public enum PerformanceTier {
+  LOW(2, 512, true, false, true),
+  MEDIUM(1, 1024, false, true, true),
+  HIGH(0, 2048, false, true, true);
+
+  /** The finest level of detail of meshes that is drawn, 0 being the full mesh. */
+  public final int minLod;
+  /** Largest width or height of textures; larger ones are halved until they fit. */
+  public final int maxTextureSize;
+  /** Whether objects are lit per vertex instead of per fragment. */
+  public final boolean vertexLighting;
+  /** Whether the point cloud is visualized. */
+  public final boolean drawsPointCloud;
+  /** Whether the detected planes are visualized. */
+  public final boolean drawsPlanes;
+
+  PerformanceTier(
+      int minLod,
+      int maxTextureSize,
+      boolean vertexLighting,
+      boolean drawsPointCloud,
+      boolean drawsPlanes) {
+    this.minLod = minLod;
+    this.maxTextureSize = maxTextureSize;
+    this.vertexLighting = vertexLighting;
+    this.drawsPointCloud = drawsPointCloud;
+    this.drawsPlanes = drawsPlanes;
+  }
+}
@@ -15,11 +15,8 @@
 package com.google.ar.core.examples.java.common.rendering;
 
 import android.content.Context;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.opengl.GLES20;
 import android.opengl.GLSurfaceView;
-import android.opengl.GLUtils;
 import android.opengl.Matrix;
 import com.google.ar.core.Camera;
 import com.google.ar.core.Plane;
@@ -30,11 +27,9 @@ import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
 import java.nio.ShortBuffer;
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.Collections;
-import java.util.Comparator;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
@@ -45,6 +40,7 @@ public class PlaneRenderer {
   // Shader names.
   private static final String VERTEX_SHADER_NAME = "shaders/plane.vert";
   private static final String FRAGMENT_SHADER_NAME = "shaders/plane.frag";
+  static final String[] SHADER_NAMES = {VERTEX_SHADER_NAME, FRAGMENT_SHADER_NAME};
 
   private static final int BYTES_PER_FLOAT = Float.SIZE / 8;
   private static final int BYTES_PER_SHORT = Short.SIZE / 8;
@@ -63,6 +59,21 @@ public class PlaneRenderer {
           * INDICES_PER_BOUNDARY_VERT
           * INITIAL_BUFFER_BOUNDARY_VERTS;
 
+  private static final int INITIAL_SORTED_PLANES = 16;
+
+  // Geometry of planes that were not drawn for this many frames is deleted, checked as often.
+  private static final int PLANE_MESH_EVICTION_FRAMES = 120;
+
+  // Boundary polygons are simplified with a tolerance of this much per meter of viewing distance,
+  // a few pixels on screen. Tolerances are rounded down to MIN_SIMPLIFICATION_TOLERANCE_M times a
+  // power of two, so that geometry is not regenerated for every small camera movement. A plane
+  // only changes level once the tolerance passes the boundary by SIMPLIFICATION_HYSTERESIS, so that
+  // a camera hovering at a boundary does not regenerate it every frame.
+  private static final float DEFAULT_SIMPLIFICATION_ERROR_PER_METER = 0.003f;
+  private static final float MIN_SIMPLIFICATION_TOLERANCE_M = 0.01f;
+  private static final int MAX_SIMPLIFICATION_LEVEL = 4;
+  private static final float SIMPLIFICATION_HYSTERESIS = 1.5f;
+
   private static final float FADE_RADIUS_M = 0.25f;
   private static final float DOTS_PER_METER = 10.0f;
   private static final float EQUILATERAL_TRIANGLE_SCALE = (float) (1 / Math.sqrt(3));
@@ -75,7 +86,14 @@ public class PlaneRenderer {
   private static final float[] GRID_CONTROL = {0.2f, 0.4f, 2.0f, 1.5f};
 
   private int planeProgram;
-  private final int[] textures = new int[1];
+  private int textureId;
+
+  // Shared resources, and the keys this renderer holds references to them under in the
+  // GpuResourceCache.
+  private GpuTexture texture;
+  private GpuProgram program;
+  private String textureKey;
+  private String programKey;
 
   private int planeXZPositionAlphaAttribute;
 
@@ -88,6 +106,7 @@ public class PlaneRenderer {
   private int gridControlUniform;
   private int planeUvMatrixUniform;
 
+  // Staging buffers the geometry of a changed plane is generated into before it is uploaded.
   private FloatBuffer vertexBuffer =
       ByteBuffer.allocateDirect(INITIAL_VERTEX_BUFFER_SIZE_BYTES)
           .order(ByteOrder.nativeOrder())
@@ -104,8 +123,49 @@ public class PlaneRenderer {
   private final float[] planeColor = new float[4];
   private final float[] planeAngleUvMatrix =
       new float[4]; // 2x2 rotation matrix applied to uv coords.
-
+  private final float[] cameraPoseMatrix = new float[16];
+  private final float[] cameraView = new float[16];
+  private final float[] planeMatrix = new float[16];
+  private final float[] planeNormal = new float[3];
+
+  // Planes to draw this frame, sorted by distance. Parallel arrays that only grow, so that sorting
+  // allocates nothing.
+  private Plane[] sortedPlanes = new Plane[INITIAL_SORTED_PLANES];
+  private Pose[] sortedPoses = new Pose[INITIAL_SORTED_PLANES];
+  private float[] sortedDistances = new float[INITIAL_SORTED_PLANES];
+
+  // Indices that keep the color and grid angle of a plane stable. Removed planes keep their index
+  // to themselves, so new planes take the next one rather than the map size.
   private final Map<Plane, Integer> planeIndexMap = new HashMap<>();
+  private int nextPlaneIndex;
+
+  /**
+   * The fill and perimeter geometry of a plane in GPU buffers, and what it was generated from.
+   * Planes keep their polygon across most frames, so it is regenerated only when that changes.
+   */
+  private static final class PlaneMesh {
+    GpuResourceTracker.Handle vertexBuffer;
+    GpuResourceTracker.Handle indexBuffer;
+    int vertexCapacityBytes;
+    int indexCapacityBytes;
+    int indexCount = -1;
+    int polygonChecksum;
+    float extentX;
+    float extentZ;
+    // Power of two the simplification tolerance was scaled with, -1 if not simplified.
+    int simplificationLevel;
+    int lastDrawnFrame;
+  }
+
+  private final PolygonSimplifier simplifier = new PolygonSimplifier();
+  private float simplificationErrorPerMeter = DEFAULT_SIMPLIFICATION_ERROR_PER_METER;
+
+  private final Map<Plane, PlaneMesh> planeMeshes = new HashMap<>();
+  private int frameNumber;
+  private FrameAllocationMonitor allocationMonitor;
+  // Whether the PerformanceTier visualizes planes at all.
+  private boolean enabled = true;
+  private boolean visible = true;
 
   public PlaneRenderer() {}
 
@@ -117,35 +177,24 @@ public class PlaneRenderer {
    * @param gridDistanceTextureName Name of the PNG file containing the grid texture.
    */
   public void createOnGlThread(Context context, String gridDistanceTextureName) throws IOException {
-    int vertexShader =
-        ShaderUtil.loadGLShader(TAG, context, GLES20.GL_VERTEX_SHADER, VERTEX_SHADER_NAME);
-    int passthroughShader =
-        ShaderUtil.loadGLShader(TAG, context, GLES20.GL_FRAGMENT_SHADER, FRAGMENT_SHADER_NAME);
-
-    planeProgram = GLES20.glCreateProgram();
-    GLES20.glAttachShader(planeProgram, vertexShader);
-    GLES20.glAttachShader(planeProgram, passthroughShader);
-    GLES20.glLinkProgram(planeProgram);
-    GLES20.glUseProgram(planeProgram);
+    enabled = DeviceClassifier.getInstance().getTier().drawsPlanes;
+    String previousTextureKey = textureKey;
+    String previousProgramKey = programKey;
+    GpuTexture previousTexture = texture;
+    GpuProgram previousProgram = program;
 
-    ShaderUtil.checkGLError(TAG, "Program creation");
+    program = GpuProgram.acquire(TAG, context, VERTEX_SHADER_NAME, FRAGMENT_SHADER_NAME);
+    programKey = GpuResourceCache.programKey(VERTEX_SHADER_NAME, FRAGMENT_SHADER_NAME);
+    planeProgram = program.getProgramId();
+    GlState.getInstance().useProgram(planeProgram);
 
-    // Read the texture.
-    Bitmap textureBitmap =
-        BitmapFactory.decodeStream(context.getAssets().open(gridDistanceTextureName));
+    texture = GpuTexture.acquire(context, gridDistanceTextureName);
+    textureKey = GpuResourceCache.textureKey(gridDistanceTextureName);
+    textureId = texture.getTextureId();
 
-    GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
-    GLES20.glGenTextures(textures.length, textures, 0);
-    GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textures[0]);
-
-    GLES20.glTexParameteri(
-        GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR_MIPMAP_LINEAR);
-    GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
-    GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, textureBitmap, 0);
-    GLES20.glGenerateMipmap(GLES20.GL_TEXTURE_2D);
-    GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
-
-    ShaderUtil.checkGLError(TAG, "Texture loading");
+    GpuResourceCache cache = GpuResourceCache.getInstance();
+    cache.release(previousTextureKey, previousTexture);
+    cache.release(previousProgramKey, previousProgram);
 
     planeXZPositionAlphaAttribute = GLES20.glGetAttribLocation(planeProgram, "a_XZPositionAlpha");
 
@@ -160,12 +209,217 @@ public class PlaneRenderer {
     planeUvMatrixUniform = GLES20.glGetUniformLocation(planeProgram, "u_PlaneUvMatrix");
 
     ShaderUtil.checkGLError(TAG, "Program parameters");
+
+    // Geometry of a previous context is gone; the tracker skips deleting it.
+    releasePlaneMeshes();
+  }
+
+  /**
+   * Releases this renderer's references to its grid texture and program, and deletes the geometry
+   * of the planes. Must be called on the GL thread.
+   */
+  public void release() {
+    GpuResourceCache cache = GpuResourceCache.getInstance();
+    cache.release(textureKey, texture);
+    cache.release(programKey, program);
+    texture = null;
+    program = null;
+    releasePlaneMeshes();
+  }
+
+  /**
+   * Drops everything kept for a plane that was subsumed or stopped, e.g. from a {@code
+   * PlaneRegistry} listener. Must be called on the GL thread.
+   */
+  public void onPlaneRemoved(Plane plane) {
+    planeIndexMap.remove(plane);
+    PlaneMesh mesh = planeMeshes.remove(plane);
+    if (mesh != null) {
+      GpuResourceTracker tracker = GpuResourceTracker.getInstance();
+      tracker.delete(mesh.vertexBuffer);
+      tracker.delete(mesh.indexBuffer);
+    }
+  }
+
+  /**
+   * Drops the meshes and colors of all planes, e.g. for a new session whose planes are all new.
+   * Must be called on the GL thread.
+   */
+  public void clearPlanes() {
+    planeIndexMap.clear();
+    releasePlaneMeshes();
+  }
+
+  private void releasePlaneMeshes() {
+    GpuResourceTracker tracker = GpuResourceTracker.getInstance();
+    for (PlaneMesh mesh : planeMeshes.values()) {
+      tracker.delete(mesh.vertexBuffer);
+      tracker.delete(mesh.indexBuffer);
+    }
+    planeMeshes.clear();
+  }
+
+  /**
+   * Sets the monitor whose section {@link #drawPlanes} is drawn in, so that the ARCore getters and
+   * the bookkeeping of new planes are left out of it. Optional.
+   */
+  public void setAllocationMonitor(FrameAllocationMonitor allocationMonitor) {
+    this.allocationMonitor = allocationMonitor;
+  }
+
+  /**
+   * Sets how far simplified plane boundaries may deviate from the tracked ones, in meters per meter
+   * of distance from the camera. 0 turns simplification off.
+   */
+  public void setSimplificationErrorPerMeter(float errorPerMeter) {
+    simplificationErrorPerMeter = errorPerMeter;
+  }
+
+  /**
+   * Returns the geometry of a plane, generating and uploading it again only if the plane's polygon,
+   * extents or simplification level changed since it was last drawn. Leaves the buffers bound.
+   *
+   * @param centerDistance Distance from the camera to the center of the plane.
+   * @param normalDistance Distance from the camera to the plane along its normal.
+   */
+  private PlaneMesh updatePlaneMesh(Plane plane, float centerDistance, float normalDistance) {
+    PlaneMesh mesh = planeMeshes.get(plane);
+    if (mesh == null) {
+      // Once per plane, not per frame.
+      pauseAllocationMonitor();
+      mesh = new PlaneMesh();
+      GpuResourceTracker tracker = GpuResourceTracker.getInstance();
+      mesh.vertexBuffer = tracker.genBuffer(TAG + " plane vertices");
+      mesh.indexBuffer = tracker.genBuffer(TAG + " plane indices");
+      planeMeshes.put(plane, mesh);
+      resumeAllocationMonitor();
+    }
+    mesh.lastDrawnFrame = frameNumber;
+    GlState glState = GlState.getInstance();
+    glState.bindBuffer(GLES20.GL_ARRAY_BUFFER, mesh.vertexBuffer.id);
+    glState.bindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, mesh.indexBuffer.id);
+
+    pauseAllocationMonitor();
+    FloatBuffer boundary = plane.getPolygon();
+    float extentX = plane.getExtentX();
+    float extentZ = plane.getExtentZ();
+    resumeAllocationMonitor();
+    int checksum = checksum(boundary);
+    // The nearest part of the plane decides how much error is visible.
+    float halfDiagonal = 0.5f * (float) Math.hypot(extentX, extentZ);
+    float viewDistance = Math.max(normalDistance, centerDistance - halfDiagonal);
+    int simplificationLevel =
+        simplificationLevel(viewDistance, mesh.indexCount >= 0 ? mesh.simplificationLevel : -2);
+    if (mesh.indexCount >= 0
+        && mesh.polygonChecksum == checksum
+        && mesh.extentX == extentX
+        && mesh.extentZ == extentZ
+        && mesh.simplificationLevel == simplificationLevel) {
+      return mesh;
+    }
+    mesh.polygonChecksum = checksum;
+    mesh.extentX = extentX;
+    mesh.extentZ = extentZ;
+    mesh.simplificationLevel = simplificationLevel;
+
+    if (boundary != null && simplificationLevel >= 0) {
+      boundary = simplifier.simplify(boundary, levelTolerance(simplificationLevel));
+    }
+    generatePlaneGeometry(extentX, extentZ, boundary);
+    GpuResourceTracker tracker = GpuResourceTracker.getInstance();
+    int vertexBytes = vertexBuffer.limit() * BYTES_PER_FLOAT;
+    int indexBytes = indexBuffer.limit() * BYTES_PER_SHORT;
+    vertexBuffer.rewind();
+    indexBuffer.rewind();
+    if (vertexBytes > mesh.vertexCapacityBytes) {
+      // Planes mostly grow, so allocate with room for the next few updates.
+      mesh.vertexCapacityBytes = vertexBytes * 2;
+      GLES20.glBufferData(
+          GLES20.GL_ARRAY_BUFFER, mesh.vertexCapacityBytes, null, GLES20.GL_DYNAMIC_DRAW);
+      tracker.setSize(mesh.vertexBuffer, mesh.vertexCapacityBytes);
+    }
+    if (indexBytes > mesh.indexCapacityBytes) {
+      mesh.indexCapacityBytes = indexBytes * 2;
+      GLES20.glBufferData(
+          GLES20.GL_ELEMENT_ARRAY_BUFFER, mesh.indexCapacityBytes, null, GLES20.GL_DYNAMIC_DRAW);
+      tracker.setSize(mesh.indexBuffer, mesh.indexCapacityBytes);
+    }
+    GLES20.glBufferSubData(GLES20.GL_ARRAY_BUFFER, 0, vertexBytes, vertexBuffer);
+    GLES20.glBufferSubData(GLES20.GL_ELEMENT_ARRAY_BUFFER, 0, indexBytes, indexBuffer);
+    mesh.indexCount = indexBuffer.limit();
+    return mesh;
+  }
+
+  /**
+   * Returns the power of two to scale MIN_SIMPLIFICATION_TOLERANCE_M with for a plane seen from
+   * {@code viewDistance} meters away, or -1 if it is too close to simplify.
+   *
+   * @param currentLevel The level the plane's geometry was generated with, which is kept until the
+   *     tolerance is SIMPLIFICATION_HYSTERESIS past its boundaries, or -2 for a new plane.
+   */
+  private int simplificationLevel(float viewDistance, int currentLevel) {
+    float tolerance = simplificationErrorPerMeter * viewDistance;
+    int level;
+    if (tolerance < MIN_SIMPLIFICATION_TOLERANCE_M) {
+      level = -1;
+    } else {
+      level = (int) (Math.log(tolerance / MIN_SIMPLIFICATION_TOLERANCE_M) / Math.log(2));
+      level = Math.min(level, MAX_SIMPLIFICATION_LEVEL);
+    }
+    if (currentLevel < -1) {
+      return level;
+    }
+    if (level > currentLevel
+        && tolerance < levelTolerance(currentLevel + 1) * SIMPLIFICATION_HYSTERESIS) {
+      return currentLevel;
+    }
+    if (level < currentLevel
+        && tolerance * SIMPLIFICATION_HYSTERESIS >= levelTolerance(currentLevel)) {
+      return currentLevel;
+    }
+    return level;
+  }
+
+  /** The smallest tolerance simplification level {@code level} is used from. */
+  private static float levelTolerance(int level) {
+    return MIN_SIMPLIFICATION_TOLERANCE_M * (1 << level);
   }
 
-  /** Updates the plane model transform matrix and extents. */
-  private void updatePlaneParameters(
-      float[] planeMatrix, float extentX, float extentZ, FloatBuffer boundary) {
-    System.arraycopy(planeMatrix, 0, modelMatrix, 0, 16);
+  /** Hashes the boundary polygon, cheaply telling whether it changed since the last frame. */
+  private static int checksum(FloatBuffer boundary) {
+    if (boundary == null) {
+      return 0;
+    }
+    int limit = boundary.limit();
+    int hash = limit;
+    for (int i = 0; i < limit; i++) {
+      hash = 31 * hash + Float.floatToRawIntBits(boundary.get(i));
+    }
+    return hash;
+  }
+
+  /** Deletes the geometry of planes that have not been drawn for a while, e.g. subsumed ones. */
+  private void evictPlaneMeshes() {
+    if (frameNumber % PLANE_MESH_EVICTION_FRAMES != 0) {
+      return;
+    }
+    // Every few hundred frames, not per frame.
+    pauseAllocationMonitor();
+    GpuResourceTracker tracker = GpuResourceTracker.getInstance();
+    Iterator<PlaneMesh> meshes = planeMeshes.values().iterator();
+    while (meshes.hasNext()) {
+      PlaneMesh mesh = meshes.next();
+      if (frameNumber - mesh.lastDrawnFrame >= PLANE_MESH_EVICTION_FRAMES) {
+        tracker.delete(mesh.vertexBuffer);
+        tracker.delete(mesh.indexBuffer);
+        meshes.remove();
+      }
+    }
+    resumeAllocationMonitor();
+  }
+
+  /** Generates the vertices and indices of a plane into the staging buffers. */
+  private void generatePlaneGeometry(float extentX, float extentZ, FloatBuffer boundary) {
     if (boundary == null) {
       vertexBuffer.limit(0);
       indexBuffer.limit(0);
@@ -248,21 +502,21 @@ public class PlaneRenderer {
     }
   }
 
-  private void draw(float[] cameraView, float[] cameraPerspective, float[] planeNormal) {
+  private void draw(
+      float[] cameraView, float[] cameraPerspective, float[] planeNormal, PlaneMesh mesh) {
     // Build the ModelView and ModelViewProjection matrices
     // for calculating cube position and light.
     Matrix.multiplyMM(modelViewMatrix, 0, cameraView, 0, modelMatrix, 0);
     Matrix.multiplyMM(modelViewProjectionMatrix, 0, cameraPerspective, 0, modelViewMatrix, 0);
 
-    // Set the position of the plane
-    vertexBuffer.rewind();
+    // Set the position of the plane, from the bound vertex buffer of the mesh.
     GLES20.glVertexAttribPointer(
         planeXZPositionAlphaAttribute,
         COORDS_PER_VERTEX,
         GLES20.GL_FLOAT,
         false,
         BYTES_PER_FLOAT * COORDS_PER_VERTEX,
-        vertexBuffer);
+        0);
 
     // Set the Model and ModelViewProjection matrices in the shader.
     GLES20.glUniformMatrix4fv(planeModelUniform, 1, false, modelMatrix, 0);
@@ -270,108 +524,115 @@ public class PlaneRenderer {
     GLES20.glUniformMatrix4fv(
         planeModelViewProjectionUniform, 1, false, modelViewProjectionMatrix, 0);
 
-    indexBuffer.rewind();
-    GLES20.glDrawElements(
-        GLES20.GL_TRIANGLE_STRIP, indexBuffer.limit(), GLES20.GL_UNSIGNED_SHORT, indexBuffer);
-    ShaderUtil.checkGLError(TAG, "Drawing plane");
+    GLES20.glDrawElements(GLES20.GL_TRIANGLE_STRIP, mesh.indexCount, GLES20.GL_UNSIGNED_SHORT, 0);
+    GlErrorChecker.getInstance().check(TAG, "Drawing plane");
   }
 
-  static class SortablePlane {
-    final float distance;
-    final Plane plane;
-
-    SortablePlane(float distance, Plane plane) {
-      this.distance = distance;
-      this.plane = plane;
-    }
+  /** Sets whether {@link #drawPlanes} draws anything, e.g. to save GPU time. Initially true. */
+  public void setVisible(boolean visible) {
+    this.visible = visible;
   }
 
   /**
-   * Draws the collection of tracked planes, with closer planes hiding more distant ones.
+   * Draws the collection of tracked planes, with closer planes hiding more distant ones. Draws
+   * nothing if the performance tier does not visualize planes, or if not {@link #setVisible
+   * visible}.
    *
-   * @param allPlanes The collection of planes to draw.
+   * @param allPlanes The planes to draw, indexed rather than iterated so that it allocates nothing.
    * @param cameraPose The pose of the camera, as returned by {@link Camera#getPose()}
    * @param cameraPerspective The projection matrix, as returned by {@link
    *     Camera#getProjectionMatrix(float[], int, float, float)}
    */
-  public void drawPlanes(Collection<Plane> allPlanes, Pose cameraPose, float[] cameraPerspective) {
+  public void drawPlanes(List<Plane> allPlanes, Pose cameraPose, float[] cameraPerspective) {
+    if (!enabled || !visible) {
+      return;
+    }
+    frameNumber++;
+    evictPlaneMeshes();
+
     // Planes must be sorted by distance from camera so that we draw closer planes first, and
     // they occlude the farther planes.
-    List<SortablePlane> sortedPlanes = new ArrayList<>();
-
-    for (Plane plane : allPlanes) {
-      if (plane.getTrackingState() != TrackingState.TRACKING || plane.getSubsumedBy() != null) {
+    int planeCount = 0;
+    for (int i = 0; i < allPlanes.size(); i++) {
+      Plane plane = allPlanes.get(i);
+      // The ARCore getters return new objects.
+      pauseAllocationMonitor();
+      Pose centerPose =
+          plane.getTrackingState() == TrackingState.TRACKING && plane.getSubsumedBy() == null
+              ? plane.getCenterPose()
+              : null;
+      resumeAllocationMonitor();
+      if (centerPose == null) {
         continue;
       }
 
-      float distance = calculateDistanceToPlane(plane.getCenterPose(), cameraPose);
+      float distance = calculateDistanceToPlane(centerPose, cameraPose);
       if (distance < 0) { // Plane is back-facing.
         continue;
       }
-      sortedPlanes.add(new SortablePlane(distance, plane));
+      insertSorted(planeCount++, plane, centerPose, distance);
     }
-    Collections.sort(
-        sortedPlanes,
-        new Comparator<SortablePlane>() {
-          @Override
-          public int compare(SortablePlane a, SortablePlane b) {
-            return Float.compare(a.distance, b.distance);
-          }
-        });
-
-    float[] cameraView = new float[16];
-    cameraPose.inverse().toMatrix(cameraView, 0);
+
+    cameraPose.toMatrix(cameraPoseMatrix, 0);
+    Matrix.invertM(cameraView, 0, cameraPoseMatrix, 0);
 
     // Planes are drawn with additive blending, masked by the alpha channel for occlusion.
 
     // Start by clearing the alpha channel of the color buffer to 1.0.
+    GlState glState = GlState.getInstance();
     GLES20.glClearColor(1, 1, 1, 1);
-    GLES20.glColorMask(false, false, false, true);
+    glState.colorMask(false, false, false, true);
     GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
-    GLES20.glColorMask(true, true, true, true);
+    glState.colorMask(true, true, true, true);
 
-    // Disable depth write.
-    GLES20.glDepthMask(false);
+    // Test depth, but do not write it.
+    glState.setDepthTest(true);
+    glState.depthMask(false);
 
     // Additive blending, masked by alpha channel, clearing alpha channel.
-    GLES20.glEnable(GLES20.GL_BLEND);
-    GLES20.glBlendFuncSeparate(
+    glState.setBlend(true);
+    glState.blendFuncSeparate(
         GLES20.GL_DST_ALPHA, GLES20.GL_ONE, // RGB (src, dest)
         GLES20.GL_ZERO, GLES20.GL_ONE_MINUS_SRC_ALPHA); // ALPHA (src, dest)
 
     // Set up the shader.
-    GLES20.glUseProgram(planeProgram);
+    glState.useProgram(planeProgram);
 
     // Attach the texture.
-    GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
-    GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textures[0]);
+    glState.activeTexture(GLES20.GL_TEXTURE0);
+    glState.bindTexture(GLES20.GL_TEXTURE_2D, textureId);
     GLES20.glUniform1i(textureUniform, 0);
 
     // Shared fragment uniforms.
     GLES20.glUniform4fv(gridControlUniform, 1, GRID_CONTROL, 0);
 
     // Enable vertex arrays
-    GLES20.glEnableVertexAttribArray(planeXZPositionAlphaAttribute);
+    glState.setVertexAttribArrays(GlState.attribBit(planeXZPositionAlphaAttribute));
 
-    ShaderUtil.checkGLError(TAG, "Setting up to draw planes");
+    GlErrorChecker.getInstance().check(TAG, "Setting up to draw planes");
 
-    for (SortablePlane sortedPlane : sortedPlanes) {
-      Plane plane = sortedPlane.plane;
-      float[] planeMatrix = new float[16];
-      plane.getCenterPose().toMatrix(planeMatrix, 0);
+    for (int i = 0; i < planeCount; i++) {
+      Plane plane = sortedPlanes[i];
+      Pose centerPose = sortedPoses[i];
+      centerPose.toMatrix(planeMatrix, 0);
 
-      float[] normal = new float[3];
       // Get transformed Y axis of plane's coordinate system.
-      plane.getCenterPose().getTransformedAxis(1, 1.0f, normal, 0);
+      centerPose.getTransformedAxis(1, 1.0f, planeNormal, 0);
 
-      updatePlaneParameters(
-          planeMatrix, plane.getExtentX(), plane.getExtentZ(), plane.getPolygon());
+      System.arraycopy(planeMatrix, 0, modelMatrix, 0, 16);
+      float dx = cameraPose.tx() - centerPose.tx();
+      float dy = cameraPose.ty() - centerPose.ty();
+      float dz = cameraPose.tz() - centerPose.tz();
+      float centerDistance = (float) Math.sqrt(dx * dx + dy * dy + dz * dz);
+      PlaneMesh mesh = updatePlaneMesh(plane, centerDistance, sortedDistances[i]);
 
       // Get plane index. Keep a map to assign same indices to same planes.
       Integer planeIndex = planeIndexMap.get(plane);
       if (planeIndex == null) {
-        planeIndex = planeIndexMap.size();
+        pauseAllocationMonitor();
+        planeIndex = nextPlaneIndex++;
         planeIndexMap.put(plane, planeIndex);
+        resumeAllocationMonitor();
       }
 
       // Set plane color. Computed deterministically from the Plane index.
@@ -391,31 +652,71 @@ public class PlaneRenderer {
       planeAngleUvMatrix[3] = +(float) Math.cos(angleRadians) * vScale;
       GLES20.glUniformMatrix2fv(planeUvMatrixUniform, 1, false, planeAngleUvMatrix, 0);
 
-      draw(cameraView, cameraPerspective, normal);
+      draw(cameraView, cameraPerspective, planeNormal, mesh);
     }
+    // Drop the references so that planes and poses do not outlive the frame.
+    Arrays.fill(sortedPlanes, 0, planeCount, null);
+    Arrays.fill(sortedPoses, 0, planeCount, null);
 
-    // Clean up the state we set
-    GLES20.glDisableVertexAttribArray(planeXZPositionAlphaAttribute);
-    GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
-    GLES20.glDisable(GLES20.GL_BLEND);
-    GLES20.glDepthMask(true);
+    GlErrorChecker.getInstance().check(TAG, "After drawing planes");
+  }
+
+  private void pauseAllocationMonitor() {
+    if (allocationMonitor != null) {
+      allocationMonitor.pause();
+    }
+  }
 
-    ShaderUtil.checkGLError(TAG, "Cleaning up after drawing planes");
+  private void resumeAllocationMonitor() {
+    if (allocationMonitor != null) {
+      allocationMonitor.resume();
+    }
+  }
+
+  /**
+   * Inserts a plane into the first {@code count} sorted ones, growing the arrays if needed. Planes
+   * are few, so insertion sort beats anything that needs boxing or a comparator.
+   */
+  private void insertSorted(int count, Plane plane, Pose centerPose, float distance) {
+    if (count == sortedPlanes.length) {
+      // Only when more planes are found than ever before.
+      pauseAllocationMonitor();
+      sortedPlanes = Arrays.copyOf(sortedPlanes, count * 2);
+      sortedPoses = Arrays.copyOf(sortedPoses, count * 2);
+      sortedDistances = Arrays.copyOf(sortedDistances, count * 2);
+      resumeAllocationMonitor();
+    }
+    int i = count;
+    while (i > 0 && sortedDistances[i - 1] > distance) {
+      sortedPlanes[i] = sortedPlanes[i - 1];
+      sortedPoses[i] = sortedPoses[i - 1];
+      sortedDistances[i] = sortedDistances[i - 1];
+      i--;
+    }
+    sortedPlanes[i] = plane;
+    sortedPoses[i] = centerPose;
+    sortedDistances[i] = distance;
   }
 
   // Calculate the normal distance to plane from cameraPose, the given planePose should have y axis
   // parallel to plane's normal, for example plane's center pose or hit test pose.
   public static float calculateDistanceToPlane(Pose planePose, Pose cameraPose) {
-    float[] normal = new float[3];
     float cameraX = cameraPose.tx();
     float cameraY = cameraPose.ty();
     float cameraZ = cameraPose.tz();
-    // Get transformed Y axis of plane's coordinate system.
-    planePose.getTransformedAxis(1, 1.0f, normal, 0);
+    // Transformed Y axis of plane's coordinate system, from the rotation quaternion, so that no
+    // array is needed.
+    float qx = planePose.qx();
+    float qy = planePose.qy();
+    float qz = planePose.qz();
+    float qw = planePose.qw();
+    float normalX = 2 * (qx * qy - qz * qw);
+    float normalY = 1 - 2 * (qx * qx + qz * qz);
+    float normalZ = 2 * (qy * qz + qx * qw);
     // Compute dot product of plane's normal with vector from camera to plane center.
-    return (cameraX - planePose.tx()) * normal[0]
-        + (cameraY - planePose.ty()) * normal[1]
-        + (cameraZ - planePose.tz()) * normal[2];
+    return (cameraX - planePose.tx()) * normalX
+        + (cameraY - planePose.ty()) * normalY
+        + (cameraZ - planePose.tz()) * normalZ;
   }
 
   private static void colorRgbaToFloat(float[] planeColor, int colorRgba) {
@@ -28,16 +28,22 @@ public class PointCloudRenderer {
   // Shader names.
   private static final String VERTEX_SHADER_NAME = "shaders/point_cloud.vert";
   private static final String FRAGMENT_SHADER_NAME = "shaders/point_cloud.frag";
+  static final String[] SHADER_NAMES = {VERTEX_SHADER_NAME, FRAGMENT_SHADER_NAME};
+  private static final String PROGRAM_KEY =
+      GpuResourceCache.programKey(VERTEX_SHADER_NAME, FRAGMENT_SHADER_NAME);
 
   private static final int BYTES_PER_FLOAT = Float.SIZE / 8;
   private static final int FLOATS_PER_POINT = 4; // X,Y,Z,confidence.
   private static final int BYTES_PER_POINT = BYTES_PER_FLOAT * FLOATS_PER_POINT;
   private static final int INITIAL_BUFFER_POINTS = 1000;
 
+  private GpuResourceTracker.Handle vboHandle;
   private int vbo;
   private int vboSize;
 
   private int programName;
+  // Shared program, referenced in the GpuResourceCache under PROGRAM_KEY.
+  private GpuProgram program;
   private int positionAttribute;
   private int modelViewProjectionUniform;
   private int colorUniform;
@@ -45,10 +51,18 @@ public class PointCloudRenderer {
 
   private int numPoints = 0;
 
+  // Whether the PerformanceTier visualizes the point cloud at all.
+  private boolean enabled = true;
+  // Every pointStride-th point is drawn, none if 0; see setDensity().
+  private int pointStride = 1;
+
   // Keep track of the last point cloud rendered to avoid updating the VBO if point cloud
   // was not changed.
   private PointCloud lastPointCloud = null;
 
+  // Temporary matrix allocated here to avoid allocations for each frame.
+  private final float[] modelViewProjection = new float[16];
+
   public PointCloudRenderer() {}
 
   /**
@@ -59,28 +73,28 @@ public class PointCloudRenderer {
    */
   public void createOnGlThread(Context context) throws IOException {
     ShaderUtil.checkGLError(TAG, "before create");
+    enabled = DeviceClassifier.getInstance().getTier().drawsPointCloud;
 
-    int[] buffers = new int[1];
-    GLES20.glGenBuffers(1, buffers, 0);
-    vbo = buffers[0];
-    GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, vbo);
+    GpuResourceTracker tracker = GpuResourceTracker.getInstance();
+    // Free the buffer of a previous call, which does nothing if it died with its context.
+    tracker.delete(vboHandle);
+    vboHandle = tracker.genBuffer(TAG + " points");
+    vbo = vboHandle.id;
+    lastPointCloud = null;
+    GlState glState = GlState.getInstance();
+    glState.bindBuffer(GLES20.GL_ARRAY_BUFFER, vbo);
 
     vboSize = INITIAL_BUFFER_POINTS * BYTES_PER_POINT;
     GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, vboSize, null, GLES20.GL_DYNAMIC_DRAW);
-    GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+    tracker.setSize(vboHandle, vboSize);
 
     ShaderUtil.checkGLError(TAG, "buffer alloc");
 
-    int vertexShader =
-        ShaderUtil.loadGLShader(TAG, context, GLES20.GL_VERTEX_SHADER, VERTEX_SHADER_NAME);
-    int passthroughShader =
-        ShaderUtil.loadGLShader(TAG, context, GLES20.GL_FRAGMENT_SHADER, FRAGMENT_SHADER_NAME);
-
-    programName = GLES20.glCreateProgram();
-    GLES20.glAttachShader(programName, vertexShader);
-    GLES20.glAttachShader(programName, passthroughShader);
-    GLES20.glLinkProgram(programName);
-    GLES20.glUseProgram(programName);
+    GpuProgram previousProgram = program;
+    program = GpuProgram.acquire(TAG, context, VERTEX_SHADER_NAME, FRAGMENT_SHADER_NAME);
+    programName = program.getProgramId();
+    GpuResourceCache.getInstance().release(PROGRAM_KEY, previousProgram);
+    glState.useProgram(programName);
 
     ShaderUtil.checkGLError(TAG, "program");
 
@@ -94,17 +108,17 @@ public class PointCloudRenderer {
 
   /**
    * Updates the OpenGL buffer contents to the provided point. Repeated calls with the same point
-   * cloud will be ignored.
+   * cloud will be ignored, and so are all calls if the performance tier does not draw points.
    */
   public void update(PointCloud cloud) {
-    if (lastPointCloud == cloud) {
+    if (!enabled || lastPointCloud == cloud) {
       // Redundant call.
       return;
     }
 
-    ShaderUtil.checkGLError(TAG, "before update");
+    GlErrorChecker.getInstance().check(TAG, "before update");
 
-    GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, vbo);
+    GlState.getInstance().bindBuffer(GLES20.GL_ARRAY_BUFFER, vbo);
     lastPointCloud = cloud;
 
     // If the VBO is not large enough to fit the new point cloud, resize it.
@@ -114,12 +128,20 @@ public class PointCloudRenderer {
         vboSize *= 2;
       }
       GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, vboSize, null, GLES20.GL_DYNAMIC_DRAW);
+      GpuResourceTracker.getInstance().setSize(vboHandle, vboSize);
     }
     GLES20.glBufferSubData(
         GLES20.GL_ARRAY_BUFFER, 0, numPoints * BYTES_PER_POINT, lastPointCloud.getPoints());
-    GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
 
-    ShaderUtil.checkGLError(TAG, "after update");
+    GlErrorChecker.getInstance().check(TAG, "after update");
+  }
+
+  /**
+   * Sets the fraction of the points that is drawn, e.g. 0.5 for every other point, or 0 to draw
+   * none. Initially 1.
+   */
+  public void setDensity(float density) {
+    pointStride = density <= 0 ? 0 : Math.max(1, Math.round(1 / density));
   }
 
   /**
@@ -131,23 +153,28 @@ public class PointCloudRenderer {
    *     com.google.ar.core.Camera#getProjectionMatrix(float[], int, float, float)}.
    */
   public void draw(float[] cameraView, float[] cameraPerspective) {
-    float[] modelViewProjection = new float[16];
+    if (!enabled || pointStride == 0) {
+      return;
+    }
     Matrix.multiplyMM(modelViewProjection, 0, cameraPerspective, 0, cameraView, 0);
 
-    ShaderUtil.checkGLError(TAG, "Before draw");
-
-    GLES20.glUseProgram(programName);
-    GLES20.glEnableVertexAttribArray(positionAttribute);
-    GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, vbo);
-    GLES20.glVertexAttribPointer(positionAttribute, 4, GLES20.GL_FLOAT, false, BYTES_PER_POINT, 0);
+    GlErrorChecker.getInstance().check(TAG, "Before draw");
+
+    GlState glState = GlState.getInstance();
+    glState.setDepthTest(true);
+    glState.depthMask(true);
+    glState.setBlend(false);
+    glState.useProgram(programName);
+    glState.setVertexAttribArrays(GlState.attribBit(positionAttribute));
+    glState.bindBuffer(GLES20.GL_ARRAY_BUFFER, vbo);
+    GLES20.glVertexAttribPointer(
+        positionAttribute, 4, GLES20.GL_FLOAT, false, BYTES_PER_POINT * pointStride, 0);
     GLES20.glUniform4f(colorUniform, 31.0f / 255.0f, 188.0f / 255.0f, 210.0f / 255.0f, 1.0f);
     GLES20.glUniformMatrix4fv(modelViewProjectionUniform, 1, false, modelViewProjection, 0);
     GLES20.glUniform1f(pointSizeUniform, 5.0f);
 
-    GLES20.glDrawArrays(GLES20.GL_POINTS, 0, numPoints);
-    GLES20.glDisableVertexAttribArray(positionAttribute);
-    GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+    GLES20.glDrawArrays(GLES20.GL_POINTS, 0, (numPoints + pointStride - 1) / pointStride);
 
-    ShaderUtil.checkGLError(TAG, "Draw");
+    GlErrorChecker.getInstance().check(TAG, "Draw");
   }
 }
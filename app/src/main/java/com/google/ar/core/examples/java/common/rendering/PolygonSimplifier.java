@@ -0,0 +1,170 @@
+/*
+ * Copyright 2018 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.examples.java.common.rendering;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ * Removes boundary vertices of a closed 2D polygon that deviate from the simplified outline by no
+ * more than a tolerance, with the Douglas-Peucker algorithm. The kept vertices are a subset of the
+ * original ones, so a convex polygon stays convex.
+ *
+ * <p>Scratch storage only grows, so simplifying allocates nothing once warmed up. Not thread safe.
+ */
+final class PolygonSimplifier {
+  private static final int INITIAL_VERTICES = 64;
+
+  private float[] points = new float[INITIAL_VERTICES * 2];
+  private boolean[] keep = new boolean[INITIAL_VERTICES];
+  // Pairs of first and last vertex of the chains still to simplify.
+  private int[] stack = new int[stackSize(INITIAL_VERTICES)];
+  private FloatBuffer result = allocate(INITIAL_VERTICES);
+
+  /**
+   * Simplifies a polygon.
+   *
+   * @param polygon Vertices as {@code x, z} pairs from position 0 to the limit, as returned by
+   *     {@code Plane.getPolygon()}.
+   * @param tolerance Largest distance, in the polygon's units, a removed vertex may have from the
+   *     simplified outline.
+   * @return The kept vertices from position 0 to the limit. The buffer is reused by the next call.
+   */
+  FloatBuffer simplify(FloatBuffer polygon, float tolerance) {
+    int count = polygon.limit() / 2;
+    ensureCapacity(count);
+    for (int i = 0; i < count * 2; i++) {
+      points[i] = polygon.get(i);
+    }
+
+    int kept = count;
+    if (count > 3) {
+      for (int i = 0; i < count; i++) {
+        keep[i] = false;
+      }
+      // Split the ring at vertex 0 and the vertex furthest from it, and simplify both halves.
+      int far = 0;
+      float farDistance = -1;
+      for (int i = 1; i < count; i++) {
+        float dx = points[i * 2] - points[0];
+        float dz = points[i * 2 + 1] - points[1];
+        float distance = dx * dx + dz * dz;
+        if (distance > farDistance) {
+          farDistance = distance;
+          far = i;
+        }
+      }
+      keep[0] = true;
+      keep[far] = true;
+      simplifyChain(0, far, count, tolerance);
+      simplifyChain(far, count, count, tolerance);
+
+      kept = 0;
+      for (int i = 0; i < count; i++) {
+        if (keep[i]) {
+          kept++;
+        }
+      }
+    }
+
+    result.clear();
+    if (kept < 3 || kept == count) {
+      result.put(points, 0, count * 2);
+    } else {
+      for (int i = 0; i < count; i++) {
+        if (keep[i]) {
+          result.put(points[i * 2]);
+          result.put(points[i * 2 + 1]);
+        }
+      }
+    }
+    result.flip();
+    return result;
+  }
+
+  /**
+   * Marks the vertices to keep strictly between {@code first} and {@code last}, where indices wrap
+   * around at {@code count}.
+   */
+  private void simplifyChain(int first, int last, int count, float tolerance) {
+    float toleranceSquared = tolerance * tolerance;
+    int top = 0;
+    stack[top++] = first;
+    stack[top++] = last;
+    while (top > 0) {
+      int end = stack[--top];
+      int start = stack[--top];
+      float ax = points[(start % count) * 2];
+      float az = points[(start % count) * 2 + 1];
+      float bx = points[(end % count) * 2];
+      float bz = points[(end % count) * 2 + 1];
+      float dx = bx - ax;
+      float dz = bz - az;
+      float lengthSquared = dx * dx + dz * dz;
+
+      int furthest = -1;
+      float furthestDistanceSquared = toleranceSquared;
+      for (int i = start + 1; i < end; i++) {
+        float px = points[(i % count) * 2] - ax;
+        float pz = points[(i % count) * 2 + 1] - az;
+        float distanceSquared;
+        if (lengthSquared == 0) {
+          distanceSquared = px * px + pz * pz;
+        } else {
+          float cross = px * dz - pz * dx;
+          distanceSquared = cross * cross / lengthSquared;
+        }
+        if (distanceSquared > furthestDistanceSquared) {
+          furthestDistanceSquared = distanceSquared;
+          furthest = i;
+        }
+      }
+      if (furthest >= 0) {
+        keep[furthest % count] = true;
+        stack[top++] = start;
+        stack[top++] = furthest;
+        stack[top++] = furthest;
+        stack[top++] = end;
+      }
+    }
+  }
+
+  private void ensureCapacity(int vertices) {
+    if (keep.length >= vertices) {
+      return;
+    }
+    int capacity = keep.length;
+    while (capacity < vertices) {
+      capacity *= 2;
+    }
+    points = new float[capacity * 2];
+    keep = new boolean[capacity];
+    stack = new int[stackSize(capacity)];
+    result = allocate(capacity);
+  }
+
+  /** Each split pops one chain and pushes two, and splits at most once per vertex. */
+  private static int stackSize(int vertices) {
+    return 2 * vertices + 2;
+  }
+
+  private static FloatBuffer allocate(int vertices) {
+    return ByteBuffer.allocateDirect(vertices * 2 * Float.BYTES)
+        .order(ByteOrder.nativeOrder())
+        .asFloatBuffer();
+  }
+}
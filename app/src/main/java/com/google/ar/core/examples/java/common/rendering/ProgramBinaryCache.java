@@ -0,0 +1,236 @@
+/*
+ * Copyright 2018 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.examples.java.common.rendering;
+
+import android.content.Context;
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.util.Log;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Process-wide cache of linked program binaries, so that a shader program is compiled once per
+ * driver rather than every time a renderer is created.
+ *
+ * <p>Binaries are keyed by a hash of the shader sources and of the GL renderer and version strings,
+ * since a binary is only valid for the driver that produced it. They are kept in memory for
+ * contexts created later in the same process, and in the app's code cache directory, which Android
+ * clears when the app is updated, for later processes. A binary the driver rejects is deleted and
+ * the program is compiled from source again.
+ *
+ * <p>Program binaries need OpenGL ES 3.0. On other contexts, and on drivers that report no binary
+ * formats, {@link #keyFor} returns {@code null} and nothing is cached. All methods that take or
+ * return a program must be called on the GL thread.
+ */
+final class ProgramBinaryCache {
+  private static final String TAG = ProgramBinaryCache.class.getSimpleName();
+  private static final String DIRECTORY_NAME = "program_binaries";
+
+  private static final class Binary {
+    final int format;
+    final byte[] data;
+
+    Binary(int format, byte[] data) {
+      this.format = format;
+      this.data = data;
+    }
+  }
+
+  private static ProgramBinaryCache instance;
+
+  private static final ExecutorService diskExecutor =
+      Executors.newSingleThreadExecutor(
+          runnable -> {
+            Thread thread = new Thread(runnable, "ProgramBinaryWriter");
+            thread.setDaemon(true);
+            return thread;
+          });
+
+  private final File directory;
+  private final Map<String, Binary> binaries = new HashMap<>();
+
+  private ProgramBinaryCache(File directory) {
+    this.directory = directory;
+  }
+
+  static synchronized ProgramBinaryCache getInstance(Context context) {
+    if (instance == null) {
+      instance = new ProgramBinaryCache(new File(context.getCodeCacheDir(), DIRECTORY_NAME));
+    }
+    return instance;
+  }
+
+  /**
+   * Returns the cache key for a program linked from the given sources in the current context, or
+   * {@code null} if the context cannot load program binaries.
+   */
+  String keyFor(String vertexSource, String fragmentSource) {
+    if (!ShaderUtil.isGles3OrNewer()) {
+      return null;
+    }
+    String version = GLES20.glGetString(GLES20.GL_VERSION);
+    int[] formatCount = new int[1];
+    GLES20.glGetIntegerv(GLES30.GL_NUM_PROGRAM_BINARY_FORMATS, formatCount, 0);
+    if (formatCount[0] == 0) {
+      return null;
+    }
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      for (String part :
+          new String[] {
+            GLES20.glGetString(GLES20.GL_RENDERER), version, vertexSource, fragmentSource
+          }) {
+        digest.update(String.valueOf(part).getBytes(StandardCharsets.UTF_8));
+        // Separate the parts so that moving text between them changes the key.
+        digest.update((byte) 0);
+      }
+      StringBuilder key = new StringBuilder();
+      for (byte b : digest.digest()) {
+        key.append(String.format("%02x", b));
+      }
+      return key.toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  /**
+   * Creates a program from the cached binary for {@code key}.
+   *
+   * @param label What the program is, for {@link GpuResourceTracker} diagnostics.
+   * @return The linked program, or {@code null} if there is no usable binary.
+   */
+  GpuResourceTracker.Handle load(String key, String label) {
+    Binary binary = getBinary(key);
+    if (binary == null) {
+      return null;
+    }
+    GpuResourceTracker tracker = GpuResourceTracker.getInstance();
+    GpuResourceTracker.Handle handle = tracker.createProgram(label);
+    int program = handle.id;
+    ByteBuffer data = ByteBuffer.allocateDirect(binary.data.length);
+    data.put(binary.data).rewind();
+    GLES30.glProgramBinary(program, binary.format, data, binary.data.length);
+    int[] linkStatus = new int[1];
+    GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, linkStatus, 0);
+    // Drain the error a rejected format may have raised, so that it is not reported elsewhere.
+    boolean failed = GLES20.glGetError() != GLES20.GL_NO_ERROR || linkStatus[0] == 0;
+    if (failed) {
+      Log.w(TAG, "Driver rejected the cached binary " + key);
+      tracker.delete(handle);
+      remove(key);
+      return null;
+    }
+    tracker.setSize(handle, binary.data.length);
+    return handle;
+  }
+
+  /**
+   * Caches the binary of a program that was just linked from source. Writing it to disk happens
+   * on a background thread.
+   *
+   * @return The size of the binary, or 0 if the driver did not provide one.
+   */
+  int store(String key, int program) {
+    int[] length = new int[1];
+    GLES20.glGetProgramiv(program, GLES30.GL_PROGRAM_BINARY_LENGTH, length, 0);
+    if (length[0] <= 0) {
+      return 0;
+    }
+    ByteBuffer data = ByteBuffer.allocateDirect(length[0]);
+    int[] written = new int[1];
+    int[] format = new int[1];
+    GLES30.glGetProgramBinary(program, length[0], written, 0, format, 0, data);
+    if (GLES20.glGetError() != GLES20.GL_NO_ERROR || written[0] <= 0) {
+      return 0;
+    }
+    byte[] bytes = new byte[written[0]];
+    data.get(bytes);
+    Binary binary = new Binary(format[0], bytes);
+    synchronized (this) {
+      binaries.put(key, binary);
+    }
+    diskExecutor.execute(() -> write(key, binary));
+    return bytes.length;
+  }
+
+  private synchronized Binary getBinary(String key) {
+    Binary binary = binaries.get(key);
+    if (binary == null) {
+      binary = read(key);
+      if (binary != null) {
+        binaries.put(key, binary);
+      }
+    }
+    return binary;
+  }
+
+  private synchronized void remove(String key) {
+    binaries.remove(key);
+    if (!new File(directory, key).delete()) {
+      Log.w(TAG, "Cannot delete the cached binary " + key);
+    }
+  }
+
+  private Binary read(String key) {
+    File file = new File(directory, key);
+    if (!file.isFile()) {
+      return null;
+    }
+    try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+      int format = in.readInt();
+      byte[] data = new byte[in.readInt()];
+      in.readFully(data);
+      return new Binary(format, data);
+    } catch (IOException | NegativeArraySizeException e) {
+      Log.w(TAG, "Cannot read the cached binary " + key, e);
+      return null;
+    }
+  }
+
+  private void write(String key, Binary binary) {
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      Log.w(TAG, "Cannot create " + directory);
+      return;
+    }
+    // Write to a temporary file first, so that a crash cannot leave a truncated binary behind.
+    File temporary = new File(directory, key + ".tmp");
+    try (DataOutputStream out = new DataOutputStream(new FileOutputStream(temporary))) {
+      out.writeInt(binary.format);
+      out.writeInt(binary.data.length);
+      out.write(binary.data);
+    } catch (IOException e) {
+      Log.w(TAG, "Cannot write the cached binary " + key, e);
+      return;
+    }
+    if (!temporary.renameTo(new File(directory, key))) {
+      Log.w(TAG, "Cannot store the cached binary " + key);
+    }
+  }
+}
@@ -0,0 +1,419 @@
+/*
+ * Copyright 2018 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.examples.java.common.rendering;
+
+import android.content.Context;
+import android.os.PowerManager;
+import android.os.SystemClock;
+import android.support.annotation.Nullable;
+import android.util.Log;
+import java.lang.reflect.Method;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Steps the rendering quality of an AR view down when the device cannot keep up, and back up once
+ * it can, so that long sessions on a throttling phone keep a steady frame rate.
+ *
+ * <p>The governor goes by the render cost that the {@link DynamicResolutionTarget} measures with
+ * its {@link RenderCostMeter}, not by the time between frames, which the camera paces. Every 60
+ * measured frames, the median and 90th percentile of the cost of the last 120 are compared to the
+ * target frame time. A 90th percentile over most of it in two evaluations in a row steps one
+ * {@link Level} down; one under half of it in ten in a row steps one level up, so recovering
+ * takes much longer than degrading. A recovery that is taken back within a few evaluations
+ * doubles the evaluations the next one needs. Where the platform reports a thermal status, it
+ * also sets the highest level
+ * allowed: a hot device drops to it at once and does not step above it until it cools down. The
+ * thermal status API is newer than the SDK the app compiles against, so it is called through
+ * reflection.
+ *
+ * <p>The levels set knobs of the renderers: the largest render scale of the {@link
+ * DynamicResolutionTarget}, which still adapts below it, the point cloud density, the plane
+ * visualization, the shadows and the level of detail bias of the {@link Scene}. Each transition
+ * is logged, kept in a short history and sent to the {@link Listener}s.
+ *
+ * <p>All methods must be called on the GL thread, except for {@link #addListener} and {@link
+ * #getEvents()}.
+ */
+public final class QualityGovernor {
+  private static final String TAG = QualityGovernor.class.getSimpleName();
+
+  /** Quality levels, from full quality down. */
+  public enum Level {
+    FULL(1.0f, 1.0f, true, true, 0),
+    REDUCED_SCALE(0.8f, 1.0f, true, true, 0),
+    SPARSE_POINTS(0.8f, 0.5f, true, true, 0),
+    NO_SHADOWS(0.7f, 0.5f, true, false, 0),
+    COARSE_MESHES(0.7f, 0.25f, true, false, 1),
+    MINIMAL(0.5f, 0.0f, false, false, 2);
+
+    /** Largest render scale of the virtual content. */
+    public final float maxRenderScale;
+    /** Fraction of the point cloud that is drawn. */
+    public final float pointDensity;
+    public final boolean drawsPlanes;
+    public final boolean drawsShadows;
+    /** Levels of detail the meshes are coarsened by. */
+    public final int lodBias;
+
+    Level(
+        float maxRenderScale,
+        float pointDensity,
+        boolean drawsPlanes,
+        boolean drawsShadows,
+        int lodBias) {
+      this.maxRenderScale = maxRenderScale;
+      this.pointDensity = pointDensity;
+      this.drawsPlanes = drawsPlanes;
+      this.drawsShadows = drawsShadows;
+      this.lodBias = lodBias;
+    }
+  }
+
+  /** Why the level changed. */
+  public enum Reason {
+    /** Frames cost more than the target frame time allows. */
+    RENDER_COST,
+    /** The thermal status does not allow the previous level. */
+    THERMAL,
+    /** Frames cost well under the target, and the thermal status allows a higher level. */
+    RECOVERED
+  }
+
+  /** A change of level. */
+  public static final class Event {
+    /** {@link SystemClock#elapsedRealtime()} of the change. */
+    public final long timeMillis;
+    public final Level from;
+    public final Level to;
+    public final Reason reason;
+    /** Median of the recent render costs, in milliseconds. */
+    public final float medianCostMillis;
+    /** 90th percentile of the recent render costs, in milliseconds. */
+    public final float p90CostMillis;
+    /** The {@code PowerManager} thermal status, or -1 where it is not available. */
+    public final int thermalStatus;
+
+    private Event(
+        Level from,
+        Level to,
+        Reason reason,
+        float medianCostMillis,
+        float p90CostMillis,
+        int thermalStatus) {
+      timeMillis = SystemClock.elapsedRealtime();
+      this.from = from;
+      this.to = to;
+      this.reason = reason;
+      this.medianCostMillis = medianCostMillis;
+      this.p90CostMillis = p90CostMillis;
+      this.thermalStatus = thermalStatus;
+    }
+
+    @Override
+    public String toString() {
+      return String.format(
+          Locale.US,
+          "Quality %s -> %s (%s): render cost median %.1f ms, p90 %.1f ms, thermal status %d",
+          from,
+          to,
+          reason,
+          medianCostMillis,
+          p90CostMillis,
+          thermalStatus);
+    }
+  }
+
+  /** Receives the changes of level, on the GL thread. */
+  public interface Listener {
+    void onQualityChanged(Event event);
+  }
+
+  private static final float DEFAULT_TARGET_FPS = 30.0f;
+  private static final int WINDOW_FRAMES = 120;
+  private static final int EVALUATION_FRAMES = 60;
+  // The 90th percentile of the cost is compared to these shares of the target frame time. The
+  // render scale adapts first, at a smoothed cost of 0.8 of it.
+  private static final float SLOW_FACTOR = 0.9f;
+  private static final float FAST_FACTOR = 0.5f;
+  private static final int SLOW_EVALUATIONS = 2;
+  // Doubled for each recovery in a row that was taken back within RECOVERY_PROBATION_EVALUATIONS,
+  // up to MAX_FAILED_RECOVERIES times.
+  private static final int FAST_EVALUATIONS = 10;
+  private static final int RECOVERY_PROBATION_EVALUATIONS = 4;
+  private static final int MAX_FAILED_RECOVERIES = 3;
+  private static final int MAX_EVENTS = 32;
+  private static final Level[] LEVELS = Level.values();
+  private static final Object[] NO_ARGUMENTS = new Object[0];
+  // PowerManager.THERMAL_STATUS_* values.
+  private static final int THERMAL_STATUS_UNKNOWN = -1;
+  private static final int THERMAL_STATUS_LIGHT = 1;
+  private static final int THERMAL_STATUS_MODERATE = 2;
+  private static final int THERMAL_STATUS_SEVERE = 3;
+  private static final int THERMAL_STATUS_CRITICAL = 4;
+
+  private final DynamicResolutionTarget renderTarget;
+  private final RenderCostMeter costMeter;
+  private final PointCloudRenderer pointCloudRenderer;
+  private final PlaneRenderer planeRenderer;
+  @Nullable private final Scene scene;
+  @Nullable private final PowerManager powerManager;
+  @Nullable private final Method getCurrentThermalStatus;
+  private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+  private final ArrayDeque<Event> events = new ArrayDeque<>();
+  @Nullable private FrameAllocationMonitor allocationMonitor;
+
+  private float targetFrameMillis = 1000 / DEFAULT_TARGET_FPS;
+  private Level level = Level.FULL;
+  private boolean applied;
+
+  // Render costs of the window, in milliseconds, as a ring buffer.
+  private final float[] costMillis = new float[WINDOW_FRAMES];
+  private final float[] sortedCostMillis = new float[WINDOW_FRAMES];
+  private int frameCount;
+  private int nextFrame;
+  private int framesUntilEvaluation = EVALUATION_FRAMES;
+  private int lastSampleCount;
+  private int slowEvaluations;
+  private int fastEvaluations;
+  // Evaluations left until the last recovery holds, or 0 if it does.
+  private int probationEvaluations;
+  private int failedRecoveries;
+  private float medianCostMillis;
+  private float p90CostMillis;
+  private int thermalStatus = THERMAL_STATUS_UNKNOWN;
+
+  // Statistics since the last getSummary().
+  private int transitions;
+
+  /**
+   * Creates a governor of the given renderers, at full quality.
+   *
+   * @param scene The objects of the view, or null if it has none.
+   */
+  public QualityGovernor(
+      Context context,
+      DynamicResolutionTarget renderTarget,
+      PointCloudRenderer pointCloudRenderer,
+      PlaneRenderer planeRenderer,
+      @Nullable Scene scene) {
+    this.renderTarget = renderTarget;
+    costMeter = renderTarget.getCostMeter();
+    this.pointCloudRenderer = pointCloudRenderer;
+    this.planeRenderer = planeRenderer;
+    this.scene = scene;
+    powerManager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+    Method method = null;
+    try {
+      method = PowerManager.class.getMethod("getCurrentThermalStatus");
+    } catch (NoSuchMethodException e) {
+      Log.i(TAG, "Thermal status is not available, governing by render cost only");
+    }
+    getCurrentThermalStatus = method;
+  }
+
+  /** Sets the frame rate to keep. Initially 30, the rate of the camera images. */
+  public void setTargetFrameRate(float framesPerSecond) {
+    if (framesPerSecond <= 0) {
+      throw new IllegalArgumentException("Target frame rate must be positive: " + framesPerSecond);
+    }
+    targetFrameMillis = 1000 / framesPerSecond;
+  }
+
+  /**
+   * Sets the monitor whose section {@link #onDrawFrame()} runs in, so that the events of level
+   * changes are left out of it. Optional.
+   */
+  public void setAllocationMonitor(@Nullable FrameAllocationMonitor allocationMonitor) {
+    this.allocationMonitor = allocationMonitor;
+  }
+
+  /** Adds a listener of the changes of level. May be called from any thread. */
+  public void addListener(Listener listener) {
+    listeners.add(listener);
+  }
+
+  /** The current level. */
+  public Level getLevel() {
+    return level;
+  }
+
+  /** Returns the most recent changes of level, oldest first. May be called from any thread. */
+  public List<Event> getEvents() {
+    synchronized (events) {
+      return new ArrayList<>(events);
+    }
+  }
+
+  /**
+   * Records the render cost of the latest measured frame, and changes the level if due. Call in
+   * {@code onDrawFrame} right after {@link DynamicResolutionTarget#onDrawFrame()}, also for frames
+   * that draw no virtual content.
+   */
+  public void onDrawFrame() {
+    if (!applied) {
+      applied = true;
+      apply();
+    }
+    if (costMeter.isResumed()) {
+      // The frames before the pause say nothing about the frames after it.
+      resetWindow();
+      return;
+    }
+    int sampleCount = costMeter.getSampleCount();
+    if (sampleCount == lastSampleCount) {
+      return;
+    }
+    lastSampleCount = sampleCount;
+    costMillis[nextFrame] = costMeter.getLastCostNs() / 1_000_000f;
+    nextFrame = (nextFrame + 1) % WINDOW_FRAMES;
+    frameCount = Math.min(frameCount + 1, WINDOW_FRAMES);
+    if (--framesUntilEvaluation > 0) {
+      return;
+    }
+    framesUntilEvaluation = EVALUATION_FRAMES;
+    evaluate();
+  }
+
+  /** Describes the level and the transitions since the last call, for logging. */
+  public String getSummary() {
+    String summary =
+        String.format(
+            Locale.US,
+            "Quality: %s, %d transitions, render cost median %.1f ms, p90 %.1f ms,"
+                + " thermal status %d",
+            level,
+            transitions,
+            medianCostMillis,
+            p90CostMillis,
+            thermalStatus);
+    transitions = 0;
+    return summary;
+  }
+
+  private void evaluate() {
+    System.arraycopy(costMillis, 0, sortedCostMillis, 0, frameCount);
+    Arrays.sort(sortedCostMillis, 0, frameCount);
+    medianCostMillis = sortedCostMillis[frameCount / 2];
+    p90CostMillis = sortedCostMillis[Math.min(frameCount - 1, frameCount * 9 / 10)];
+    thermalStatus = readThermalStatus();
+    Level thermalLimit = thermalLimit(thermalStatus);
+    if (probationEvaluations > 0 && --probationEvaluations == 0) {
+      failedRecoveries = 0;
+    }
+
+    if (level.ordinal() < thermalLimit.ordinal()) {
+      changeLevel(thermalLimit, Reason.THERMAL);
+    } else if (p90CostMillis > targetFrameMillis * SLOW_FACTOR) {
+      fastEvaluations = 0;
+      if (++slowEvaluations >= SLOW_EVALUATIONS && level.ordinal() < Level.MINIMAL.ordinal()) {
+        if (probationEvaluations > 0) {
+          probationEvaluations = 0;
+          failedRecoveries = Math.min(failedRecoveries + 1, MAX_FAILED_RECOVERIES);
+        }
+        changeLevel(LEVELS[level.ordinal() + 1], Reason.RENDER_COST);
+      }
+    } else if (p90CostMillis < targetFrameMillis * FAST_FACTOR) {
+      slowEvaluations = 0;
+      if (++fastEvaluations >= FAST_EVALUATIONS << failedRecoveries
+          && level.ordinal() > thermalLimit.ordinal()) {
+        probationEvaluations = RECOVERY_PROBATION_EVALUATIONS;
+        changeLevel(LEVELS[level.ordinal() - 1], Reason.RECOVERED);
+      }
+    } else {
+      slowEvaluations = 0;
+      fastEvaluations = 0;
+    }
+  }
+
+  private void changeLevel(Level newLevel, Reason reason) {
+    // A change of level is rare, and worth its event.
+    if (allocationMonitor != null) {
+      allocationMonitor.pause();
+    }
+    Event event =
+        new Event(level, newLevel, reason, medianCostMillis, p90CostMillis, thermalStatus);
+    level = newLevel;
+    transitions++;
+    apply();
+    // The new level is judged by its own frames only.
+    resetWindow();
+    Log.i(TAG, event.toString());
+    synchronized (events) {
+      if (events.size() == MAX_EVENTS) {
+        events.removeFirst();
+      }
+      events.addLast(event);
+    }
+    for (Listener listener : listeners) {
+      listener.onQualityChanged(event);
+    }
+    if (allocationMonitor != null) {
+      allocationMonitor.resume();
+    }
+  }
+
+  private void apply() {
+    renderTarget.setScaleRange(
+        Math.min(DynamicResolutionTarget.DEFAULT_MIN_SCALE, level.maxRenderScale),
+        level.maxRenderScale);
+    pointCloudRenderer.setDensity(level.pointDensity);
+    planeRenderer.setVisible(level.drawsPlanes);
+    if (scene != null) {
+      scene.setShadowsEnabled(level.drawsShadows);
+      scene.setLodBias(level.lodBias);
+    }
+  }
+
+  private void resetWindow() {
+    frameCount = 0;
+    nextFrame = 0;
+    framesUntilEvaluation = EVALUATION_FRAMES;
+    slowEvaluations = 0;
+    fastEvaluations = 0;
+  }
+
+  private int readThermalStatus() {
+    if (getCurrentThermalStatus == null || powerManager == null) {
+      return THERMAL_STATUS_UNKNOWN;
+    }
+    try {
+      // Without arguments, invoke() would allocate an empty array on every call.
+      return (Integer) getCurrentThermalStatus.invoke(powerManager, NO_ARGUMENTS);
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      Log.w(TAG, "Cannot read the thermal status", e);
+      return THERMAL_STATUS_UNKNOWN;
+    }
+  }
+
+  /** The highest level the thermal status allows. */
+  private static Level thermalLimit(int thermalStatus) {
+    if (thermalStatus >= THERMAL_STATUS_CRITICAL) {
+      return Level.MINIMAL;
+    } else if (thermalStatus >= THERMAL_STATUS_SEVERE) {
+      return Level.COARSE_MESHES;
+    } else if (thermalStatus >= THERMAL_STATUS_MODERATE) {
+      return Level.SPARSE_POINTS;
+    } else if (thermalStatus >= THERMAL_STATUS_LIGHT) {
+      return Level.REDUCED_SCALE;
+    }
+    return Level.FULL;
+  }
+}
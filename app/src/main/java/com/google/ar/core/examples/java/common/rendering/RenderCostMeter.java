@@ -0,0 +1,208 @@
+/*
+ * Copyright 2018 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.examples.java.common.rendering;
+
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.util.Log;
+
+/**
+ * Measures what drawing a frame costs: the CPU time between {@link #beginFrame()} and {@link
+ * #endFrame()} and, where OpenGL ES 3.0 and {@code GL_EXT_disjoint_timer_query} are available,
+ * the GPU time of the commands issued in between. The cost of a frame is the larger of the two,
+ * since the CPU and the GPU work on consecutive frames in parallel.
+ *
+ * <p>Frames are only drawn for new camera images, so the time between them is the camera's and
+ * says little about the load. The cost does: a device that draws a frame in 10 ms of a 33 ms
+ * budget has room for a higher quality, whatever the frame rate. GPU times are read a few frames
+ * late, without waiting for them, and frames whose GPU time the driver reports as disturbed, by a
+ * frequency change for instance, are left out.
+ *
+ * <p>All methods must be called on the GL thread.
+ */
+public final class RenderCostMeter {
+  private static final String TAG = RenderCostMeter.class.getSimpleName();
+
+  private static final String TIMER_QUERY_EXTENSION = "GL_EXT_disjoint_timer_query";
+  // GL_EXT_disjoint_timer_query values, which the SDK does not define.
+  private static final int GL_TIME_ELAPSED_EXT = 0x88BF;
+  private static final int GL_GPU_DISJOINT_EXT = 0x8FBB;
+  // Frames whose GPU time may be pending at once. A frame is not measured while all are.
+  private static final int QUERY_COUNT = 4;
+  // Weight of each frame in the smoothed cost.
+  private static final float COST_SMOOTHING = 0.1f;
+  // A longer gap between frames is a pause, after which the cost starts over.
+  private static final long MAX_FRAME_GAP_NS = 250_000_000L;
+
+  private final int[] queries = new int[QUERY_COUNT];
+  // CPU time of the frames whose GPU time is pending, by query.
+  private final long[] cpuNs = new long[QUERY_COUNT];
+  private final int[] queryResult = new int[1];
+  private boolean timerQueries;
+  // The query of the next frame, and the number of queries before it that are pending.
+  private int nextQuery;
+  private int pendingQueries;
+
+  private boolean measuring;
+  private boolean queryActive;
+  private long frameStartNs;
+  private long lastFrameStartNs;
+  private boolean resumed;
+
+  private int sampleCount;
+  private long lastCostNs;
+  private float smoothedCostNs;
+
+  /**
+   * Looks for GPU timer queries in a new context, and forgets the frames of a previous one. Must be
+   * called on the OpenGL thread, typically in {@code onSurfaceCreated}.
+   */
+  public void createOnGlThread() {
+    // The queries of a previous context went with it.
+    nextQuery = 0;
+    pendingQueries = 0;
+    measuring = false;
+    queryActive = false;
+    lastFrameStartNs = 0;
+
+    String extensions = GLES20.glGetString(GLES20.GL_EXTENSIONS);
+    timerQueries =
+        ShaderUtil.isGles3OrNewer()
+            && extensions != null
+            && extensions.contains(TIMER_QUERY_EXTENSION);
+    if (timerQueries) {
+      GLES30.glGenQueries(QUERY_COUNT, queries, 0);
+      // Clears the disjoint state, which is set when the context is created.
+      GLES20.glGetIntegerv(GL_GPU_DISJOINT_EXT, queryResult, 0);
+    } else {
+      Log.i(TAG, "GPU timer queries are not available, measuring the CPU time only");
+    }
+    ShaderUtil.checkGLError(TAG, "Timer queries");
+  }
+
+  /**
+   * Starts measuring a frame, and takes in the GPU times of previous frames that are ready. Call
+   * first thing in {@code onDrawFrame}.
+   */
+  public void beginFrame() {
+    if (measuring) {
+      // The previous frame was left before it was drawn; it is not measured.
+      measuring = false;
+      if (queryActive) {
+        queryActive = false;
+        GLES30.glEndQuery(GL_TIME_ELAPSED_EXT);
+      }
+    }
+    long nowNs = System.nanoTime();
+    resumed = lastFrameStartNs == 0 || nowNs - lastFrameStartNs > MAX_FRAME_GAP_NS;
+    lastFrameStartNs = nowNs;
+    if (resumed) {
+      // The frames before the pause say nothing about the frames after it.
+      pendingQueries = 0;
+      smoothedCostNs = 0;
+    } else if (timerQueries) {
+      collectGpuTimes();
+    }
+
+    measuring = true;
+    if (timerQueries && pendingQueries < QUERY_COUNT) {
+      queryActive = true;
+      GLES30.glBeginQuery(GL_TIME_ELAPSED_EXT, queries[nextQuery]);
+    }
+    frameStartNs = System.nanoTime();
+  }
+
+  /**
+   * Ends measuring the frame. Call once the frame is drawn, before reading back the screen, and
+   * from a {@code finally} block. Does nothing if the frame already ended.
+   */
+  public void endFrame() {
+    if (!measuring) {
+      return;
+    }
+    measuring = false;
+    long frameCpuNs = System.nanoTime() - frameStartNs;
+    if (!timerQueries) {
+      addSample(frameCpuNs);
+      return;
+    }
+    if (!queryActive) {
+      // All queries were pending, so the GPU time of this frame is unknown.
+      return;
+    }
+    queryActive = false;
+    GLES30.glEndQuery(GL_TIME_ELAPSED_EXT);
+    cpuNs[nextQuery] = frameCpuNs;
+    nextQuery = (nextQuery + 1) % QUERY_COUNT;
+    pendingQueries++;
+  }
+
+  /** Whether the current frame is the first one, or the first after a pause. */
+  public boolean isResumed() {
+    return resumed;
+  }
+
+  /** Whether the cost includes the GPU time. */
+  public boolean hasGpuTimes() {
+    return timerQueries;
+  }
+
+  /**
+   * The number of frames measured so far. It grows by about one per frame, but GPU times arrive
+   * late and some frames are left out, so it is what tells whether a new cost came in.
+   */
+  public int getSampleCount() {
+    return sampleCount;
+  }
+
+  /** The cost of the latest measured frame, in nanoseconds. */
+  public long getLastCostNs() {
+    return lastCostNs;
+  }
+
+  /** The cost of the recent frames, smoothed, in nanoseconds, or 0 before the first one. */
+  public float getSmoothedCostNs() {
+    return smoothedCostNs;
+  }
+
+  private void collectGpuTimes() {
+    // Reading the disjoint state clears it, so it covers the queries that completed since.
+    GLES20.glGetIntegerv(GL_GPU_DISJOINT_EXT, queryResult, 0);
+    boolean disjoint = queryResult[0] != 0;
+    while (pendingQueries > 0) {
+      int query = (nextQuery - pendingQueries + QUERY_COUNT) % QUERY_COUNT;
+      GLES30.glGetQueryObjectuiv(
+          queries[query], GLES30.GL_QUERY_RESULT_AVAILABLE, queryResult, 0);
+      if (queryResult[0] == 0) {
+        // Queries complete in order, so the later ones are not ready either.
+        break;
+      }
+      GLES30.glGetQueryObjectuiv(queries[query], GLES30.GL_QUERY_RESULT, queryResult, 0);
+      pendingQueries--;
+      if (!disjoint) {
+        // An unsigned 32 bit count of nanoseconds.
+        addSample(Math.max(cpuNs[query], queryResult[0] & 0xffffffffL));
+      }
+    }
+  }
+
+  private void addSample(long costNs) {
+    sampleCount++;
+    lastCostNs = costNs;
+    smoothedCostNs =
+        smoothedCostNs == 0 ? costNs : smoothedCostNs + COST_SMOOTHING * (costNs - smoothedCostNs);
+  }
+}
@@ -0,0 +1,281 @@
+/*
+ * Copyright 2018 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.examples.java.common.rendering;
+
+import android.opengl.Matrix;
+import android.support.annotation.Nullable;
+import com.google.ar.core.examples.java.cloudanchor.GlobalVariables;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * The placed objects of an AR view, drawn only when they can be seen. Each frame, the bounding
+ * sphere of every object is tested against the camera frustum and its distance; objects that fail
+ * are not drawn at all, which also skips their shadow and level of detail selection.
+ *
+ * <p>Objects that share a renderer, e.g. several treasures of the same model, are drawn together
+ * with one {@link ObjectRenderer#drawInstances} call per renderer after the other objects.
+ *
+ * <p>All methods must be called on the GL thread.
+ */
+public final class Scene {
+  // Objects whose bounding sphere is smaller than this on screen, in normalized device
+  // coordinates, are culled. About a pixel on current phones.
+  private static final float MIN_PROJECTED_RADIUS = 0.001f;
+  private static final int INITIAL_BATCH_CAPACITY = 8;
+
+  /** An object, and optionally its shadow, placed in the scene. */
+  public static final class Node {
+    private final ObjectRenderer object;
+    @Nullable private final ObjectRenderer shadow;
+    private final float[] modelMatrix = new float[16];
+    private float scale = 1.0f;
+    private boolean enabled = true;
+    private Batch objectBatch;
+    @Nullable private Batch shadowBatch;
+
+    private Node(ObjectRenderer object, @Nullable ObjectRenderer shadow) {
+      this.object = object;
+      this.shadow = shadow;
+    }
+
+    /**
+     * Places the object.
+     *
+     * @param modelMatrix A 4x4 model-to-world transformation matrix, stored in column-major order.
+     * @param scale A separate scaling factor to apply before the {@code modelMatrix}.
+     * @see ObjectRenderer#updateModelMatrix(float[], float)
+     */
+    public void setModelMatrix(float[] modelMatrix, float scale) {
+      System.arraycopy(modelMatrix, 0, this.modelMatrix, 0, 16);
+      this.scale = scale;
+    }
+
+    /**
+     * Sets whether the object is drawn at all, e.g. whether its anchor is tracking. Initially
+     * true.
+     */
+    public void setEnabled(boolean enabled) {
+      this.enabled = enabled;
+    }
+  }
+
+  /** A renderer and the visible nodes it draws this frame, if several nodes share it. */
+  private static final class Batch {
+    final ObjectRenderer renderer;
+    final ObjectInstances instances = new ObjectInstances(INITIAL_BATCH_CAPACITY);
+    int nodeCount;
+
+    Batch(ObjectRenderer renderer) {
+      this.renderer = renderer;
+    }
+  }
+
+  private final List<Node> nodes = new ArrayList<>();
+  // One per renderer, in the order they were added, so that shadows follow their objects.
+  private final List<Batch> batches = new ArrayList<>();
+  private final Frustum frustum = new Frustum();
+  private float maxDrawDistance = Float.POSITIVE_INFINITY;
+  private boolean shadowsEnabled = true;
+  private int lodBias;
+
+  // Temporary arrays allocated here to avoid allocations for each frame.
+  private final float[] viewProjectionMatrix = new float[16];
+  private final float[] worldSphere = new float[4];
+  private final float[] viewCenter = new float[4];
+
+  // Statistics since the last getSummary().
+  private int frames;
+  private int drawnCount;
+  private int frustumCulledCount;
+  private int distanceCulledCount;
+
+  /**
+   * Adds an object to the scene, at the origin until it is placed.
+   *
+   * @param shadow Renderer of the object's shadow, drawn after the object, or null.
+   */
+  public Node add(ObjectRenderer object, @Nullable ObjectRenderer shadow) {
+    Node node = new Node(object, shadow);
+    nodes.add(node);
+    node.objectBatch = acquireBatch(object);
+    if (shadow != null) {
+      node.shadowBatch = acquireBatch(shadow);
+    }
+    object.setLodBias(lodBias);
+    if (shadow != null) {
+      shadow.setLodBias(lodBias);
+    }
+    return node;
+  }
+
+  /** Removes an object from the scene. Its renderers are not released. */
+  public void remove(Node node) {
+    if (!nodes.remove(node)) {
+      return;
+    }
+    releaseBatch(node.objectBatch);
+    if (node.shadowBatch != null) {
+      releaseBatch(node.shadowBatch);
+    }
+  }
+
+  /** Culls objects further from the camera than {@code meters}, unlimited by default. */
+  public void setMaxDrawDistance(float meters) {
+    maxDrawDistance = meters;
+  }
+
+  /** Sets whether the shadows of the objects are drawn. Initially true. */
+  public void setShadowsEnabled(boolean enabled) {
+    shadowsEnabled = enabled;
+  }
+
+  /** Sets the {@link ObjectRenderer#setLodBias LOD bias} of all objects and shadows. */
+  public void setLodBias(int lodBias) {
+    this.lodBias = lodBias;
+    for (int i = 0; i < nodes.size(); i++) {
+      Node node = nodes.get(i);
+      node.object.setLodBias(lodBias);
+      if (node.shadow != null) {
+        node.shadow.setLodBias(lodBias);
+      }
+    }
+  }
+
+  /**
+   * Draws the enabled objects that may be visible, each followed by its shadow if enabled.
+   *
+   * @param cameraView A 4x4 view matrix, in column-major order.
+   * @param cameraPerspective A 4x4 projection matrix, in column-major order.
+   * @param colorCorrectionRgba Illumination intensity, see {@link ObjectRenderer#draw}.
+   */
+  public void draw(float[] cameraView, float[] cameraPerspective, float[] colorCorrectionRgba) {
+    frames++;
+    Matrix.multiplyMM(viewProjectionMatrix, 0, cameraPerspective, 0, cameraView, 0);
+    frustum.set(viewProjectionMatrix);
+    for (int i = 0; i < nodes.size(); i++) {
+      Node node = nodes.get(i);
+      if (!node.enabled) {
+        continue;
+      }
+      if (cullAndPlace(node.object, node, cameraView, cameraPerspective)) {
+        drawOrBatch(node.objectBatch, node, cameraView, cameraPerspective, colorCorrectionRgba);
+      }
+      // The shadow reaches beyond the object, so it has its own bounds.
+      if (shadowsEnabled
+          && node.shadow != null
+          && cullAndPlace(node.shadow, node, cameraView, cameraPerspective)) {
+        drawOrBatch(node.shadowBatch, node, cameraView, cameraPerspective, colorCorrectionRgba);
+      }
+    }
+    for (int i = 0; i < batches.size(); i++) {
+      Batch batch = batches.get(i);
+      if (batch.instances.size() > 0) {
+        batch.renderer.drawInstances(
+            cameraView, cameraPerspective, colorCorrectionRgba, batch.instances);
+        batch.instances.clear();
+      }
+    }
+  }
+
+  /** Describes the culling since the last call, for logging, and resets the statistics. */
+  public String getSummary() {
+    String summary =
+        String.format(
+            Locale.US,
+            "Scene: %d objects, per frame %.1f drawn, %.1f outside the view, %.1f too far",
+            nodes.size(),
+            frames == 0 ? 0f : (float) drawnCount / frames,
+            frames == 0 ? 0f : (float) frustumCulledCount / frames,
+            frames == 0 ? 0f : (float) distanceCulledCount / frames);
+    frames = 0;
+    drawnCount = 0;
+    frustumCulledCount = 0;
+    distanceCulledCount = 0;
+    return summary;
+  }
+
+  /** Draws a visible node right away if it has its renderer to itself, or adds it to the batch. */
+  private static void drawOrBatch(
+      Batch batch,
+      Node node,
+      float[] cameraView,
+      float[] cameraPerspective,
+      float[] colorCorrectionRgba) {
+    if (batch.nodeCount == 1) {
+      batch.renderer.draw(cameraView, cameraPerspective, colorCorrectionRgba);
+    } else {
+      // Rotated like ObjectRenderer.draw() rotates a single object.
+      batch.instances.add(node.modelMatrix, node.scale, GlobalVariables.OBJECT_ROTATION);
+    }
+  }
+
+  private Batch acquireBatch(ObjectRenderer renderer) {
+    for (int i = 0; i < batches.size(); i++) {
+      Batch batch = batches.get(i);
+      if (batch.renderer == renderer) {
+        batch.nodeCount++;
+        return batch;
+      }
+    }
+    Batch batch = new Batch(renderer);
+    batch.nodeCount = 1;
+    batches.add(batch);
+    return batch;
+  }
+
+  private void releaseBatch(Batch batch) {
+    if (--batch.nodeCount == 0) {
+      batches.remove(batch);
+    }
+  }
+
+  /**
+   * Places {@code renderer} at the node and returns whether it may be visible. Renderers without a
+   * loaded model are culled, as they draw nothing.
+   */
+  private boolean cullAndPlace(
+      ObjectRenderer renderer, Node node, float[] cameraView, float[] cameraPerspective) {
+    renderer.updateModelMatrix(node.modelMatrix, node.scale);
+    if (!renderer.getWorldBoundingSphere(worldSphere)) {
+      return false;
+    }
+    if (!frustum.intersectsSphere(worldSphere)) {
+      frustumCulledCount++;
+      return false;
+    }
+
+    float radius = worldSphere[3];
+    worldSphere[3] = 1.0f;
+    Matrix.multiplyMV(viewCenter, 0, cameraView, 0, worldSphere, 0);
+    float distance =
+        (float)
+            Math.sqrt(
+                viewCenter[0] * viewCenter[0]
+                    + viewCenter[1] * viewCenter[1]
+                    + viewCenter[2] * viewCenter[2]);
+    // The frustum test passed, so a sphere entirely in front of the camera has depth > radius.
+    float depth = -viewCenter[2];
+    if (distance - radius > maxDrawDistance
+        || (depth > radius && radius * cameraPerspective[5] / depth < MIN_PROJECTED_RADIUS)) {
+      distanceCulledCount++;
+      return false;
+    }
+    drawnCount++;
+    return true;
+  }
+}
@@ -33,7 +33,17 @@ public class ShaderUtil {
    */
   public static int loadGLShader(String tag, Context context, int type, String filename)
       throws IOException {
-    String code = readRawTextFileFromAssets(context, filename);
+    return compileGLShader(tag, type, readRawTextFileFromAssets(context, filename));
+  }
+
+  /**
+   * Compiles GLSL source code into an OpenGL ES shader.
+   *
+   * @param type The type of shader we will be creating.
+   * @param code The GLSL source code.
+   * @return The shader object handler.
+   */
+  public static int compileGLShader(String tag, int type, String code) {
     int shader = GLES20.glCreateShader(type);
     GLES20.glShaderSource(shader, code);
     GLES20.glCompileShader(shader);
@@ -56,6 +66,18 @@ public class ShaderUtil {
     return shader;
   }
 
+  /**
+   * Whether the current context is OpenGL ES 3.0 or newer, so that {@code GLES30} functions such as
+   * instanced draws and program binaries can be used. Contexts requested as ES 2.0 are usually
+   * newer versions, which are backwards compatible.
+   */
+  static boolean isGles3OrNewer() {
+    String version = GLES20.glGetString(GLES20.GL_VERSION);
+    return version != null
+        && version.startsWith("OpenGL ES ")
+        && !version.startsWith("OpenGL ES 2");
+  }
+
   /**
    * Checks if we've had an error inside of OpenGL ES, and if so what that error is.
    *
@@ -81,8 +103,17 @@ public class ShaderUtil {
    * @param filename The filename of the asset file about to be turned into a shader.
    * @return The context of the text file, or null in case of error.
    */
-  private static String readRawTextFileFromAssets(Context context, String filename)
+  static String readRawTextFileFromAssets(Context context, String filename)
       throws IOException {
+    String prewarmed = AssetPrewarmer.getInstance().getShaderSource(filename);
+    if (prewarmed != null) {
+      return prewarmed;
+    }
+    return readAssetText(context, filename);
+  }
+
+  /** Reads a text asset like {@link #readRawTextFileFromAssets}, bypassing the prewarmed ones. */
+  static String readAssetText(Context context, String filename) throws IOException {
     try (InputStream inputStream = context.getAssets().open(filename);
         BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream))) {
       StringBuilder sb = new StringBuilder();
@@ -0,0 +1,215 @@
+/*
+ * Copyright 2018 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.examples.java.common.assets;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A read-only view of a mesh in the {@link MeshFormat} layout. The vertex and index buffers are
+ * slices of the buffer the mesh was parsed from, so parsing a memory-mapped file does not copy any
+ * vertex data.
+ */
+public final class BinaryMesh {
+  private final int vertexCount;
+  private final int indexCount;
+  private final ByteBuffer vertexData;
+  private final ByteBuffer indexData;
+  private final float[] bounds = new float[6];
+  private final float[] texCoordBounds = new float[4];
+  private final float[] lodErrors;
+  private final Submesh[] submeshes;
+
+  private BinaryMesh(
+      int vertexCount,
+      int indexCount,
+      ByteBuffer vertexData,
+      ByteBuffer indexData,
+      float[] lodErrors,
+      Submesh[] submeshes) {
+    this.vertexCount = vertexCount;
+    this.indexCount = indexCount;
+    this.vertexData = vertexData;
+    this.indexData = indexData;
+    this.lodErrors = lodErrors;
+    this.submeshes = submeshes;
+  }
+
+  /**
+   * Parses a buffer produced by {@link BinaryMeshWriter}.
+   *
+   * @param buffer The whole file contents, starting at position 0.
+   * @throws IOException If the header is not a supported {@code .mesh} header, or the sections it
+   *     describes do not fit the buffer.
+   */
+  public static BinaryMesh parse(ByteBuffer buffer) throws IOException {
+    ByteBuffer data = buffer.duplicate().order(MeshFormat.BYTE_ORDER);
+    if (data.remaining() < MeshFormat.HEADER_SIZE_BYTES) {
+      throw new IOException("Mesh data is truncated.");
+    }
+    if (data.getInt(0) != MeshFormat.MAGIC) {
+      throw new IOException("Not a binary mesh.");
+    }
+    int version = data.getInt(4);
+    if (version != MeshFormat.VERSION) {
+      throw new IOException(
+          "Unsupported mesh version " + version + ", expected " + MeshFormat.VERSION);
+    }
+    int vertexCount = data.getInt(8);
+    int vertexStride = data.getInt(12);
+    int indexCount = data.getInt(16);
+    int vertexDataOffset = data.getInt(20);
+    int indexDataOffset = data.getInt(24);
+    int lodCount = data.getInt(68);
+    int submeshCount = data.getInt(72);
+    // Each LOD error and submesh entry takes some bytes, which bounds the counts before the sizes
+    // below are computed.
+    if (vertexStride != MeshFormat.VERTEX_STRIDE_BYTES
+        || vertexCount < 0
+        || indexCount < 0
+        || lodCount < 1
+        || lodCount > data.limit() / MeshFormat.LOD_ERROR_SIZE_BYTES
+        || submeshCount < 1
+        || submeshCount > data.limit() / MeshFormat.submeshEntrySizeBytes(1)) {
+      throw new IOException("Corrupt mesh header.");
+    }
+    // Sizes in long arithmetic, so that corrupt counts cannot overflow into a range that passes.
+    // The submesh entry size is MeshFormat.submeshEntrySizeBytes(lodCount).
+    long submeshTableEnd =
+        MeshFormat.HEADER_SIZE_BYTES
+            + (long) lodCount * MeshFormat.LOD_ERROR_SIZE_BYTES
+            + submeshCount * 4L * (8 + 2L * lodCount);
+    if (!isWithin(vertexDataOffset, (long) vertexCount * vertexStride, submeshTableEnd, data)
+        || !isWithin(
+            indexDataOffset, (long) indexCount * MeshFormat.BYTES_PER_INDEX, submeshTableEnd, data)) {
+      throw new IOException("Corrupt mesh header.");
+    }
+    int submeshTableOffset =
+        MeshFormat.HEADER_SIZE_BYTES + lodCount * MeshFormat.LOD_ERROR_SIZE_BYTES;
+
+    float[] lodErrors = new float[lodCount];
+    for (int lod = 0; lod < lodCount; lod++) {
+      lodErrors[lod] = data.getFloat(MeshFormat.HEADER_SIZE_BYTES + lod * 4);
+    }
+    Submesh[] submeshes = new Submesh[submeshCount];
+    for (int i = 0; i < submeshCount; i++) {
+      int entry = submeshTableOffset + i * MeshFormat.submeshEntrySizeBytes(lodCount);
+      int firstVertex = data.getInt(entry);
+      int submeshVertexCount = data.getInt(entry + 4);
+      float[] submeshBounds = new float[6];
+      for (int b = 0; b < 6; b++) {
+        submeshBounds[b] = data.getFloat(entry + 8 + 4 * b);
+      }
+      MeshLod[] lods = new MeshLod[lodCount];
+      for (int lod = 0; lod < lodCount; lod++) {
+        int range = entry + 32 + lod * 8;
+        lods[lod] = new MeshLod(data.getInt(range), data.getInt(range + 4), lodErrors[lod]);
+        if (lods[lod].firstIndex < 0
+            || lods[lod].indexCount < 0
+            || (long) lods[lod].firstIndex + lods[lod].indexCount > indexCount) {
+          throw new IOException("Corrupt submesh table.");
+        }
+      }
+      if (firstVertex < 0
+          || submeshVertexCount < 0
+          || submeshVertexCount > MeshFormat.MAX_VERTICES
+          || (long) firstVertex + submeshVertexCount > vertexCount) {
+        throw new IOException("Corrupt submesh table.");
+      }
+      submeshes[i] = new Submesh(firstVertex, submeshVertexCount, submeshBounds, lods);
+    }
+
+    BinaryMesh mesh =
+        new BinaryMesh(
+            vertexCount,
+            indexCount,
+            slice(data, vertexDataOffset, vertexCount * vertexStride),
+            slice(data, indexDataOffset, indexCount * MeshFormat.BYTES_PER_INDEX),
+            lodErrors,
+            submeshes);
+    for (int i = 0; i < 6; i++) {
+      mesh.bounds[i] = data.getFloat(28 + 4 * i);
+    }
+    for (int i = 0; i < 4; i++) {
+      mesh.texCoordBounds[i] = data.getFloat(52 + 4 * i);
+    }
+    return mesh;
+  }
+
+  /**
+   * Whether the section of {@code length} bytes at {@code offset} lies between the end of the
+   * submesh table and the end of the data.
+   */
+  private static boolean isWithin(int offset, long length, long submeshTableEnd, ByteBuffer data) {
+    return offset >= submeshTableEnd && offset + length <= data.limit();
+  }
+
+  private static ByteBuffer slice(ByteBuffer data, int offset, int length) {
+    ByteBuffer view = data.duplicate();
+    view.position(offset);
+    view.limit(offset + length);
+    return view.slice().order(MeshFormat.BYTE_ORDER);
+  }
+
+  public int getVertexCount() {
+    return vertexCount;
+  }
+
+  public int getIndexCount() {
+    return indexCount;
+  }
+
+  /**
+   * Interleaved, quantized vertex data, positioned at 0. Callers must not change its position.
+   */
+  public ByteBuffer getVertexData() {
+    return vertexData;
+  }
+
+  /** Unsigned 16-bit indices, positioned at 0. Callers must not change its position. */
+  public ByteBuffer getIndexData() {
+    return indexData;
+  }
+
+  /**
+   * Errors of the levels of detail from finest to coarsest, the largest of any submesh at each
+   * level. Callers must not modify the array.
+   */
+  public float[] getLodErrors() {
+    return lodErrors;
+  }
+
+  /** The submeshes, each with its own index ranges per level. Callers must not modify the array. */
+  public Submesh[] getSubmeshes() {
+    return submeshes;
+  }
+
+  /**
+   * Returns {@code minX, minY, minZ, maxX, maxY, maxZ} of the mesh positions. The quantized
+   * positions are normalized within this box.
+   */
+  public float[] getBounds() {
+    return bounds.clone();
+  }
+
+  /**
+   * Returns {@code minU, minV, maxU, maxV} of the texture coordinates. The quantized texture
+   * coordinates are normalized within this range.
+   */
+  public float[] getTexCoordBounds() {
+    return texCoordBounds.clone();
+  }
+}
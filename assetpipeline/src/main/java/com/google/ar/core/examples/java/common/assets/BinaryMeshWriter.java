@@ -0,0 +1,178 @@
+/*
+ * Copyright 2018 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.examples.java.common.assets;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+
+/** Serializes meshes into the {@link MeshFormat} binary layout. */
+public final class BinaryMeshWriter {
+  private BinaryMeshWriter() {}
+
+  /** Packs a mesh that consists of a single submesh, see {@link #pack(List, boolean)}. */
+  public static ByteBuffer pack(MeshData mesh, boolean direct) {
+    return pack(Collections.singletonList(mesh), direct);
+  }
+
+  /**
+   * Packs submeshes into a buffer laid out exactly like a {@code .mesh} file. Submeshes with fewer
+   * levels of detail than the others repeat their coarsest level.
+   *
+   * @param submeshes The submeshes to pack. Each must fit 16-bit indices.
+   * @param direct Whether to allocate a direct buffer, as needed for uploading it to OpenGL.
+   * @return A buffer positioned at 0 whose limit is the packed size.
+   */
+  public static ByteBuffer pack(List<MeshData> submeshes, boolean direct) {
+    int vertexCount = 0;
+    int indexCount = 0;
+    int lodCount = 0;
+    for (MeshData submesh : submeshes) {
+      if (submesh.getVertexCount() > MeshFormat.MAX_VERTICES) {
+        throw new IllegalArgumentException(
+            "Submesh has "
+                + submesh.getVertexCount()
+                + " vertices, more than 16-bit indices can address.");
+      }
+      vertexCount += submesh.getVertexCount();
+      indexCount += submesh.getIndexCount();
+      lodCount = Math.max(lodCount, submesh.lods.length);
+    }
+    float[] lodErrors = new float[lodCount];
+    for (MeshData submesh : submeshes) {
+      for (int lod = 0; lod < lodCount; lod++) {
+        lodErrors[lod] = Math.max(lodErrors[lod], lodOf(submesh, lod).error);
+      }
+    }
+
+    int tableBytes =
+        lodCount * MeshFormat.LOD_ERROR_SIZE_BYTES
+            + submeshes.size() * MeshFormat.submeshEntrySizeBytes(lodCount);
+    int vertexDataOffset = MeshFormat.align4(MeshFormat.HEADER_SIZE_BYTES + tableBytes);
+    int indexDataOffset =
+        MeshFormat.align4(vertexDataOffset + vertexCount * MeshFormat.VERTEX_STRIDE_BYTES);
+    int totalBytes = MeshFormat.align4(indexDataOffset + indexCount * MeshFormat.BYTES_PER_INDEX);
+
+    ByteBuffer buffer =
+        (direct ? ByteBuffer.allocateDirect(totalBytes) : ByteBuffer.allocate(totalBytes))
+            .order(MeshFormat.BYTE_ORDER);
+
+    float[] bounds = unionOfRanges(submeshes, false);
+    float[] texCoordBounds = unionOfRanges(submeshes, true);
+    buffer.putInt(MeshFormat.MAGIC);
+    buffer.putInt(MeshFormat.VERSION);
+    buffer.putInt(vertexCount);
+    buffer.putInt(MeshFormat.VERTEX_STRIDE_BYTES);
+    buffer.putInt(indexCount);
+    buffer.putInt(vertexDataOffset);
+    buffer.putInt(indexDataOffset);
+    for (float bound : bounds) {
+      buffer.putFloat(bound);
+    }
+    for (float bound : texCoordBounds) {
+      buffer.putFloat(bound);
+    }
+    buffer.putInt(lodCount);
+    buffer.putInt(submeshes.size());
+    for (float error : lodErrors) {
+      buffer.putFloat(error);
+    }
+
+    int firstVertex = 0;
+    int firstIndex = 0;
+    for (MeshData submesh : submeshes) {
+      buffer.putInt(firstVertex);
+      buffer.putInt(submesh.getVertexCount());
+      for (float bound : submesh.computeBounds()) {
+        buffer.putFloat(bound);
+      }
+      for (int lod = 0; lod < lodCount; lod++) {
+        MeshLod level = lodOf(submesh, lod);
+        buffer.putInt(firstIndex + level.firstIndex);
+        buffer.putInt(level.indexCount);
+      }
+      firstVertex += submesh.getVertexCount();
+      firstIndex += submesh.getIndexCount();
+    }
+
+    // All submeshes are quantized within the bounds of the whole mesh, so that they share one
+    // dequantization transform.
+    buffer.position(vertexDataOffset);
+    short[] octahedral = new short[2];
+    for (MeshData submesh : submeshes) {
+      for (int i = 0; i < submesh.getVertexCount(); i++) {
+        for (int axis = 0; axis < 3; axis++) {
+          buffer.putShort(
+              VertexQuantization.quantizeUnorm16(
+                  submesh.positions[i * 3 + axis], bounds[axis], bounds[axis + 3]));
+        }
+        buffer.putShort((short) 0);
+        for (int c = 0; c < 2; c++) {
+          buffer.putShort(
+              VertexQuantization.quantizeUnorm16(
+                  submesh.texCoords[i * 2 + c], texCoordBounds[c], texCoordBounds[c + 2]));
+        }
+        VertexQuantization.encodeOctahedral(
+            submesh.normals[i * 3],
+            submesh.normals[i * 3 + 1],
+            submesh.normals[i * 3 + 2],
+            octahedral);
+        buffer.putShort(octahedral[0]);
+        buffer.putShort(octahedral[1]);
+      }
+    }
+
+    buffer.position(indexDataOffset);
+    for (MeshData submesh : submeshes) {
+      for (int index : submesh.indices) {
+        buffer.putShort((short) index);
+      }
+    }
+
+    buffer.position(0);
+    buffer.limit(totalBytes);
+    return buffer;
+  }
+
+  /** Writes the packed submeshes to {@code out}. The stream is not closed. */
+  public static void write(List<MeshData> submeshes, OutputStream out) throws IOException {
+    ByteBuffer packed = pack(submeshes, false);
+    out.write(packed.array(), packed.arrayOffset(), packed.limit());
+  }
+
+  private static MeshLod lodOf(MeshData submesh, int lod) {
+    return submesh.lods[Math.min(lod, submesh.lods.length - 1)];
+  }
+
+  private static float[] unionOfRanges(List<MeshData> submeshes, boolean texCoords) {
+    float[] union = null;
+    for (MeshData submesh : submeshes) {
+      float[] range = texCoords ? submesh.computeTexCoordBounds() : submesh.computeBounds();
+      if (union == null) {
+        union = range;
+        continue;
+      }
+      int size = range.length / 2;
+      for (int c = 0; c < size; c++) {
+        union[c] = Math.min(union[c], range[c]);
+        union[c + size] = Math.max(union[c + size], range[c + size]);
+      }
+    }
+    return union;
+  }
+}
@@ -0,0 +1,323 @@
+/*
+ * Copyright 2018 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.examples.java.common.assets;
+
+/**
+ * Block encoders for the ETC1 and ETC2 EAC formats in {@link KtxFormat}. Images are given as
+ * {@code 0xAARRGGBB} pixels in rows from the top, and are encoded in 4x4 blocks whose pixels past
+ * the image edges repeat the edge pixels.
+ *
+ * <p>The color encoder tries both subblock orientations and both the individual and the
+ * differential base color modes with the subblock averages as base colors, and picks the
+ * combination with the smallest squared error. This is a fraction of what dedicated tools search,
+ * but is quick enough to run on every build.
+ */
+public final class EtcEncoder {
+  /** Intensity modifiers of the ETC1 color tables; indices 2 and 3 negate indices 0 and 1. */
+  private static final int[][] COLOR_MODIFIERS = {
+    {2, 8}, {5, 17}, {9, 29}, {13, 42}, {18, 60}, {24, 80}, {33, 106}, {47, 183}
+  };
+
+  /** The EAC alpha modifier tables, scaled by the multiplier of each block. */
+  private static final int[][] ALPHA_MODIFIERS = {
+    {-3, -6, -9, -15, 2, 5, 8, 14},
+    {-3, -7, -10, -13, 2, 6, 9, 12},
+    {-2, -5, -8, -13, 1, 4, 7, 12},
+    {-2, -4, -6, -13, 1, 3, 5, 12},
+    {-3, -6, -8, -12, 2, 5, 7, 11},
+    {-3, -7, -9, -11, 2, 6, 8, 10},
+    {-4, -7, -8, -11, 3, 6, 7, 10},
+    {-3, -5, -8, -11, 2, 4, 7, 10},
+    {-2, -6, -8, -10, 1, 5, 7, 9},
+    {-2, -5, -8, -10, 1, 4, 7, 9},
+    {-2, -4, -8, -10, 1, 3, 7, 9},
+    {-2, -5, -7, -10, 1, 4, 6, 9},
+    {-3, -4, -7, -10, 2, 3, 6, 9},
+    {-1, -2, -3, -10, 0, 1, 2, 9},
+    {-4, -6, -8, -9, 3, 5, 7, 8},
+    {-3, -5, -7, -9, 2, 4, 6, 8}
+  };
+  /** Table and index of {@link #ALPHA_MODIFIERS} whose modifier is 0, for uniform alpha. */
+  private static final int EXACT_ALPHA_TABLE = 13;
+  private static final int EXACT_ALPHA_INDEX = 4;
+
+  private static final int BLOCK_PIXELS = KtxFormat.BLOCK_SIZE * KtxFormat.BLOCK_SIZE;
+
+  private EtcEncoder() {}
+
+  /**
+   * Encodes an image as {@link KtxFormat#GL_ETC1_RGB8_OES}, ignoring its alpha channel.
+   *
+   * @return The blocks in rows from the top, each block in big-endian byte order.
+   */
+  public static byte[] encodeEtc1(int[] argb, int width, int height) {
+    return encode(argb, width, height, false);
+  }
+
+  /**
+   * Encodes an image as {@link KtxFormat#GL_COMPRESSED_RGBA8_ETC2_EAC}. The color half of each
+   * block only uses the ETC1 modes, which ETC2 decodes unchanged.
+   *
+   * @return The blocks in rows from the top, each block in big-endian byte order.
+   */
+  public static byte[] encodeEtc2Eac(int[] argb, int width, int height) {
+    return encode(argb, width, height, true);
+  }
+
+  private static byte[] encode(int[] argb, int width, int height, boolean withAlpha) {
+    int format =
+        withAlpha ? KtxFormat.GL_COMPRESSED_RGBA8_ETC2_EAC : KtxFormat.GL_ETC1_RGB8_OES;
+    byte[] result = new byte[KtxFormat.imageSizeBytes(format, width, height)];
+    int[] red = new int[BLOCK_PIXELS];
+    int[] green = new int[BLOCK_PIXELS];
+    int[] blue = new int[BLOCK_PIXELS];
+    int[] alpha = new int[BLOCK_PIXELS];
+    int offset = 0;
+    for (int blockY = 0; blockY < height; blockY += KtxFormat.BLOCK_SIZE) {
+      for (int blockX = 0; blockX < width; blockX += KtxFormat.BLOCK_SIZE) {
+        // Pixels are indexed column by column within a block, as in the ETC bit layout.
+        for (int x = 0; x < KtxFormat.BLOCK_SIZE; x++) {
+          for (int y = 0; y < KtxFormat.BLOCK_SIZE; y++) {
+            int pixel =
+                argb[Math.min(blockY + y, height - 1) * width + Math.min(blockX + x, width - 1)];
+            int i = x * KtxFormat.BLOCK_SIZE + y;
+            alpha[i] = pixel >>> 24;
+            red[i] = (pixel >> 16) & 0xFF;
+            green[i] = (pixel >> 8) & 0xFF;
+            blue[i] = pixel & 0xFF;
+          }
+        }
+        if (withAlpha) {
+          offset = putLong(result, offset, encodeAlphaBlock(alpha));
+        }
+        offset = putLong(result, offset, encodeColorBlock(red, green, blue));
+      }
+    }
+    return result;
+  }
+
+  private static int putLong(byte[] bytes, int offset, long value) {
+    for (int i = 7; i >= 0; i--) {
+      bytes[offset++] = (byte) (value >>> (i * 8));
+    }
+    return offset;
+  }
+
+  /** Encodes 16 color values, indexed column by column, into an ETC1 block. */
+  static long encodeColorBlock(int[] red, int[] green, int[] blue) {
+    long bestBlock = 0;
+    long bestError = Long.MAX_VALUE;
+    int[] indices = new int[BLOCK_PIXELS];
+    int[] bestIndices = new int[BLOCK_PIXELS];
+    for (int flip = 0; flip <= 1; flip++) {
+      float[][] averages = new float[2][3];
+      int[] counts = new int[2];
+      for (int i = 0; i < BLOCK_PIXELS; i++) {
+        int sub = subblockOf(i, flip);
+        averages[sub][0] += red[i];
+        averages[sub][1] += green[i];
+        averages[sub][2] += blue[i];
+        counts[sub]++;
+      }
+      for (int sub = 0; sub < 2; sub++) {
+        for (int c = 0; c < 3; c++) {
+          averages[sub][c] /= counts[sub];
+        }
+      }
+
+      for (int differential = 0; differential <= 1; differential++) {
+        // Quantized base colors, and their 8-bit expansions.
+        int[][] quantized = new int[2][3];
+        int[][] base = new int[2][3];
+        for (int c = 0; c < 3; c++) {
+          if (differential == 0) {
+            for (int sub = 0; sub < 2; sub++) {
+              quantized[sub][c] = Math.round(averages[sub][c] * 15 / 255f);
+              base[sub][c] = quantized[sub][c] * 17;
+            }
+          } else {
+            quantized[0][c] = Math.round(averages[0][c] * 31 / 255f);
+            int second = Math.round(averages[1][c] * 31 / 255f);
+            // The second color is stored as a 3-bit signed offset from the first.
+            quantized[1][c] = quantized[0][c] + Math.max(-4, Math.min(3, second - quantized[0][c]));
+            for (int sub = 0; sub < 2; sub++) {
+              base[sub][c] = (quantized[sub][c] << 3) | (quantized[sub][c] >> 2);
+            }
+          }
+        }
+
+        long error = 0;
+        int[] tables = new int[2];
+        for (int sub = 0; sub < 2; sub++) {
+          long subError = Long.MAX_VALUE;
+          for (int table = 0; table < COLOR_MODIFIERS.length; table++) {
+            long tableError =
+                fitSubblock(red, green, blue, flip, sub, base[sub], table, indices);
+            if (tableError < subError) {
+              subError = tableError;
+              tables[sub] = table;
+            }
+          }
+          // Recompute the indices of the chosen table, which the search has overwritten.
+          fitSubblock(red, green, blue, flip, sub, base[sub], tables[sub], indices);
+          error += subError;
+        }
+        if (error >= bestError) {
+          continue;
+        }
+        bestError = error;
+        System.arraycopy(indices, 0, bestIndices, 0, BLOCK_PIXELS);
+
+        long block = 0;
+        for (int c = 0; c < 3; c++) {
+          int shift = 56 - 8 * c;
+          if (differential == 0) {
+            block |= (long) quantized[0][c] << (shift + 4);
+            block |= (long) quantized[1][c] << shift;
+          } else {
+            block |= (long) quantized[0][c] << (shift + 3);
+            block |= (long) ((quantized[1][c] - quantized[0][c]) & 7) << shift;
+          }
+        }
+        block |= (long) tables[0] << 37;
+        block |= (long) tables[1] << 34;
+        block |= (long) differential << 33;
+        block |= (long) flip << 32;
+        bestBlock = block;
+      }
+    }
+    for (int i = 0; i < BLOCK_PIXELS; i++) {
+      bestBlock |= (long) (bestIndices[i] >> 1) << (16 + i);
+      bestBlock |= (long) (bestIndices[i] & 1) << i;
+    }
+    return bestBlock;
+  }
+
+  /** Returns which subblock the pixel with column-major index {@code i} belongs to. */
+  private static int subblockOf(int i, int flip) {
+    int x = i / KtxFormat.BLOCK_SIZE;
+    int y = i % KtxFormat.BLOCK_SIZE;
+    return (flip == 0 ? x : y) < 2 ? 0 : 1;
+  }
+
+  /**
+   * Picks the best modifier of {@code table} for every pixel of a subblock.
+   *
+   * @return The squared error of the subblock.
+   */
+  private static long fitSubblock(
+      int[] red,
+      int[] green,
+      int[] blue,
+      int flip,
+      int sub,
+      int[] base,
+      int table,
+      int[] indices) {
+    long error = 0;
+    for (int i = 0; i < BLOCK_PIXELS; i++) {
+      if (subblockOf(i, flip) != sub) {
+        continue;
+      }
+      int bestIndex = 0;
+      int bestPixelError = Integer.MAX_VALUE;
+      for (int index = 0; index < 4; index++) {
+        int modifier = COLOR_MODIFIERS[table][index & 1] * (index < 2 ? 1 : -1);
+        int dr = clamp255(base[0] + modifier) - red[i];
+        int dg = clamp255(base[1] + modifier) - green[i];
+        int db = clamp255(base[2] + modifier) - blue[i];
+        int pixelError = dr * dr + dg * dg + db * db;
+        if (pixelError < bestPixelError) {
+          bestPixelError = pixelError;
+          bestIndex = index;
+        }
+      }
+      indices[i] = bestIndex;
+      error += bestPixelError;
+    }
+    return error;
+  }
+
+  /** Encodes 16 alpha values, indexed column by column, into an EAC block. */
+  static long encodeAlphaBlock(int[] alpha) {
+    int min = 255;
+    int max = 0;
+    for (int value : alpha) {
+      min = Math.min(min, value);
+      max = Math.max(max, value);
+    }
+
+    int bestBase = min;
+    int bestMultiplier = 1;
+    int bestTable = EXACT_ALPHA_TABLE;
+    long bestError = Long.MAX_VALUE;
+    if (min == max) {
+      bestError = 0;
+    }
+    for (int table = 0; table < ALPHA_MODIFIERS.length && bestError > 0; table++) {
+      int[] modifiers = ALPHA_MODIFIERS[table];
+      int lowest = modifiers[3];
+      int highest = modifiers[7];
+      for (int multiplier = 1; multiplier < 16 && bestError > 0; multiplier++) {
+        // Center the modifier range on the alpha range, and try its neighbors for rounding.
+        int center = Math.round((min + max) / 2f - (lowest + highest) * multiplier / 2f);
+        for (int base = Math.max(0, center - 1); base <= Math.min(255, center + 1); base++) {
+          long error = 0;
+          for (int i = 0; i < BLOCK_PIXELS && error < bestError; i++) {
+            error += alphaError(alpha[i], base, multiplier, modifiers);
+          }
+          if (error < bestError) {
+            bestError = error;
+            bestBase = base;
+            bestMultiplier = multiplier;
+            bestTable = table;
+          }
+        }
+      }
+    }
+
+    long block = (long) bestBase << 56 | (long) bestMultiplier << 52 | (long) bestTable << 48;
+    for (int i = 0; i < BLOCK_PIXELS; i++) {
+      int bestIndex = EXACT_ALPHA_INDEX;
+      if (min != max) {
+        int bestPixelError = Integer.MAX_VALUE;
+        for (int index = 0; index < 8; index++) {
+          int difference =
+              clamp255(bestBase + ALPHA_MODIFIERS[bestTable][index] * bestMultiplier) - alpha[i];
+          if (difference * difference < bestPixelError) {
+            bestPixelError = difference * difference;
+            bestIndex = index;
+          }
+        }
+      }
+      block |= (long) bestIndex << (45 - 3 * i);
+    }
+    return block;
+  }
+
+  private static int alphaError(int value, int base, int multiplier, int[] modifiers) {
+    int best = Integer.MAX_VALUE;
+    for (int modifier : modifiers) {
+      int difference = clamp255(base + modifier * multiplier) - value;
+      best = Math.min(best, difference * difference);
+    }
+    return best;
+  }
+
+  private static int clamp255(int value) {
+    return Math.max(0, Math.min(255, value));
+  }
+}
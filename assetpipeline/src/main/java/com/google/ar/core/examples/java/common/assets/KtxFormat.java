@@ -0,0 +1,110 @@
+/*
+ * Copyright 2018 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.examples.java.common.assets;
+
+import java.nio.ByteOrder;
+
+/**
+ * Constants of the KTX 1.1 container written by {@link TextureConverter}, restricted to what the
+ * app uses: a single 2D image in a GPU-compressed format with its complete mip chain.
+ *
+ * <p>The file starts with a fixed-size header of 32-bit values:
+ *
+ * <pre>
+ *   byte  identifier[12]         {@link #IDENTIFIER}
+ *   int   endianness             0x04030201 in the byte order of the file
+ *   int   glType                 0 for compressed formats
+ *   int   glTypeSize             1
+ *   int   glFormat               0 for compressed formats
+ *   int   glInternalFormat       e.g. {@link #GL_ETC1_RGB8_OES}
+ *   int   glBaseInternalFormat   GL_RGB or GL_RGBA
+ *   int   pixelWidth
+ *   int   pixelHeight
+ *   int   pixelDepth             0
+ *   int   numberOfArrayElements  0
+ *   int   numberOfFaces          1
+ *   int   numberOfMipmapLevels
+ *   int   bytesOfKeyValueData
+ * </pre>
+ *
+ * <p>The key/value data is followed by each mip level, largest first, as its {@code int imageSize}
+ * and the compressed blocks padded to 4 bytes. Colors are stored with premultiplied alpha, like
+ * the bitmaps Android decodes from PNG files.
+ */
+public final class KtxFormat {
+  /** Byte order of the files written by {@link KtxWriter}. Readers also accept big-endian files. */
+  public static final ByteOrder BYTE_ORDER = ByteOrder.LITTLE_ENDIAN;
+
+  /** File extension of converted textures, including the dot. */
+  public static final String FILE_EXTENSION = ".ktx";
+
+  static final byte[] IDENTIFIER = {
+    (byte) 0xAB, 'K', 'T', 'X', ' ', '1', '1', (byte) 0xBB, '\r', '\n', 0x1A, '\n'
+  };
+  static final int ENDIANNESS = 0x04030201;
+
+  public static final int HEADER_SIZE_BYTES = 64;
+
+  /** ETC1 RGB, from {@code OES_compressed_ETC1_RGB8_texture}. Used for opaque images. */
+  public static final int GL_ETC1_RGB8_OES = 0x8D64;
+  /** ETC2 RGB with EAC alpha, core in OpenGL ES 3.0. Used for images with transparency. */
+  public static final int GL_COMPRESSED_RGBA8_ETC2_EAC = 0x9278;
+
+  static final int GL_RGB = 0x1907;
+  static final int GL_RGBA = 0x1908;
+
+  /** Side length of the pixel blocks of the ETC formats. */
+  static final int BLOCK_SIZE = 4;
+
+  private KtxFormat() {}
+
+  /** Returns the converted texture name for an image asset, e.g. {@code models/trigrid.ktx}. */
+  public static String textureNameForImage(String imageName) {
+    int dot = imageName.lastIndexOf('.');
+    return (dot < 0 ? imageName : imageName.substring(0, dot)) + FILE_EXTENSION;
+  }
+
+  /**
+   * Returns the size of one 4x4 block of {@code internalFormat}, or 0 if the format is not one
+   * written by {@link TextureConverter}.
+   */
+  public static int blockSizeBytes(int internalFormat) {
+    switch (internalFormat) {
+      case GL_ETC1_RGB8_OES:
+        return 8;
+      case GL_COMPRESSED_RGBA8_ETC2_EAC:
+        return 16;
+      default:
+        return 0;
+    }
+  }
+
+  /** Size of a compressed image, whose partial blocks at the edges take whole blocks. */
+  public static int imageSizeBytes(int internalFormat, int width, int height) {
+    int blocksX = (width + BLOCK_SIZE - 1) / BLOCK_SIZE;
+    int blocksY = (height + BLOCK_SIZE - 1) / BLOCK_SIZE;
+    return blocksX * blocksY * blockSizeBytes(internalFormat);
+  }
+
+  /** Number of levels in a complete mip chain, down to 1x1. */
+  public static int mipLevelCount(int width, int height) {
+    int levels = 1;
+    for (int size = Math.max(width, height); size > 1; size >>= 1) {
+      levels++;
+    }
+    return levels;
+  }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2018 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.examples.java.common.assets;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * A read-only view of a compressed texture in the {@link KtxFormat} layout. The mip levels are
+ * slices of the buffer the texture was parsed from, so they can be handed to {@code
+ * glCompressedTexImage2D} straight from a memory-mapped file.
+ */
+public final class KtxTexture {
+  private final int internalFormat;
+  private final int width;
+  private final int height;
+  private final ByteBuffer[] levels;
+
+  private KtxTexture(int internalFormat, int width, int height, ByteBuffer[] levels) {
+    this.internalFormat = internalFormat;
+    this.width = width;
+    this.height = height;
+    this.levels = levels;
+  }
+
+  /**
+   * Parses a buffer produced by {@link KtxWriter}.
+   *
+   * @param buffer The whole file contents, starting at position 0.
+   * @throws IOException If the data is not a 2D texture in a format of {@link KtxFormat}.
+   */
+  public static KtxTexture parse(ByteBuffer buffer) throws IOException {
+    ByteBuffer data = buffer.duplicate().order(KtxFormat.BYTE_ORDER);
+    if (data.remaining() < KtxFormat.HEADER_SIZE_BYTES) {
+      throw new IOException("Texture data is truncated.");
+    }
+    for (int i = 0; i < KtxFormat.IDENTIFIER.length; i++) {
+      if (data.get(i) != KtxFormat.IDENTIFIER[i]) {
+        throw new IOException("Not a KTX texture.");
+      }
+    }
+    if (data.getInt(12) != KtxFormat.ENDIANNESS) {
+      data.order(
+          KtxFormat.BYTE_ORDER == ByteOrder.LITTLE_ENDIAN
+              ? ByteOrder.BIG_ENDIAN
+              : ByteOrder.LITTLE_ENDIAN);
+    }
+    int glType = data.getInt(16);
+    int internalFormat = data.getInt(28);
+    int width = data.getInt(36);
+    int height = data.getInt(40);
+    int depth = data.getInt(44);
+    int arrayElements = data.getInt(48);
+    int faces = data.getInt(52);
+    int levelCount = Math.max(1, data.getInt(56));
+    int keyValueBytes = data.getInt(60);
+    if (glType != 0 || KtxFormat.blockSizeBytes(internalFormat) == 0) {
+      throw new IOException(
+          "Unsupported texture format 0x" + Integer.toHexString(internalFormat) + ".");
+    }
+    if (width <= 0
+        || height <= 0
+        || depth != 0
+        || arrayElements != 0
+        || faces != 1
+        || (levelCount != 1 && levelCount != KtxFormat.mipLevelCount(width, height))
+        || keyValueBytes < 0) {
+      throw new IOException("Corrupt texture header.");
+    }
+
+    ByteBuffer[] levels = new ByteBuffer[levelCount];
+    int offset = KtxFormat.HEADER_SIZE_BYTES + keyValueBytes;
+    for (int level = 0; level < levelCount; level++) {
+      int expectedSize =
+          KtxFormat.imageSizeBytes(
+              internalFormat, Math.max(1, width >> level), Math.max(1, height >> level));
+      if (offset + 4 > data.limit()
+          || data.getInt(offset) != expectedSize
+          || offset + 4 + expectedSize > data.limit()) {
+        throw new IOException("Corrupt texture level " + level + ".");
+      }
+      ByteBuffer view = data.duplicate();
+      view.position(offset + 4);
+      view.limit(offset + 4 + expectedSize);
+      levels[level] = view.slice();
+      offset += 4 + MeshFormat.align4(expectedSize);
+    }
+    return new KtxTexture(internalFormat, width, height, levels);
+  }
+
+  /** The OpenGL internal format, one of the formats in {@link KtxFormat}. */
+  public int getInternalFormat() {
+    return internalFormat;
+  }
+
+  public int getWidth() {
+    return width;
+  }
+
+  public int getHeight() {
+    return height;
+  }
+
+  /** Number of mip levels, 1 or a complete chain. */
+  public int getLevelCount() {
+    return levels.length;
+  }
+
+  /**
+   * Compressed blocks of a mip level, positioned at 0. Callers must not change its position.
+   */
+  public ByteBuffer getLevelData(int level) {
+    return levels[level];
+  }
+
+  /** Total size of the compressed levels, which is also their size in GPU memory. */
+  public int getDataSizeBytes() {
+    int size = 0;
+    for (ByteBuffer level : levels) {
+      size += level.remaining();
+    }
+    return size;
+  }
+}
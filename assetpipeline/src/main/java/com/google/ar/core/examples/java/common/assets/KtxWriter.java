@@ -0,0 +1,66 @@
+/*
+ * Copyright 2018 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.examples.java.common.assets;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/** Serializes compressed mip chains into the {@link KtxFormat} layout. */
+public final class KtxWriter {
+  private KtxWriter() {}
+
+  /**
+   * Writes a texture.
+   *
+   * @param internalFormat One of the formats in {@link KtxFormat}.
+   * @param width Width of the largest level.
+   * @param height Height of the largest level.
+   * @param levels Compressed blocks of each mip level, largest first.
+   */
+  public static void write(
+      int internalFormat, int width, int height, List<byte[]> levels, OutputStream out)
+      throws IOException {
+    ByteBuffer header =
+        ByteBuffer.allocate(KtxFormat.HEADER_SIZE_BYTES).order(KtxFormat.BYTE_ORDER);
+    header.put(KtxFormat.IDENTIFIER);
+    header.putInt(KtxFormat.ENDIANNESS);
+    header.putInt(0); // glType
+    header.putInt(1); // glTypeSize
+    header.putInt(0); // glFormat
+    header.putInt(internalFormat);
+    header.putInt(
+        internalFormat == KtxFormat.GL_ETC1_RGB8_OES ? KtxFormat.GL_RGB : KtxFormat.GL_RGBA);
+    header.putInt(width);
+    header.putInt(height);
+    header.putInt(0); // pixelDepth
+    header.putInt(0); // numberOfArrayElements
+    header.putInt(1); // numberOfFaces
+    header.putInt(levels.size());
+    header.putInt(0); // bytesOfKeyValueData
+    out.write(header.array());
+
+    ByteBuffer imageSize = ByteBuffer.allocate(4).order(KtxFormat.BYTE_ORDER);
+    byte[] padding = new byte[3];
+    for (byte[] level : levels) {
+      imageSize.putInt(0, level.length);
+      out.write(imageSize.array());
+      out.write(level);
+      out.write(padding, 0, MeshFormat.align4(level.length) - level.length);
+    }
+  }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2018 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.examples.java.common.assets;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Build-time converter from OBJ models to binary {@code .mesh} files. Invoked by the app's
+ * {@code convertMeshes} Gradle task so that the app never parses OBJ text at runtime.
+ *
+ * <p>Usage: {@code MeshConverter <input dir> <output dir>}. Every {@code *.obj} file in the input
+ * directory is processed by {@link MeshPipeline} and converted to a {@code .mesh} file of the same
+ * name in the output directory.
+ *
+ * <p>With {@code --transport} as a third argument, the meshes are written as {@link MeshTransport}
+ * {@code .meshz} files instead, for uploading to the model catalog in Firebase Storage.
+ */
+public final class MeshConverter {
+  private MeshConverter() {}
+
+  public static void main(String[] args) throws IOException {
+    boolean transport = args.length == 3 && args[2].equals("--transport");
+    if (args.length != 2 && !transport) {
+      System.err.println("Usage: MeshConverter <input dir> <output dir> [--transport]");
+      System.exit(1);
+    }
+    File inputDir = new File(args[0]);
+    File outputDir = new File(args[1]);
+    if (!outputDir.isDirectory() && !outputDir.mkdirs()) {
+      throw new IOException("Cannot create output directory " + outputDir);
+    }
+
+    File[] objFiles = inputDir.listFiles((dir, name) -> name.endsWith(".obj"));
+    if (objFiles == null) {
+      throw new IOException("Cannot list input directory " + inputDir);
+    }
+    for (File objFile : objFiles) {
+      String meshName = MeshFormat.meshNameForObj(objFile.getName());
+      if (transport) {
+        meshName =
+            meshName.substring(0, meshName.length() - MeshFormat.FILE_EXTENSION.length())
+                + MeshTransport.FILE_EXTENSION;
+      }
+      convert(objFile, new File(outputDir, meshName), transport);
+    }
+  }
+
+  private static void convert(File objFile, File meshFile, boolean transport)
+      throws IOException {
+    MeshData imported;
+    try (InputStream in = new FileInputStream(objFile)) {
+      imported = ObjMeshImporter.importObj(in);
+    }
+    List<MeshData> submeshes = MeshPipeline.process(imported);
+    try (OutputStream out = new BufferedOutputStream(new FileOutputStream(meshFile))) {
+      if (transport) {
+        ByteBuffer packed = BinaryMeshWriter.pack(submeshes, false);
+        MeshTransport.write(packed, out);
+      } else {
+        BinaryMeshWriter.write(submeshes, out);
+      }
+    }
+
+    int vertexCount = 0;
+    int triangleCount = 0;
+    float misses = 0;
+    for (MeshData submesh : submeshes) {
+      vertexCount += submesh.getVertexCount();
+      int[] indices = submesh.getFullDetailIndices();
+      triangleCount += indices.length / 3;
+      misses += MeshOptimizer.computeAcmr(indices, submesh.getVertexCount()) * indices.length / 3;
+    }
+    System.out.println(
+        objFile.getName()
+            + " -> "
+            + meshFile.getName()
+            + ": "
+            + submeshes.size()
+            + " submeshes, "
+            + vertexCount
+            + " vertices, "
+            + triangleCount
+            + " triangles, "
+            + meshFile.length()
+            + " bytes, ACMR "
+            + String.format(
+                "%.3f -> %.3f",
+                MeshOptimizer.computeAcmr(imported.indices, imported.getVertexCount()),
+                triangleCount > 0 ? misses / triangleCount : 0));
+    for (int i = 0; i < submeshes.size(); i++) {
+      for (MeshLod lod : submeshes.get(i).lods) {
+        System.out.println(
+            String.format(
+                "  submesh %d LOD: %d triangles, error %.4f", i, lod.indexCount / 3, lod.error));
+      }
+    }
+  }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2018 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.examples.java.common.assets;
+
+/**
+ * A single-indexed triangle mesh held in plain Java arrays. This is the in-memory form every import
+ * stage works on before the mesh is written out with {@link BinaryMeshWriter}.
+ */
+public final class MeshData {
+  public static final int COORDS_PER_POSITION = 3;
+  public static final int COORDS_PER_TEXCOORD = 2;
+  public static final int COORDS_PER_NORMAL = 3;
+
+  /** Vertex positions, {@code x, y, z} per vertex. */
+  public final float[] positions;
+  /** Texture coordinates, {@code u, v} per vertex. */
+  public final float[] texCoords;
+  /** Vertex normals, {@code x, y, z} per vertex. */
+  public final float[] normals;
+  /** Triangle list indices, of all levels of detail. */
+  public final int[] indices;
+  /** Levels of detail from finest to coarsest, each a range of {@link #indices}. */
+  public final MeshLod[] lods;
+
+  /** Creates a mesh with a single level of detail that draws all indices. */
+  public MeshData(float[] positions, float[] texCoords, float[] normals, int[] indices) {
+    this(
+        positions,
+        texCoords,
+        normals,
+        indices,
+        new MeshLod[] {new MeshLod(0, indices.length, 0)});
+  }
+
+  public MeshData(
+      float[] positions, float[] texCoords, float[] normals, int[] indices, MeshLod[] lods) {
+    int vertexCount = positions.length / COORDS_PER_POSITION;
+    if (texCoords.length != vertexCount * COORDS_PER_TEXCOORD
+        || normals.length != vertexCount * COORDS_PER_NORMAL) {
+      throw new IllegalArgumentException("Vertex attribute arrays have mismatching lengths.");
+    }
+    if (indices.length % 3 != 0) {
+      throw new IllegalArgumentException("Index count must be a multiple of 3.");
+    }
+    this.positions = positions;
+    this.texCoords = texCoords;
+    this.normals = normals;
+    for (MeshLod lod : lods) {
+      if (lod.firstIndex < 0
+          || lod.indexCount % 3 != 0
+          || lod.firstIndex + lod.indexCount > indices.length) {
+        throw new IllegalArgumentException("Level of detail exceeds the index array.");
+      }
+    }
+    if (lods.length == 0) {
+      throw new IllegalArgumentException("A mesh needs at least one level of detail.");
+    }
+    this.indices = indices;
+    this.lods = lods;
+  }
+
+  public int getVertexCount() {
+    return positions.length / COORDS_PER_POSITION;
+  }
+
+  public int getIndexCount() {
+    return indices.length;
+  }
+
+  /** Returns a copy of the indices of the finest level of detail. */
+  public int[] getFullDetailIndices() {
+    MeshLod lod = lods[0];
+    int[] result = new int[lod.indexCount];
+    System.arraycopy(indices, lod.firstIndex, result, 0, lod.indexCount);
+    return result;
+  }
+
+  /**
+   * Computes the axis-aligned bounding box of the vertex positions.
+   *
+   * @return {@code minX, minY, minZ, maxX, maxY, maxZ}.
+   */
+  public float[] computeBounds() {
+    return computeRange(positions, COORDS_PER_POSITION);
+  }
+
+  /**
+   * Computes the range of the texture coordinates.
+   *
+   * @return {@code minU, minV, maxU, maxV}.
+   */
+  public float[] computeTexCoordBounds() {
+    return computeRange(texCoords, COORDS_PER_TEXCOORD);
+  }
+
+  private static float[] computeRange(float[] values, int size) {
+    float[] range = new float[size * 2];
+    if (values.length == 0) {
+      return range;
+    }
+    for (int c = 0; c < size; c++) {
+      range[c] = Float.MAX_VALUE;
+      range[c + size] = -Float.MAX_VALUE;
+    }
+    for (int i = 0; i < values.length; i += size) {
+      for (int c = 0; c < size; c++) {
+        range[c] = Math.min(range[c], values[i + c]);
+        range[c + size] = Math.max(range[c + size], values[i + c]);
+      }
+    }
+    return range;
+  }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2018 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.examples.java.common.assets;
+
+import java.nio.ByteOrder;
+
+/**
+ * Constants describing the binary {@code .mesh} format produced by {@link MeshConverter}.
+ *
+ * <p>All values are little-endian. The file starts with a fixed-size header:
+ *
+ * <pre>
+ *   int   magic            'HMSH'
+ *   int   version          {@link #VERSION}
+ *   int   vertexCount      of all submeshes
+ *   int   vertexStride     bytes per interleaved vertex
+ *   int   indexCount       of all submeshes and levels of detail
+ *   int   vertexDataOffset byte offset of the vertex data from the start of the file
+ *   int   indexDataOffset  byte offset of the index data from the start of the file
+ *   float boundsMin[3]     also the position quantization range
+ *   float boundsMax[3]
+ *   float texCoordMin[2]   texture coordinate quantization range
+ *   float texCoordMax[2]
+ *   int   lodCount
+ *   int   submeshCount
+ * </pre>
+ *
+ * <p>The header is followed by the error of each level of detail, finest first, as a float (see
+ * {@link MeshLod#error}), and then by one entry per {@link Submesh}:
+ *
+ * <pre>
+ *   int   firstVertex      offset into the vertex data, in vertices
+ *   int   vertexCount
+ *   float boundsMin[3]
+ *   float boundsMax[3]
+ *   lodCount times:
+ *     int firstIndex       offset into the index data, in indices
+ *     int indexCount
+ * </pre>
+ *
+ * <p>Indices are unsigned 16-bit and relative to the first vertex of their submesh.
+ *
+ * <p>Each vertex takes 16 bytes, with attributes quantized by {@link VertexQuantization}:
+ *
+ * <pre>
+ *   ushort position[3]     normalized within the bounds
+ *   ushort padding
+ *   ushort texCoord[2]     normalized within the texture coordinate range
+ *   short  normal[2]       octahedral encoding, normalized to [-1, 1]
+ * </pre>
+ *
+ * <p>Data sections are 4-byte aligned so they can be handed to {@code glBufferData} straight from a
+ * memory-mapped file.
+ */
+public final class MeshFormat {
+  public static final ByteOrder BYTE_ORDER = ByteOrder.LITTLE_ENDIAN;
+
+  /** File extension of converted meshes, including the dot. */
+  public static final String FILE_EXTENSION = ".mesh";
+
+  public static final int MAGIC = 0x48534D48; // "HMSH" when read as little-endian bytes.
+  public static final int VERSION = 4;
+
+  public static final int HEADER_SIZE_BYTES = 19 * 4;
+  public static final int LOD_ERROR_SIZE_BYTES = 4;
+
+  public static final int POSITION_OFFSET_BYTES = 0;
+  public static final int TEXCOORD_OFFSET_BYTES = 8;
+  public static final int NORMAL_OFFSET_BYTES = 12;
+  public static final int VERTEX_STRIDE_BYTES = 16;
+
+  public static final int BYTES_PER_INDEX = 2;
+  /** Largest vertex count of a submesh, as addressable by 16-bit indices. */
+  public static final int MAX_VERTICES = 0x10000;
+
+  private MeshFormat() {}
+
+  /** Returns the converted mesh name for an OBJ asset, e.g. {@code models/letter.mesh}. */
+  public static String meshNameForObj(String objName) {
+    int dot = objName.lastIndexOf('.');
+    return (dot < 0 ? objName : objName.substring(0, dot)) + FILE_EXTENSION;
+  }
+
+  /** Size of a submesh table entry in a mesh with {@code lodCount} levels of detail. */
+  public static int submeshEntrySizeBytes(int lodCount) {
+    return (8 + 2 * lodCount) * 4;
+  }
+
+  static int align4(int value) {
+    return (value + 3) & ~3;
+  }
+}
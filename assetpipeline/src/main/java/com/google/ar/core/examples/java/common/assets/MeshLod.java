@@ -0,0 +1,38 @@
+/*
+ * Copyright 2018 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.examples.java.common.assets;
+
+/**
+ * One level of detail of a mesh: a range of its index buffer that draws a simplified version of
+ * the model with the full mesh's vertices.
+ */
+public final class MeshLod {
+  /** Offset of the first index of this level in the mesh's index buffer. */
+  public final int firstIndex;
+  /** Number of indices of this level. */
+  public final int indexCount;
+  /**
+   * Largest distance this level deviates from the full mesh, relative to the radius of the mesh's
+   * bounding sphere. 0 for the full mesh.
+   */
+  public final float error;
+
+  public MeshLod(int firstIndex, int indexCount, float error) {
+    this.firstIndex = firstIndex;
+    this.indexCount = indexCount;
+    this.error = error;
+  }
+}
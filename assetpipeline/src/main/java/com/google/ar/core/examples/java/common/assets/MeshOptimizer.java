@@ -0,0 +1,459 @@
+/*
+ * Copyright 2018 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.examples.java.common.assets;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reorders a mesh for efficient rendering on mobile GPUs. {@link #optimize(MeshData)} runs these
+ * stages in order:
+ *
+ * <ol>
+ *   <li>Welds vertices whose attributes are identical, so that triangles can share them.
+ *   <li>Orders triangles for the post-transform vertex cache with Tom Forsyth's linear-speed
+ *       algorithm.
+ *   <li>Splits that order into clusters at points where the cache starts over, and sorts the
+ *       clusters so that outward-facing ones are drawn first, which reduces overdraw.
+ *   <li>Orders vertices by first use, so that vertex fetches walk memory sequentially.
+ * </ol>
+ *
+ * <p>Cache efficiency is measured as ACMR, the average number of vertices transformed per triangle
+ * with a {@link #SIMULATED_CACHE_SIZE}-entry FIFO cache. It ranges from 0.5 (ideal) to 3.
+ */
+public final class MeshOptimizer {
+  /** FIFO size used to evaluate orderings, typical for the mobile GPUs the app targets. */
+  public static final int SIMULATED_CACHE_SIZE = 16;
+
+  /** How much worse than the cache-optimal order the overdraw pass may make the ACMR. */
+  private static final float OVERDRAW_ACMR_THRESHOLD = 1.05f;
+
+  // Forsyth's scoring parameters, from "Linear-Speed Vertex Cache Optimisation".
+  private static final int FORSYTH_CACHE_SIZE = 32;
+  private static final float CACHE_DECAY_POWER = 1.5f;
+  private static final float LAST_TRIANGLE_SCORE = 0.75f;
+  private static final float VALENCE_BOOST_SCALE = 2.0f;
+  private static final float VALENCE_BOOST_POWER = 0.5f;
+
+  private static final int FLOATS_PER_VERTEX =
+      MeshData.COORDS_PER_POSITION + MeshData.COORDS_PER_TEXCOORD + MeshData.COORDS_PER_NORMAL;
+
+  private MeshOptimizer() {}
+
+  /**
+   * Returns an optimized copy of {@code mesh} with the same triangles. Levels of detail should be
+   * generated afterwards, see {@link MeshSimplifier}.
+   */
+  public static MeshData optimize(MeshData mesh) {
+    if (mesh.lods.length != 1) {
+      throw new IllegalArgumentException("Optimize meshes before generating levels of detail.");
+    }
+    MeshData welded = weldVertices(mesh);
+    int[] indices = optimizeVertexCache(welded.indices, welded.getVertexCount());
+    indices = optimizeOverdraw(welded, indices);
+    return optimizeVertexFetch(
+        new MeshData(welded.positions, welded.texCoords, welded.normals, indices));
+  }
+
+  /**
+   * Computes the average cache miss ratio of a triangle list with a {@link
+   * #SIMULATED_CACHE_SIZE}-entry FIFO vertex cache.
+   */
+  public static float computeAcmr(int[] indices, int vertexCount) {
+    if (indices.length == 0) {
+      return 0;
+    }
+    return (float) countCacheMisses(indices, vertexCount, null) / (indices.length / 3);
+  }
+
+  /** Merges vertices whose position, texture coordinate and normal are bitwise identical. */
+  static MeshData weldVertices(MeshData mesh) {
+    int vertexCount = mesh.getVertexCount();
+    Map<VertexKey, Integer> uniqueVertices = new HashMap<>();
+    int[] remap = new int[vertexCount];
+    for (int i = 0; i < vertexCount; i++) {
+      VertexKey key = new VertexKey(mesh, i);
+      Integer existing = uniqueVertices.get(key);
+      if (existing == null) {
+        existing = uniqueVertices.size();
+        uniqueVertices.put(key, existing);
+      }
+      remap[i] = existing;
+    }
+    if (uniqueVertices.size() == vertexCount) {
+      return mesh;
+    }
+    return remapVertices(mesh, remap, uniqueVertices.size(), remapIndices(mesh.indices, remap));
+  }
+
+  /** Reorders triangles to maximize post-transform vertex cache hits. */
+  static int[] optimizeVertexCache(int[] indices, int vertexCount) {
+    int triangleCount = indices.length / 3;
+
+    // Triangles using each vertex, as ranges into vertexTriangles.
+    int[] remainingValence = new int[vertexCount];
+    for (int index : indices) {
+      remainingValence[index]++;
+    }
+    int[] triangleListOffset = new int[vertexCount + 1];
+    for (int v = 0; v < vertexCount; v++) {
+      triangleListOffset[v + 1] = triangleListOffset[v] + remainingValence[v];
+    }
+    int[] vertexTriangles = new int[indices.length];
+    int[] fill = Arrays.copyOf(triangleListOffset, vertexCount);
+    for (int i = 0; i < indices.length; i++) {
+      vertexTriangles[fill[indices[i]]++] = i / 3;
+    }
+
+    int[] cachePosition = new int[vertexCount];
+    Arrays.fill(cachePosition, -1);
+    float[] vertexScore = new float[vertexCount];
+    for (int v = 0; v < vertexCount; v++) {
+      vertexScore[v] = forsythVertexScore(-1, remainingValence[v]);
+    }
+    boolean[] emitted = new boolean[triangleCount];
+
+    int[] cache = new int[FORSYTH_CACHE_SIZE + 3];
+    int cacheCount = 0;
+    int[] newCache = new int[FORSYTH_CACHE_SIZE + 3];
+    int[] result = new int[indices.length];
+    int nextUnemitted = 0;
+    int bestTriangle = -1;
+
+    for (int out = 0; out < triangleCount; out++) {
+      if (bestTriangle < 0) {
+        // Nothing in the cache is useful any more; start over at the next unused triangle.
+        while (emitted[nextUnemitted]) {
+          nextUnemitted++;
+        }
+        bestTriangle = nextUnemitted;
+      }
+      int t = bestTriangle;
+      emitted[t] = true;
+
+      // Emit the triangle and put its vertices at the front of the cache.
+      int newCacheCount = 0;
+      for (int k = 0; k < 3; k++) {
+        int v = indices[t * 3 + k];
+        result[out * 3 + k] = v;
+        newCache[newCacheCount++] = v;
+        // Remove the triangle from the vertex's list of remaining triangles.
+        int begin = triangleListOffset[v];
+        int end = begin + remainingValence[v];
+        for (int j = begin; j < end; j++) {
+          if (vertexTriangles[j] == t) {
+            vertexTriangles[j] = vertexTriangles[end - 1];
+            break;
+          }
+        }
+        remainingValence[v]--;
+      }
+      for (int i = 0; i < cacheCount; i++) {
+        int v = cache[i];
+        if (v != result[out * 3] && v != result[out * 3 + 1] && v != result[out * 3 + 2]) {
+          newCache[newCacheCount++] = v;
+        }
+      }
+      int[] swap = cache;
+      cache = newCache;
+      newCache = swap;
+      cacheCount = Math.min(newCacheCount, FORSYTH_CACHE_SIZE);
+
+      // Rescore every vertex that is or just was in the cache, and pick the best triangle that
+      // uses one of them.
+      for (int i = 0; i < newCacheCount; i++) {
+        int v = cache[i];
+        cachePosition[v] = i < FORSYTH_CACHE_SIZE ? i : -1;
+        vertexScore[v] = forsythVertexScore(cachePosition[v], remainingValence[v]);
+      }
+      bestTriangle = -1;
+      float bestScore = -1;
+      for (int i = 0; i < newCacheCount; i++) {
+        int v = cache[i];
+        int begin = triangleListOffset[v];
+        int end = begin + remainingValence[v];
+        for (int j = begin; j < end; j++) {
+          int candidate = vertexTriangles[j];
+          float score =
+              vertexScore[indices[candidate * 3]]
+                  + vertexScore[indices[candidate * 3 + 1]]
+                  + vertexScore[indices[candidate * 3 + 2]];
+          if (i < cacheCount && score > bestScore) {
+            bestScore = score;
+            bestTriangle = candidate;
+          }
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Reorders clusters of a cache-optimized triangle list so that triangles facing away from the
+   * mesh center are drawn first and occlude the ones behind them. Returns {@code indices} unchanged
+   * if the reordering would cost too many cache misses.
+   */
+  static int[] optimizeOverdraw(MeshData mesh, int[] indices) {
+    int triangleCount = indices.length / 3;
+    if (triangleCount == 0) {
+      return indices;
+    }
+
+    // A cluster starts wherever all three vertices of a triangle miss the cache, because there the
+    // order no longer depends on the triangles before it.
+    boolean[] clusterStart = new boolean[triangleCount];
+    countCacheMisses(indices, mesh.getVertexCount(), clusterStart);
+    List<Cluster> clusters = new ArrayList<>();
+    for (int t = 0; t < triangleCount; t++) {
+      if (t == 0 || clusterStart[t]) {
+        clusters.add(new Cluster(t));
+      }
+      clusters.get(clusters.size() - 1).end = t + 1;
+    }
+    if (clusters.size() < 2) {
+      return indices;
+    }
+
+    float[] meshCentroid = new float[3];
+    float meshArea = 0;
+    for (Cluster cluster : clusters) {
+      cluster.measure(mesh.positions, indices);
+      for (int axis = 0; axis < 3; axis++) {
+        meshCentroid[axis] += cluster.centroid[axis] * cluster.area;
+      }
+      meshArea += cluster.area;
+    }
+    if (meshArea > 0) {
+      for (int axis = 0; axis < 3; axis++) {
+        meshCentroid[axis] /= meshArea;
+      }
+    }
+    for (Cluster cluster : clusters) {
+      cluster.sortKey =
+          (cluster.centroid[0] - meshCentroid[0]) * cluster.normal[0]
+              + (cluster.centroid[1] - meshCentroid[1]) * cluster.normal[1]
+              + (cluster.centroid[2] - meshCentroid[2]) * cluster.normal[2];
+    }
+    // Stable, so clusters with equal keys keep their cache-friendly relative order.
+    Collections.sort(clusters, (a, b) -> Float.compare(b.sortKey, a.sortKey));
+
+    int[] result = new int[indices.length];
+    int out = 0;
+    for (Cluster cluster : clusters) {
+      int length = (cluster.end - cluster.begin) * 3;
+      System.arraycopy(indices, cluster.begin * 3, result, out, length);
+      out += length;
+    }
+
+    float before = computeAcmr(indices, mesh.getVertexCount());
+    float after = computeAcmr(result, mesh.getVertexCount());
+    return after <= before * OVERDRAW_ACMR_THRESHOLD ? result : indices;
+  }
+
+  /** Renumbers vertices in order of first use and drops unused ones. */
+  static MeshData optimizeVertexFetch(MeshData mesh) {
+    int[] remap = new int[mesh.getVertexCount()];
+    Arrays.fill(remap, -1);
+    int[] indices = new int[mesh.indices.length];
+    int nextVertex = 0;
+    for (int i = 0; i < indices.length; i++) {
+      int v = mesh.indices[i];
+      if (remap[v] < 0) {
+        remap[v] = nextVertex++;
+      }
+      indices[i] = remap[v];
+    }
+    return remapVertices(mesh, remap, nextVertex, indices);
+  }
+
+  private static float forsythVertexScore(int cachePosition, int remainingValence) {
+    if (remainingValence == 0) {
+      // No triangle needs this vertex any more.
+      return -1;
+    }
+    float score = 0;
+    if (cachePosition >= 0) {
+      if (cachePosition < 3) {
+        // Used by the last triangle. Its score is fixed so that it does not simply get reused.
+        score = LAST_TRIANGLE_SCORE;
+      } else {
+        float scaler = 1.0f / (FORSYTH_CACHE_SIZE - 3);
+        score = (float) Math.pow(1.0f - (cachePosition - 3) * scaler, CACHE_DECAY_POWER);
+      }
+    }
+    // Favor vertices with few triangles left, to get rid of them before they leave the cache.
+    score += VALENCE_BOOST_SCALE * (float) Math.pow(remainingValence, -VALENCE_BOOST_POWER);
+    return score;
+  }
+
+  /**
+   * Simulates a FIFO vertex cache over a triangle list.
+   *
+   * @param fullMiss If not null, receives for each triangle whether all its vertices missed.
+   * @return The number of cache misses.
+   */
+  private static int countCacheMisses(int[] indices, int vertexCount, boolean[] fullMiss) {
+    // Each vertex remembers the miss count at which it entered the cache; it is still cached as
+    // long as fewer than SIMULATED_CACHE_SIZE misses happened since.
+    int[] enteredAt = new int[vertexCount];
+    Arrays.fill(enteredAt, Integer.MIN_VALUE / 2);
+    int misses = 0;
+    for (int i = 0; i < indices.length; i += 3) {
+      int triangleMisses = 0;
+      for (int k = 0; k < 3; k++) {
+        int v = indices[i + k];
+        if (misses - enteredAt[v] >= SIMULATED_CACHE_SIZE) {
+          enteredAt[v] = misses++;
+          triangleMisses++;
+        }
+      }
+      if (fullMiss != null) {
+        fullMiss[i / 3] = triangleMisses == 3;
+      }
+    }
+    return misses;
+  }
+
+  private static int[] remapIndices(int[] indices, int[] remap) {
+    int[] result = new int[indices.length];
+    for (int i = 0; i < indices.length; i++) {
+      result[i] = remap[indices[i]];
+    }
+    return result;
+  }
+
+  /** Moves each vertex {@code v} to {@code remap[v]}, skipping vertices mapped to -1. */
+  private static MeshData remapVertices(
+      MeshData mesh, int[] remap, int newVertexCount, int[] newIndices) {
+    float[] positions = new float[newVertexCount * MeshData.COORDS_PER_POSITION];
+    float[] texCoords = new float[newVertexCount * MeshData.COORDS_PER_TEXCOORD];
+    float[] normals = new float[newVertexCount * MeshData.COORDS_PER_NORMAL];
+    for (int v = 0; v < remap.length; v++) {
+      int target = remap[v];
+      if (target < 0) {
+        continue;
+      }
+      System.arraycopy(
+          mesh.positions,
+          v * MeshData.COORDS_PER_POSITION,
+          positions,
+          target * MeshData.COORDS_PER_POSITION,
+          MeshData.COORDS_PER_POSITION);
+      System.arraycopy(
+          mesh.texCoords,
+          v * MeshData.COORDS_PER_TEXCOORD,
+          texCoords,
+          target * MeshData.COORDS_PER_TEXCOORD,
+          MeshData.COORDS_PER_TEXCOORD);
+      System.arraycopy(
+          mesh.normals,
+          v * MeshData.COORDS_PER_NORMAL,
+          normals,
+          target * MeshData.COORDS_PER_NORMAL,
+          MeshData.COORDS_PER_NORMAL);
+    }
+    return new MeshData(positions, texCoords, normals, newIndices, mesh.lods);
+  }
+
+  /** The bit patterns of all attributes of one vertex. */
+  private static final class VertexKey {
+    private final int[] bits = new int[FLOATS_PER_VERTEX];
+    private final int hashCode;
+
+    VertexKey(MeshData mesh, int vertex) {
+      int i = 0;
+      i = appendBits(mesh.positions, vertex, MeshData.COORDS_PER_POSITION, i);
+      i = appendBits(mesh.texCoords, vertex, MeshData.COORDS_PER_TEXCOORD, i);
+      appendBits(mesh.normals, vertex, MeshData.COORDS_PER_NORMAL, i);
+      hashCode = Arrays.hashCode(bits);
+    }
+
+    private int appendBits(float[] attribute, int vertex, int size, int offset) {
+      for (int c = 0; c < size; c++) {
+        bits[offset + c] = Float.floatToIntBits(attribute[vertex * size + c]);
+      }
+      return offset + size;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      return other instanceof VertexKey && Arrays.equals(bits, ((VertexKey) other).bits);
+    }
+
+    @Override
+    public int hashCode() {
+      return hashCode;
+    }
+  }
+
+  /** A run of consecutive triangles that is kept together when sorting for overdraw. */
+  private static final class Cluster {
+    final int begin;
+    int end;
+    final float[] centroid = new float[3];
+    final float[] normal = new float[3];
+    float area;
+    float sortKey;
+
+    Cluster(int begin) {
+      this.begin = begin;
+    }
+
+    /** Computes the area-weighted centroid, the unit normal and the area of the cluster. */
+    void measure(float[] positions, int[] indices) {
+      for (int t = begin; t < end; t++) {
+        int a = indices[t * 3] * 3;
+        int b = indices[t * 3 + 1] * 3;
+        int c = indices[t * 3 + 2] * 3;
+        float e1x = positions[b] - positions[a];
+        float e1y = positions[b + 1] - positions[a + 1];
+        float e1z = positions[b + 2] - positions[a + 2];
+        float e2x = positions[c] - positions[a];
+        float e2y = positions[c + 1] - positions[a + 1];
+        float e2z = positions[c + 2] - positions[a + 2];
+        // The cross product's length is twice the triangle area.
+        float nx = e1y * e2z - e1z * e2y;
+        float ny = e1z * e2x - e1x * e2z;
+        float nz = e1x * e2y - e1y * e2x;
+        float triangleArea = 0.5f * (float) Math.sqrt(nx * nx + ny * ny + nz * nz);
+        normal[0] += nx;
+        normal[1] += ny;
+        normal[2] += nz;
+        for (int axis = 0; axis < 3; axis++) {
+          centroid[axis] +=
+              (positions[a + axis] + positions[b + axis] + positions[c + axis]) / 3 * triangleArea;
+        }
+        area += triangleArea;
+      }
+      if (area > 0) {
+        for (int axis = 0; axis < 3; axis++) {
+          centroid[axis] /= area;
+        }
+      }
+      float length =
+          (float) Math.sqrt(normal[0] * normal[0] + normal[1] * normal[1] + normal[2] * normal[2]);
+      if (length > 0) {
+        for (int axis = 0; axis < 3; axis++) {
+          normal[axis] /= length;
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright 2018 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.examples.java.common.assets;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The processing every imported mesh goes through before it is packed into a {@code .mesh} file.
+ * Shared by {@link MeshConverter} at build time and the app's OBJ fallback at runtime, so that
+ * both produce the same geometry.
+ */
+public final class MeshPipeline {
+  private MeshPipeline() {}
+
+  /**
+   * Welds the mesh's duplicate vertices and splits it into submeshes that fit 16-bit indices, then
+   * optimizes each with {@link MeshOptimizer} and gives it levels of detail with {@link
+   * MeshSimplifier}.
+   *
+   * @return The submeshes, ready for {@link BinaryMeshWriter#pack(List, boolean)}.
+   */
+  public static List<MeshData> process(MeshData imported) {
+    List<MeshData> submeshes = new ArrayList<>();
+    // Weld first, so that only meshes that really are too large get split.
+    MeshData welded = MeshOptimizer.weldVertices(imported);
+    for (MeshData part : MeshSplitter.split(welded, MeshFormat.MAX_VERTICES)) {
+      submeshes.add(MeshSimplifier.generateLods(MeshOptimizer.optimize(part)));
+    }
+    return submeshes;
+  }
+}
@@ -0,0 +1,497 @@
+/*
+ * Copyright 2018 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.examples.java.common.assets;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Generates levels of detail with quadric error metric edge collapses (Garland and Heckbert,
+ * "Surface Simplification Using Quadric Error Metrics").
+ *
+ * <p>Collapses are half-edge collapses: one vertex position moves onto a neighboring one. Coarser
+ * levels therefore only reference vertices of the full mesh and share its vertex buffer, and each
+ * level is just another range of the index buffer. Vertices on texture or normal seams are mapped
+ * to the vertex on the other side of the collapsed edge whose attributes match best.
+ */
+public final class MeshSimplifier {
+  /** Number of levels generated by {@link #generateLods(MeshData)}, including the full mesh. */
+  public static final int DEFAULT_LOD_COUNT = 4;
+
+  /** Each level keeps this fraction of the triangles of the previous one. */
+  private static final float LOD_TRIANGLE_RATIO = 0.5f;
+
+  /** Levels with fewer triangles than this are not worth generating. */
+  private static final int MIN_LOD_TRIANGLES = 32;
+
+  /** Weight of the planes that keep open borders from shrinking, relative to face planes. */
+  private static final double BORDER_WEIGHT = 10;
+
+  /** Smallest cosine between a face's normals before and after a collapse; rejects flips. */
+  private static final double MIN_FLIP_COSINE = 0.2;
+
+  private MeshSimplifier() {}
+
+  /** Same as {@link #generateLods(MeshData, int)} with {@link #DEFAULT_LOD_COUNT} levels. */
+  public static MeshData generateLods(MeshData mesh) {
+    return generateLods(mesh, DEFAULT_LOD_COUNT);
+  }
+
+  /**
+   * Appends up to {@code lodCount - 1} simplified levels to a single-level mesh, each with about
+   * half the triangles of the previous one. Each level is ordered for the vertex cache. Fewer
+   * levels are generated if the mesh is too small or cannot be simplified further.
+   */
+  public static MeshData generateLods(MeshData mesh, int lodCount) {
+    if (mesh.lods.length != 1) {
+      throw new IllegalArgumentException("Mesh already has levels of detail.");
+    }
+    int triangleCount = mesh.getIndexCount() / 3;
+    List<MeshLod> lods = new ArrayList<>();
+    List<int[]> lodIndices = new ArrayList<>();
+    lods.add(new MeshLod(0, mesh.getIndexCount(), 0));
+    lodIndices.add(mesh.indices);
+
+    Simplification simplification = new Simplification(mesh);
+    int totalIndices = mesh.getIndexCount();
+    int target = triangleCount;
+    while (lods.size() < lodCount) {
+      target = (int) (target * LOD_TRIANGLE_RATIO);
+      if (target < MIN_LOD_TRIANGLES || !simplification.collapseTo(target)) {
+        break;
+      }
+      int[] indices =
+          MeshOptimizer.optimizeVertexCache(simplification.getIndices(), mesh.getVertexCount());
+      lods.add(new MeshLod(totalIndices, indices.length, simplification.getRelativeError()));
+      lodIndices.add(indices);
+      totalIndices += indices.length;
+    }
+
+    int[] allIndices = new int[totalIndices];
+    for (int i = 0; i < lods.size(); i++) {
+      int[] indices = lodIndices.get(i);
+      System.arraycopy(indices, 0, allIndices, lods.get(i).firstIndex, indices.length);
+    }
+    return new MeshData(
+        mesh.positions,
+        mesh.texCoords,
+        mesh.normals,
+        allIndices,
+        lods.toArray(new MeshLod[0]));
+  }
+
+  /** State of a progressive simplification of one mesh. */
+  private static final class Simplification {
+    private final MeshData mesh;
+    private final float radius;
+
+    // Distinct positions; render vertices with the same position share one.
+    private final int[] positionOf;
+    private final double[][] quadrics;
+    private final boolean[] removed;
+    private final int[] version;
+    private final List<List<Integer>> trianglesOf = new ArrayList<>();
+    private final List<List<Integer>> verticesOf = new ArrayList<>();
+
+    // Triangles as render vertex indices, and whether they collapsed.
+    private final int[] triangles;
+    private final boolean[] dead;
+    private int liveTriangles;
+
+    private final PriorityQueue<Collapse> queue = new PriorityQueue<>();
+    private double maxError;
+
+    Simplification(MeshData mesh) {
+      this.mesh = mesh;
+      float[] bounds = mesh.computeBounds();
+      float dx = bounds[3] - bounds[0];
+      float dy = bounds[4] - bounds[1];
+      float dz = bounds[5] - bounds[2];
+      radius = 0.5f * (float) Math.sqrt(dx * dx + dy * dy + dz * dz);
+
+      int vertexCount = mesh.getVertexCount();
+      positionOf = new int[vertexCount];
+      Map<List<Float>, Integer> positionIds = new HashMap<>();
+      for (int v = 0; v < vertexCount; v++) {
+        List<Float> key =
+            Arrays.asList(
+                mesh.positions[v * 3], mesh.positions[v * 3 + 1], mesh.positions[v * 3 + 2]);
+        Integer id = positionIds.get(key);
+        if (id == null) {
+          id = positionIds.size();
+          positionIds.put(key, id);
+          verticesOf.add(new ArrayList<>());
+          trianglesOf.add(new ArrayList<>());
+        }
+        positionOf[v] = id;
+        verticesOf.get(id).add(v);
+      }
+      int positionCount = positionIds.size();
+      quadrics = new double[positionCount][10];
+      removed = new boolean[positionCount];
+      version = new int[positionCount];
+
+      triangles = mesh.indices.clone();
+      dead = new boolean[triangles.length / 3];
+      Map<Long, Integer> edgeUses = new HashMap<>();
+      for (int t = 0; t < dead.length; t++) {
+        int a = positionOf[triangles[t * 3]];
+        int b = positionOf[triangles[t * 3 + 1]];
+        int c = positionOf[triangles[t * 3 + 2]];
+        if (a == b || b == c || c == a) {
+          dead[t] = true;
+          continue;
+        }
+        liveTriangles++;
+        for (int k = 0; k < 3; k++) {
+          int p = positionOf[triangles[t * 3 + k]];
+          trianglesOf.get(p).add(t);
+          addPlaneQuadric(quadrics[p], t);
+          int next = positionOf[triangles[t * 3 + (k + 1) % 3]];
+          edgeUses.merge(edgeKey(p, next), 1, Integer::sum);
+        }
+      }
+
+      // Constrain open borders with planes perpendicular to their faces.
+      for (int t = 0; t < dead.length; t++) {
+        if (dead[t]) {
+          continue;
+        }
+        for (int k = 0; k < 3; k++) {
+          int p = positionOf[triangles[t * 3 + k]];
+          int q = positionOf[triangles[t * 3 + (k + 1) % 3]];
+          if (edgeUses.get(edgeKey(p, q)) == 1) {
+            addBorderQuadric(t, p, q);
+          }
+        }
+      }
+
+      for (int t = 0; t < dead.length; t++) {
+        if (!dead[t]) {
+          for (int k = 0; k < 3; k++) {
+            int p = positionOf[triangles[t * 3 + k]];
+            int q = positionOf[triangles[t * 3 + (k + 1) % 3]];
+            // Interior edges are seen from both of their triangles; queue them once.
+            if (p < q || edgeUses.get(edgeKey(p, q)) == 1) {
+              enqueue(p, q);
+            }
+          }
+        }
+      }
+    }
+
+    /**
+     * Collapses edges until at most {@code targetTriangles} remain.
+     *
+     * @return Whether any triangle was removed.
+     */
+    boolean collapseTo(int targetTriangles) {
+      int before = liveTriangles;
+      while (liveTriangles > targetTriangles && !queue.isEmpty()) {
+        Collapse collapse = queue.poll();
+        if (removed[collapse.from]
+            || removed[collapse.to]
+            || version[collapse.from] != collapse.fromVersion
+            || version[collapse.to] != collapse.toVersion) {
+          continue;
+        }
+        if (flipsTriangle(collapse.from, collapse.to)) {
+          continue;
+        }
+        apply(collapse);
+      }
+      return liveTriangles < before;
+    }
+
+    /** Returns the indices of the remaining triangles. */
+    int[] getIndices() {
+      int[] result = new int[liveTriangles * 3];
+      int out = 0;
+      for (int t = 0; t < dead.length; t++) {
+        if (!dead[t]) {
+          System.arraycopy(triangles, t * 3, result, out, 3);
+          out += 3;
+        }
+      }
+      return result;
+    }
+
+    /** Returns the largest error introduced so far relative to the bounding sphere radius. */
+    float getRelativeError() {
+      return radius > 0 ? (float) (Math.sqrt(maxError) / radius) : 0;
+    }
+
+    private void enqueue(int p, int q) {
+      double costPQ = evaluate(p, q);
+      double costQP = evaluate(q, p);
+      if (costPQ <= costQP) {
+        queue.add(new Collapse(p, q, costPQ, version[p], version[q]));
+      } else {
+        queue.add(new Collapse(q, p, costQP, version[q], version[p]));
+      }
+    }
+
+    /** Error of moving position {@code from} onto position {@code to}. */
+    private double evaluate(int from, int to) {
+      double[] point = position(verticesOf.get(to).get(0));
+      double x = point[0];
+      double y = point[1];
+      double z = point[2];
+      double[] a = quadrics[from];
+      double[] b = quadrics[to];
+      // Quadric coefficients: xx, xy, xz, xw, yy, yz, yw, zz, zw, ww.
+      double error =
+          (a[0] + b[0]) * x * x
+              + 2 * (a[1] + b[1]) * x * y
+              + 2 * (a[2] + b[2]) * x * z
+              + 2 * (a[3] + b[3]) * x
+              + (a[4] + b[4]) * y * y
+              + 2 * (a[5] + b[5]) * y * z
+              + 2 * (a[6] + b[6]) * y
+              + (a[7] + b[7]) * z * z
+              + 2 * (a[8] + b[8]) * z
+              + (a[9] + b[9]);
+      return Math.max(error, 0);
+    }
+
+    private boolean flipsTriangle(int from, int to) {
+      int target = verticesOf.get(to).get(0);
+      for (int t : trianglesOf.get(from)) {
+        if (dead[t] || containsPosition(t, to)) {
+          continue;
+        }
+        double[] before = faceNormal(t, -1, -1);
+        double[] after = faceNormal(t, from, target);
+        double lengths = Math.sqrt(dot(before, before)) * Math.sqrt(dot(after, after));
+        if (lengths == 0 || dot(before, after) < MIN_FLIP_COSINE * lengths) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    private void apply(Collapse collapse) {
+      int from = collapse.from;
+      int to = collapse.to;
+      maxError = Math.max(maxError, collapse.cost);
+
+      // Map each vertex at the removed position to a vertex at the kept one. Along the collapsed
+      // edge the matching vertex is known from the shared triangles; elsewhere the closest
+      // attributes are used.
+      Map<Integer, Integer> remap = new HashMap<>();
+      for (int t : trianglesOf.get(from)) {
+        if (dead[t] || !containsPosition(t, to)) {
+          continue;
+        }
+        int fromVertex = -1;
+        int toVertex = -1;
+        for (int k = 0; k < 3; k++) {
+          int v = triangles[t * 3 + k];
+          if (positionOf[v] == from) {
+            fromVertex = v;
+          } else if (positionOf[v] == to) {
+            toVertex = v;
+          }
+        }
+        remap.putIfAbsent(fromVertex, toVertex);
+      }
+      for (int v : verticesOf.get(from)) {
+        if (!remap.containsKey(v)) {
+          remap.put(v, closestVertex(v, verticesOf.get(to)));
+        }
+      }
+
+      List<Integer> toTriangles = trianglesOf.get(to);
+      for (int t : trianglesOf.get(from)) {
+        if (dead[t]) {
+          continue;
+        }
+        if (containsPosition(t, to)) {
+          dead[t] = true;
+          liveTriangles--;
+          continue;
+        }
+        for (int k = 0; k < 3; k++) {
+          Integer replacement = remap.get(triangles[t * 3 + k]);
+          if (replacement != null) {
+            triangles[t * 3 + k] = replacement;
+          }
+        }
+        toTriangles.add(t);
+      }
+      // Triangles that became degenerate were marked dead; drop them from the kept position too.
+      toTriangles.removeIf(t -> dead[t]);
+
+      removed[from] = true;
+      trianglesOf.get(from).clear();
+      for (int i = 0; i < 10; i++) {
+        quadrics[to][i] += quadrics[from][i];
+      }
+      version[to]++;
+
+      // The version bump invalidates queued collapses of the kept position, whose quadric changed;
+      // requeue every edge around it with its new cost.
+      List<Integer> neighbors = new ArrayList<>();
+      for (int t : toTriangles) {
+        for (int k = 0; k < 3; k++) {
+          int p = positionOf[triangles[t * 3 + k]];
+          if (p != to && !neighbors.contains(p)) {
+            neighbors.add(p);
+          }
+        }
+      }
+      for (int p : neighbors) {
+        enqueue(p, to);
+      }
+    }
+
+    private boolean containsPosition(int t, int position) {
+      return positionOf[triangles[t * 3]] == position
+          || positionOf[triangles[t * 3 + 1]] == position
+          || positionOf[triangles[t * 3 + 2]] == position;
+    }
+
+    private int closestVertex(int v, List<Integer> candidates) {
+      int best = candidates.get(0);
+      float bestDistance = Float.MAX_VALUE;
+      for (int candidate : candidates) {
+        float distance = 0;
+        for (int c = 0; c < 2; c++) {
+          float d = mesh.texCoords[v * 2 + c] - mesh.texCoords[candidate * 2 + c];
+          distance += d * d;
+        }
+        for (int c = 0; c < 3; c++) {
+          float d = mesh.normals[v * 3 + c] - mesh.normals[candidate * 3 + c];
+          distance += d * d;
+        }
+        if (distance < bestDistance) {
+          bestDistance = distance;
+          best = candidate;
+        }
+      }
+      return best;
+    }
+
+    /**
+     * Returns the unnormalized normal of triangle {@code t}, with any vertex at position {@code
+     * replacedPosition} moved to the position of vertex {@code replacement}.
+     */
+    private double[] faceNormal(int t, int replacedPosition, int replacement) {
+      double[][] corners = new double[3][];
+      for (int k = 0; k < 3; k++) {
+        int v = triangles[t * 3 + k];
+        if (positionOf[v] == replacedPosition) {
+          v = replacement;
+        }
+        corners[k] = position(v);
+      }
+      return cross(subtract(corners[1], corners[0]), subtract(corners[2], corners[0]));
+    }
+
+    private void addPlaneQuadric(double[] quadric, int t) {
+      double[] normal = faceNormal(t, -1, -1);
+      double length = Math.sqrt(dot(normal, normal));
+      if (length == 0) {
+        return;
+      }
+      int v = triangles[t * 3];
+      addPlane(quadric, normal, length, v, 1);
+    }
+
+    private void addBorderQuadric(int t, int p, int q) {
+      double[] faceNormal = faceNormal(t, -1, -1);
+      int pv = verticesOf.get(p).get(0);
+      int qv = verticesOf.get(q).get(0);
+      double[] normal = cross(subtract(position(qv), position(pv)), faceNormal);
+      double length = Math.sqrt(dot(normal, normal));
+      if (length == 0) {
+        return;
+      }
+      addPlane(quadrics[p], normal, length, pv, BORDER_WEIGHT);
+      addPlane(quadrics[q], normal, length, pv, BORDER_WEIGHT);
+    }
+
+    /** Adds the squared distance to the plane through vertex {@code v} with the given normal. */
+    private void addPlane(double[] quadric, double[] normal, double length, int v, double weight) {
+      double a = normal[0] / length;
+      double b = normal[1] / length;
+      double c = normal[2] / length;
+      double[] point = position(v);
+      double d = -(a * point[0] + b * point[1] + c * point[2]);
+      quadric[0] += weight * a * a;
+      quadric[1] += weight * a * b;
+      quadric[2] += weight * a * c;
+      quadric[3] += weight * a * d;
+      quadric[4] += weight * b * b;
+      quadric[5] += weight * b * c;
+      quadric[6] += weight * b * d;
+      quadric[7] += weight * c * c;
+      quadric[8] += weight * c * d;
+      quadric[9] += weight * d * d;
+    }
+
+    private double[] position(int v) {
+      return new double[] {
+        mesh.positions[v * 3], mesh.positions[v * 3 + 1], mesh.positions[v * 3 + 2]
+      };
+    }
+
+    /** Key of the undirected edge between two positions. */
+    private static long edgeKey(int p, int q) {
+      return ((long) Math.min(p, q) << 32) | Math.max(p, q);
+    }
+  }
+
+  /** A candidate collapse of position {@code from} onto position {@code to}. */
+  private static final class Collapse implements Comparable<Collapse> {
+    final int from;
+    final int to;
+    final double cost;
+    final int fromVersion;
+    final int toVersion;
+
+    Collapse(int from, int to, double cost, int fromVersion, int toVersion) {
+      this.from = from;
+      this.to = to;
+      this.cost = cost;
+      this.fromVersion = fromVersion;
+      this.toVersion = toVersion;
+    }
+
+    @Override
+    public int compareTo(Collapse other) {
+      return Double.compare(cost, other.cost);
+    }
+  }
+
+  private static double dot(double[] a, double[] b) {
+    return a[0] * b[0] + a[1] * b[1] + a[2] * b[2];
+  }
+
+  private static double[] subtract(double[] a, double[] b) {
+    return new double[] {a[0] - b[0], a[1] - b[1], a[2] - b[2]};
+  }
+
+  private static double[] cross(double[] a, double[] b) {
+    return new double[] {
+      a[1] * b[2] - a[2] * b[1], a[2] * b[0] - a[0] * b[2], a[0] * b[1] - a[1] * b[0]
+    };
+  }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2018 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.examples.java.common.assets;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Splits meshes that have more vertices than 16-bit indices can address. Triangles are divided
+ * recursively at the median of their centroids along the longest axis, so every part is a
+ * spatially compact piece of the model with a tight bounding box.
+ */
+public final class MeshSplitter {
+  private MeshSplitter() {}
+
+  /**
+   * Splits a single-level mesh into parts of at most {@code maxVertices} vertices each. Returns the
+   * mesh itself if it already fits. Vertices on the cuts are duplicated into both parts.
+   */
+  public static List<MeshData> split(MeshData mesh, int maxVertices) {
+    if (mesh.lods.length != 1) {
+      throw new IllegalArgumentException("Split meshes before generating levels of detail.");
+    }
+    List<MeshData> parts = new ArrayList<>();
+    if (mesh.getVertexCount() <= maxVertices) {
+      parts.add(mesh);
+      return parts;
+    }
+    int triangleCount = mesh.getIndexCount() / 3;
+    Integer[] triangles = new Integer[triangleCount];
+    for (int t = 0; t < triangleCount; t++) {
+      triangles[t] = t;
+    }
+    splitRecursively(mesh, triangles, maxVertices, parts);
+    return parts;
+  }
+
+  private static void splitRecursively(
+      MeshData mesh, Integer[] triangles, int maxVertices, List<MeshData> parts) {
+    if (countVertices(mesh, triangles) <= maxVertices) {
+      parts.add(extract(mesh, triangles));
+      return;
+    }
+
+    // Sort by centroid along the axis in which the centroids spread the most.
+    float[] min = {Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE};
+    float[] max = {-Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE};
+    for (int t : triangles) {
+      for (int axis = 0; axis < 3; axis++) {
+        float centroid = centroid(mesh, t, axis);
+        min[axis] = Math.min(min[axis], centroid);
+        max[axis] = Math.max(max[axis], centroid);
+      }
+    }
+    int longestAxis = 0;
+    for (int axis = 1; axis < 3; axis++) {
+      if (max[axis] - min[axis] > max[longestAxis] - min[longestAxis]) {
+        longestAxis = axis;
+      }
+    }
+    int axis = longestAxis;
+    Arrays.sort(triangles, (a, b) -> Float.compare(centroid(mesh, a, axis), centroid(mesh, b, axis)));
+
+    int half = triangles.length / 2;
+    splitRecursively(mesh, Arrays.copyOfRange(triangles, 0, half), maxVertices, parts);
+    splitRecursively(
+        mesh, Arrays.copyOfRange(triangles, half, triangles.length), maxVertices, parts);
+  }
+
+  /** Three times the centroid coordinate, which orders triangles the same as the centroid. */
+  private static float centroid(MeshData mesh, int triangle, int axis) {
+    float sum = 0;
+    for (int k = 0; k < 3; k++) {
+      sum += mesh.positions[mesh.indices[triangle * 3 + k] * MeshData.COORDS_PER_POSITION + axis];
+    }
+    return sum;
+  }
+
+  private static int countVertices(MeshData mesh, Integer[] triangles) {
+    boolean[] used = new boolean[mesh.getVertexCount()];
+    int count = 0;
+    for (int t : triangles) {
+      for (int k = 0; k < 3; k++) {
+        int v = mesh.indices[t * 3 + k];
+        if (!used[v]) {
+          used[v] = true;
+          count++;
+        }
+      }
+    }
+    return count;
+  }
+
+  /** Copies the given triangles and the vertices they use into a new mesh. */
+  private static MeshData extract(MeshData mesh, Integer[] triangles) {
+    int[] remap = new int[mesh.getVertexCount()];
+    Arrays.fill(remap, -1);
+    int[] indices = new int[triangles.length * 3];
+    int vertexCount = 0;
+    for (int i = 0; i < triangles.length; i++) {
+      for (int k = 0; k < 3; k++) {
+        int v = mesh.indices[triangles[i] * 3 + k];
+        if (remap[v] < 0) {
+          remap[v] = vertexCount++;
+        }
+        indices[i * 3 + k] = remap[v];
+      }
+    }
+    float[] positions = new float[vertexCount * MeshData.COORDS_PER_POSITION];
+    float[] texCoords = new float[vertexCount * MeshData.COORDS_PER_TEXCOORD];
+    float[] normals = new float[vertexCount * MeshData.COORDS_PER_NORMAL];
+    for (int v = 0; v < remap.length; v++) {
+      int target = remap[v];
+      if (target >= 0) {
+        copyVertex(mesh.positions, v, positions, target, MeshData.COORDS_PER_POSITION);
+        copyVertex(mesh.texCoords, v, texCoords, target, MeshData.COORDS_PER_TEXCOORD);
+        copyVertex(mesh.normals, v, normals, target, MeshData.COORDS_PER_NORMAL);
+      }
+    }
+    return new MeshData(positions, texCoords, normals, indices);
+  }
+
+  private static void copyVertex(float[] from, int fromVertex, float[] to, int toVertex, int size) {
+    System.arraycopy(from, fromVertex * size, to, toVertex * size, size);
+  }
+}
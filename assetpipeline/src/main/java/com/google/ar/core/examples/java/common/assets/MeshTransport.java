@@ -0,0 +1,144 @@
+/*
+ * Copyright 2018 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.examples.java.common.assets;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Compressed form of a {@code .mesh} file for downloading models, written by {@link
+ * MeshConverter} with {@code --transport}.
+ *
+ * <p>A transport file is the 4-byte magic {@link #MAGIC}, the big-endian size of the mesh file,
+ * and the deflated mesh file. Before deflating, the quantized vertex data is transposed into one
+ * stream per byte of the vertex and delta-coded along each stream, and the indices are
+ * delta-coded, which lets deflate find the regularity of neighboring vertices and triangles. The
+ * header and tables are left as they are.
+ */
+public final class MeshTransport {
+  /** File extension of transport files, including the dot. */
+  public static final String FILE_EXTENSION = ".meshz";
+
+  public static final int MAGIC = 0x484D545A; // "HMTZ" when written big-endian.
+
+  /** Largest mesh file a transport file may expand to, against corrupt or hostile downloads. */
+  private static final int MAX_MESH_SIZE_BYTES = 64 * 1024 * 1024;
+
+  private MeshTransport() {}
+
+  /**
+   * Writes a mesh in the transport form.
+   *
+   * @param mesh A buffer laid out like a {@code .mesh} file, such as from {@link
+   *     BinaryMeshWriter#pack}. It is not modified.
+   */
+  public static void write(ByteBuffer mesh, OutputStream out) throws IOException {
+    byte[] data = new byte[mesh.remaining()];
+    mesh.duplicate().get(data);
+    filter(data, true);
+
+    out.write(new byte[] {'H', 'M', 'T', 'Z'});
+    out.write(
+        new byte[] {
+          (byte) (data.length >>> 24), (byte) (data.length >>> 16),
+          (byte) (data.length >>> 8), (byte) data.length
+        });
+    Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+    try {
+      DeflaterOutputStream deflated = new DeflaterOutputStream(out, deflater);
+      deflated.write(data);
+      deflated.finish();
+    } finally {
+      deflater.end();
+    }
+  }
+
+  /**
+   * Reads a transport file back into the {@code .mesh} layout.
+   *
+   * @return A direct buffer positioned at 0, ready for {@link BinaryMesh#parse}.
+   * @throws IOException If the data is not a valid transport file.
+   */
+  public static ByteBuffer read(InputStream in) throws IOException {
+    DataInputStream header = new DataInputStream(in);
+    if (header.readInt() != MAGIC) {
+      throw new IOException("Not a mesh transport file.");
+    }
+    int size = header.readInt();
+    if (size < MeshFormat.HEADER_SIZE_BYTES || size > MAX_MESH_SIZE_BYTES) {
+      throw new IOException("Corrupt mesh transport header.");
+    }
+    byte[] data = new byte[size];
+    new DataInputStream(new InflaterInputStream(in)).readFully(data);
+    filter(data, false);
+    ByteBuffer buffer = ByteBuffer.allocateDirect(size).order(MeshFormat.BYTE_ORDER);
+    buffer.put(data).rewind();
+    return buffer;
+  }
+
+  /** Applies or reverts the vertex and index filters in place. */
+  private static void filter(byte[] data, boolean encode) throws IOException {
+    ByteBuffer header = ByteBuffer.wrap(data).order(MeshFormat.BYTE_ORDER);
+    int vertexCount = header.getInt(8);
+    int indexCount = header.getInt(16);
+    int vertexDataOffset = header.getInt(20);
+    int indexDataOffset = header.getInt(24);
+    int stride = MeshFormat.VERTEX_STRIDE_BYTES;
+    if (header.getInt(0) != MeshFormat.MAGIC
+        || vertexCount < 0
+        || indexCount < 0
+        || vertexDataOffset < MeshFormat.HEADER_SIZE_BYTES
+        || (long) vertexDataOffset + (long) vertexCount * stride > indexDataOffset
+        || (long) indexDataOffset + (long) indexCount * MeshFormat.BYTES_PER_INDEX > data.length) {
+      throw new IOException("Corrupt mesh header.");
+    }
+
+    // Vertices: interleaved <-> one delta-coded stream per byte of the vertex.
+    byte[] vertices = new byte[vertexCount * stride];
+    for (int b = 0; b < stride; b++) {
+      byte previous = 0;
+      for (int v = 0; v < vertexCount; v++) {
+        int interleaved = vertexDataOffset + v * stride + b;
+        int transposed = b * vertexCount + v;
+        if (encode) {
+          vertices[transposed] = (byte) (data[interleaved] - previous);
+          previous = data[interleaved];
+        } else {
+          previous = (byte) (previous + data[vertexDataOffset + transposed]);
+          vertices[v * stride + b] = previous;
+        }
+      }
+    }
+    System.arraycopy(vertices, 0, data, vertexDataOffset, vertices.length);
+
+    // Indices: little-endian 16-bit values <-> their differences modulo 2^16.
+    int previous = 0;
+    for (int i = 0; i < indexCount; i++) {
+      int offset = indexDataOffset + i * MeshFormat.BYTES_PER_INDEX;
+      int value = (data[offset] & 0xFF) | (data[offset + 1] & 0xFF) << 8;
+      int result = encode ? value - previous : value + previous;
+      previous = encode ? value : result;
+      data[offset] = (byte) result;
+      data[offset + 1] = (byte) (result >> 8);
+    }
+  }
+}
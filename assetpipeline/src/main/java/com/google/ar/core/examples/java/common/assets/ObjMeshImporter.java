@@ -0,0 +1,75 @@
+/*
+ * Copyright 2018 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.examples.java.common.assets;
+
+import de.javagl.obj.Obj;
+import de.javagl.obj.ObjData;
+import de.javagl.obj.ObjReader;
+import de.javagl.obj.ObjUtils;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+
+/** Reads Wavefront OBJ files into {@link MeshData}. */
+public final class ObjMeshImporter {
+  private ObjMeshImporter() {}
+
+  /**
+   * Parses an OBJ stream and converts it to a single-indexed triangle mesh.
+   *
+   * @param objInputStream Stream with the OBJ text. It is not closed by this method.
+   */
+  public static MeshData importObj(InputStream objInputStream) throws IOException {
+    Obj obj = ObjReader.read(objInputStream);
+
+    // Prepare the Obj so that its structure is suitable for
+    // rendering with OpenGL:
+    // 1. Triangulate it
+    // 2. Make sure that texture coordinates are not ambiguous
+    // 3. Make sure that normals are not ambiguous
+    // 4. Convert it to single-indexed data
+    obj = ObjUtils.convertToRenderable(obj);
+
+    int vertexCount = obj.getNumVertices();
+    IntBuffer indices = ObjData.getFaceVertexIndices(obj, 3);
+    FloatBuffer positions = ObjData.getVertices(obj);
+    FloatBuffer texCoords = ObjData.getTexCoords(obj, 2);
+    FloatBuffer normals = ObjData.getNormals(obj);
+
+    // Models without texture coordinates or normals (such as letter.obj, which has no UVs) are
+    // padded with zeros so that every vertex has the full attribute set.
+    return new MeshData(
+        toArray(positions, vertexCount * MeshData.COORDS_PER_POSITION),
+        toArray(texCoords, vertexCount * MeshData.COORDS_PER_TEXCOORD),
+        toArray(normals, vertexCount * MeshData.COORDS_PER_NORMAL),
+        toArray(indices));
+  }
+
+  private static float[] toArray(FloatBuffer buffer, int length) {
+    float[] array = new float[length];
+    buffer.rewind();
+    buffer.get(array, 0, Math.min(length, buffer.remaining()));
+    return array;
+  }
+
+  private static int[] toArray(IntBuffer buffer) {
+    int[] array = new int[buffer.limit()];
+    buffer.rewind();
+    buffer.get(array);
+    return array;
+  }
+}
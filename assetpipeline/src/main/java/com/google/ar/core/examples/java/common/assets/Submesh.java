@@ -0,0 +1,44 @@
+/*
+ * Copyright 2018 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.examples.java.common.assets;
+
+/**
+ * A part of a mesh small enough for 16-bit indices. Submeshes share the vertex and index buffers
+ * of their mesh; each owns a contiguous range of the vertices, which its indices are relative to.
+ */
+public final class Submesh {
+  /** Offset of the first vertex of this submesh in the mesh's vertex buffer. */
+  public final int firstVertex;
+  /** Number of vertices of this submesh. */
+  public final int vertexCount;
+  /**
+   * {@code minX, minY, minZ, maxX, maxY, maxZ} of this submesh in model space, for culling it on
+   * its own. Must not be modified.
+   */
+  public final float[] bounds;
+  /**
+   * Index ranges of this submesh for each of the mesh's levels of detail, finest first. Must not
+   * be modified.
+   */
+  public final MeshLod[] lods;
+
+  public Submesh(int firstVertex, int vertexCount, float[] bounds, MeshLod[] lods) {
+    this.firstVertex = firstVertex;
+    this.vertexCount = vertexCount;
+    this.bounds = bounds;
+    this.lods = lods;
+  }
+}
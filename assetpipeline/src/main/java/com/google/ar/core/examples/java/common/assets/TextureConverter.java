@@ -0,0 +1,160 @@
+/*
+ * Copyright 2018 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.examples.java.common.assets;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import javax.imageio.ImageIO;
+
+/**
+ * Build-time converter from PNG images to GPU-compressed {@code .ktx} textures. Invoked by the
+ * app's {@code convertTextures} Gradle task, so that textures are uploaded with their mip chain
+ * precomputed and take a quarter (with alpha) to an eighth (opaque) of the memory of RGBA8.
+ *
+ * <p>Usage: {@code TextureConverter <input dir> <output dir>}. Every {@code *.png} file in the
+ * input directory is converted to a {@code .ktx} file of the same name in the output directory:
+ * opaque images to ETC1, which every OpenGL ES 2.0 device on Android supports, and images with
+ * transparency to ETC2 EAC, which needs OpenGL ES 3.0. The app falls back to the PNG file where
+ * the format is not supported.
+ *
+ * <p>This class uses {@code javax.imageio} and only runs on the JVM of the build.
+ */
+public final class TextureConverter {
+  private TextureConverter() {}
+
+  public static void main(String[] args) throws IOException {
+    if (args.length != 2) {
+      System.err.println("Usage: TextureConverter <input dir> <output dir>");
+      System.exit(1);
+    }
+    File inputDir = new File(args[0]);
+    File outputDir = new File(args[1]);
+    if (!outputDir.isDirectory() && !outputDir.mkdirs()) {
+      throw new IOException("Cannot create output directory " + outputDir);
+    }
+
+    File[] pngFiles = inputDir.listFiles((dir, name) -> name.endsWith(".png"));
+    if (pngFiles == null) {
+      throw new IOException("Cannot list input directory " + inputDir);
+    }
+    for (File pngFile : pngFiles) {
+      File ktxFile = new File(outputDir, KtxFormat.textureNameForImage(pngFile.getName()));
+      convert(pngFile, ktxFile);
+    }
+  }
+
+  private static void convert(File pngFile, File ktxFile) throws IOException {
+    BufferedImage image = ImageIO.read(pngFile);
+    if (image == null) {
+      throw new IOException("Cannot decode " + pngFile);
+    }
+    int width = image.getWidth();
+    int height = image.getHeight();
+    int[] argb = image.getRGB(0, 0, width, height, null, 0, width);
+
+    boolean opaque = true;
+    for (int i = 0; i < argb.length; i++) {
+      opaque &= (argb[i] >>> 24) == 0xFF;
+      argb[i] = premultiply(argb[i]);
+    }
+    int internalFormat =
+        opaque ? KtxFormat.GL_ETC1_RGB8_OES : KtxFormat.GL_COMPRESSED_RGBA8_ETC2_EAC;
+
+    List<byte[]> levels = new ArrayList<>();
+    int levelWidth = width;
+    int levelHeight = height;
+    while (true) {
+      levels.add(
+          opaque
+              ? EtcEncoder.encodeEtc1(argb, levelWidth, levelHeight)
+              : EtcEncoder.encodeEtc2Eac(argb, levelWidth, levelHeight));
+      if (levelWidth == 1 && levelHeight == 1) {
+        break;
+      }
+      argb = downsample(argb, levelWidth, levelHeight);
+      levelWidth = Math.max(1, levelWidth / 2);
+      levelHeight = Math.max(1, levelHeight / 2);
+    }
+    try (OutputStream out = new BufferedOutputStream(new FileOutputStream(ktxFile))) {
+      KtxWriter.write(internalFormat, width, height, levels, out);
+    }
+
+    System.out.println(
+        pngFile.getName()
+            + " -> "
+            + ktxFile.getName()
+            + ": "
+            + width
+            + "x"
+            + height
+            + (opaque ? " ETC1, " : " ETC2 EAC, ")
+            + levels.size()
+            + " levels, "
+            + ktxFile.length()
+            + " bytes (RGBA8 with mipmaps: "
+            + width * height * 4 * 4 / 3
+            + " bytes)");
+  }
+
+  /** Premultiplies the color by the alpha, as {@code BitmapFactory} does for the PNG fallback. */
+  private static int premultiply(int argb) {
+    int alpha = argb >>> 24;
+    if (alpha == 0xFF) {
+      return argb;
+    }
+    int red = ((argb >> 16) & 0xFF) * alpha / 255;
+    int green = ((argb >> 8) & 0xFF) * alpha / 255;
+    int blue = (argb & 0xFF) * alpha / 255;
+    return alpha << 24 | red << 16 | green << 8 | blue;
+  }
+
+  /**
+   * Halves an image with a box filter, like {@code glGenerateMipmap} typically does. Odd sizes
+   * drop their last row or column.
+   */
+  private static int[] downsample(int[] argb, int width, int height) {
+    int halfWidth = Math.max(1, width / 2);
+    int halfHeight = Math.max(1, height / 2);
+    int[] result = new int[halfWidth * halfHeight];
+    for (int y = 0; y < halfHeight; y++) {
+      for (int x = 0; x < halfWidth; x++) {
+        int x0 = Math.min(2 * x, width - 1);
+        int x1 = Math.min(2 * x + 1, width - 1);
+        int y0 = Math.min(2 * y, height - 1);
+        int y1 = Math.min(2 * y + 1, height - 1);
+        int[] samples = {
+          argb[y0 * width + x0], argb[y0 * width + x1], argb[y1 * width + x0], argb[y1 * width + x1]
+        };
+        int pixel = 0;
+        for (int shift = 0; shift < 32; shift += 8) {
+          int sum = 2;
+          for (int sample : samples) {
+            sum += (sample >>> shift) & 0xFF;
+          }
+          pixel |= (sum / 4) << shift;
+        }
+        result[y * halfWidth + x] = pixel;
+      }
+    }
+    return result;
+  }
+}
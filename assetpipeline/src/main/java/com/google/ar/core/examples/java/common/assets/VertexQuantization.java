@@ -0,0 +1,73 @@
+/*
+ * Copyright 2018 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.examples.java.common.assets;
+
+/**
+ * Encodings of the quantized vertex attributes in the {@link MeshFormat} layout. The matching
+ * decoding happens on the GPU: normalized attributes are expanded by OpenGL, positions and texture
+ * coordinates are dequantized with per-mesh transforms, and normals in {@code object.vert}.
+ */
+public final class VertexQuantization {
+  private static final int UNORM16_MAX = 0xFFFF;
+  private static final int SNORM16_MAX = 0x7FFF;
+
+  private VertexQuantization() {}
+
+  /**
+   * Maps {@code value} from {@code [min, max]} to an unsigned 16-bit normalized integer. A
+   * degenerate range maps to 0.
+   */
+  public static short quantizeUnorm16(float value, float min, float max) {
+    if (max <= min) {
+      return 0;
+    }
+    float normalized = (value - min) / (max - min);
+    int quantized = Math.round(normalized * UNORM16_MAX);
+    return (short) Math.max(0, Math.min(UNORM16_MAX, quantized));
+  }
+
+  /**
+   * Encodes a unit vector with the octahedral mapping ("A Survey of Efficient Representations for
+   * Independent Unit Vectors", Cigolle et al.) into two signed 16-bit normalized integers.
+   *
+   * @param result Receives the two encoded components.
+   */
+  public static void encodeOctahedral(float x, float y, float z, short[] result) {
+    float l1 = Math.abs(x) + Math.abs(y) + Math.abs(z);
+    if (l1 == 0) {
+      // Missing normals, as in models without them, encode as +Z.
+      result[0] = 0;
+      result[1] = 0;
+      return;
+    }
+    float u = x / l1;
+    float v = y / l1;
+    if (z < 0) {
+      // Fold the lower hemisphere over the diagonals. Zero counts as positive, as in the shader.
+      float foldedU = (1 - Math.abs(v)) * (u >= 0 ? 1 : -1);
+      float foldedV = (1 - Math.abs(u)) * (v >= 0 ? 1 : -1);
+      u = foldedU;
+      v = foldedV;
+    }
+    result[0] = quantizeSnorm16(u);
+    result[1] = quantizeSnorm16(v);
+  }
+
+  private static short quantizeSnorm16(float value) {
+    int quantized = Math.round(value * SNORM16_MAX);
+    return (short) Math.max(-SNORM16_MAX, Math.min(SNORM16_MAX, quantized));
+  }
+}